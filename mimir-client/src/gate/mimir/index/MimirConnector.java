@@ -22,14 +22,40 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.net.URL;
+import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
 /**
  * Utility class that implements the client side of the Mimir RPC indexing
  * protocol. 
+ * 
+ * Documents are serialised into batches, which are uploaded to the server by
+ * a pool of background threads (see {@link #setUploadThreads(int)}), so the 
+ * threads submitting documents do not wait for the network. When the maximum
+ * number of batches are waiting to be uploaded (see 
+ * {@link #setMaxPendingBatches(int)}), submitting threads are blocked until a 
+ * batch has been sent. As batches are uploaded in parallel, documents may 
+ * reach the index in a different order from the one they were submitted in.
+ * 
+ * Batches that fail to upload are not sent again automatically, as the 
+ * server may already have indexed some of their documents: they are kept 
+ * until {@link #retryFailedBatches()} is called. The upload error is reported
+ * (once) to the next thread submitting a document, and {@link #close()} fails
+ * if any batches have still not been delivered.
  */
 public class MimirConnector {
   
@@ -101,18 +127,137 @@ public class MimirConnector {
    */
   public static final int DEFAULT_CONNECTION_INTERVAL = -1;
   
+  /**
+   * The default value for the number of upload threads (see 
+   * {@link #setUploadThreads(int)}).
+   */
+  public static final int DEFAULT_UPLOAD_THREADS = 2;
+  
+  /**
+   * The default value for the maximum number of batches waiting to be 
+   * uploaded (see {@link #setMaxPendingBatches(int)}).
+   */
+  public static final int DEFAULT_MAX_PENDING_BATCHES = 4;
+  
+  /**
+   * The number of threads uploading batches to the server.
+   */
+  private int uploadThreads = DEFAULT_UPLOAD_THREADS;
+  
+  /**
+   * The maximum number of batches waiting to be uploaded, including the 
+   * ones being uploaded.
+   */
+  private int maxPendingBatches = DEFAULT_MAX_PENDING_BATCHES;
+  
+  /**
+   * Should the batches be compressed before being uploaded?
+   */
+  private volatile boolean compressBatches = false;
+  
+  /**
+   * The number of milliseconds for which the URL obtained from the server
+   * for posting documents is re-used. 
+   */
+  private volatile long indexUrlCacheTime = 0;
+  
+  /**
+   * The executor running the upload tasks.
+   */
+  protected volatile ExecutorService uploadExecutor;
+  
+  /**
+   * Permits for batches waiting to be uploaded. A permit is acquired before 
+   * each batch is submitted, and released when the batch has been uploaded.
+   */
+  protected volatile Semaphore pendingBatches;
+  
+  /**
+   * Lock protecting the replacement of the {@link #uploadExecutor} and 
+   * {@link #pendingBatches}: batches are submitted while holding the read 
+   * lock, and the executor is replaced while holding the write lock.
+   */
+  protected final ReadWriteLock executorLock = new ReentrantReadWriteLock();
+  
+  /**
+   * The first error that occurred while uploading a batch since the last one
+   * was reported, if any. This is reported to the thread submitting the next
+   * document, unless the batch is delivered first (see 
+   * {@link #retryFailedBatches()}).
+   */
+  protected final AtomicReference<IOException> uploadError = 
+      new AtomicReference<IOException>();
+  
+  /**
+   * A batch that failed to upload, with the error that occurred.
+   */
+  protected static class FailedBatch {
+    protected final byte[] batch;
+    
+    protected final IOException error;
+    
+    protected FailedBatch(byte[] batch, IOException error) {
+      this.batch = batch;
+      this.error = error;
+    }
+  }
+  
+  /**
+   * Batches that failed to upload, waiting for 
+   * {@link #retryFailedBatches()}.
+   */
+  protected final Queue<FailedBatch> failedBatches = 
+      new ConcurrentLinkedQueue<FailedBatch>();
+  
+  /**
+   * The URL used for posting documents, as last obtained from the server. 
+   */
+  private String cachedPostUrl;
+  
+  /**
+   * The time when {@link #cachedPostUrl} was obtained.
+   */
+  private long cachedPostUrlTime;
+  
+  /**
+   * Lock protecting {@link #cachedPostUrl}. This is separate from the lock 
+   * on the connector, as the upload threads must not wait for the threads 
+   * submitting documents.
+   */
+  private final Object postUrlLock = new Object();
+  
   public MimirConnector(URL indexUrl, WebUtils webUtils) throws IOException {
     this.indexURL = indexUrl;
     this.webUtils = webUtils;
     byteBuffer = new ByteArrayOutputStream(BYTE_BUFFER_SIZE);
     objectOutputStream = new ObjectOutputStream(byteBuffer);
     lastWrite = System.currentTimeMillis();
+    createUploadExecutor();
   }
   
   public MimirConnector(URL indexUrl) throws IOException {
     this(indexUrl, new WebUtils());
   }
   
+  /**
+   * Creates the executor for the upload tasks, using the current values for
+   * the number of threads and the maximum number of pending batches.
+   */
+  protected void createUploadExecutor() {
+    uploadExecutor = Executors.newFixedThreadPool(uploadThreads, 
+        new ThreadFactory() {
+          private int threadCount = 0;
+          @Override
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, MimirConnector.class.getName() + 
+                " upload thread " + (threadCount++));
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    pendingBatches = new Semaphore(maxPendingBatches);
+  }
+  
   /**
    * Pass the given GATE document to the Mimir index at the given URL for
    * indexing.  The document should match the expectations of the Mimir index
@@ -130,12 +275,18 @@ public class MimirConnector {
    *         document.  This would typically be of the form
    *         <code>http://server:port/mimir/&lt;index UUID&gt;/</code>.
    * @throws IOException if any error has occurred communicating with the Mímir
-   *         service.
+   *         service (including errors that occurred while uploading 
+   *         previously submitted documents, in which case this document is 
+   *         not submitted, and the failed documents are kept until 
+   *         {@link #retryFailedBatches()} is called).
    * @throws InterruptedException if the current thread is interrupted while
    * waiting to submit the document to the input queue.
    */
   public void sendToMimir(Document doc, String documentURI) throws IOException, InterruptedException {
     if(closed) throw new IOException("This Mímir connector has been closed.");
+    // the background timer submits null documents: errors are reported to
+    // the caller instead 
+    if(doc != null) checkUploadError();
 
     boolean uriFeatureWasSet = false;
     Object oldUriFeatureValue = null;
@@ -147,64 +298,228 @@ public class MimirConnector {
       doc.getFeatures().put(MIMIR_URI_FEATURE, documentURI);
     }
     
-    synchronized(this) {
-      if(doc != null){
-        objectOutputStream.writeUnshared(doc);
-        docsSinceLastConnection++;
-      }
-      if(byteBuffer.size() > BYTE_BUFFER_SIZE) {
-        writeBuffer(); // this will also empty (reset) the buffer
-      }
-      // if too long since last write, write the buffer
-      if(System.currentTimeMillis() - lastWrite > connectionInterval) {
-        writeBuffer();
+    byte[] batch = null;
+    try {
+      synchronized(this) {
+        if(doc != null){
+          objectOutputStream.writeUnshared(doc);
+          docsSinceLastConnection++;
+        }
+        // write the buffer if full, or if too long since last write
+        if(byteBuffer.size() > BYTE_BUFFER_SIZE || 
+           System.currentTimeMillis() - lastWrite > connectionInterval) {
+          batch = takeBatch(); // this will also empty (reset) the buffer
+        }
       }
-    }
-
-    if(documentURI != null && doc != null) {
-      // reset the URI feature to the value it had (or didn't have) before
-      if(uriFeatureWasSet) {
-        doc.getFeatures().put(MIMIR_URI_FEATURE, oldUriFeatureValue);
-      } else {
-        doc.getFeatures().remove(MIMIR_URI_FEATURE);
+    } finally {
+      if(documentURI != null && doc != null) {
+        // reset the URI feature to the value it had (or didn't have) before
+        if(uriFeatureWasSet) {
+          doc.getFeatures().put(MIMIR_URI_FEATURE, oldUriFeatureValue);
+        } else {
+          doc.getFeatures().remove(MIMIR_URI_FEATURE);
+        }
       }
     }
+    // submit the batch outside the lock, so other threads can continue 
+    // serialising documents while we wait for space in the upload queue. 
+    if(batch != null) submitBatch(batch);
   }
   
   /**
-   * Writes the current contents of the byte buffer to the remote server. 
+   * Takes the current contents of the byte buffer, and empties the buffer.
+   * Must be called while holding the lock on this connector.
+   * @return the serialised documents, or <code>null</code> if there are no 
+   * documents in the buffer. 
    * @throws IOException 
    */
-  protected synchronized void writeBuffer() throws IOException {
+  protected byte[] takeBatch() throws IOException {
+    byte[] batch = null;
     if(docsSinceLastConnection > 0) {
-      // first phase - call the indexUrl action to find out where to post the
-      // data
-      StringBuilder indexURLString = new StringBuilder(indexURL.toExternalForm());
-      if(indexURLString.length() == 0) {
-        throw new IllegalArgumentException("No index URL specified");
-      }
-      if(indexURLString.charAt(indexURLString.length() - 1) != '/') {
-        // add a slash if necessary
-        indexURLString.append('/');
-      }
-      indexURLString.append("manage/indexUrl");
-      StringBuilder postUrlBuilder = new StringBuilder();
-      
-      webUtils.getText(postUrlBuilder, indexURLString.toString());
-
-      // second phase - post to the URL we were given
       // close the object OS so that it writes its coda
       objectOutputStream.close();
+      batch = byteBuffer.toByteArray();
+      byteBuffer.reset();
+      objectOutputStream = new ObjectOutputStream(byteBuffer);
+      docsSinceLastConnection = 0;
+    }
+    lastWrite = System.currentTimeMillis();
+    return batch;
+  }
+  
+  /**
+   * Queues a batch of serialised documents for uploading, waiting if the
+   * maximum number of batches are already waiting.
+   * @throws InterruptedException 
+   */
+  protected void submitBatch(final byte[] batch) throws InterruptedException {
+    executorLock.readLock().lock();
+    try {
+      final Semaphore permits = pendingBatches;
+      permits.acquire();
+      try {
+        uploadExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              uploadBatch(batch);
+            } catch(IOException e) {
+              uploadFailed(batch, e);
+            } catch(RuntimeException e) {
+              uploadFailed(batch, new IOException(e));
+            } finally {
+              permits.release();
+            }
+          }
+        });
+      } catch(RejectedExecutionException e) {
+        permits.release();
+        throw e;
+      }
+    } finally {
+      executorLock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Keeps a batch that could not be uploaded, so that it can be sent again 
+   * by {@link #retryFailedBatches()}, and records the error, so that it is 
+   * reported to the client.
+   */
+  protected void uploadFailed(byte[] batch, IOException e) {
+    logger.error("Error while sending documents to Mímir", e);
+    failedBatches.add(new FailedBatch(batch, e));
+    uploadError.compareAndSet(null, e);
+  }
+  
+  /**
+   * Sends again, on the calling thread, the batches of documents that failed
+   * to upload. The server may have indexed some of the documents in a failed
+   * batch before the error occurred, in which case they are indexed twice.
+   * This can also be called after the connector has been closed.
+   * @return the number of batches sent.
+   * @throws IOException if a batch fails to upload again. That batch and the
+   * ones not sent yet are kept, so this can be called again later.
+   */
+  public int retryFailedBatches() throws IOException {
+    int sent = 0;
+    FailedBatch failed = failedBatches.poll();
+    while(failed != null) {
       try {
-        webUtils.postData(postUrlBuilder.toString(), byteBuffer);
+        uploadBatch(failed.batch);
+      } catch(IOException e) {
+        failedBatches.add(new FailedBatch(failed.batch, e));
+        throw e;
+      } catch(RuntimeException e) {
+        failedBatches.add(new FailedBatch(failed.batch, new IOException(e)));
+        throw e;
       } finally {
-        byteBuffer.reset();
-        objectOutputStream = new ObjectOutputStream(byteBuffer);
-        docsSinceLastConnection = 0;
+        // the error is superseded, either by the batch being delivered, or 
+        // by the new error thrown to the caller
+        uploadError.compareAndSet(failed.error, null);
       }
+      sent++;
+      failed = failedBatches.poll();
+    }
+    return sent;
+  }
+  
+  /**
+   * Gets the number of batches of documents that failed to upload, and are 
+   * waiting for {@link #retryFailedBatches()}.
+   */
+  public int getFailedBatchCount() {
+    return failedBatches.size();
+  }
+  
+  /**
+   * Throws the first error that occurred while uploading batches since the
+   * last call, if any. Each error is only reported once.
+   * @throws IOException
+   */
+  protected void checkUploadError() throws IOException {
+    IOException e = uploadError.getAndSet(null);
+    if(e != null) {
+      throw new IOException("Error while sending documents to Mímir", e);
     }
-    
-    lastWrite = System.currentTimeMillis();
+  }
+  
+  /**
+   * Writes a batch of serialised documents to the remote server.
+   * @throws IOException 
+   */
+  protected void uploadBatch(byte[] batch) throws IOException {
+    byte[] data = batch;
+    String contentEncoding = null;
+    if(compressBatches) {
+      ByteArrayOutputStream compressed = 
+          new ByteArrayOutputStream(batch.length / 4);
+      GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+      gzipStream.write(batch);
+      gzipStream.close();
+      data = compressed.toByteArray();
+      contentEncoding = "gzip";
+    }
+    String postUrl = getPostUrl();
+    try {
+      webUtils.postData(postUrl, data, contentEncoding);
+    } catch(IOException e) {
+      // the URL may have changed: don't use it again
+      synchronized(postUrlLock) {
+        if(postUrl.equals(cachedPostUrl)) cachedPostUrl = null;
+      }
+      throw e;
+    }
+  }
+  
+  /**
+   * Gets the URL where documents should be posted, either from the server, 
+   * by calling the indexUrl action, or from the cache (see 
+   * {@link #setIndexUrlCacheTime(long)}).
+   * @throws IOException
+   */
+  protected String getPostUrl() throws IOException {
+    if(indexUrlCacheTime > 0) {
+      synchronized(postUrlLock) {
+        if(cachedPostUrl != null && 
+           System.currentTimeMillis() - cachedPostUrlTime < indexUrlCacheTime) {
+          return cachedPostUrl;
+        }
+      }
+    }
+    StringBuilder indexURLString = new StringBuilder(indexURL.toExternalForm());
+    if(indexURLString.length() == 0) {
+      throw new IllegalArgumentException("No index URL specified");
+    }
+    if(indexURLString.charAt(indexURLString.length() - 1) != '/') {
+      // add a slash if necessary
+      indexURLString.append('/');
+    }
+    indexURLString.append("manage/indexUrl");
+    StringBuilder postUrlBuilder = new StringBuilder();
+    webUtils.getText(postUrlBuilder, indexURLString.toString());
+    String postUrl = postUrlBuilder.toString();
+    if(indexUrlCacheTime > 0) {
+      synchronized(postUrlLock) {
+        cachedPostUrl = postUrl;
+        cachedPostUrlTime = System.currentTimeMillis();
+      }
+    }
+    return postUrl;
+  }
+  
+  /**
+   * Writes the current contents of the byte buffer to the remote server, 
+   * without waiting for the upload to complete.
+   * @throws IOException 
+   * @throws InterruptedException 
+   */
+  protected void writeBuffer() throws IOException, InterruptedException {
+    byte[] batch;
+    synchronized(this) {
+      batch = takeBatch();
+    }
+    if(batch != null) submitBatch(batch);
   }
   
   /**
@@ -229,8 +544,11 @@ public class MimirConnector {
    */
   public synchronized void setConnectionInterval(int connectionInterval) {
     this.connectionInterval = connectionInterval;
-    if(connectionInterval <= 0 && backgroundTimer != null) {
-      backgroundTimer.cancel();
+    if(connectionInterval <= 0) {
+      if(backgroundTimer != null) {
+        backgroundTimer.cancel();
+        backgroundTimer = null;
+      }
     } else {
       if(backgroundTimer != null) {
         backgroundTimer.cancel();
@@ -252,13 +570,147 @@ public class MimirConnector {
     }
   }
 
+  /**
+   * Gets the number of threads used to upload documents to the server.
+   */
+  public int getUploadThreads() {
+    return uploadThreads;
+  }
+
+  /**
+   * Sets the number of threads used to upload batches of documents to the
+   * server in parallel. Defaults to {@value #DEFAULT_UPLOAD_THREADS}. Values 
+   * smaller than 1 are replaced by the default value. This should be called
+   * before any documents are submitted.
+   * @param uploadThreads
+   * @throws InterruptedException if interrupted while waiting for the 
+   * pending uploads to complete.
+   */
+  public synchronized void setUploadThreads(int uploadThreads) 
+      throws InterruptedException {
+    uploadThreads = uploadThreads > 0 ? uploadThreads : DEFAULT_UPLOAD_THREADS;
+    if(uploadThreads != this.uploadThreads) {
+      this.uploadThreads = uploadThreads;
+      replaceUploadExecutor();
+    }
+  }
+
+  /**
+   * Gets the maximum number of batches of documents waiting to be uploaded.
+   */
+  public int getMaxPendingBatches() {
+    return maxPendingBatches;
+  }
+
+  /**
+   * Sets the maximum number of batches of documents waiting to be uploaded
+   * (including the ones being uploaded). When this many batches are waiting,
+   * threads submitting documents are blocked until a batch has been sent. 
+   * Defaults to {@value #DEFAULT_MAX_PENDING_BATCHES}. Values smaller than 
+   * the number of upload threads are replaced by the number of upload 
+   * threads. This should be called before any documents are submitted.
+   * @param maxPendingBatches
+   * @throws InterruptedException if interrupted while waiting for the 
+   * pending uploads to complete.
+   */
+  public synchronized void setMaxPendingBatches(int maxPendingBatches) 
+      throws InterruptedException {
+    maxPendingBatches = Math.max(maxPendingBatches, uploadThreads);
+    if(maxPendingBatches != this.maxPendingBatches) {
+      this.maxPendingBatches = maxPendingBatches;
+      replaceUploadExecutor();
+    }
+  }
+  
+  /**
+   * Waits for the pending uploads to complete, and creates a new upload 
+   * executor with the current settings.
+   */
+  private void replaceUploadExecutor() throws InterruptedException {
+    executorLock.writeLock().lock();
+    try {
+      awaitUploads();
+      createUploadExecutor();
+    } finally {
+      executorLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Shuts down the upload executor, and waits for the pending uploads to 
+   * complete.
+   */
+  private void shutdownUploadExecutor() throws InterruptedException {
+    executorLock.writeLock().lock();
+    try {
+      awaitUploads();
+    } finally {
+      executorLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Shuts down the upload executor, and waits for the pending uploads to 
+   * complete. Must be called while holding the write lock on 
+   * {@link #executorLock}.
+   */
+  private void awaitUploads() throws InterruptedException {
+    uploadExecutor.shutdown();
+    while(!uploadExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+      logger.info("Waiting for documents to be sent to Mímir...");
+    }
+  }
+
+  /**
+   * Are batches compressed before being uploaded?
+   */
+  public boolean isCompressBatches() {
+    return compressBatches;
+  }
+
+  /**
+   * Sets whether batches of documents should be compressed (using gzip) 
+   * before being uploaded, which reduces the amount of data sent at the cost
+   * of some processing time. The server must support compressed uploads, 
+   * which older versions do not. Defaults to <code>false</code>.
+   * @param compressBatches
+   */
+  public void setCompressBatches(boolean compressBatches) {
+    this.compressBatches = compressBatches;
+  }
+
+  /**
+   * Gets the number of milliseconds for which the URL for posting documents 
+   * is re-used.
+   */
+  public long getIndexUrlCacheTime() {
+    return indexUrlCacheTime;
+  }
+
+  /**
+   * Sets the number of milliseconds for which the URL for posting documents,
+   * as obtained from the server, is re-used, saving a request for each 
+   * batch. Defaults to 0, meaning the URL is requested for each batch. This 
+   * should not be changed when sending documents to a federated index, as 
+   * the server returns the URL for a different sub-index each time, to 
+   * balance the load. 
+   * @param indexUrlCacheTime
+   */
+  public void setIndexUrlCacheTime(long indexUrlCacheTime) {
+    synchronized(postUrlLock) {
+      this.indexUrlCacheTime = indexUrlCacheTime;
+      cachedPostUrl = null;
+    }
+  }
+
   /**
    * Notifies this Mímir connector that no more documents remain to be sent.
    * At this point any locally cached documents are submitted to the remote
    * server, after which the remote connection is closed. This method then 
    * returns.
-   * @throws IOException if the background thread used for the communication 
-   * with the remote end point has encountered a problem.
+   * @throws IOException if some batches of documents could not be uploaded.
+   * These are kept, and can be sent again by calling 
+   * {@link #retryFailedBatches()}.
    * @throws InterruptedException if the current thread is interrupted while
    * waiting to notify the background thread of the termination.
    */
@@ -267,8 +719,20 @@ public class MimirConnector {
     if(backgroundTimer != null){
       backgroundTimer.cancel();
     }
-    // flush all cached content one last time
-    writeBuffer();
+    try {
+      // flush all cached content one last time
+      writeBuffer();
+    } finally {
+      // wait for all the uploads to complete
+      shutdownUploadExecutor();
+    }
+    // all the errors are reported here, even if some were reported before: 
+    // the ones whose batches have been delivered since no longer matter
+    uploadError.set(null);
+    FailedBatch failed = failedBatches.peek();
+    if(failed != null) {
+      throw new IOException(failedBatches.size() + 
+          " batches of documents could not be sent to Mímir", failed.error);
+    }
   }
 }
-
@@ -47,6 +47,10 @@ public class MimirIndexingPR extends AbstractLanguageAnalyser {
 
   private Integer connectionInterval;
 
+  private Integer uploadThreads;
+
+  private Boolean compressBatches;
+
   protected MimirConnector mimirConnector;
   
   
@@ -100,6 +104,34 @@ public class MimirIndexingPR extends AbstractLanguageAnalyser {
     closeConnector();
   }
 
+  public Integer getUploadThreads() {
+    return uploadThreads;
+  }
+
+  @CreoleParameter(comment="Number of threads sending batches of documents to the Mímir server "
+      + "in parallel, while further documents are being processed.",
+      defaultValue = "2")
+  @Optional
+  @RunTime
+  public void setUploadThreads(Integer uploadThreads) {
+    this.uploadThreads = uploadThreads;
+    closeConnector();
+  }
+
+  public Boolean getCompressBatches() {
+    return compressBatches;
+  }
+
+  @CreoleParameter(comment="Should the batches of documents be compressed before being sent to the "
+      + "Mímir server? This requires a server version that supports compressed uploads.",
+      defaultValue = "false")
+  @Optional
+  @RunTime
+  public void setCompressBatches(Boolean compressBatches) {
+    this.compressBatches = compressBatches;
+    closeConnector();
+  }
+
   @Override
   public void cleanup() {
     closeConnector();
@@ -130,6 +162,12 @@ public class MimirIndexingPR extends AbstractLanguageAnalyser {
         if(connectionInterval != null) {
           mimirConnector.setConnectionInterval(connectionInterval.intValue());
         }
+        if(uploadThreads != null) {
+          mimirConnector.setUploadThreads(uploadThreads.intValue());
+        }
+        if(compressBatches != null) {
+          mimirConnector.setCompressBatches(compressBatches.booleanValue());
+        }
       }
       mimirConnector.sendToMimir(getDocument(), null);
     } catch(Exception e) {
@@ -26,8 +26,10 @@ import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
 import it.unimi.dsi.fastutil.longs.LongBigList;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,10 +57,14 @@ public class RemoteQueryRunner implements QueryRunner {
   
   protected static final String ACTION_DOC_SCORES_BIN = "documentsScoresBin";
   
+  protected static final String ACTION_DOCS_STREAM_BIN = "documentsStreamBin";
+  
   protected static final String ACTION_DOC_HITS_BIN = "documentHitsBin";
   
   protected static final String ACTION_DOC_DATA_BIN = "documentDataBin";
   
+  protected static final String ACTION_RESULTS_PAGE_BIN = "resultsPageBin";
+  
   protected static final String ACTION_RENDER_DOCUMENT = "renderDocument";
   
   protected static final String ACTION_CLOSE = "close";
@@ -68,54 +74,83 @@ public class RemoteQueryRunner implements QueryRunner {
    */
   protected static final int DOCUMENT_CACHE_SIZE = 1000;
   
+  /**
+   * Message type in the documents stream (see {@link #ACTION_DOCS_STREAM_BIN})
+   * marking the end of the stream.
+   */
+  public static final byte MSG_END = 0;
+  
+  /**
+   * Message type in the documents stream: the number of documents found so 
+   * far, sent while the search is running, followed by a long value.
+   */
+  public static final byte MSG_CURRENT_COUNT = 1;
+  
+  /**
+   * Message type in the documents stream: the total number of documents, sent
+   * when the search has completed, followed by a long value.
+   */
+  public static final byte MSG_DOCUMENTS_COUNT = 2;
+  
+  /**
+   * Message type in the documents stream: a block of documents, with the 
+   * number of documents as an int value, followed by the document IDs (long 
+   * values) and the document scores (double values), in ranking order. 
+   */
+  public static final byte MSG_DOCUMENTS = 3;
+  
+  /**
+   * Message type in the documents stream: an error occurred on the remote 
+   * side, followed by the error message, in UTF format. This ends the 
+   * stream.
+   */
+  public static final byte MSG_ERROR = 4;
+  
   /**
    * Action run in a background thread, used to update the document data 
    * (document ID, document score) from the remote endpoint.
-   * This runs once,  started during the creation of the query runner.
+   * This runs once,  started during the creation of the query runner. It 
+   * reads the documents stream from the remote endpoint, which provides the 
+   * current documents count while the search is running, followed by the 
+   * total count and the first block of document IDs and scores.
    */
   protected class DocumentDataUpdater implements Runnable {
     @Override
     public void run() {
       int failuresAllowed = 10;
-      // wait for the first pass to complete
-      while(documentsCount < 0) {
-        if(closed) return;
-        // update document counts
-        try {
-          long newDocumentsCount = webUtils.getLong(
-              getActionBaseUrl(ACTION_DOC_COUNT_BIN), "queryId", 
-              URLEncoder.encode(queryId, "UTF-8"));
-          if(newDocumentsCount < 0) {
-            // still not finished-> update current count
-            currentDocumentsCount = webUtils.getLong(
-              getActionBaseUrl(ACTION_CURRENT_DOC_COUNT_BIN), "queryId", 
-              URLEncoder.encode(queryId, "UTF-8"));
-            // ... and wait a while before asking again
-            Thread.sleep(500);
-          } else {
-            // remote side has finished enumerating all documents
-            // download the first block of IDs and scores
-            downloadDocIdScores(0);
-            // ...and we're done!
-            documentsCount = newDocumentsCount;
-          }
-        } catch(InterruptedException e) {
-          Thread.currentThread().interrupt();
-          logger.warn("Interrupted while waiting", e);
-        } catch (Exception e) {
-          if(failuresAllowed > 0) {
-            failuresAllowed --;
-            logger.error("Exception while obtaining remote document data (will retry)", e);
-            try {
-              Thread.sleep(100);
-            } catch(InterruptedException e1) {
-              Thread.currentThread().interrupt();
+      try {
+        while(!closed) {
+          try {
+            // resume from where the previous attempt (if any) stopped 
+            long firstRank;
+            synchronized(RemoteQueryRunner.this) {
+              firstRank = documentIds.size64();
             }
-          } else {
-            logger.error("Exception while obtaining remote document data.", e);
-            exceptionInBackgroundThread = e;
+            readDocumentsStream(firstRank, 
+                Math.max(0, docBlockSize - firstRank));
+            // ...and we're done!
             return;
-          }          
+          } catch (Exception e) {
+            if(closed) return;
+            if(failuresAllowed > 0) {
+              failuresAllowed --;
+              logger.error("Exception while obtaining remote document data (will retry)", e);
+              try {
+                Thread.sleep(100);
+              } catch(InterruptedException e1) {
+                Thread.currentThread().interrupt();
+              }
+            } else {
+              logger.error("Exception while obtaining remote document data.", e);
+              exceptionInBackgroundThread = e;
+              return;
+            }          
+          }
+        }
+      } finally {
+        synchronized(RemoteQueryRunner.this) {
+          initialDocumentsRead = true;
+          RemoteQueryRunner.this.notifyAll();
         }
       }
     }
@@ -165,6 +200,23 @@ public class RemoteQueryRunner implements QueryRunner {
    */
   private volatile FutureTask<Object> docDataUpdaterFuture;
   
+  /**
+   * Set to <code>true</code> when the background task has finished reading
+   * the first block of documents (or has given up). Until then, threads 
+   * requesting documents from the first block wait for the background task, 
+   * instead of downloading the documents themselves. Guarded by the lock on 
+   * this object.
+   */
+  private boolean initialDocumentsRead;
+  
+  /**
+   * Set to <code>true</code> while a thread is downloading more document IDs 
+   * and scores (see {@link #downloadDocIdScores(long)}), so that other 
+   * threads wait for it instead of requesting the same documents. Guarded by
+   * the lock on this object, which is not held during the download.
+   */
+  private boolean downloading;
+  
   private volatile boolean closed;
   
   /**
@@ -182,7 +234,8 @@ public class RemoteQueryRunner implements QueryRunner {
 
   /**
    * The document IDs in ranking order. If ranking is not preformed, then the
-   * document IDs are in the order they are returned by the index. 
+   * document IDs are in the order they are returned by the index. Guarded by
+   * the lock on this object.
    */
   protected LongBigList documentIds;  
   
@@ -281,6 +334,7 @@ public class RemoteQueryRunner implements QueryRunner {
     // start the background action
     documentsCount = -1;
     currentDocumentsCount = 0;
+    initialDocumentsRead = false;
     docDataUpdaterFuture = new FutureTask<Object>( new DocumentDataUpdater(), null); 
     if(threadSource != null) {
       threadSource.execute(docDataUpdaterFuture);
@@ -380,26 +434,26 @@ public class RemoteQueryRunner implements QueryRunner {
    * @see gate.mimir.search.QueryRunner#getDocumentID(int)
    */
   @Override
-  public long getDocumentID(long rank) throws IndexOutOfBoundsException,
-          IOException {
-    if(rank >= documentIds.size()) {
-      // we need to get more document IDs&scores
-      downloadDocIdScores(rank);
+  public long getDocumentID(long rank) 
+      throws IndexOutOfBoundsException, IOException {
+    // get more document IDs&scores, if needed
+    downloadDocIdScores(rank);
+    synchronized(this) {
+      return documentIds.getLong(rank);
     }
-    return documentIds.getLong(rank);
   }
 
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#getDocumentScore(int)
    */
   @Override
-  public double getDocumentScore(long rank) throws IndexOutOfBoundsException,
-          IOException {
-    if(rank >= documentScores.size64()) {
-      // we need to get more document IDs&scores
-      downloadDocIdScores(rank);
-    }    
-    return documentScores.get(rank);
+  public double getDocumentScore(long rank) 
+      throws IndexOutOfBoundsException, IOException {
+    // get more document IDs&scores, if needed
+    downloadDocIdScores(rank);
+    synchronized(this) {
+      return documentScores.getDouble(rank);
+    }
   }
 
   /* (non-Javadoc)
@@ -471,6 +525,44 @@ public class RemoteQueryRunner implements QueryRunner {
     return res;
   }
 
+  /* (non-Javadoc)
+   * @see gate.mimir.search.QueryRunner#getResultsPage(long, int, int, int, java.util.Set)
+   */
+  @Override
+  public ResultsPage getResultsPage(long firstRank, int size,
+      int contextLength, int maxSnippets, Set<String> fieldNames)
+      throws IndexException, IndexOutOfBoundsException, IOException {
+    List<String> params = new ArrayList<String>();
+    params.add("queryId");
+    params.add(queryId);
+    params.add("firstRank");
+    params.add(Long.toString(firstRank));
+    params.add("size");
+    params.add(Integer.toString(size));
+    params.add("contextLength");
+    params.add(Integer.toString(contextLength));
+    params.add("maxSnippets");
+    params.add(Integer.toString(maxSnippets));
+    if(fieldNames != null && !fieldNames.isEmpty()) {
+      // comma-separated, with commas in the names escaped
+      StringBuilder fieldNamesStr = new StringBuilder();
+      for(String fieldName : fieldNames) {
+        if(fieldNamesStr.length() > 0) fieldNamesStr.append(',');
+        fieldNamesStr.append(fieldName.replace(",", "\\,"));
+      }
+      params.add("fieldNames");
+      params.add(URLEncoder.encode(fieldNamesStr.toString(), "UTF-8"));
+    }
+    try {
+      return (ResultsPage)webUtils.getObject(
+          getActionBaseUrl(ACTION_RESULTS_PAGE_BIN), 
+          params.toArray(new String[params.size()]));
+    } catch(ClassNotFoundException e) {
+      throw new IndexException("Was expecting a ResultsPage value, " +
+          "but got an unknown object type!", e);
+    }
+  }
+
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#renderDocument(int, java.lang.Appendable)
    */
@@ -494,36 +586,113 @@ public class RemoteQueryRunner implements QueryRunner {
   }
   
   /**
-   * Gets from the remote end point a range of document IDs and document scores,
-   * which is guaranteed to include the document at the given rank.
+   * Makes sure the document IDs and scores up to the given rank (if it 
+   * exists) have been obtained from the remote end point, downloading a range
+   * of documents if needed. If the background task is still reading the 
+   * first block of documents, or another thread is downloading documents, 
+   * this waits for it instead. The lock on this object is not held during 
+   * the download, so the documents already obtained remain available to 
+   * other threads.
    * @param rank
    * @throws IOException 
    */
   protected void downloadDocIdScores(long rank) throws IOException {
-    long firstRank = documentIds.size64();
-    if(firstRank != documentScores.size64()) {
-      throw new IllegalStateException("Document IDs and scores out of sync.");
+    long firstRank;
+    long size;
+    synchronized(this) {
+      while(rank >= documentIds.size64() && 
+            (!initialDocumentsRead || downloading)) {
+        try {
+          wait();
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "Interrupted while waiting for the remote document data");
+        }
+      }
+      if(rank < documentIds.size64()) return;
+      firstRank = documentIds.size64();
+      if(firstRank != documentScores.size64()) {
+        throw new IllegalStateException("Document IDs and scores out of sync.");
+      }
+      size = rank - firstRank + 1;
+      if(size < docBlockSize) size = docBlockSize;
+      downloading = true;
     }
-    long size = rank - firstRank;
-    if(size < docBlockSize) size = docBlockSize;
-    
-    long[] newDocIds;
-    double[] newDocScores;
     try {
-      newDocIds = (long[]) webUtils.getObject(
-        getActionBaseUrl(ACTION_DOC_IDS_BIN), 
-        "queryId", URLEncoder.encode(queryId, "UTF-8"),
-        "firstRank", Long.toString(firstRank),
-        "size", Long.toString(size));
-      documentIds.addElements(firstRank, new long[][]{newDocIds});
-      newDocScores = (double[]) webUtils.getObject(
-        getActionBaseUrl(ACTION_DOC_SCORES_BIN), 
-        "queryId", URLEncoder.encode(queryId, "UTF-8"),
-        "firstRank", Long.toString(firstRank),
-        "size", Long.toString(size));
-      documentScores.addElements(firstRank, new double[][]{newDocScores});
+      readDocumentsStream(firstRank, size);
+    } finally {
+      synchronized(this) {
+        downloading = false;
+        notifyAll();
+      }
+    }
+  }
+  
+  /**
+   * Reads the documents stream from the remote endpoint, which provides 
+   * updates on the documents count until the search completes, followed by 
+   * the IDs and scores for the requested documents. Document counts are 
+   * stored as soon as received, and each block of documents is added to 
+   * {@link #documentIds} and {@link #documentScores} as soon as it arrives.
+   *  
+   * @param firstRank the rank of the first document requested. This must be
+   * the number of documents already downloaded.
+   * @param size the number of documents requested.
+   * @throws IOException
+   */
+  protected void readDocumentsStream(final long firstRank, long size) 
+      throws IOException {
+    try {
+      webUtils.readObjectStream(input -> {
+        long rank = firstRank;
+        while(true) {
+          byte messageType = input.readByte();
+          switch(messageType) {
+            case MSG_CURRENT_COUNT:
+              currentDocumentsCount = input.readLong();
+              break;
+            case MSG_DOCUMENTS_COUNT:
+              long count = input.readLong();
+              currentDocumentsCount = count;
+              documentsCount = count;
+              break;
+            case MSG_DOCUMENTS:
+              int blockSize = input.readInt();
+              long[] newDocIds = new long[blockSize];
+              for(int i = 0; i < blockSize; i++) newDocIds[i] = input.readLong();
+              double[] newDocScores = new double[blockSize];
+              for(int i = 0; i < blockSize; i++) {
+                newDocScores[i] = input.readDouble();
+              }
+              synchronized(this) {
+                if(documentIds.size64() != rank || 
+                   documentScores.size64() != rank) {
+                  throw new IllegalStateException(
+                      "Document IDs and scores out of sync.");
+                }
+                documentIds.addElements(rank, new long[][]{newDocIds});
+                documentScores.addElements(rank, new double[][]{newDocScores});
+                notifyAll();
+              }
+              rank += blockSize;
+              break;
+            case MSG_ERROR:
+              throw new IOException("Error on the remote endpoint: " + 
+                  input.readUTF());
+            case MSG_END:
+              return null;
+            default:
+              throw new IOException("Unknown message type " + messageType + 
+                  " in the remote documents stream.");
+          }
+        }
+      }, getActionBaseUrl(ACTION_DOCS_STREAM_BIN), 
+      "queryId", URLEncoder.encode(queryId, "UTF-8"),
+      "firstRank", Long.toString(firstRank),
+      "size", Long.toString(size));
     } catch(ClassNotFoundException e) {
-      // this should really not happen (the 'class' is double)
+      // this should really not happen (only primitive values are read)
       throw new RuntimeException("Error communicating to remote endpoint", e);
     }
   }
@@ -349,6 +349,49 @@ public class WebUtils {
         }
     }
 
+    /**
+     * Calls a web service action (i.e. it connects to a URL), and passes the
+     * response to the given reader as an {@link ObjectInputStream}, as soon as
+     * the response starts arriving. This allows the reader to process values
+     * incrementally, while the server is still producing the rest of the
+     * response. If the connection fails, for whatever reason, or the response
+     * code is different from {@link HttpURLConnection#HTTP_OK}, then an
+     * IOException is raised.
+     *
+     * @param reader  the reader consuming the response.
+     * @param baseUrl the constant part of the URL to be accessed.
+     * @param params  an array of String values, that contain an alternation of
+     *                parameter name, and parameter values.
+     * @return the value returned by the reader.
+     * @throws IOException            if the connection fails.
+     * @throws ClassNotFoundException if a value read from the remote connection
+     *                                is of a type unknown to the local JVM.
+     */
+    public <T> T readObjectStream(ObjectStreamReader<T> reader, String baseUrl,
+                                  String... params)
+            throws IOException, ClassNotFoundException {
+        HttpGet request = new HttpGet(buildUrl(baseUrl, params));
+
+        try {
+            return new RequestExecutor<T>(this)
+                    .runObjectRequest(request, reader::read);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) e.getCause();
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Consumer for the responses read by
+     * {@link WebUtils#readObjectStream(ObjectStreamReader, String, String...)}.
+     */
+    public interface ObjectStreamReader<T> {
+        T read(ObjectInputStream input) throws IOException, ClassNotFoundException;
+    }
+
     /**
      * Calls a web service action (i.e. it connects to a URL) using the POST HTTP
      * method, sending the given object in Java serialized format as the request
@@ -402,11 +445,34 @@ public class WebUtils {
      */
     public void postData(String baseUrl, ByteArrayOutputStream data,
                          String... params) throws IOException {
+        postData(baseUrl, data.toByteArray(), null, params);
+    }
+
+    /**
+     * Calls a web service action (i.e. it connects to a URL) using the POST HTTP
+     * method, sending the given bytes as the request body, as described for
+     * {@link #postData(String, ByteArrayOutputStream, String...)}. If a content
+     * encoding is provided, it is sent as the request's Content-Encoding
+     * header, and the data should already be encoded accordingly.
+     *
+     * @param baseUrl         the constant part of the URL to be accessed.
+     * @param data            the data to be written.
+     * @param contentEncoding the encoding of the data (e.g. "gzip"), or
+     *                        <code>null</code> if the data is not encoded.
+     * @param params          an array of String values, that contain an
+     *                        alternation of parameter name, and parameter values.
+     * @throws IOException if the connection fails.
+     */
+    public void postData(String baseUrl, byte[] data, String contentEncoding,
+                         String... params) throws IOException {
         HttpPost request = new HttpPost(buildUrl(baseUrl, params));
 
         request.setHeader("Content-Type", "application/octet-stream");
+        if (contentEncoding != null) {
+            request.setHeader("Content-Encoding", contentEncoding);
+        }
 
-        ByteArrayEntity entity = new ByteArrayEntity(data.toByteArray());
+        ByteArrayEntity entity = new ByteArrayEntity(data);
         entity.setChunked(true);
         request.setEntity(entity);
 
@@ -67,3 +67,10 @@ scorers.'BM25' = {
 scorers.'Hit Length Scoring' = {
   new BindingScorer()
 }
+
+// The number of threads used to collect the results of each query on a local
+// index.  Values larger than 1 split large indexes into ranges of documents
+// that are searched in parallel, which makes expensive queries faster at the
+// cost of using more threads per query.  Defaults to 1.
+
+// queryParallelism = 4
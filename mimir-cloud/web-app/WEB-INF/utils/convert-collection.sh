@@ -0,0 +1,38 @@
+#!/usr/bin/env bash
+#
+# Simple script to convert the document collection of an index from the zip
+# files used by older versions of Mimir to the current document store format.
+# Indexes with zip collections can still be used without conversion, but
+# retrieving document text (e.g. for snippets) is much slower.
+#
+# IT IS HIGHLY RECOMMENDED TO BACK UP YOUR INDEX BEFORE CONVERTING IT!
+#
+# Usage:
+#
+#   bash convert-collection.sh [-p /path/to/extra/plugin ...] /path/to/index-NNNNN.mimir ...
+#
+# The script will automatically include the plugins that are bundled inside
+# this WAR file (in WEB-INF/mimir-plugins), if your index stores document
+# metadata using classes from any other plugins then you must load those
+# plugins yourself with appropriate -p options.
+#
+# The remaining options on the command line should be the paths to the
+# top-level directories of the Mimir indexes you want to convert (i.e. the
+# directories that contain config.xml and the mimir-collection-*.zip files).
+# The indexes must not be open in a running Mimir.
+#
+
+DIR="`dirname $0`"
+
+if [ -z "$JAVA_HOME" ]; then
+  echo "JAVA_HOME not set"
+  exit 1
+fi
+
+# enumerate all the mimir-plugins
+plugins=()
+for plug in "$DIR"/../mimir-plugins/* ; do
+  plugins=( "${plugins[@]}" -p "$plug" )
+done
+
+"$JAVA_HOME/bin/java" -Xmx1G -classpath "$DIR:$DIR/../lib/*" gate.mimir.util.ConvertDocumentCollection "${plugins[@]}" "$@"
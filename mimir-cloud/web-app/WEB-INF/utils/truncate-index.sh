@@ -20,7 +20,7 @@
 #
 # The final option on the command line should be the path to the top-level
 # directory of the Mimir index you want to repair (i.e. the directory that
-# contains config.xml, mimir-collection-*.zip and all the token-N and mention-N
+# contains config.xml, the document collection files and all the token-N and mention-N
 # subdirectories).
 #
 
@@ -23,9 +23,11 @@ import gate.mimir.util.DefaultMentionDescriber;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 
 /**
@@ -248,6 +250,35 @@ public abstract class AbstractSemanticAnnotationHelper implements
     return getMentions(annotationType, predicates, engine);
   }
 
+  /**
+   * Gets the mentions that satisfy a set of constraints, plus all the 
+   * constraints in at least one of a list of alternatives. This is equivalent
+   * to calling {@link #getMentions(String, List, QueryEngine)} once for each
+   * alternative (with the alternative's constraints added to the common ones)
+   * and merging the results, which is what this implementation does. 
+   * Subclasses should override it if they can find the mentions for many 
+   * alternatives at once (e.g. with a single database query).
+   * 
+   * @param annotationType the annotation type.
+   * @param constraints the constraints that apply to all the alternatives.
+   * @param alternatives the lists of constraints for each alternative.
+   * @param engine the query engine.
+   * @return the mentions found, without duplicates.
+   */
+  public List<Mention> getMentions(String annotationType, 
+      List<Constraint> constraints, List<List<Constraint>> alternatives, 
+      QueryEngine engine) {
+    Set<Mention> mentions = new LinkedHashSet<Mention>();
+    for(List<Constraint> anAlternative : alternatives) {
+      List<Constraint> allConstraints = new ArrayList<Constraint>(
+          constraints.size() + anAlternative.size());
+      allConstraints.addAll(constraints);
+      allConstraints.addAll(anAlternative);
+      mentions.addAll(getMentions(annotationType, allConstraints, engine));
+    }
+    return new ArrayList<Mention>(mentions);
+  }
+
   
   
   /* (non-Javadoc)
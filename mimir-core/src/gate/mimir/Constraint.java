@@ -15,6 +15,7 @@
 package gate.mimir;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * A constraint over an annotation feature value.
@@ -77,6 +78,20 @@ public class Constraint implements Serializable{
     return value;
   }
   
+  @Override
+  public int hashCode() {
+    return Arrays.deepHashCode(new Object[]{featureName, predicate, value});
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) return true;
+    if(!(obj instanceof Constraint)) return false;
+    Constraint other = (Constraint)obj;
+    return Arrays.deepEquals(new Object[]{featureName, predicate, value}, 
+        new Object[]{other.featureName, other.predicate, other.value});
+  }
+
   /* (non-Javadoc)
    * @see java.lang.Object#toString()
    */
@@ -235,6 +235,27 @@ public class IndexConfig implements Serializable {
    */
   public static final int DEFAULT_MAXIMUM_BATCHES = 20;
   
+  /**
+   * The default value for {@link #indexingShards}: each atomic index uses one
+   * single thread for building its in-RAM batch.
+   */
+  public static final int DEFAULT_INDEXING_SHARDS = 1;
+  
+  /**
+   * The default value for {@link #mergeFactor}.
+   */
+  public static final int DEFAULT_MERGE_FACTOR = 10;
+  
+  /**
+   * The default value for {@link #mergeThreads}.
+   */
+  public static final int DEFAULT_MERGE_THREADS = 1;
+  
+  /**
+   * The default value for {@link #documentCacheSize} (32 MiB).
+   */
+  public static final long DEFAULT_DOCUMENT_CACHE_SIZE = 32L * 1024 * 1024;
+  
   /**
    * A Map storing values that need to be passed between the various pluggable
    * components used by this index (e.g. ORDI-based annotation helpers may
@@ -394,8 +415,8 @@ public class IndexConfig implements Serializable {
   }
 
   /**
-   * Gets the maximum number of on-disk index batches before an index compaction
-   * is triggered.
+   * Gets the maximum number of on-disk index batches before a merge of the 
+   * smallest run of adjacent batches is forced.
    * 
    * Defaults to {@value #DEFAULT_MAXIMUM_BATCHES}.
    * @return
@@ -406,8 +427,10 @@ public class IndexConfig implements Serializable {
 
   
   /**
-   * Sets the maximum number of on-disk index batches before an index compaction
-   * is triggered.
+   * Sets the maximum number of on-disk index batches before a merge of the 
+   * smallest run of adjacent batches is forced. Batches of similar sizes are 
+   * normally merged before this limit is reached (see 
+   * {@link #setMergeFactor(int)}).
    * 
    * Defaults to {@link #DEFAULT_MAXIMUM_BATCHES}.
    * @param maximumBatches
@@ -416,6 +439,158 @@ public class IndexConfig implements Serializable {
     this.maximumBatches = maximumBatches;
   }
 
+  /**
+   * Gets the number of shards (each served by its own worker thread) that
+   * each atomic index uses for building its in-RAM index batch. A value of
+   * <code>1</code> means that all the in-RAM indexing is done on the single
+   * indexing thread of each atomic index.
+   * 
+   * Defaults to {@value #DEFAULT_INDEXING_SHARDS}.
+   * @return
+   */
+  public int getIndexingShards() {
+    // indexes created before this option existed will have a value of 0
+    return indexingShards > 0 ? indexingShards : DEFAULT_INDEXING_SHARDS;
+  }
+
+  /**
+   * Sets the number of shards (each served by its own worker thread) that
+   * each atomic index uses for building its in-RAM index batch. The terms 
+   * being indexed are partitioned between the shards, which allows a large 
+   * sub-index (such as the one for token strings) to use more than one CPU 
+   * core. The new value only takes effect when the index is next opened.
+   * 
+   * Defaults to {@value #DEFAULT_INDEXING_SHARDS}.
+   * @param indexingShards
+   */
+  public void setIndexingShards(int indexingShards) {
+    this.indexingShards = indexingShards;
+  }
+
+  /**
+   * Gets the number of adjacent on-disk batches of similar size that get 
+   * merged together into a larger batch. 
+   * 
+   * Defaults to {@value #DEFAULT_MERGE_FACTOR}.
+   * @return
+   */
+  public int getMergeFactor() {
+    // indexes created before this option existed will have a value of 0
+    return mergeFactor > 1 ? mergeFactor : DEFAULT_MERGE_FACTOR;
+  }
+
+  /**
+   * Sets the number of adjacent on-disk batches of similar size that get 
+   * merged together into a larger batch. Smaller values keep the number of 
+   * batches lower, at the cost of re-writing the index data more often.
+   * 
+   * Defaults to {@value #DEFAULT_MERGE_FACTOR}.
+   * @param mergeFactor
+   */
+  public void setMergeFactor(int mergeFactor) {
+    this.mergeFactor = mergeFactor;
+  }
+
+  /**
+   * Gets the number of background threads used for merging on-disk batches.
+   * 
+   * Defaults to {@value #DEFAULT_MERGE_THREADS}.
+   * @return
+   */
+  public int getMergeThreads() {
+    return mergeThreads > 0 ? mergeThreads : DEFAULT_MERGE_THREADS;
+  }
+
+  /**
+   * Sets the number of background threads used for merging on-disk batches.
+   * The new value only takes effect when the index is next opened.
+   * 
+   * Defaults to {@value #DEFAULT_MERGE_THREADS}.
+   * @param mergeThreads
+   */
+  public void setMergeThreads(int mergeThreads) {
+    this.mergeThreads = mergeThreads;
+  }
+
+  /**
+   * Gets the maximum number of bytes per second written by all the background
+   * merges of the index, taken together. A value of <code>0</code> means there
+   * is no limit.
+   * 
+   * Defaults to <code>0</code>.
+   * @return
+   */
+  public long getMaxMergeBytesPerSecond() {
+    return maxMergeBytesPerSecond;
+  }
+
+  /**
+   * Sets the maximum number of bytes per second written by all the background
+   * merges of the index, taken together. This can be used to stop merges from
+   * competing with indexing and searching for disk bandwidth. A value of 
+   * <code>0</code> means there is no limit. The new value only takes effect 
+   * when the index is next opened.
+   * 
+   * Defaults to <code>0</code>.
+   * @param maxMergeBytesPerSecond
+   */
+  public void setMaxMergeBytesPerSecond(long maxMergeBytesPerSecond) {
+    this.maxMergeBytesPerSecond = maxMergeBytesPerSecond;
+  }
+
+  /**
+   * Should the atomic indexes store the postings for their in-RAM batches in
+   * large shared byte blocks (see {@link gate.mimir.index.SlabPostingsStore})
+   * instead of one postings list object per term? 
+   * 
+   * Defaults to <code>false</code>.
+   * @return
+   */
+  public boolean isSlabPostings() {
+    return slabPostings;
+  }
+
+  /**
+   * Sets whether the atomic indexes should store the postings for their 
+   * in-RAM batches in large shared byte blocks instead of one postings list 
+   * object per term. This reduces the number of objects on the heap (and the
+   * garbage collection pressure) for large batches. The new value only takes 
+   * effect when the index is next opened.
+   * 
+   * Defaults to <code>false</code>.
+   * @param slabPostings
+   */
+  public void setSlabPostings(boolean slabPostings) {
+    this.slabPostings = slabPostings;
+  }
+
+  /**
+   * Gets the approximate maximum amount of memory (in bytes) used for caching
+   * the document data (the text, URI, title and metadata of each document) 
+   * retrieved from the document collection.
+   * 
+   * Defaults to {@value #DEFAULT_DOCUMENT_CACHE_SIZE}.
+   * @return
+   */
+  public long getDocumentCacheSize() {
+    // indexes created before this option existed will have a value of 0
+    return documentCacheSize > 0 ? documentCacheSize : 
+        DEFAULT_DOCUMENT_CACHE_SIZE;
+  }
+
+  /**
+   * Sets the approximate maximum amount of memory (in bytes) used for caching
+   * the document data retrieved from the document collection. Larger values
+   * reduce the number of disk reads when rendering result pages. The new value
+   * only takes effect when the index is next opened.
+   * 
+   * Defaults to {@value #DEFAULT_DOCUMENT_CACHE_SIZE}.
+   * @param documentCacheSize
+   */
+  public void setDocumentCacheSize(long documentCacheSize) {
+    this.documentCacheSize = documentCacheSize;
+  }
+
   /**
    * Gets the options map - a Map with arbitrary configuration options, which 
    * is made available to all sub-elements of this index (e.g. the various 
@@ -673,6 +848,37 @@ public class IndexConfig implements Serializable {
    */
   private int maximumBatches = DEFAULT_MAXIMUM_BATCHES;
   
+  /**
+   * The number of shards (and worker threads) used by each atomic index for
+   * building its in-RAM batch.
+   */
+  private int indexingShards = DEFAULT_INDEXING_SHARDS;
+  
+  /**
+   * Should the in-RAM postings be stored in large byte blocks?
+   */
+  private boolean slabPostings = false;
+  
+  /**
+   * The number of adjacent batches of similar size merged together.
+   */
+  private int mergeFactor = DEFAULT_MERGE_FACTOR;
+  
+  /**
+   * The number of threads used for merging batches.
+   */
+  private int mergeThreads = DEFAULT_MERGE_THREADS;
+  
+  /**
+   * The maximum write rate for merges, in bytes per second. 0 means no limit.
+   */
+  private long maxMergeBytesPerSecond = 0;
+  
+  /**
+   * The approximate maximum size of the document data cache, in bytes.
+   */
+  private long documentCacheSize = DEFAULT_DOCUMENT_CACHE_SIZE;
+  
   /**
    * A Map with arbitrary configuration options, which is made available to all
    * sub-elements of this index (e.g. the various annotation helpers).  
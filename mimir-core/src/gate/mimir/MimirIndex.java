@@ -22,39 +22,34 @@ import gate.mimir.IndexConfig.TokenIndexerConfig;
 import gate.mimir.index.AtomicAnnotationIndex;
 import gate.mimir.index.AtomicIndex;
 import gate.mimir.index.AtomicTokenIndex;
+import gate.mimir.index.DeletedDocumentSet;
 import gate.mimir.index.DocumentCollection;
 import gate.mimir.index.DocumentData;
 import gate.mimir.index.GATEDocument;
 import gate.mimir.index.IndexException;
+import gate.mimir.index.MergeRateLimiter;
 import gate.mimir.search.QueryEngine;
 import gate.util.GateRuntimeException;
 import it.unimi.di.big.mg4j.index.cluster.IndexCluster;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.SortedSet;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipException;
 
 import org.apache.log4j.Logger;
@@ -98,9 +93,12 @@ import org.apache.log4j.Logger;
  * All the batches are merged into a {@link IndexCluster} which is then used to
  * serve queries. If the number of clusters gets too large, it can harm
  * efficiency or the system can run into problems due to too large a number of
- * files being open. To avoid this, the index batches can be <em>compacted</em>
- * into a single batch. The index will automatically do that once the number of
- * batches exceeds {@link IndexConfig#setMaximumBatches(int)}.
+ * files being open. To avoid this, runs of adjacent batches of similar sizes 
+ * are merged into larger batches in the background, on a dedicated pool of 
+ * merge threads (see {@link IndexConfig#setMergeFactor(int)}, 
+ * {@link IndexConfig#setMergeThreads(int)} and 
+ * {@link IndexConfig#setMaxMergeBytesPerSecond(long)}). The index batches can 
+ * also be <em>compacted</em> into a single batch.
  * </p>
  * <p>
  * Client code can request a compact operation by calling
@@ -122,7 +120,9 @@ public class MimirIndex {
   
   /**
    * The name for the file (stored in the root index directory) containing 
-   * the serialised version of the {@link #deletedDocumentIds}. 
+   * the serialised version of the {@link #deletedDocumentIds}, as written by 
+   * older versions. Such files are converted to the format used by 
+   * {@link DeletedDocumentSet} when the index is opened.
    */
   public static final String DELETED_DOCUMENT_IDS_FILE_NAME = "deleted.ser";
   
@@ -137,6 +137,13 @@ public class MimirIndex {
    */
   public static final int DEFAULT_INDEXING_QUEUE_SIZE = 30;
   
+  /**
+   * How long (in seconds) {@link #close()} waits for the background merges in
+   * progress to complete, before interrupting them. An interrupted merge 
+   * leaves its input batches unchanged.
+   */
+  public static final int MERGE_SHUTDOWN_TIMEOUT = 60;
+  
   /**
    * Special value used to indicate that the index is closing and there will be 
    * no more sync tasks to process (an END_OF_QUEUE value for 
@@ -217,7 +224,8 @@ public class MimirIndex {
    *   the occurrence counts for all the batches that have recently been written
    *   to disk. It finds these by consuming the {@link Future}s in 
    *   {@link MimirIndex#syncRequests}.</li>
-   *   <li>Compact the index when too many on-disk batches have been created.</li>
+   *   <li>Ask the sub-indexes to schedule background merges of their on-disk 
+   *   batches, as needed.</li>
    *   <li>compact the document collection when too many archive files have 
    *   been created.</li>
    * </ul>
@@ -237,18 +245,12 @@ public class MimirIndex {
           try {
             occurrencesInRam -= aTask.get();
             if(syncRequests.isEmpty()) {
-              // latest dump finished: compact index if needed;
-              boolean compactNeeded = false;
-              for(AtomicIndex aSubIndex : subIndexes) {
-                if(aSubIndex.getBatchCount() > indexConfig.getMaximumBatches()) {
-                  compactNeeded = true;
-                  break;
+              // latest dump finished: merge batches if needed
+              if(!closed) {
+                for(AtomicIndex aSubIndex : subIndexes) {
+                  aSubIndex.requestMerges();
                 }
               }
-              if(compactNeeded && !closed){
-                logger.debug("Compacting sub-indexes");
-                compactIndexSync();
-              }
               if(documentCollection.getArchiveCount() >  indexConfig.getMaximumBatches()
                  && !closed) {
                 try {
@@ -272,16 +274,10 @@ public class MimirIndex {
               
             }
           } catch(ExecutionException e) {
-            // a sync request has failed. The index may be damaged, so we will
-            // close it to avoid further damage.
-            logger.error("A sync-to-disk request has failed. Closing index "
-                + "to avoid further damage.", e);
-            try {
-              close();
-            } catch(IOException e1) {
-              logger.error("A further error was generated while attmepting "
-                  + "to close index.", e1);
-            }
+            // a sync request has failed. The atomic index keeps the batch in 
+            // RAM, and writes it again with the next sync, or when closing.
+            logger.error("A sync-to-disk request has failed. The data will " +
+                "be written again with the next sync to disk.", e);
           }
           aTask = syncRequests.take();
         }
@@ -289,56 +285,15 @@ public class MimirIndex {
         Thread.currentThread().interrupt();
       }
     }
-    
-    /**
-     * Request the index compaction, and waits for all the operations to 
-     * complete.
-     * @throws InterruptedException
-     */
-    protected void compactIndexSync() throws InterruptedException {
-      List<Future<Void>> futures = requestCompactIndex();
-
-      for(Future<Void> f : futures){
-        try {
-          f.get();
-        } catch(InterruptedException e) {
-          // we were interrupted while waiting for a compacting operation
-          logger.error("Received interrupt request while compacting "
-              + "operation in progress", e);
-          Thread.currentThread().interrupt();
-        } catch(ExecutionException e) {
-          logger.error("Execution exception while compacting the index. Index "
-              + "may now be corrupted, closing it to avoid further damage", e);
-          try {
-            close();
-          } catch(InterruptedException e1) {
-            logger.error("Received interrupt request while closing "
-                + "operation in progress", e);
-          } catch(IOException e1) {
-            logger.error("Further IO exception while closing index.", e1);
-          }
-        }
-      }      
-    }
   }  
   
   
   private class WriteDeletedDocsTask extends TimerTask {
     public void run() {
       synchronized(maintenanceTimer) {
-        File delFile = new File(indexDirectory, DELETED_DOCUMENT_IDS_FILE_NAME);
-        if(delFile.exists()) {
-          delFile.delete();
-        }
         try{
           logger.debug("Writing deleted documents set");
-          ObjectOutputStream oos = new ObjectOutputStream(
-                  new GZIPOutputStream(
-                  new BufferedOutputStream(
-                  new FileOutputStream(delFile))));
-          oos.writeObject(deletedDocumentIds);
-          oos.flush();
-          oos.close();
+          deletedDocumentIds.flush();
           logger.debug("Writing deleted documents set completed.");
         }catch (IOException e) {
           logger.error("Exception while writing deleted documents set", e);
@@ -397,6 +352,17 @@ public class MimirIndex {
   
   protected volatile boolean closed = false;
   
+  /**
+   * The thread pool used by all the sub-indexes for merging their on-disk 
+   * batches.
+   */
+  protected ExecutorService mergeExecutor;
+  
+  /**
+   * Limits the disk bandwidth used by the background merges.
+   */
+  protected MergeRateLimiter mergeRateLimiter;
+  
   /**
    * A list of futures representing sync-to-disk operations currently 
    * in-progress in all of the sub-indexes.
@@ -406,7 +372,25 @@ public class MimirIndex {
   /**
    * The set of IDs for the documents marked as deleted. 
    */
-  private transient SortedSet<Long> deletedDocumentIds;
+  private transient DeletedDocumentSet deletedDocumentIds;
+  
+  /**
+   * Incremented every time the set of deleted documents changes (see 
+   * {@link #getGeneration()}).
+   */
+  private final AtomicLong deletionsGeneration = new AtomicLong();
+  
+  /**
+   * The number of {@link MimirIndex} instances created so far in this JVM.
+   */
+  private static final AtomicLong instancesCount = new AtomicLong();
+  
+  /**
+   * Identifies this instance of the index: an index closed and opened again 
+   * gets a larger epoch, as its generation counters start again from 0 (see
+   * {@link #getGeneration()}).
+   */
+  private final long epoch = instancesCount.incrementAndGet();
   
   /**
    * A timer used to execute various regular index maintenance tasks, such as 
@@ -512,6 +496,20 @@ public class MimirIndex {
     // ####################
     // Prepare for indexing
     // ####################
+    // the background merge threads
+    final String mergeThreadName = indexDirectory.getAbsolutePath() + 
+        " index merge";
+    mergeExecutor = Executors.newFixedThreadPool(
+        indexConfig.getMergeThreads(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mergeThreadName);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+          }
+        });
+    mergeRateLimiter = new MergeRateLimiter(
+        indexConfig.getMaxMergeBytesPerSecond());
     // read the index config and create the sub-indexers
     TokenIndexerConfig tokConfs[] = indexConfig.getTokenIndexers();
     tokenIndexes = new AtomicTokenIndex[tokConfs.length];
@@ -593,7 +591,8 @@ public class MimirIndex {
           indexConfig.getTimeBetweenBatches());
     }
     // open the zipped document collection
-    documentCollection = new DocumentCollection(indexDirectory);
+    documentCollection = new DocumentCollection(indexDirectory, 
+        indexConfig.getDocumentCacheSize());
   }
   
   /**
@@ -664,8 +663,11 @@ public class MimirIndex {
    * @throws InterruptedException
    *           if the current thread has been interrupted while trying to queue
    *           the compaction request.
+   * @throws IllegalStateException if the index has already been closed.
    */
   public List<Future<Void>> requestCompactIndex() throws InterruptedException {
+    if(closed) throw new IllegalStateException("This index has been closed, "
+        + "it can no longer be compacted.");
     List<Future<Void>> futures = new ArrayList<Future<Void>>();
     synchronized(subIndexes) {
       for(AtomicIndex aSubIndex : subIndexes) {
@@ -690,6 +692,24 @@ public class MimirIndex {
     documentCollection.compact();
   }
   
+  /**
+   * Gets the thread pool used by the sub-indexes for merging their on-disk 
+   * batches.
+   * @return
+   */
+  public ExecutorService getMergeExecutor() {
+    return mergeExecutor;
+  }
+  
+  /**
+   * Gets the rate limiter used to cap the disk bandwidth used by the 
+   * background merges.
+   * @return
+   */
+  public MergeRateLimiter getMergeRateLimiter() {
+    return mergeRateLimiter;
+  }
+  
   /**
    * Called by the first token indexer when a new document has been indexed
    * to ask the main index to save the necessary zip collection data
@@ -709,7 +729,8 @@ public class MimirIndex {
    * needs to be written to disk.
    * 
    * @throws InterruptedException 
-   * @throws IOException 
+   * @throws IOException if some of the indexed data could not be written to 
+   * disk. The rest of the index is still closed normally.
    */
   public void close() throws InterruptedException, IOException {
     if(closed) return;
@@ -729,8 +750,12 @@ public class MimirIndex {
       if(writeDeletedDocsTask != null) {
         writeDeletedDocsTask.cancel();
       }
-      // explicitly call it one last time
-      new WriteDeletedDocsTask().run();
+      // write a full snapshot one last time
+      try {
+        deletedDocumentIds.writeSnapshot();
+      } catch(IOException e) {
+        logger.error("Exception while writing deleted documents set", e);
+      }
       maintenanceTimer.cancel();
     }
 
@@ -740,6 +765,24 @@ public class MimirIndex {
     syncRequests.put(NO_MORE_TASKS);
     maintenanceThread2.join();
     
+    // wait for any merges in progress, but not indefinitely
+    mergeExecutor.shutdown();
+    if(!mergeExecutor.awaitTermination(MERGE_SHUTDOWN_TIMEOUT, 
+        TimeUnit.SECONDS)) {
+      logger.warn("Background merges still running after " + 
+          MERGE_SHUTDOWN_TIMEOUT + " seconds: interrupting them. The batches " +
+          "being merged are left unchanged.");
+      for(Runnable aTask : mergeExecutor.shutdownNow()) {
+        // merges and compactions that never started
+        if(aTask instanceof Future) ((Future<?>)aTask).cancel(false);
+      }
+      if(!mergeExecutor.awaitTermination(MERGE_SHUTDOWN_TIMEOUT, 
+          TimeUnit.SECONDS)) {
+        logger.error("Background merges did not stop after being " + 
+            "interrupted. Closing the index regardless.");
+      }
+    }
+    
     // close the document collection
     documentCollection.close();
     // write the config file
@@ -750,6 +793,17 @@ public class MimirIndex {
       throw new GateRuntimeException("Could not save the index configuration!",
               e);
     }
+    // report any in-RAM data that could not be written
+    synchronized(subIndexes) {
+      for(AtomicIndex aSubIndex : subIndexes) {
+        if(aSubIndex.getCloseFailure() != null) {
+          throw new IOException("Could not write the in-RAM data for " + 
+              aSubIndex.getName() + " to disk. Some of the documents " + 
+              "submitted for indexing are missing from the index.", 
+              aSubIndex.getCloseFailure());
+        }
+      }
+    }
     logger.info("Index shutdown complete");
   }
 
@@ -911,13 +965,14 @@ public class MimirIndex {
   /**
    * Gets the {@link DocumentData} for a given document ID, from the on disk 
    * document collection. In memory caching is performed to reduce the cost of 
-   * this call. 
+   * this call (see {@link IndexConfig#getDocumentCacheSize()}). This method 
+   * can be called concurrently by multiple threads.
    * @param documentID
    *          the ID of the document to be obtained.
    * @return the {@link DocumentData} associated with the given document ID.
    * @throws IOException 
    */
-  public synchronized DocumentData getDocumentData(long documentID)
+  public DocumentData getDocumentData(long documentID)
   throws IndexException, IOException {
     if(isDeleted(documentID)) {
       throw new IndexException("Invalid document ID " + documentID);
@@ -942,6 +997,7 @@ public class MimirIndex {
    */
   public void deleteDocument(long documentId) {
     if(deletedDocumentIds.add(documentId)) {
+      deletionsGeneration.incrementAndGet();
       writeDeletedDocsLater();
     }
   }
@@ -952,11 +1008,8 @@ public class MimirIndex {
    * @param documentIds
    */
   public void deleteDocuments(Collection<? extends Number> documentIds) {
-    List<Long> idsToDelete = new ArrayList<Long>(documentIds.size());
-    for(Number n : documentIds) {
-      idsToDelete.add(Long.valueOf(n.longValue()));
-    }
-    if(deletedDocumentIds.addAll(idsToDelete)) {
+    if(deletedDocumentIds.addAll(toLongArray(documentIds))) {
+      deletionsGeneration.incrementAndGet();
       writeDeletedDocsLater();
     }
   }
@@ -970,6 +1023,15 @@ public class MimirIndex {
     return deletedDocumentIds.contains(documentId);
   }
   
+  /**
+   * Gets the set of IDs for the documents marked as deleted. Query executors
+   * use this to skip deleted documents before reading any of their positions.
+   * @return
+   */
+  public DeletedDocumentSet getDeletedDocuments() {
+    return deletedDocumentIds;
+  }
+  
   /**
    * Mark the given document (identified by ID) as <i>not</i> deleted.  Calling
    * this method for a document ID that is not currently marked as deleted has
@@ -977,6 +1039,7 @@ public class MimirIndex {
    */
   public void undeleteDocument(long documentId) {
     if(deletedDocumentIds.remove(documentId)) {
+      deletionsGeneration.incrementAndGet();
       writeDeletedDocsLater();
     }
   }
@@ -987,15 +1050,42 @@ public class MimirIndex {
    * no effect.
    */
   public void undeleteDocuments(Collection<? extends Number> documentIds) {
-    List<Long> idsToUndelete = new ArrayList<Long>(documentIds.size());
-    for(Number n : documentIds) {
-      idsToUndelete.add(Long.valueOf(n.longValue()));
-    }
-    if(deletedDocumentIds.removeAll(idsToUndelete)) {
+    if(deletedDocumentIds.removeAll(toLongArray(documentIds))) {
+      deletionsGeneration.incrementAndGet();
       writeDeletedDocsLater();
     }
   }
   
+  /**
+   * Gets the generation of this index, which changes every time new documents
+   * become searchable (see {@link AtomicIndex#getGeneration()}), and every
+   * time documents are deleted or undeleted. Search results obtained while 
+   * the generation stays the same are still valid, so this can be used to 
+   * invalidate cached search results.
+   * 
+   * The generation counters start again from 0 when the index is opened, so
+   * the epoch of this instance is placed in the top 32 bits: the generations
+   * of an index opened again are always larger than all the generations of 
+   * the earlier instances. 
+   * @return
+   */
+  public long getGeneration() {
+    long generation = deletionsGeneration.get();
+    for(AtomicIndex subIndex : subIndexes) {
+      generation += subIndex.getGeneration();
+    }
+    return (epoch << 32) + generation;
+  }
+  
+  private static long[] toLongArray(Collection<? extends Number> numbers) {
+    long[] res = new long[numbers.size()];
+    int i = 0;
+    for(Number n : numbers) {
+      res[i++] = n.longValue();
+    }
+    return res;
+  }
+  
   /**
    * Writes the set of deleted document to disk in a background thread, after a
    * short delay. If a previous request has not started yet, this new request 
@@ -1012,28 +1102,18 @@ public class MimirIndex {
   }
   
   /**
-   * Reads the list of deleted documents from disk. 
+   * Reads the list of deleted documents from disk. If the index contains a 
+   * deleted documents file written by an older version, this gets converted 
+   * to the current format.
    */
-  @SuppressWarnings("unchecked")
   protected synchronized void readDeletedDocs() throws IOException{
-    deletedDocumentIds = Collections.synchronizedSortedSet(
-            new TreeSet<Long>());
+    deletedDocumentIds = new DeletedDocumentSet(indexDirectory);
     File delFile = new File(indexDirectory, DELETED_DOCUMENT_IDS_FILE_NAME);
     if(delFile.exists()) {
-      try {
-        ObjectInputStream ois = new ObjectInputStream(
-                new GZIPInputStream(
-                new BufferedInputStream(
-                new FileInputStream(delFile))));
-        // an old index will have saved a Set<Integer>, a new one will be
-        // Set<Long>
-        Set<? extends Number> savedSet = (Set<? extends Number>)ois.readObject();
-        for(Number n : savedSet) {
-          deletedDocumentIds.add(Long.valueOf(n.longValue()));
-        }
-      } catch(ClassNotFoundException e) {
-        // this should never happen
-        throw new RuntimeException(e);
+      logger.info("Converting deleted documents file " + delFile);
+      deletedDocumentIds.importLegacyFile(delFile);
+      if(!delFile.delete()) {
+        logger.warn("Could not delete old deleted documents file " + delFile);
       }
     }
   }
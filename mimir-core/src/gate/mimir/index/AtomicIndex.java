@@ -15,10 +15,10 @@
 package gate.mimir.index;
 
 import gate.Annotation;
+import gate.mimir.IndexConfig;
 import gate.mimir.MimirIndex;
 import gate.mimir.search.IndexReaderPool.IndexDictionary;
 import gate.util.GateRuntimeException;
-import it.unimi.di.big.mg4j.index.BitStreamIndex;
 import it.unimi.di.big.mg4j.index.CompressionFlags;
 import it.unimi.di.big.mg4j.index.CompressionFlags.Coding;
 import it.unimi.di.big.mg4j.index.CompressionFlags.Component;
@@ -31,7 +31,6 @@ import it.unimi.di.big.mg4j.index.IndexWriter;
 import it.unimi.di.big.mg4j.index.NullTermProcessor;
 import it.unimi.di.big.mg4j.index.QuasiSuccinctIndex;
 import it.unimi.di.big.mg4j.index.QuasiSuccinctIndexWriter;
-import it.unimi.di.big.mg4j.index.SkipBitStreamIndexWriter;
 import it.unimi.di.big.mg4j.index.TermProcessor;
 import it.unimi.di.big.mg4j.index.cluster.ContiguousDocumentalStrategy;
 import it.unimi.di.big.mg4j.index.cluster.ContiguousLexicalStrategy;
@@ -39,22 +38,17 @@ import it.unimi.di.big.mg4j.index.cluster.DocumentalCluster;
 import it.unimi.di.big.mg4j.index.cluster.DocumentalConcatenatedCluster;
 import it.unimi.di.big.mg4j.index.cluster.LexicalCluster;
 import it.unimi.di.big.mg4j.io.IOFactory;
-import it.unimi.di.big.mg4j.tool.Combine;
-import it.unimi.di.big.mg4j.tool.Combine.IndexType;
-import it.unimi.di.big.mg4j.tool.Concatenate;
 import it.unimi.di.big.mg4j.tool.Scan;
 import it.unimi.dsi.big.io.FileLinesCollection;
 import it.unimi.dsi.big.util.ShiftAddXorSignedStringMap;
 import it.unimi.dsi.big.util.StringMap;
 import it.unimi.dsi.bits.Fast;
 import it.unimi.dsi.bits.TransformationStrategies;
-import it.unimi.dsi.fastutil.Arrays;
 import it.unimi.dsi.fastutil.Hash;
-import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntBigArrayBigList;
 import it.unimi.dsi.fastutil.ints.IntBigList;
-import it.unimi.dsi.fastutil.ints.IntComparator;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.io.BinIO;
 import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
@@ -63,10 +57,10 @@ import it.unimi.dsi.fastutil.objects.Object2LongMap;
 import it.unimi.dsi.fastutil.objects.Object2ReferenceOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectBigArrayBigList;
 import it.unimi.dsi.fastutil.objects.ObjectBigList;
+import it.unimi.dsi.io.InputBitStream;
 import it.unimi.dsi.io.OutputBitStream;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.lang.ObjectParser;
-import it.unimi.dsi.logging.ProgressLogger;
 import it.unimi.dsi.sux4j.mph.LcpMonotoneMinimalPerfectHashFunction;
 import it.unimi.dsi.util.BloomFilter;
 import it.unimi.dsi.util.Properties;
@@ -74,21 +68,37 @@ import it.unimi.dsi.util.Properties;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.log4j.Logger;
@@ -108,6 +118,11 @@ import com.google.common.io.PatternFilenameFilter;
  * was written are stored in RAM.
  * </p>
  * <p>
+ * When a sync to disk is requested, the in-RAM data is detached and written to
+ * a new tail by a background writer thread, while the indexing thread carries 
+ * on indexing new documents into a fresh in-RAM batch.
+ * </p>
+ * <p>
  * When direct indexing is enabled, the term IDs in the direct index are 
  * different from the term IDs in the inverted index. In the inverted index 
  * the term IDs are their position in the lexicographically sorted list of all
@@ -115,7 +130,9 @@ import com.google.common.io.PatternFilenameFilter;
  * sorted by the time they were first seen during indexing.
  * </p>
  * <p>
- * The head and tail batches can be combined into a new head by a 
+ * Runs of adjacent batches are merged in the background, on the merge threads
+ * of the parent {@link MimirIndex}, as decided by a {@link TieredMergePolicy}.
+ * All the head and tail batches can also be combined into a new head by a 
  * <em>compact</em> operation.
  */
 public abstract class AtomicIndex implements Runnable {
@@ -132,6 +149,131 @@ public abstract class AtomicIndex implements Runnable {
     }
   };
   
+  /**
+   * The fork/join pool used for the parallel parts of writing batches to 
+   * disk. Its threads are daemon threads, so it never needs shutting down.
+   */
+  private static final ForkJoinPool batchWritingPool = new ForkJoinPool();
+  
+  /**
+   * A fork/join merge sort for arrays of terms.
+   */
+  private static class TermSortTask extends RecursiveAction {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Ranges smaller than this are sorted sequentially.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 8192;
+    
+    private final MutableString[] terms;
+    
+    /**
+     * A scratch array, of the same size as {@link #terms}.
+     */
+    private final MutableString[] buffer;
+    
+    private final int from;
+    
+    private final int to;
+    
+    public TermSortTask(MutableString[] terms, MutableString[] buffer, 
+        int from, int to) {
+      this.terms = terms;
+      this.buffer = buffer;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if(to - from <= SEQUENTIAL_THRESHOLD) {
+        Arrays.sort(terms, from, to);
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new TermSortTask(terms, buffer, from, mid), 
+          new TermSortTask(terms, buffer, mid, to));
+      // merge the two sorted halves
+      if(terms[mid - 1].compareTo(terms[mid]) <= 0) return;
+      System.arraycopy(terms, from, buffer, from, to - from);
+      int left = from;
+      int right = mid;
+      int dest = from;
+      while(left < mid && right < to) {
+        terms[dest++] = buffer[left].compareTo(buffer[right]) <= 0 ? 
+            buffer[left++] : buffer[right++];
+      }
+      while(left < mid) terms[dest++] = buffer[left++];
+      while(right < to) terms[dest++] = buffer[right++];
+    }
+  }
+  
+  /**
+   * Sorts an array of terms, in parallel.
+   * @param terms
+   */
+  protected static void sortTerms(MutableString[] terms) {
+    batchWritingPool.invoke(new TermSortTask(terms, 
+        new MutableString[terms.length], 0, terms.length));
+  }
+  
+  /**
+   * Waits for a set of tasks to complete. If any of the tasks failed, the 
+   * exception from the first failure is re-thrown once all the tasks have 
+   * finished. 
+   * @param tasks
+   * @throws IOException
+   * @throws IndexException
+   */
+  protected static void awaitTasks(List<Future<?>> tasks) 
+      throws IOException, IndexException {
+    Throwable failure = null;
+    for(Future<?> aTask : tasks) {
+      try {
+        aTask.get();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if(failure == null) failure = e;
+      } catch(ExecutionException e) {
+        if(failure == null) failure = e.getCause();
+      }
+    }
+    if(failure instanceof IOException) {
+      throw (IOException)failure;
+    } else if(failure instanceof IndexException) {
+      throw (IndexException)failure;
+    } else if(failure != null) {
+      throw new IndexException("Error while writing batch", failure);
+    }
+  }
+  
+  /**
+   * Waits for a set of tasks to complete, after an error elsewhere has made 
+   * their results useless. Failures of the tasks are only logged, so that 
+   * they do not hide the original error.
+   * @param tasks
+   */
+  protected static void awaitAbandonedTasks(List<Future<?>> tasks) {
+    boolean interrupted = false;
+    for(Future<?> aTask : tasks) {
+      while(true) {
+        try {
+          aTask.get();
+          break;
+        } catch(InterruptedException e) {
+          // we still need to wait, so that no task is left writing files 
+          interrupted = true;
+        } catch(ExecutionException e) {
+          logger.warn("Error in abandoned batch writing task", e.getCause());
+          break;
+        }
+      }
+    }
+    if(interrupted) Thread.currentThread().interrupt();
+  }
+  
   /**
    * An in-RAM representation of a postings list
    */
@@ -384,6 +526,16 @@ public abstract class AtomicIndex implements Runnable {
     protected BloomFilter<Void> invertedTermFilter;
     protected BloomFilter<Void> directTermFilter;
     protected String indexName;
+    /**
+     * The total size (in bytes) of the files in {@link #indexDir}.
+     */
+    protected long sizeInBytes;
+    /**
+     * The largest number of occurrences of each term in any one document 
+     * (see {@link AtomicIndex#MAXCOUNTS_EXTENSION}), or <code>null</code> if 
+     * the batch was written without them.
+     */
+    protected byte[] termMaxCounts;
     
     public MG4JIndex(
         File indexDir,
@@ -400,6 +552,387 @@ public abstract class AtomicIndex implements Runnable {
       
       this.directIndex = directIndex;
       this.directTermFilter = directTermFilter;
+      
+      File[] files = indexDir.listFiles();
+      if(files != null) {
+        for(File aFile : files) sizeInBytes += aFile.length();
+      }
+    }
+    
+    /**
+     * Gets an upper bound for the number of occurrences of a term in any one
+     * document of this batch.
+     * @param term the term, as processed by the term processor.
+     * @return the bound, which is <code>0</code> if the term does not occur
+     * in this batch.
+     */
+    public int getTermMaxCount(CharSequence term) {
+      if(invertedTermFilter != null && !invertedTermFilter.contains(term)) {
+        return 0;
+      }
+      if(termMaxCounts == null || invertedIndex.termMap == null) {
+        return invertedIndex.maxCount;
+      }
+      // the term map is signed, so unknown terms are reliably rejected
+      long termId = invertedIndex.termMap.getLong(term);
+      if(termId < 0) return 0;
+      int count = termMaxCounts[(int)termId] & 0xff;
+      return count == MAXCOUNT_SATURATED ? invertedIndex.maxCount : count;
+    }
+  }
+
+  /**
+   * One shard of the in-RAM inverted index, served by its own worker thread.
+   * When an atomic index is configured to use more than one shard (see 
+   * {@link IndexConfig#getIndexingShards()}), the terms are partitioned 
+   * between the shards by hash code, so the postings list for any given term
+   * lives in exactly one shard. The indexing thread still calculates the terms
+   * for each document, but the term map look-ups and the updates to the 
+   * postings lists are performed in parallel by the shard threads. The shards
+   * are merged into {@link AtomicIndex#termMap} when a batch is written, 
+   * unless the shards store their postings in a {@link SlabPostingsStore}, in
+   * which case the stores are read directly.
+   */
+  protected static class IndexingShard implements Runnable {
+    
+    /**
+     * A marker value that gets queued to stop the shard thread.
+     */
+    private static final Runnable STOP_SHARD = new Runnable() {
+      @Override
+      public void run() {}
+    };
+    
+    /**
+     * The in-RAM inverted index for the terms belonging to this shard, or 
+     * <code>null</code> if a {@link #postingsStore} is used instead.
+     */
+    protected Object2ReferenceOpenHashMap<MutableString, PostingsList> termMap;
+    
+    /**
+     * The store for the postings belonging to this shard, or 
+     * <code>null</code> if the {@link #termMap} is used instead.
+     */
+    protected SlabPostingsStore postingsStore;
+    
+    /**
+     * The work queue for this shard: each element holds the postings for one
+     * document.
+     */
+    protected BlockingQueue<Runnable> workQueue;
+    
+    /**
+     * The thread serving this shard.
+     */
+    protected Thread shardThread;
+    
+    /**
+     * The first error that occurred on the shard thread, if any. Once a 
+     * document has failed, the in-RAM index held by this shard is incomplete,
+     * so the following documents are no longer processed, and the error is
+     * reported to the indexing thread. 
+     */
+    protected volatile Throwable failure;
+    
+    /**
+     * The characters of all the terms added to this shard for the current 
+     * document, concatenated. Only accessed from the indexing thread.
+     */
+    private MutableString pendingTerms;
+    
+    /**
+     * The end offsets (in {@link #pendingTerms}) for the terms added for the 
+     * current document. Only accessed from the indexing thread.
+     */
+    private IntArrayList pendingTermEnds;
+    
+    /**
+     * The positions for the terms added for the current document. Only 
+     * accessed from the indexing thread.
+     */
+    private IntArrayList pendingPositions;
+    
+    /**
+     * A mutable string used by the shard thread for term look-ups.
+     */
+    private MutableString lookupTerm;
+    
+    /**
+     * Creates a new shard and starts its thread.
+     * @param threadName the name for the shard thread.
+     * @param postingsStore the store used for the postings, or 
+     * <code>null</code> if a term map should be used instead. 
+     */
+    public IndexingShard(String threadName, SlabPostingsStore postingsStore) {
+      this.postingsStore = postingsStore;
+      if(postingsStore == null) {
+        termMap = new Object2ReferenceOpenHashMap<MutableString, 
+            PostingsList>(INITIAL_TERM_MAP_SIZE, Hash.FAST_LOAD_FACTOR );
+      }
+      workQueue = new LinkedBlockingQueue<Runnable>(SHARD_QUEUE_SIZE);
+      pendingTerms = new MutableString();
+      pendingTermEnds = new IntArrayList();
+      pendingPositions = new IntArrayList();
+      lookupTerm = new MutableString();
+      shardThread = new Thread(this, threadName);
+      shardThread.start();
+    }
+    
+    /**
+     * Records one posting for the current document. Called from the indexing
+     * thread.
+     * @param term the term being indexed.
+     * @param position the position of the term in the current document.
+     */
+    public void addPosting(MutableString term, int position) {
+      pendingTerms.append(term);
+      pendingTermEnds.add(pendingTerms.length());
+      pendingPositions.add(position);
+    }
+    
+    /**
+     * Hands over the postings accumulated for the current document to the 
+     * shard thread. Called from the indexing thread when a document has been
+     * completely processed.
+     * @param documentPointer the (batch-local) pointer for the document.
+     * @throws InterruptedException
+     * @throws IndexException if the shard thread has failed.
+     */
+    public void endDocument(final long documentPointer) 
+        throws InterruptedException, IndexException {
+      checkFailure();
+      if(pendingPositions.isEmpty()) return;
+      final char[] terms = pendingTerms.toCharArray();
+      final int[] termEnds = pendingTermEnds.toIntArray();
+      final int[] positions = pendingPositions.toIntArray();
+      pendingTerms.length(0);
+      pendingTermEnds.clear();
+      pendingPositions.clear();
+      queue(new Runnable() {
+        @Override
+        public void run() {
+          indexDocument(documentPointer, terms, termEnds, positions);
+        }
+      });
+    }
+    
+    /**
+     * Adds a task to the work queue, waiting for space to become available
+     * for as long as the shard thread is alive.
+     * @throws InterruptedException
+     * @throws IndexException if the shard thread has failed.
+     */
+    protected void queue(Runnable task) 
+        throws InterruptedException, IndexException {
+      while(!workQueue.offer(task, 1, TimeUnit.SECONDS)) {
+        checkFailure();
+      }
+    }
+    
+    /**
+     * Throws an exception if the shard thread has failed, or has stopped.
+     * @throws IndexException
+     */
+    protected void checkFailure() throws IndexException {
+      Throwable e = failure;
+      if(e != null) {
+        throw new IndexException("Error in indexing shard " + 
+            shardThread.getName(), e);
+      }
+      if(!shardThread.isAlive()) {
+        throw new IndexException("Indexing shard " + shardThread.getName() +
+            " has stopped");
+      }
+    }
+    
+    /**
+     * Adds the postings for one document to the in-RAM index. Called on the
+     * shard thread.
+     */
+    protected void indexDocument(long documentPointer, char[] terms, 
+        int[] termEnds, int[] positions) {
+      int termStart = 0;
+      for(int i = 0; i < termEnds.length; i++) {
+        lookupTerm.length(0);
+        lookupTerm.append(terms, termStart, termEnds[i] - termStart);
+        termStart = termEnds[i];
+        if(postingsStore != null) {
+          if(!postingsStore.addPosting(lookupTerm, documentPointer, 
+              positions[i])) {
+            logger.debug("Duplicate position");
+          }
+          continue;
+        }
+        PostingsList termPostings = termMap.get(lookupTerm);
+        if(termPostings == null) {
+          termMap.put(lookupTerm.copy(), termPostings = new PostingsList(true));
+        }
+        termPostings.newDocumentPointer(documentPointer);
+        if(termPostings.checkPosition(positions[i])) {
+          termPostings.addPosition(positions[i]);
+        } else {
+          logger.debug("Duplicate position");
+        }
+      }
+    }
+    
+    /**
+     * Waits until the shard thread has processed all the documents queued so
+     * far. Called from the indexing thread.
+     * @throws InterruptedException
+     * @throws IndexException if the shard thread has failed, or has died.
+     */
+    public void awaitDocuments() throws InterruptedException, IndexException {
+      FutureTask<Void> marker = new FutureTask<Void>(noOpVoid);
+      queue(marker);
+      while(true) {
+        try {
+          marker.get(1, TimeUnit.SECONDS);
+          break;
+        } catch(TimeoutException e) {
+          checkFailure();
+        } catch(ExecutionException e) {
+          // this should never happen, as the marker does nothing
+          throw new IndexException("Error in indexing shard", e);
+        }
+      }
+      checkFailure();
+    }
+    
+    /**
+     * Empties the in-RAM index held by this shard. Must only be called after
+     * {@link #awaitDocuments()}.
+     */
+    public void clear() {
+      if(postingsStore != null) {
+        postingsStore.clear();
+      } else {
+        termMap.clear();
+        termMap.trim(INITIAL_TERM_MAP_SIZE);
+      }
+    }
+    
+    /**
+     * Stops the shard thread, after all the queued documents are processed.
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+      while(shardThread.isAlive() && 
+          !workQueue.offer(STOP_SHARD, 1, TimeUnit.SECONDS)) {
+        // the queue is full, wait for the shard thread to make space
+      }
+      shardThread.join();
+    }
+    
+    @Override
+    public void run() {
+      try {
+        Runnable aTask = workQueue.take();
+        while(aTask != STOP_SHARD) {
+          // after a failure, only the markers from awaitDocuments() are run
+          if(failure == null || aTask instanceof FutureTask) {
+            try {
+              aTask.run();
+            } catch(Throwable e) {
+              logger.error("Problem while indexing document!", e);
+              failure = e;
+            }
+          }
+          aTask = workQueue.take();
+        }
+      } catch(InterruptedException e) {
+        if(failure == null) failure = e;
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  /**
+   * The data for an index batch built in RAM, detached from the indexing data
+   * structures so that it can be written to disk while indexing continues 
+   * into a new batch.
+   */
+  protected static class InRamBatch {
+    
+    /**
+     * The in-RAM inverted index, or <code>null</code> if 
+     * {@link #postingsStores} are used instead.
+     */
+    protected Object2ReferenceOpenHashMap<MutableString, PostingsList> termMap;
+    
+    /**
+     * The stores holding the postings, or <code>null</code> if the 
+     * {@link #termMap} is used instead.
+     */
+    protected SlabPostingsStore[] postingsStores;
+    
+    /**
+     * The sizes (numbers of terms) for all the documents in this batch.
+     */
+    protected IntArrayList documentSizes;
+    
+    /**
+     * The number of documents in this batch.
+     */
+    protected int documents;
+    
+    /**
+     * The number of occurrences in this batch.
+     */
+    protected long occurrences;
+    
+    /**
+     * The size of the longest document in this batch.
+     */
+    protected int maxDocSize;
+    
+    /**
+     * Gets the postings store holding the postings for a given term. Must only
+     * be called when {@link #postingsStores} are in use.
+     * @param term
+     * @return
+     */
+    protected SlabPostingsStore getPostingsStore(MutableString term) {
+      return postingsStores.length == 1 ? postingsStores[0] :
+        postingsStores[(term.hashCode() & Integer.MAX_VALUE) % 
+                       postingsStores.length];
+    }
+    
+    /**
+     * Gets all the terms in this batch, in no particular order.
+     * @return
+     */
+    protected MutableString[] getTerms() {
+      if(postingsStores == null) {
+        return termMap.keySet().toArray(new MutableString[termMap.size()]);
+      }
+      int size = 0;
+      for(SlabPostingsStore aStore : postingsStores) size += aStore.size();
+      MutableString[] terms = new MutableString[size];
+      int pos = 0;
+      for(SlabPostingsStore aStore : postingsStores) {
+        MutableString[] storeTerms = aStore.terms();
+        System.arraycopy(storeTerms, 0, terms, pos, storeTerms.length);
+        pos += storeTerms.length;
+      }
+      return terms;
+    }
+    
+    /**
+     * Empties all the data structures, which makes them ready for re-use.
+     */
+    protected void clear() {
+      if(termMap != null) {
+        termMap.clear();
+        termMap.trim(INITIAL_TERM_MAP_SIZE);
+      }
+      if(postingsStores != null) {
+        for(SlabPostingsStore aStore : postingsStores) aStore.clear();
+      }
+      documentSizes.clear();
+      documents = 0;
+      occurrences = 0;
+      maxDocSize = -1;
     }
   }
   
@@ -459,10 +992,10 @@ public abstract class AtomicIndex implements Runnable {
     // sizes of batches 0 to i-1 inclusive
     long[] cutPoints = new long[indexes.length + 1];
     cutPoints[0] = 0;
-    int numberOfTerms = -1;
-    int numberOfDocuments = -1;
-    long numberOfPostings = -1;
-    long numberOfOccurences =-1;
+    int numberOfTerms = 0;
+    int numberOfDocuments = 0;
+    long numberOfPostings = 0;
+    long numberOfOccurences = 0;
     int maxCount =-1;
     int indexIdx = 0;
     IntBigList sizes = new IntBigArrayBigList();
@@ -521,10 +1054,10 @@ public abstract class AtomicIndex implements Runnable {
     cutPoints[0] = 0;
     String[] cutPointTerms = new String[indexes.length];
     cutPointTerms[0] = longToTerm(0);
-    int numberOfTerms = -1;
-    int numberOfDocuments = -1;
-    long numberOfPostings = -1;
-    long numberOfOccurences =-1;
+    int numberOfTerms = 0;
+    int numberOfDocuments = 0;
+    long numberOfPostings = 0;
+    long numberOfOccurences = 0;
     int maxCount =-1;
     int indexIdx = 0;
     @SuppressWarnings("unchecked")
@@ -616,6 +1149,22 @@ public abstract class AtomicIndex implements Runnable {
    */
   public static final String DIRECT_INDEX_NAME_SUFFIX = "-dir";
   
+  /**
+   * The extension of the file, written with each inverted index batch, that
+   * stores the largest number of occurrences of each term in any one 
+   * document. There is one byte for each term, in term ID order; counts of 
+   * {@link #MAXCOUNT_SATURATED} or more are stored as 
+   * {@link #MAXCOUNT_SATURATED}, and are replaced by the maximum count for
+   * the whole batch when read. 
+   */
+  public static final String MAXCOUNTS_EXTENSION = ".maxcounts";
+  
+  /**
+   * The largest per-term count that can be stored in a 
+   * {@link #MAXCOUNTS_EXTENSION} file.
+   */
+  protected static final int MAXCOUNT_SATURATED = 0xff;
+  
   /**
    * The file name (under the current directory for this atomic index) for the
    * directory containing the documents that have been queued for indexing, but 
@@ -626,18 +1175,17 @@ public abstract class AtomicIndex implements Runnable {
   /** The initial size of the term map. */
   private static final int INITIAL_TERM_MAP_SIZE = 1024;
   
+  /** 
+   * The maximum number of documents queued for each {@link IndexingShard}. 
+   */
+  private static final int SHARD_QUEUE_SIZE = 64;
+  
   /**
    * A marker value that gets queued to indicate a request to
    * write the in-RAM data to a new index batch.
    */
   private static final GATEDocument DUMP_BATCH = new GATEDocument(){};
 
-  /**
-   * A marker value that gets queued to indicate a request to combine all the
-   * on-disk batches into a new head.
-   */
-  private static final GATEDocument COMPACT_INDEX = new GATEDocument(){};
-  
   private static Logger logger = Logger.getLogger(AtomicIndex.class);
   
   protected static final PatternFilenameFilter TAILS_FILENAME_FILTER = 
@@ -681,6 +1229,11 @@ public abstract class AtomicIndex implements Runnable {
    */
   protected List<MG4JIndex> batches;
   
+  /**
+   * The number of batches written to disk since this index was opened. 
+   */
+  protected volatile long generation = 0;
+  
   /**
    * The cluster-view of all the MG4J indexes that are part of this index (i.e.
    * the head and all the tails). 
@@ -761,9 +1314,28 @@ public abstract class AtomicIndex implements Runnable {
   
   /**
    * An in-memory inverted index that gets dumped to files for each batch. 
+   * This is not used if the index is configured to store its in-RAM postings
+   * in {@link #postingsStores}.
    */
   protected Object2ReferenceOpenHashMap<MutableString, PostingsList> termMap;
   
+  /**
+   * The stores used for the in-RAM postings, if the index is configured to use
+   * them (see {@link IndexConfig#isSlabPostings()}); <code>null</code> 
+   * otherwise. There is one store for each of the {@link #shards}, or a 
+   * single store if sharding is not used. Terms are allocated to stores by 
+   * hash code (see {@link InRamBatch#getPostingsStore(MutableString)}).
+   */
+  protected SlabPostingsStore[] postingsStores;
+  
+  /**
+   * The shards used for building the in-RAM index in parallel. This is
+   * <code>null</code> if the index is configured to use a single shard, in 
+   * which case all the in-RAM data is written directly into {@link #termMap}
+   * by the indexing thread.
+   */
+  protected IndexingShard[] shards;
+  
   /**
    * The sizes (numbers of terms) for all the documents indexed in RAM.
    */
@@ -772,10 +1344,21 @@ public abstract class AtomicIndex implements Runnable {
   /**
    * If a request was made to compress the index (combine all sub-indexes 
    * into a new head) this value will be non-null. The operation will be 
-   * performed on the indexing thread at the first opportunity. At that point 
-   * this future will complete, and the value will be set back to null.
+   * performed on one of the merge threads at the first opportunity. At that 
+   * point this future will complete, and the value will be set back to null.
    */
-  protected RunnableFuture<Void> compactIndexTask;
+  protected volatile RunnableFuture<Void> compactIndexTask;
+  
+  /**
+   * The batches currently being merged. Only accessed while holding the lock
+   * on this atomic index.
+   */
+  protected Set<MG4JIndex> mergingBatches;
+  
+  /**
+   * The policy deciding which batches get merged together.
+   */
+  protected TieredMergePolicy mergePolicy;
   
   /**
    * If a request was made to write the in-RAM index data to disk this value 
@@ -783,7 +1366,48 @@ public abstract class AtomicIndex implements Runnable {
    * thread at the first opportunity.  At that point the Future will complete, 
    * and the value will be set back to null.
    */
-  protected RunnableFuture<Long> batchWriteTask;
+  protected volatile RunnableFuture<Long> batchWriteTask;
+  
+  /**
+   * The single thread used to write detached in-RAM batches to disk, while 
+   * the indexing thread carries on with a new batch. 
+   */
+  protected ExecutorService batchWriter;
+  
+  /**
+   * The batches waiting to be written by the next {@link #batchWriteTask} 
+   * executed by the {@link #batchWriter}, in order. A batch is only removed 
+   * once it has been written successfully, so a batch whose write failed is 
+   * written again by the next sync to disk, or when the index is closed. The 
+   * indexing thread only adds to this queue after the last batch write has
+   * completed, so it is never accessed by two threads at the same time.
+   */
+  protected Deque<InRamBatch> batchesToWrite = new ArrayDeque<InRamBatch>();
+  
+  /**
+   * The occurrences in the batches already written by a batch write task 
+   * that later failed. These are reported by the next successful batch write.
+   */
+  protected long unreportedOccurrences;
+  
+  /**
+   * The last batch write operation submitted to the {@link #batchWriter}.
+   * At most one batch is being written at any one time, so unless a write 
+   * fails, at most two batches are held in RAM.
+   */
+  protected Future<Long> lastBatchWrite;
+  
+  /**
+   * If the in-RAM data could not be written to disk when indexing stopped, 
+   * this holds the reason. 
+   */
+  protected volatile Exception closeFailure;
+  
+  /**
+   * The data structures of the last batch written to disk, kept for re-use 
+   * by the next in-RAM batch.
+   */
+  protected volatile InRamBatch spareBatch;
   
   /**
    * Creates a new AtomicIndex
@@ -812,6 +1436,10 @@ public abstract class AtomicIndex implements Runnable {
     this.outputQueue = outputQueue;
     
     this.currentTerm = new MutableString();
+    this.mergingBatches = new HashSet<MG4JIndex>();
+    this.mergePolicy = new TieredMergePolicy(
+        parent.getIndexConfig().getMergeFactor(), 
+        parent.getIndexConfig().getMaximumBatches());
     
     this.additionalProperties = new Properties();
     // save the term processor
@@ -918,6 +1546,17 @@ public abstract class AtomicIndex implements Runnable {
       termMap.clear();
       termMap.trim( INITIAL_TERM_MAP_SIZE );
     } 
+    if(postingsStores == null) {
+      if(parent.getIndexConfig().isSlabPostings()) {
+        postingsStores = new SlabPostingsStore[
+            Math.max(parent.getIndexConfig().getIndexingShards(), 1)];
+        for(int i = 0; i < postingsStores.length; i++) {
+          postingsStores[i] = new SlabPostingsStore();
+        }
+      }
+    } else {
+      for(SlabPostingsStore aStore : postingsStores) aStore.clear();
+    }
     if(documentSizesInRAM  == null) {
       documentSizesInRAM = new IntArrayList();
     } else {
@@ -933,110 +1572,289 @@ public abstract class AtomicIndex implements Runnable {
 	 * @return the number of occurrences written to disk 
 	 */
 	protected long writeCurrentBatch() throws IOException, IndexException {
-	  if(documentsInRAM == 0) return 0;
+	  return writeBatch(detachCurrentBatch());
+	}
+	
+	/**
+	 * Detaches the data for the current in-RAM batch from the indexing data 
+	 * structures, so that it can be written to disk, and starts a new batch.
+	 * The new batch re-uses the data structures from the last batch that was 
+	 * written, if any. Must be called on the indexing thread.
+	 * @return the detached batch.
+	 * @throws IndexException if interrupted while waiting for the indexing 
+	 * shards.
+	 */
+	protected InRamBatch detachCurrentBatch() throws IndexException {
+	  // merge the in-RAM shards, if any
+	  if(shards != null) {
+	    try {
+	      for(IndexingShard aShard : shards) {
+	        aShard.awaitDocuments();
+	        if(postingsStores == null) {
+	          termMap.putAll(aShard.termMap);
+	          aShard.clear();
+	        }
+	      }
+	    } catch(InterruptedException e) {
+	      Thread.currentThread().interrupt();
+	      throw new IndexException("Interrupted while merging indexing shards", e);
+	    }
+	  }
+	  InRamBatch batch = new InRamBatch();
+	  batch.termMap = termMap;
+	  batch.postingsStores = postingsStores;
+	  batch.documentSizes = documentSizesInRAM;
+	  batch.documents = documentsInRAM;
+	  batch.occurrences = occurrencesInRAM;
+	  batch.maxDocSize = maxDocSizeInRAM;
+	  // install the data structures for the new batch
+	  InRamBatch spare = spareBatch;
+	  spareBatch = null;
+	  termMap = spare != null ? spare.termMap : null;
+	  postingsStores = spare != null ? spare.postingsStores : null;
+	  documentSizesInRAM = spare != null ? spare.documentSizes : null;
+	  newBatch();
+	  if(shards != null && postingsStores != null) {
+	    // the shard threads are idle, and will see the new value when they 
+	    // take their next task from the queue
+	    for(int i = 0; i < shards.length; i++) {
+	      shards[i].postingsStore = postingsStores[i];
+	    }
+	  }
+	  return batch;
+	}
+	
+	/**
+	 * Writes a batch of data that was detached from the in-RAM index to a new 
+	 * on-disk batch. The first batch is the head index, all other batches are 
+	 * tail indexes. After the batch is written, its data structures are kept 
+	 * for re-use by the next in-RAM batch. If the write fails, the partially 
+	 * written batch directory is removed and the in-RAM data is left intact, so
+	 * the same batch can be written again later.
+	 * @param batch the batch to be written.
+	 * @throws IOException 
+	 * @throws IndexException
+	 * @return the number of occurrences written to disk 
+	 */
+	protected long writeBatch(InRamBatch batch) 
+	    throws IOException, IndexException {
+	  if(batch.documents == 0) {
+	    batch.clear();
+	    spareBatch = batch;
+	    return 0;
+	  }
 	  
 	  // find the name for the new tail
-	  int tailNo = -1;
-	  File headDir = new File(indexDirectory, HEAD_FILE_NAME);
-	  if(headDir.exists()) {
-	    // we have a head, calculate the tail number for this new tail
-	    String[] existingTails = indexDirectory.list(TAILS_FILENAME_FILTER);
-	    for(String aTail : existingTails) {
-	      int aTailNo = Integer.parseInt(aTail.substring(TAIL_FILE_NAME_PREFIX.length()));
-	      if(aTailNo > tailNo) tailNo = aTailNo;
+	  String newTailName;
+	  File newTailDir;
+	  // background merges rename batch directories while holding the lock
+	  synchronized(this) {
+  	  int tailNo = -1;
+  	  File headDir = new File(indexDirectory, HEAD_FILE_NAME);
+  	  if(headDir.exists()) {
+  	    // we have a head, calculate the tail number for this new tail
+  	    String[] existingTails = indexDirectory.list(TAILS_FILENAME_FILTER);
+  	    for(String aTail : existingTails) {
+  	      int aTailNo = Integer.parseInt(aTail.substring(TAIL_FILE_NAME_PREFIX.length()));
+  	      if(aTailNo > tailNo) tailNo = aTailNo;
+  	    }
+  	    tailNo++;	    
+  	  }
+  	  newTailName = tailNo == -1 ? HEAD_FILE_NAME : 
+  	      (TAIL_FILE_NAME_PREFIX + Integer.toString(tailNo));
+  	  newTailDir = new File(indexDirectory, newTailName);
+  	  newTailDir.mkdir();
+	  }
+	  
+	  boolean opened = false;
+	  try {
+	    writeBatchFiles(batch, newTailName, newTailDir);
+	    // merge new tail into index cluster
+	    try {
+	      MG4JIndex newBatch = openSubIndex(newTailName);
+	      synchronized(this) {
+	        // open the new clusters before changing anything, so that a failure
+	        // leaves the current state untouched
+	        List<MG4JIndex> newBatches = new ArrayList<MG4JIndex>(batches);
+	        newBatches.add(newBatch);
+	        Index newInvertedIndex = openInvertedIndexCluster(newBatches, 
+	            termProcessor);
+	        Index newDirectIndex = hasDirectIndex ? 
+	            openDirectIndexCluster(newBatches) : null;
+	        // modify internal state
+	        batches.add(newBatch);
+	        invertedIndex = newInvertedIndex;
+	        if(hasDirectIndex) {
+	          directIndex = newDirectIndex;
+	        }
+	        generation++;
+	      }
+	    } catch(Exception e) {
+	      throw new IndexException("Could not open the index just written to " +
+	          newTailDir , e);
+	    }
+	    opened = true;
+	  } finally {
+	    if(!opened) {
+	      // remove the partial batch, so the in-RAM data can be written again
+	      if(!gate.util.Files.rmdir(newTailDir)) {
+	        logger.error("Could not fully delete the failed batch at " + 
+	            newTailDir + ". It must be deleted before the index is " +
+	            "opened again.");
+	      }
 	    }
-	    tailNo++;	    
 	  }
+	  // update parent
+	  long res = batch.occurrences;
 	  
+	  // keep the data structures, for the next in-RAM batch
+	  batch.clear();
+	  spareBatch = batch;
+	  return res;
+	}
+	
+	/**
+	 * Writes the files for a new on-disk batch. 
+	 * @param batch the in-RAM batch being written.
+	 * @param newTailName the name of the new batch.
+	 * @param newTailDir the directory for the new batch, which must already 
+	 * exist.
+	 * @throws IOException
+	 * @throws IndexException
+	 */
+	protected void writeBatchFiles(InRamBatch batch, String newTailName, 
+	    File newTailDir) throws IOException, IndexException {
 	  // Open an index writer for the new tail
-	  String newTailName = tailNo == -1 ? HEAD_FILE_NAME : 
-	      (TAIL_FILE_NAME_PREFIX + Integer.toString(tailNo));
-	  File newTailDir = new File(indexDirectory, newTailName);
-	  newTailDir.mkdir();
-	  String mg4jBasename = new File(newTailDir, name).getAbsolutePath();
+	  final String mg4jBasename = new File(newTailDir, name).getAbsolutePath();
 	  QuasiSuccinctIndexWriter indexWriter = new QuasiSuccinctIndexWriter(
 	      IOFactory.FILESYSTEM_FACTORY,
 	      mg4jBasename,
-	      documentsInRAM,
+	      batch.documents,
 	      Fast.mostSignificantBit(QuasiSuccinctIndex.DEFAULT_QUANTUM),
 	      QuasiSuccinctIndexWriter.DEFAULT_CACHE_SIZE,
 	      CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX,
 	      ByteOrder.nativeOrder());
 	  // write the data from RAM
-    int numTermsInRAM = termMap.size();
+    // We write down all term in appearance order in termArray.
+    final MutableString[] termArray = batch.getTerms();
+    int numTermsInRAM = termArray.length;
     logger.info( "Generating index for batch " + newTailName + 
-            "; documents: " + documentsInRAM + "; terms:" + numTermsInRAM + 
-            "; occurrences: " + occurrencesInRAM +
+            "; documents: " + batch.documents + "; terms:" + numTermsInRAM + 
+            "; occurrences: " + batch.occurrences +
             " / " + parent.getOccurrencesInRam());
     
-    // We write down all term in appearance order in termArray.
-    final MutableString[] termArray = termMap.keySet().toArray(new MutableString[ numTermsInRAM ]);
     // We sort the terms appearing in the batch and write them on disk.
-    Arrays.quickSort(0, termArray.length, 
-            new IntComparator() {
-              @Override
-              public int compare(Integer one, Integer other) {
-                return compare(one.intValue(), other.intValue());
-              }
-              
-              @Override
-              public int compare(int one, int other) {
-                return termArray[one].compareTo(termArray[other]);
-              }
-            },
-            new Swapper() {
-              @Override
-              public void swap(int one, int other) {
-                MutableString temp = termArray[one];
-                termArray[one] = termArray[other];
-                termArray[other] = temp;
-              }
-            });
-	  // write the terms, termmap, and bloom filter files
+    sortTerms(termArray);
     
-    // make sure we can't create a Bloom filter of expected size 0
-    BloomFilter<Void> termFilter = BloomFilter.create(Math.max(numTermsInRAM, 1));
-    PrintWriter pw = new PrintWriter( 
-        new OutputStreamWriter(new FastBufferedOutputStream(
-            new FileOutputStream(mg4jBasename + DiskBasedIndex.TERMS_EXTENSION), 
-            64 * 1024), 
-        "UTF-8" ));
-    for (MutableString t : termArray ) {
-      t.println( pw );
-      termFilter.add(t);
+    // close the last document in each postings list, so that they can be 
+    // safely read by the direct index writer while the postings are written
+    if(batch.termMap != null) {
+      for(PostingsList aPostingsList : batch.termMap.values()) {
+        aPostingsList.flush();
+      }
     }
-    pw.close();
-    generateTermMap(new File(mg4jBasename + DiskBasedIndex.TERMS_EXTENSION),
-        new File(mg4jBasename + DiskBasedIndex.TERMMAP_EXTENSION), null);
+    
+    // the auxiliary files, and the direct index, are written in parallel with
+    // the postings
+    List<Future<?>> auxiliaryTasks = new ArrayList<Future<?>>();
+	  // write the terms and termmap files
+    auxiliaryTasks.add(batchWritingPool.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        PrintWriter pw = new PrintWriter( 
+            new OutputStreamWriter(new FastBufferedOutputStream(
+                new FileOutputStream(mg4jBasename + DiskBasedIndex.TERMS_EXTENSION), 
+                64 * 1024), 
+            "UTF-8" ));
+        for (MutableString t : termArray ) {
+          t.println( pw );
+        }
+        pw.close();
+        generateTermMap(new File(mg4jBasename + DiskBasedIndex.TERMS_EXTENSION),
+            new File(mg4jBasename + DiskBasedIndex.TERMMAP_EXTENSION), null);
+        return null;
+      }
+    }));
     // write the bloom filter
-    BinIO.storeObject(termFilter, 
-        new File(mg4jBasename + DocumentalCluster.BLOOM_EXTENSION)); 
+    auxiliaryTasks.add(batchWritingPool.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        // make sure we can't create a Bloom filter of expected size 0
+        BloomFilter<Void> termFilter = BloomFilter.create(
+            Math.max(termArray.length, 1));
+        for (MutableString t : termArray ) {
+          termFilter.add(t);
+        }
+        BinIO.storeObject(termFilter, 
+            new File(mg4jBasename + DocumentalCluster.BLOOM_EXTENSION));
+        return null;
+      }
+    }));
     // write the sizes file
-    File sizesFile = new File(mg4jBasename + DiskBasedIndex.SIZES_EXTENSION);
-    OutputBitStream sizesStream = new OutputBitStream(sizesFile);   
-    for(int docSize : documentSizesInRAM.elements()) {
-      sizesStream.writeGamma(docSize);
-    }
-    sizesStream.close();
-    // write the actual index
-    int maxCount = 0;
-    for ( int i = 0; i < numTermsInRAM; i++ ) {
-      PostingsList postingsList = termMap.get( termArray[ i ] );
-      if ( maxCount < postingsList.maxCount ) maxCount = postingsList.maxCount;
-      postingsList.write(indexWriter);
+    final IntArrayList documentSizes = batch.documentSizes;
+    auxiliaryTasks.add(batchWritingPool.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        File sizesFile = new File(mg4jBasename + DiskBasedIndex.SIZES_EXTENSION);
+        OutputBitStream sizesStream = new OutputBitStream(sizesFile);   
+        for(int docSize : documentSizes.elements()) {
+          sizesStream.writeGamma(docSize);
+        }
+        sizesStream.close();
+        return null;
+      }
+    }));
+    // write the direct index
+    if(hasDirectIndex) {
+      final InRamBatch directBatch = batch;
+      final File directBatchDir = newTailDir;
+      auxiliaryTasks.add(batchWritingPool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          writeDirectIndex(directBatch, directBatchDir);
+          return null;
+        }
+      }));
     }
-    indexWriter.close();
-    // write the index properties
+    // the auxiliary tasks must be finished before returning, or propagating 
+    // an error, so that none is left writing to the batch directory
+    boolean written = false;
     try {
+      // write the actual index
+      int maxCount = 0;
+      byte[] termMaxCounts = new byte[numTermsInRAM];
+      // when using shards, the in-RAM occurrences also include duplicate 
+      // positions, so we count the occurrences actually written
+      long occurrences = 0;
+      for ( int i = 0; i < numTermsInRAM; i++ ) {
+        int termMaxCount;
+        if(batch.postingsStores != null) {
+          SlabPostingsStore store = batch.getPostingsStore(termArray[i]);
+          int termId = store.getTermId(termArray[i]);
+          store.write(termId, indexWriter);
+          termMaxCount = store.maxCount(termId);
+          occurrences += store.occurrences(termId);
+        } else {
+          PostingsList postingsList = batch.termMap.get( termArray[ i ] );
+          termMaxCount = postingsList.maxCount;
+          postingsList.write(indexWriter);
+          occurrences += postingsList.occurrences;
+        }
+        if ( maxCount < termMaxCount ) maxCount = termMaxCount;
+        termMaxCounts[i] = (byte)Math.min(termMaxCount, MAXCOUNT_SATURATED);
+      }
+      indexWriter.close();
+      BinIO.storeBytes(termMaxCounts, mg4jBasename + MAXCOUNTS_EXTENSION);
+      // write the index properties
       Properties properties = indexWriter.properties();
       additionalProperties.setProperty( Index.PropertyKeys.SIZE, 
           indexWriter.writtenBits());
       // -1 means unknown
       additionalProperties.setProperty( Index.PropertyKeys.MAXDOCSIZE, 
-          maxDocSizeInRAM);
+          batch.maxDocSize);
       additionalProperties.setProperty( Index.PropertyKeys.MAXCOUNT, maxCount );
       additionalProperties.setProperty( Index.PropertyKeys.OCCURRENCES, 
-          occurrencesInRAM );
+          occurrences );
       properties.addAll(additionalProperties);
       Scan.saveProperties( IOFactory.FILESYSTEM_FACTORY, properties, 
           mg4jBasename + DiskBasedIndex.PROPERTIES_EXTENSION );
@@ -1046,42 +1864,22 @@ public abstract class AtomicIndex implements Runnable {
           DiskBasedIndex.STATS_EXTENSION));
       indexWriter.printStats(statsPs);
       statsPs.close();
+      written = true;
     } catch(ConfigurationException e) {
       // this should never happen
       throw new IndexException("Error while saving tail properties", e);
+    } finally {
+      if(!written) awaitAbandonedTasks(auxiliaryTasks);
     }
-	  
-    if(hasDirectIndex) {
-      writeDirectIndex(newTailDir);
-    }
-    // update parent
-    long res = occurrencesInRAM;
-    
-    // clear out internal state, in preparation for the next tail  
-    newBatch();
-    
-    // merge new tail into index cluster
-    try {
-      // modify internal state
-      synchronized(this) {
-        batches.add(openSubIndex(newTailName));
-        invertedIndex = openInvertedIndexCluster(batches, termProcessor);
-        if(hasDirectIndex) {
-          directIndex = openDirectIndexCluster(batches);
-        }
-      }
-    } catch(Exception e) {
-      throw new IndexException("Could not open the index just written to " +
-         mg4jBasename , e);
-    }
-    return res;
+    awaitTasks(auxiliaryTasks);
 	}
 	
 	/**
 	 * Writes the in-RAM data to a new direct index batch.
+	 * @param batch the in-RAM batch being written.
 	 * @param batchDir
 	 */
-  protected void writeDirectIndex(File batchDir) 
+  protected void writeDirectIndex(InRamBatch batch, File batchDir) 
       throws IOException, IndexException {
     // The index we are writing is a direct index, so we give it new terms
     // which are actually document IDs, and they have posting lists containing
@@ -1090,8 +1888,10 @@ public abstract class AtomicIndex implements Runnable {
     // The document pointers in RAM are zero-based, so we need to add all the 
     // documents on disk to this.
     long docsOnDisk = 0;
-    for(MG4JIndex index : batches) {
-      docsOnDisk += index.invertedIndex.numberOfDocuments;
+    synchronized(this) {
+      for(MG4JIndex index : batches) {
+        docsOnDisk += index.invertedIndex.numberOfDocuments;
+      }
     }
     
     //1. invert index data in RAM
@@ -1100,7 +1900,7 @@ public abstract class AtomicIndex implements Runnable {
             PostingsList>(INITIAL_TERM_MAP_SIZE, Hash.FAST_LOAD_FACTOR );
     MutableString docIdStr = new MutableString();
     // make sure all the terms about to be indexed have direct ID
-    for(MutableString termMS : termMap.keySet()) {
+    for(MutableString termMS : batch.getTerms()) {
       String termString = termMS.toString();
       long directTermId = directTermIds.getLong(termString);
       if(directTermId == directTermIds.defaultReturnValue()) {
@@ -1112,10 +1912,32 @@ public abstract class AtomicIndex implements Runnable {
     }
     // we now read the posting lists for all the terms, in ascending term order    
     MutableString termMS = new MutableString();
+    SlabPostingsStore.Cursor cursor = null;
     for(long directTermId = 0; directTermId < directTerms.size64(); directTermId++){
       String termString = directTerms.get(directTermId);
       termMS.replace(termString);
-      PostingsList termPostings = termMap.get(termMS);
+      if(batch.postingsStores != null) {
+        SlabPostingsStore store = batch.getPostingsStore(termMS);
+        int termId = store.getTermId(termMS);
+        if(termId < 0) continue;
+        if(cursor == null || cursor.getStore() != store) {
+          cursor = store.newCursor();
+        }
+        cursor.reset(termId);
+        while(cursor.nextDocument()) {
+          docIdStr.replace(longToTerm(docsOnDisk + cursor.document()));
+          PostingsList docPostings = docMap.get(docIdStr);
+          if(docPostings == null) {
+            docPostings = new PostingsList(false);
+            docMap.put(docIdStr.copy(), docPostings);
+          }
+          docPostings.newDocumentPointer(directTermId);
+          docPostings.setCount(cursor.count()); 
+          docPostings.flush();
+        }
+        continue;
+      }
+      PostingsList termPostings = batch.termMap.get(termMS);
       if(termPostings != null) {
         long docPointer = docsOnDisk + termPostings.firstDocumentPointer;
         for(int i = 0; i < termPostings.documentPointersDifferential.size(); i++) {
@@ -1157,26 +1979,7 @@ public abstract class AtomicIndex implements Runnable {
     // sort all the docIds
     final MutableString[] docArray = docMap.keySet().toArray(new MutableString[ docMap.size() ]);
     // We sort the terms appearing in the batch and write them on disk.
-    Arrays.quickSort(0, docArray.length, 
-            new IntComparator() {
-              @Override
-              public int compare(Integer one, Integer other) {
-                return compare(one.intValue(), other.intValue());
-              }
-              
-              @Override
-              public int compare(int one, int other) {
-                return docArray[one].compareTo(docArray[other]);
-              }
-            },
-            new Swapper() {
-              @Override
-              public void swap(int one, int other) {
-                MutableString temp = docArray[one];
-                docArray[one] = docArray[other];
-                docArray[other] = temp;
-              }
-            });
+    sortTerms(docArray);
     
     BloomFilter<Void> docBloomFilter = BloomFilter.create(docArray.length);
     PrintWriter pw = new PrintWriter( 
@@ -1203,9 +2006,15 @@ public abstract class AtomicIndex implements Runnable {
     for(long directTermId = 0; directTermId < directTerms.size64(); directTermId++){
       String termString = directTerms.get(directTermId);
       termMS.replace(termString);
-      PostingsList termPostings = termMap.get(termMS);
-      int termSize = termPostings != null ?
-          (int)termPostings.frequency : 0;
+      int termSize;
+      if(batch.postingsStores != null) {
+        SlabPostingsStore store = batch.getPostingsStore(termMS);
+        int termId = store.getTermId(termMS);
+        termSize = termId >= 0 ? (int)store.frequency(termId) : 0;
+      } else {
+        PostingsList termPostings = batch.termMap.get(termMS);
+        termSize = termPostings != null ? (int)termPostings.frequency : 0;
+      }
       sizesStream.writeGamma(termSize);
       if(termSize > maxTermSize) maxTermSize = termSize;
     }
@@ -1268,96 +2077,394 @@ public abstract class AtomicIndex implements Runnable {
 	
 	/**
 	 * Combines all the currently existing batches, generating a new head index.
+	 * Waits for any background merges in progress to complete first.
 	 * @throws IndexException 
 	 * @throws IOException 
 	 * @throws ConfigurationException 
+	 * @throws InterruptedException 
 	 */
-	protected void compactIndex() throws IndexException, IOException, ConfigurationException {
-	  File headDirNew = new File(indexDirectory, HEAD_FILE_NAME + HEAD_NEW_EXT);
-	  // make a local copy of the sub-indexes
-	  List<MG4JIndex> indexesToMerge = 
-	      new ArrayList<AtomicIndex.MG4JIndex>(batches);
-	  if(!headDirNew.mkdir()) {
-	    throw new IndexException("Could not create new head directory at " + 
-	        headDirNew.getAbsolutePath() +  "!"); 
+	protected void compactIndex() throws IndexException, IOException, 
+	    ConfigurationException, InterruptedException {
+	  List<MG4JIndex> indexesToMerge;
+	  synchronized(this) {
+	    while(!mergingBatches.isEmpty()) {
+	      wait();
+	    }
+	    if(batches.size() < 2) return;
+	    indexesToMerge = new ArrayList<AtomicIndex.MG4JIndex>(batches);
+	    mergingBatches.addAll(indexesToMerge);
 	  }
-	  
-	  Map<Component,Coding> codingFlags = 
-	      CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX;
-	  String outputBaseName = new File(headDirNew, name).getAbsolutePath();
-	  
-	  String[] inputBaseNames = new String[indexesToMerge.size()];
-	  for(int i = 0; i < inputBaseNames.length; i++) {
-	    inputBaseNames[i] = new File(indexesToMerge.get(i).indexDir, name)
-	      .getAbsolutePath(); 
+	  mergeBatches(indexesToMerge);
+	}
+	
+	/**
+	 * Asks the merge policy which batches should be merged, and schedules the
+	 * required merges on the merge threads of the parent index. This method 
+	 * returns immediately. Each merge asks for more merges when it completes, 
+	 * so merges can cascade to higher tiers.
+	 * @return a list of futures, one for each merge scheduled.
+	 */
+	public List<Future<Void>> requestMerges() {
+	  List<Future<Void>> futures = new ArrayList<Future<Void>>();
+	  ExecutorService mergeExecutor = parent.getMergeExecutor();
+	  if(mergeExecutor.isShutdown()) return futures;
+	  synchronized(this) {
+	    // don't start new merges while a compaction is waiting
+	    if(compactIndexTask != null) return futures;
+	    long[] sizes = new long[batches.size()];
+	    boolean[] merging = new boolean[sizes.length];
+	    for(int i = 0; i < sizes.length; i++) {
+	      MG4JIndex aBatch = batches.get(i);
+	      sizes[i] = aBatch.sizeInBytes;
+	      merging[i] = mergingBatches.contains(aBatch);
+	    }
+	    for(int[] aMerge : mergePolicy.findMerges(sizes, merging)) {
+	      final List<MG4JIndex> indexesToMerge = new ArrayList<MG4JIndex>(
+	          batches.subList(aMerge[0], aMerge[1]));
+	      mergingBatches.addAll(indexesToMerge);
+	      try {
+  	      futures.add(mergeExecutor.submit(new Callable<Void>() {
+  	        @Override
+  	        public Void call() throws Exception {
+  	          try {
+  	            mergeBatches(indexesToMerge);
+  	          } catch(Exception e) {
+  	            logger.error("Error while merging batches of " + name, e);
+  	            throw e;
+  	          }
+  	          requestMerges();
+  	          return null;
+  	        }
+  	      }));
+	      } catch(RejectedExecutionException e) {
+	        // the parent index is closing
+	        mergingBatches.removeAll(indexesToMerge);
+	        notifyAll();
+	        break;
+	      }
+	    }
 	  }
-	  
+	  return futures;
+	}
+	
+	/**
+	 * Merges a run of adjacent batches into a single batch, which takes the 
+	 * place (and the directory name) of the first batch in the run. The batches
+	 * must have already been added to {@link #mergingBatches}, and are removed
+	 * from it when this method completes. 
+	 * @param indexesToMerge the batches to be merged, in order.
+	 * @throws IndexException 
+	 * @throws IOException 
+	 * @throws ConfigurationException 
+	 */
+	protected void mergeBatches(List<MG4JIndex> indexesToMerge) 
+	    throws IndexException, IOException, ConfigurationException, 
+	    InterruptedException {
 	  try {
-      new Concatenate(
-          IOFactory.FILESYSTEM_FACTORY,
-          outputBaseName,
-          inputBaseNames,
-          false, // metadataOnly 
-          Combine.DEFAULT_BUFFER_SIZE, 
-          codingFlags,
-          IndexType.QUASI_SUCCINCT,
-          true, // skips
-          // BitStreamIndex.DEFAULT_QUANTUM,
-          // replaced with optimised automatic calculation
-          -5, 
-          BitStreamIndex.DEFAULT_HEIGHT, 
-          SkipBitStreamIndexWriter.DEFAULT_TEMP_BUFFER_SIZE, 
-          ProgressLogger.DEFAULT_LOG_INTERVAL).run();
-      // generate term map
-      generateTermMap(new File(outputBaseName + DiskBasedIndex.TERMS_EXTENSION), 
-          new File(outputBaseName +  DiskBasedIndex.TERMMAP_EXTENSION),
-          new File(outputBaseName +  DocumentalCluster.BLOOM_EXTENSION));
-    } catch(Exception e) {
-      throw new IndexException("Exception while combining sub-indexes", e);
-    }
-
-    if(hasDirectIndex()) {
-      combineDirectIndexes(indexesToMerge, new File(headDirNew, name + 
-          DIRECT_INDEX_NAME_SUFFIX).getAbsolutePath());
-    }	  
-	  
-	  // update the internal state
-    synchronized(this) {
-      // remove the indexes that were merged
-      batches.removeAll(indexesToMerge);
-      // insert the new head at the front of the list
-      File headDir = new File(indexDirectory, HEAD_FILE_NAME);
-      File headDirOld = new File(indexDirectory, HEAD_FILE_NAME + HEAD_OLD_EXT);
-      if(headDir.exists() && headDir.renameTo(headDirOld)){
-        if(headDirNew.renameTo(headDir)) {
-          batches.add(0, openSubIndex(HEAD_FILE_NAME));
-          invertedIndex = openInvertedIndexCluster(batches, termProcessor);
-          if(hasDirectIndex) {
-            directIndex =openDirectIndexCluster(batches);
-          }
-          // clean-up: delete old head, used-up tails
-          if(!gate.util.Files.rmdir(headDirOld)) {
-            throw new IndexException(
-                "Could not fully delete old sub-index at: " + headDirOld);
-          }
-          for(MG4JIndex aSubIndex : indexesToMerge) {
-            if(!aSubIndex.indexDir.equals(headDir)) {
-              if(!gate.util.Files.rmdir(aSubIndex.indexDir)){
-                throw new IndexException(
-                    "Could not fully delete old sub-index at: " + 
-                    aSubIndex.indexDir);
-              }              
+	    // all the merge output is written through the rate limiter
+	    IOFactory mergeIOFactory = parent.getMergeRateLimiter().limit(
+	        IOFactory.FILESYSTEM_FACTORY);
+	    File firstDir = indexesToMerge.get(0).indexDir;
+	    File mergedDirNew = new File(indexDirectory, 
+	        firstDir.getName() + HEAD_NEW_EXT);
+	    if(mergedDirNew.exists()) {
+	      // left over from a failed merge
+	      gate.util.Files.rmdir(mergedDirNew);
+	    }
+	    if(!mergedDirNew.mkdir()) {
+	      throw new IndexException("Could not create new batch directory at " + 
+	          mergedDirNew.getAbsolutePath() +  "!"); 
+	    }
+	    logger.info("Merging " + indexesToMerge.size() + " batches of " + name + 
+	        " into " + firstDir.getName());
+	    String outputBaseName = new File(mergedDirNew, name).getAbsolutePath();
+	    try {
+	      combineInvertedIndexes(indexesToMerge, outputBaseName, mergeIOFactory);
+	      // generate term map
+	      generateTermMap(new File(outputBaseName + DiskBasedIndex.TERMS_EXTENSION), 
+	          new File(outputBaseName +  DiskBasedIndex.TERMMAP_EXTENSION),
+	          new File(outputBaseName +  DocumentalCluster.BLOOM_EXTENSION));
+	    } catch(Exception e) {
+	      throw new IndexException("Exception while combining sub-indexes", e);
+	    }
+  
+      if(hasDirectIndex()) {
+        combineDirectIndexes(indexesToMerge, new File(mergedDirNew, name + 
+            DIRECT_INDEX_NAME_SUFFIX).getAbsolutePath(), mergeIOFactory);
+      }	  
+  	  
+  	  // update the internal state
+      synchronized(this) {
+        int position = batches.indexOf(indexesToMerge.get(0));
+        // remove the indexes that were merged
+        batches.removeAll(indexesToMerge);
+        // insert the new batch in place of the old ones
+        File mergedDirOld = new File(indexDirectory, 
+            firstDir.getName() + HEAD_OLD_EXT);
+        if(firstDir.renameTo(mergedDirOld)){
+          if(mergedDirNew.renameTo(firstDir)) {
+            batches.add(position, openSubIndex(firstDir.getName()));
+            invertedIndex = openInvertedIndexCluster(batches, termProcessor);
+            if(hasDirectIndex) {
+              directIndex =openDirectIndexCluster(batches);
+            }
+            // clean-up: delete old first batch, used-up batches
+            if(!gate.util.Files.rmdir(mergedDirOld)) {
+              throw new IndexException(
+                  "Could not fully delete old sub-index at: " + mergedDirOld);
             }
+            for(MG4JIndex aSubIndex : indexesToMerge) {
+              if(!aSubIndex.indexDir.equals(firstDir)) {
+                if(!gate.util.Files.rmdir(aSubIndex.indexDir)){
+                  throw new IndexException(
+                      "Could not fully delete old sub-index at: " + 
+                      aSubIndex.indexDir);
+                }              
+              }
+            }
+          } else {
+            throw new IndexException("Cold not rename new batch at " + 
+                mergedDirNew.getAbsolutePath() + " to " + firstDir);
           }
         } else {
-          throw new IndexException("Cold not rename new head at " + 
-              headDirNew.getAbsolutePath() + " to " + headDir);
+          throw new IndexException("Cold not rename batch at " + 
+              firstDir.getAbsolutePath() + " to " + mergedDirOld);
         }
-      } else {
-        throw new IndexException("Cold not rename head at " + 
-            headDir.getAbsolutePath() + " to " + headDirOld);
       }
-    }
+	  } finally {
+	    synchronized(this) {
+	      mergingBatches.removeAll(indexesToMerge);
+	      notifyAll();
+	    }
+	  }
+	}
+	
+	/**
+	 * Given a run of adjacent inverted index batches, this method produces one
+	 * single output index containing the data from all the input indexes, with
+	 * the document pointers of each input shifted by the number of documents in
+	 * the previous inputs. This does the same job as MG4J's 
+	 * {@link it.unimi.di.big.mg4j.tool.Concatenate}, which cannot be used to 
+	 * write through a rate-limiting {@link IOFactory}, as it insists on reading 
+	 * its memory-mapped inputs using the same factory as its output. Like 
+	 * {@link it.unimi.di.big.mg4j.tool.Concatenate}, this streams the postings 
+	 * of each term from the inputs one document at a time, so the memory used 
+	 * does not depend on the length of the postings lists.
+	 * @param inputIndexes the batches to combine, in document order.
+	 * @param outputBasename
+	 * @param ioFactory the factory used to write the output index (e.g. one
+	 * limiting the write rate, see {@link MergeRateLimiter#limit(IOFactory)}).
+	 * @throws IOException 
+	 * @throws ConfigurationException 
+	 */
+	protected static void combineInvertedIndexes(List<MG4JIndex> inputIndexes,
+	    String outputBasename, IOFactory ioFactory) throws IOException, 
+	    ConfigurationException {
+	  int numInputs = inputIndexes.size();
+	  long noOfDocuments = 0;
+	  long[] documentOffsets = new long[numInputs];
+	  for(int i = 0; i < numInputs; i++) {
+	    documentOffsets[i] = noOfDocuments;
+	    noOfDocuments += inputIndexes.get(i).invertedIndex.numberOfDocuments;
+	  }
+	  QuasiSuccinctIndexWriter outputIndexWriter =
+	      new QuasiSuccinctIndexWriter(
+	          ioFactory,
+	          outputBasename, 
+	          noOfDocuments,
+	          Fast.mostSignificantBit(QuasiSuccinctIndex.DEFAULT_QUANTUM),
+	          QuasiSuccinctIndexWriter.DEFAULT_CACHE_SIZE,
+	          CompressionFlags.DEFAULT_QUASI_SUCCINCT_INDEX,
+	          ByteOrder.nativeOrder());
+	  PrintWriter termsPw = new PrintWriter( 
+	      new OutputStreamWriter(new FastBufferedOutputStream(
+	          ioFactory.getOutputStream(
+	              outputBasename + DiskBasedIndex.TERMS_EXTENSION), 
+	          64 * 1024), 
+	      "UTF-8" ));
+	  
+	  // the inputs are read in parallel, each one positioned on its next term
+	  CombineInput[] inputs = new CombineInput[numInputs];
+	  long occurrences = 0;
+	  int maxCount = 0;
+	  ByteArrayList termMaxCounts = new ByteArrayList();
+	  // the positions of the current document, reused across documents
+	  int[] positions = new int[1024];
+	  try {
+	    for(int i = 0; i < numInputs; i++) {
+	      inputs[i] = new CombineInput(inputIndexes.get(i), documentOffsets[i]);
+	      inputs[i].nextTerm();
+	    }
+	    MutableString termMS = new MutableString();
+	    while(true) {
+	      // find the smallest term among the inputs
+	      MutableString minTerm = null;
+	      for(CombineInput anInput : inputs) {
+	        if(anInput.term != null && 
+	           (minTerm == null || anInput.term.compareTo(minTerm) < 0)) {
+	          minTerm = anInput.term;
+	        }
+	      }
+	      if(minTerm == null) break;
+	      termMS.replace(minTerm);
+	      termMS.println(termsPw);
+	      // the writer needs the totals for the term before its first posting
+	      long frequency = 0;
+	      long termOccurrences = 0;
+	      long sumMaxPos = 0;
+	      for(CombineInput anInput : inputs) {
+	        if(anInput.term == null || !anInput.term.equals(termMS)) continue;
+	        frequency += anInput.iterator.frequency();
+	        termOccurrences += anInput.occurrency;
+	        sumMaxPos += anInput.sumMaxPos;
+	      }
+	      outputIndexWriter.newInvertedList(frequency, termOccurrences, 
+	          sumMaxPos);
+	      outputIndexWriter.writeFrequency(frequency);
+	      occurrences += termOccurrences;
+	      // copy its postings from all the inputs that contain it, one 
+	      // document at a time
+	      int termMaxCount = 0;
+	      for(CombineInput anInput : inputs) {
+	        if(anInput.term == null || !anInput.term.equals(termMS)) continue;
+	        IndexIterator inputIterator = anInput.iterator;
+	        long docPointer = inputIterator.nextDocument();
+	        while(docPointer != IndexIterator.END_OF_LIST) {
+	          int count = inputIterator.count();
+	          if(count > positions.length) {
+	            positions = new int[Math.max(count, positions.length * 2)];
+	          }
+	          for(int j = 0; j < count; j++) {
+	            positions[j] = inputIterator.nextPosition();
+	          }
+	          OutputBitStream obs = outputIndexWriter.newDocumentRecord();
+	          outputIndexWriter.writeDocumentPointer(obs, 
+	              anInput.documentOffset + docPointer);
+	          outputIndexWriter.writePositionCount(obs, count);
+	          outputIndexWriter.writeDocumentPositions(obs, positions, 0, count, 
+	              -1);
+	          if(termMaxCount < count) termMaxCount = count;
+	          docPointer = inputIterator.nextDocument();
+	        }
+	        anInput.nextTerm();
+	      }
+	      if(maxCount < termMaxCount) maxCount = termMaxCount;
+	      termMaxCounts.add((byte)Math.min(termMaxCount, MAXCOUNT_SATURATED));
+	    }
+	  } finally {
+	    for(CombineInput anInput : inputs) {
+	      if(anInput != null) anInput.close();
+	    }
+	    outputIndexWriter.close();
+	    termsPw.close();
+	  }
+	  OutputStream maxCountsStream = ioFactory.getOutputStream(
+	      outputBasename + MAXCOUNTS_EXTENSION);
+	  try {
+	    maxCountsStream.write(termMaxCounts.elements(), 0, 
+	        termMaxCounts.size());
+	  } finally {
+	    maxCountsStream.close();
+	  }
+	  
+	  // write the sizes file
+	  int maxDocSize = 0;
+	  OutputBitStream sizesStream = new OutputBitStream(ioFactory.getOutputStream(
+	      outputBasename + DiskBasedIndex.SIZES_EXTENSION));
+	  for(MG4JIndex inputIndex : inputIndexes) {
+	    for(int docSize : inputIndex.invertedIndex.sizes) {
+	      sizesStream.writeGamma(docSize);
+	      if(docSize > maxDocSize) maxDocSize = docSize;
+	    }
+	  }
+	  sizesStream.close();
+	  
+	  // write the index properties
+	  Properties properties = outputIndexWriter.properties();
+	  properties.setProperty(Index.PropertyKeys.TERMPROCESSOR, ObjectParser.toSpec(
+	      inputIndexes.get(0).invertedIndex.termProcessor));
+	  properties.setProperty( Index.PropertyKeys.SIZE,  
+	      outputIndexWriter.writtenBits());
+	  properties.setProperty( Index.PropertyKeys.MAXDOCSIZE, maxDocSize);
+	  properties.setProperty( Index.PropertyKeys.MAXCOUNT, maxCount );
+	  properties.setProperty( Index.PropertyKeys.OCCURRENCES, occurrences);
+	  Scan.saveProperties( IOFactory.FILESYSTEM_FACTORY, properties, 
+	      outputBasename + DiskBasedIndex.PROPERTIES_EXTENSION );
+	  
+	  // write stats
+	  PrintStream statsPs = new PrintStream(new File(outputBasename + 
+	      DiskBasedIndex.STATS_EXTENSION));
+	  outputIndexWriter.printStats(statsPs);
+	  statsPs.close();
+	}
+	
+	/**
+	 * One of the inputs of 
+	 * {@link #combineInvertedIndexes(List, String, IOFactory)}, positioned on
+	 * its current term. Besides the postings, this reads the number of
+	 * occurrences and the sum of maximum positions for each term (which the
+	 * output writer needs before the first posting of a term) from the files
+	 * written alongside the input index.
+	 */
+	private static class CombineInput {
+	  private final IndexReader reader;
+	  
+	  private final FileLinesCollection.FileLinesIterator termsIter;
+	  
+	  private final InputBitStream occurrencies;
+	  
+	  private final InputBitStream sumsMaxPos;
+	  
+	  /**
+	   * The number of documents in all the previous inputs.
+	   */
+	  private final long documentOffset;
+	  
+	  /**
+	   * The current term, or <code>null</code> if the input is exhausted.
+	   */
+	  private MutableString term;
+	  
+	  private IndexIterator iterator;
+	  
+	  private long occurrency;
+	  
+	  private long sumMaxPos;
+	  
+	  private CombineInput(MG4JIndex inputIndex, long documentOffset) 
+	      throws IOException {
+	    this.documentOffset = documentOffset;
+	    String basename = new File(inputIndex.indexDir, inputIndex.indexName)
+	        .getAbsolutePath();
+	    reader = inputIndex.invertedIndex.getReader();
+	    termsIter = new FileLinesCollection(basename + 
+	        DiskBasedIndex.TERMS_EXTENSION, "UTF-8").iterator();
+	    occurrencies = new InputBitStream(basename + 
+	        DiskBasedIndex.OCCURRENCIES_EXTENSION);
+	    sumsMaxPos = new InputBitStream(basename + 
+	        DiskBasedIndex.SUMS_MAX_POSITION_EXTENSION);
+	  }
+	  
+	  /**
+	   * Moves this input to its next term, setting the term to 
+	   * <code>null</code> when the input is exhausted.
+	   */
+	  private void nextTerm() throws IOException {
+	    iterator = termsIter.hasNext() ? reader.nextIterator() : null;
+	    if(iterator != null) {
+	      term = termsIter.next();
+	      occurrency = occurrencies.readLongGamma();
+	      sumMaxPos = sumsMaxPos.readLongDelta();
+	    } else {
+	      term = null;
+	    }
+	  }
+	  
+	  private void close() throws IOException {
+	    reader.close();
+	    occurrencies.close();
+	    sumsMaxPos.close();
+	  }
 	}
 	
 	/**
@@ -1366,11 +2473,14 @@ public abstract class AtomicIndex implements Runnable {
 	 * containing the data from all the input indexes.
 	 * @param inputIndexes
 	 * @param outputBasename
+	 * @param ioFactory the factory used to write the output index (e.g. one
+	 * limiting the write rate, see {@link MergeRateLimiter#limit(IOFactory)}).
 	 * @throws IOException 
 	 * @throws ConfigurationException 
 	 */
 	protected static void combineDirectIndexes (List<MG4JIndex> inputIndexes, 
-	    String outputBasename) throws IOException, ConfigurationException {
+	    String outputBasename, IOFactory ioFactory) throws IOException, 
+	    ConfigurationException {
 	  
 	  long noOfDocuments = 0;
 	  long noOfTerms = 0;
@@ -1386,7 +2496,7 @@ public abstract class AtomicIndex implements Runnable {
     flags.remove(Component.POSITIONS);
     QuasiSuccinctIndexWriter outputIndexWriter =
         new QuasiSuccinctIndexWriter(
-            IOFactory.FILESYSTEM_FACTORY,
+            ioFactory,
             outputBasename, 
             noOfDocuments,
             Fast.mostSignificantBit(QuasiSuccinctIndex.DEFAULT_QUANTUM),
@@ -1397,7 +2507,8 @@ public abstract class AtomicIndex implements Runnable {
     BloomFilter<Void> bloomFilter = BloomFilter.create(noOfTerms);
     PrintWriter termsPw = new PrintWriter( 
         new OutputStreamWriter(new FastBufferedOutputStream(
-            new FileOutputStream(outputBasename + DiskBasedIndex.TERMS_EXTENSION), 
+            ioFactory.getOutputStream(
+                outputBasename + DiskBasedIndex.TERMS_EXTENSION), 
             64 * 1024), 
         "UTF-8" ));
     
@@ -1472,39 +2583,68 @@ public abstract class AtomicIndex implements Runnable {
 	 * queue the dump request.
 	 */
 	public Future<Long> requestSyncToDisk() throws InterruptedException {
-	  if(batchWriteTask == null) {
-	    batchWriteTask = new FutureTask<Long>(new Callable<Long>() {
-        @Override
-        public Long call() throws Exception {
-          return writeCurrentBatch();
-        }
-      });
-	    inputQueue.put(DUMP_BATCH);  
+	  // the indexing thread clears the field once it has dispatched the task,
+	  // so we keep our own reference to it
+	  RunnableFuture<Long> task;
+	  boolean created = false;
+	  synchronized(this) {
+	    task = batchWriteTask;
+	    if(task == null) {
+	      task = new FutureTask<Long>(new Callable<Long>() {
+	        @Override
+	        public Long call() throws Exception {
+	          return writePendingBatches();
+	        }
+	      });
+	      batchWriteTask = task;
+	      created = true;
+	    }
 	  }
-	  return batchWriteTask;
+	  // the queue may be full, and the indexing thread needs the lock to take 
+	  // the task, so we must not hold it while waiting for space.
+	  if(created) inputQueue.put(DUMP_BATCH);
+	  return task;
 	}
 	
 	/**
 	 * Requests this atomic index to compact its on-disk batches into a single
-	 * batch.
+	 * batch. The compaction is performed on one of the merge threads of the 
+	 * parent index, once any merges already in progress have completed.
 	 * 
 	 * @return a {@link Future} which can be used to find out when the compaction
 	 * operation has completed.
 	 * @throws InterruptedException if this thread is interrupted while trying to
    * queue the compaction request.
+   * @throws IllegalStateException if the parent index has been closed, so its
+   * merge threads no longer accept work.
 	 */
-  public Future<Void> requestCompactIndex() throws InterruptedException {
-    if(compactIndexTask == null) {
-      compactIndexTask = new FutureTask<Void>(new Callable<Void>(){
+  public synchronized Future<Void> requestCompactIndex() 
+      throws InterruptedException {
+    // the task clears the field once it has run, so we keep our own 
+    // reference to it
+    RunnableFuture<Void> task = compactIndexTask;
+    if(task == null) {
+      task = new FutureTask<Void>(new Callable<Void>(){
         @Override
         public Void call() throws Exception {
-          compactIndex();
+          try {
+            compactIndex();
+          } finally {
+            compactIndexTask = null;
+          }
           return null;
         }
       });
-      inputQueue.put(COMPACT_INDEX);
+      compactIndexTask = task;
+      try {
+        parent.getMergeExecutor().execute(task);
+      } catch(RejectedExecutionException e) {
+        compactIndexTask = null;
+        throw new IllegalStateException("The index has been closed, " + 
+            name + " can no longer be compacted.", e);
+      }
     }
-    return compactIndexTask;
+    return task;
   }
 	
 	/**
@@ -1545,6 +2685,18 @@ public abstract class AtomicIndex implements Runnable {
       // this should never happen. If it does, it's not fatal
       logger.warn("Exception wile loading stre Bloom Filter", e);
     }
+    // read the per-term maximum counts (batches written by older versions 
+    // don't have them)
+    File maxCountsFile = new File(mg4jBasename + MAXCOUNTS_EXTENSION);
+    byte[] termMaxCounts = null;
+    if(maxCountsFile.exists()) {
+      termMaxCounts = BinIO.loadBytes(maxCountsFile);
+      if(termMaxCounts.length != invertedIndex.numberOfTerms) {
+        logger.warn("Ignoring per-term maximum counts file " + maxCountsFile +
+            ", which does not match the number of terms in the index.");
+        termMaxCounts = null;
+      }
+    }
     
     Index directIndex = null;
     BloomFilter<Void> directTermFilter = null;
@@ -1583,6 +2735,7 @@ public abstract class AtomicIndex implements Runnable {
     MG4JIndex newIndexData = new MG4JIndex(subIndexDir, name,
         invertedIndex, invertedTermFilter, 
         directIndex, directTermFilter);
+    newIndexData.termMaxCounts = termMaxCounts;
 	  return newIndexData;
 	}
 	
@@ -1595,24 +2748,47 @@ public abstract class AtomicIndex implements Runnable {
 	  indexingThread = Thread.currentThread();
 	  GATEDocument aDocument;
 	  try{
+	    final String batchWriterName = "Mimir-" + name + " batch writer";
+	    batchWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          return new Thread(r, batchWriterName);
+        }
+      });
 	    // start in-RAM indexing
 	    newBatch();
+	    // start the indexing shards, if required
+	    int shardCount = parent.getIndexConfig().getIndexingShards();
+	    if(shardCount > 1) {
+	      shards = new IndexingShard[shardCount];
+	      for(int i = 0; i < shardCount; i++) {
+	        shards[i] = new IndexingShard("Mimir-" + name + 
+	            " indexing shard " + i, 
+	            postingsStores != null ? postingsStores[i] : null);
+	      }
+	    }
   	  if(inputQueue != null) {
         do{
           aDocument = inputQueue.take();
           if(aDocument != GATEDocument.END_OF_QUEUE) {
             if(aDocument == DUMP_BATCH) {
               //dump batch was requested
-              if(batchWriteTask != null){
-                batchWriteTask.run();
+              RunnableFuture<Long> task;
+              synchronized(this) {
+                task = batchWriteTask;
+                batchWriteTask = null;
               }
-              batchWriteTask = null;
-            } else if(aDocument == COMPACT_INDEX) {
-              // compress index was requested
-              if(compactIndexTask != null) {
-                compactIndexTask.run();
+              // an earlier DUMP_BATCH may already have dispatched the task
+              if(task != null){
+                // only one batch is written at a time, so at most two batches
+                // are held in RAM
+                awaitBatchWrite();
+                // hand the current batch to the writer thread, and carry on 
+                // indexing into a new batch
+                batchesToWrite.add(detachCurrentBatch());
+                lastBatchWrite = task;
+                batchWriter.execute(task);
               }
-              compactIndexTask = null;
             } else {
               try {
                 long occurencesBefore = occurrencesInRAM;
@@ -1623,11 +2799,21 @@ public abstract class AtomicIndex implements Runnable {
               }          
             }
           } else {
-            // close down
-            writeCurrentBatch();
+            // close down: write all the data still in RAM, including any 
+            // batches whose earlier write failed
+            awaitBatchWrite();
+            try {
+              batchesToWrite.add(detachCurrentBatch());
+              writePendingBatches();
+            } catch(IOException | IndexException e) {
+              closeFailure = e;
+              logger.error("Could not write the in-RAM data for " + name + 
+                  " to disk! " + batchesToWrite.size() + 
+                  " batches of documents were lost.", e);
+            }
             flush();
           }
-          if(aDocument != DUMP_BATCH && aDocument != COMPACT_INDEX) {
+          if(aDocument != DUMP_BATCH) {
             outputQueue.put(aDocument);  
           }
         } while(aDocument != GATEDocument.END_OF_QUEUE);
@@ -1638,10 +2824,73 @@ public abstract class AtomicIndex implements Runnable {
       logger.error("Exception during indexing!", e);
       throw new GateRuntimeException("Exception during indexing!", e);
     } finally {
+      if(shards != null) {
+        try {
+          for(IndexingShard aShard : shards) {
+            aShard.stop();
+          }
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        shards = null;
+      }
+      if(batchWriter != null) {
+        batchWriter.shutdown();
+        batchWriter = null;
+      }
+      postingsStores = null;
+      spareBatch = null;
       indexingThread = null;
     }
 	}
 	
+	/**
+	 * Waits for the last batch handed over to the {@link #batchWriter} (if any)
+	 * to be written to disk. Called on the indexing thread.
+	 * @throws InterruptedException
+	 */
+	protected void awaitBatchWrite() throws InterruptedException {
+	  if(lastBatchWrite != null) {
+	    try {
+	      lastBatchWrite.get();
+	    } catch(ExecutionException e) {
+	      // the batch is kept, and written again with the next one
+	      logger.error("Could not write batch for " + name + " to disk. " + 
+	          batchesToWrite.size() + " batches are kept in RAM and will be " +
+	          "written with the next sync to disk.", e.getCause());
+	    }
+	    lastBatchWrite = null;
+	  }
+	}
+	
+	/**
+	 * Writes all the batches in {@link #batchesToWrite} to disk, in order. Each
+	 * batch is removed from the queue only once it has been written, so if this
+	 * method fails, the remaining batches can be written by a later call.
+	 * @return the number of occurrences written to disk.
+	 * @throws IOException
+	 * @throws IndexException
+	 */
+	protected long writePendingBatches() throws IOException, IndexException {
+	  while(!batchesToWrite.isEmpty()) {
+	    unreportedOccurrences += writeBatch(batchesToWrite.peek());
+	    batchesToWrite.remove();
+	  }
+	  long res = unreportedOccurrences;
+	  unreportedOccurrences = 0;
+	  return res;
+	}
+	
+	/**
+	 * Gets the reason why the in-RAM data could not be written to disk when 
+	 * indexing stopped.
+	 * @return the failure, or <code>null</code> if all the data was written 
+	 * (or indexing has not stopped yet).
+	 */
+	public Exception getCloseFailure() {
+	  return closeFailure;
+	}
+	
 	/**
 	 * Closes all file-based resources.
 	 * @throws IOException
@@ -1653,11 +2902,17 @@ public abstract class AtomicIndex implements Runnable {
 	 * to be written. 
 	 * @throws InterruptedException is the waiting thread is interrupted before 
 	 * the indexing thread has finished writing all the data.
+	 * @throws IOException if some of the in-RAM data could not be written to 
+	 * disk.
 	 */
-	public void close() throws InterruptedException {
+	public void close() throws InterruptedException, IOException {
     inputQueue.put(GATEDocument.END_OF_QUEUE);
     if(indexingThread != null) {
       indexingThread.join();
+    }
+    if(closeFailure != null) {
+      throw new IOException("Could not write the in-RAM data for " + name + 
+          " to disk", closeFailure);
     }
 	}
 
@@ -1737,6 +2992,17 @@ public abstract class AtomicIndex implements Runnable {
       documentSizesInRAM.add(docLength);
     } finally {
       documentEnding(gateDocument);
+      if(shards != null) {
+        try {
+          for(IndexingShard aShard : shards) {
+            aShard.endDocument(documentsInRAM);
+          }
+        } catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IndexException(
+              "Interrupted while queueing document to indexing shards", e);
+        }
+      }
       documentsInRAM++;
     }
   }
@@ -1772,6 +3038,25 @@ public abstract class AtomicIndex implements Runnable {
    * @throws IOException 
    */
   protected void indexCurrentTerm() {
+    if(shards != null) {
+      // hand the posting over to the shard responsible for this term. 
+      // Duplicate positions are discarded by the shard thread. 
+      shards[(currentTerm.hashCode() & Integer.MAX_VALUE) % shards.length]
+          .addPosting(currentTerm, tokenPosition);
+      occurrencesInRAM++;
+      return;
+    }
+    if(postingsStores != null) {
+      // In a documental cluster, each sub-index is zero-based. This is why we 
+      // use the local document pointer here.
+      if(postingsStores[0].addPosting(currentTerm, documentsInRAM, 
+          tokenPosition)) {
+        occurrencesInRAM++;
+      } else {
+        logger.debug("Duplicate position");
+      }
+      return;
+    }
     //check if we have seen this mention before
     PostingsList termPostings = termMap.get(currentTerm);
     if(termPostings == null){
@@ -1841,7 +3126,30 @@ public abstract class AtomicIndex implements Runnable {
   public Index getIndex() {
     return invertedIndex;
   }
-  
+
+  /**
+   * Gets an upper bound for the number of occurrences of a term in any one
+   * document, over all the batches currently on disk. The bound is exact for
+   * the batches that store per-term maximum counts (see
+   * {@link #MAXCOUNTS_EXTENSION}), and is the maximum count for the whole
+   * batch otherwise. Batches written later are not included, so the value
+   * should be obtained after opening the reader it applies to.
+   * @param term the term, as processed by the term processor.
+   * @return the maximum number of occurrences.
+   */
+  public int getTermMaxCount(CharSequence term) {
+    List<MG4JIndex> currentBatches;
+    synchronized(this) {
+      currentBatches = new ArrayList<MG4JIndex>(batches);
+    }
+    int maxCount = 0;
+    for(MG4JIndex aBatch : currentBatches) {
+      int batchCount = aBatch.getTermMaxCount(term);
+      if(batchCount > maxCount) maxCount = batchCount;
+    }
+    return maxCount;
+  }
+
   
   /**
    * Gets the direct index for this atomic index. The returned value is 
@@ -1902,6 +3210,17 @@ public abstract class AtomicIndex implements Runnable {
     return count;
   }
   
+  /**
+   * Gets the generation of this index, which is incremented every time a new
+   * batch is written to disk (and so new documents, and possibly new terms, 
+   * become searchable). This can be used to invalidate cached search results.
+   * Merging batches does not change the generation.
+   * @return
+   */
+  public long getGeneration() {
+    return generation;
+  }
+  
   /**
    * Returns the number of batches in this atomic index.
    * @return
@@ -0,0 +1,631 @@
+/*
+ *  DeletedDocumentSet.java
+ *
+ *  Copyright (c) 2007-2014, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * The set of IDs for the documents marked as deleted in an index.
+ * </p>
+ * <p>
+ * The document IDs are stored as a compressed bitmap, in the style of
+ * <em>Roaring</em> bitmaps: the ID space is split into chunks of 2<sup>16</sup>
+ * IDs, and each non-empty chunk is stored either as a sorted array of 16 bit
+ * values (when sparse), or as a plain bitmap (when dense). The chunks are
+ * immutable: all modifications build new chunks, which are then published
+ * through a volatile reference, so {@link #contains(long)} never blocks and
+ * costs a couple of array look-ups.
+ * </p>
+ * <p>
+ * On disk, the set is stored as a snapshot file (see
+ * {@link #SNAPSHOT_FILE_NAME}), plus a journal file (see
+ * {@link #JOURNAL_FILE_NAME}) to which all the changes made since the
+ * snapshot was written get appended. The journal is folded into a new
+ * snapshot when it grows larger than the snapshot itself, and when the set is
+ * closed.
+ * </p>
+ */
+public class DeletedDocumentSet {
+
+  /**
+   * The name of the file (in the index directory) containing the snapshot of
+   * the set of deleted documents.
+   */
+  public static final String SNAPSHOT_FILE_NAME = "deleted.bitmap";
+
+  /**
+   * The name of the file (in the index directory) containing the changes
+   * made since the snapshot was written.
+   */
+  public static final String JOURNAL_FILE_NAME = "deleted.journal";
+
+  /**
+   * Magic number written at the start of the snapshot file.
+   */
+  private static final int SNAPSHOT_MAGIC = 0x4d444453;
+
+  /**
+   * The version of the snapshot file format.
+   */
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /**
+   * The minimum size (in bytes) the journal is allowed to grow to before
+   * being folded into a new snapshot.
+   */
+  private static final long MIN_JOURNAL_SIZE = 1024 * 1024;
+
+  /**
+   * The number of low-order bits of a document ID that are stored inside a
+   * chunk.
+   */
+  private static final int CHUNK_BITS = 16;
+
+  /**
+   * The largest number of values stored as an array in a chunk. Chunks with
+   * more values are stored as bitmaps, which take 8KB.
+   */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  /**
+   * The largest document ID that can be stored.
+   */
+  public static final long MAX_DOCUMENT_ID =
+      ((long)(Integer.MAX_VALUE - 1) << CHUNK_BITS) - 1;
+
+  private static final Logger logger = Logger.getLogger(DeletedDocumentSet.class);
+
+  /**
+   * An immutable set of 16 bit values.
+   */
+  private static abstract class Chunk {
+
+    public abstract boolean contains(char value);
+
+    public abstract int cardinality();
+
+    /**
+     * Finds the smallest value, greater than or equal to <code>from</code>, 
+     * that is not in this chunk.
+     * @return the value found, or 2<sup>16</sup> if all the values from 
+     * <code>from</code> upwards are in this chunk.
+     */
+    public abstract int nextAbsent(int from);
+
+    /**
+     * Adds all the values in this chunk to a bitmap.
+     */
+    public abstract void fill(long[] bits);
+
+    public abstract void write(DataOutputStream out) throws IOException;
+  }
+
+  private static class ArrayChunk extends Chunk {
+
+    private final char[] values;
+
+    public ArrayChunk(char[] values) {
+      this.values = values;
+    }
+
+    @Override
+    public boolean contains(char value) {
+      return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    @Override
+    public int cardinality() {
+      return values.length;
+    }
+
+    @Override
+    public int nextAbsent(int from) {
+      int pos = Arrays.binarySearch(values, (char)from);
+      if(pos < 0) return from;
+      // skip over the run of consecutive values starting at from
+      while(pos + 1 < values.length && values[pos + 1] == values[pos] + 1) {
+        pos++;
+      }
+      return values[pos] + 1;
+    }
+
+    @Override
+    public void fill(long[] bits) {
+      for(char value : values) bits[value >>> 6] |= 1L << value;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+      for(char value : values) out.writeChar(value);
+    }
+  }
+
+  private static class BitmapChunk extends Chunk {
+
+    private final long[] bits;
+
+    private final int cardinality;
+
+    public BitmapChunk(long[] bits, int cardinality) {
+      this.bits = bits;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    public boolean contains(char value) {
+      return (bits[value >>> 6] & (1L << value)) != 0;
+    }
+
+    @Override
+    public int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    public int nextAbsent(int from) {
+      int wordIndex = from >>> 6;
+      long absent = ~bits[wordIndex] & (-1L << from);
+      while(absent == 0) {
+        if(++wordIndex == bits.length) return 1 << CHUNK_BITS;
+        absent = ~bits[wordIndex];
+      }
+      return (wordIndex << 6) + Long.numberOfTrailingZeros(absent);
+    }
+
+    @Override
+    public void fill(long[] bits) {
+      for(int i = 0; i < bits.length; i++) bits[i] |= this.bits[i];
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+      for(long word : bits) out.writeLong(word);
+    }
+  }
+
+  /**
+   * The chunks making up the set, indexed by the high-order bits of the
+   * document IDs they contain. Empty chunks are <code>null</code>.
+   * This array is never modified once published: changes are made to a copy,
+   * which then replaces it.
+   */
+  private volatile Chunk[] chunks;
+
+  /**
+   * The number of document IDs in the set.
+   */
+  private volatile long size;
+
+  /**
+   * The changes not yet written to the journal, in journal format (the
+   * document ID for additions, and its one's complement for removals).
+   */
+  private LongArrayList pendingChanges;
+
+  /**
+   * The directory where the snapshot and journal files are stored.
+   */
+  private File directory;
+
+  /**
+   * Opens the set of deleted documents stored in a given directory, creating
+   * an empty one if no files exist yet.
+   * @param directory
+   * @throws IOException
+   */
+  public DeletedDocumentSet(File directory) throws IOException {
+    this.directory = directory;
+    this.chunks = new Chunk[0];
+    this.pendingChanges = new LongArrayList();
+    readSnapshot();
+    readJournal();
+  }
+
+  /**
+   * Checks whether a given document ID is in this set. This method does not
+   * block.
+   * @param documentId
+   * @return
+   */
+  public boolean contains(long documentId) {
+    Chunk[] chunks = this.chunks;
+    long chunkId = documentId >>> CHUNK_BITS;
+    if(documentId < 0 || chunkId >= chunks.length) return false;
+    Chunk chunk = chunks[(int)chunkId];
+    return chunk != null && chunk.contains((char)documentId);
+  }
+
+  /**
+   * Finds the first document ID, greater than or equal to a given value, that
+   * is not in this set. This can be used to leap over runs of deleted 
+   * documents. This method does not block.
+   * @param documentId
+   * @return
+   */
+  public long nextAbsent(long documentId) {
+    if(documentId < 0) return documentId;
+    Chunk[] chunks = this.chunks;
+    while(true) {
+      long chunkId = documentId >>> CHUNK_BITS;
+      if(chunkId >= chunks.length) return documentId;
+      Chunk chunk = chunks[(int)chunkId];
+      if(chunk == null) return documentId;
+      int next = chunk.nextAbsent((int)(documentId & 0xffff));
+      if(next < (1 << CHUNK_BITS)) return (chunkId << CHUNK_BITS) + next;
+      documentId = (chunkId + 1) << CHUNK_BITS;
+    }
+  }
+
+  /**
+   * Gets the number of document IDs in this set.
+   * @return
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Adds a document ID to this set.
+   * @param documentId
+   * @return <code>true</code> if the set was changed.
+   */
+  public boolean add(long documentId) {
+    return addAll(new long[]{documentId});
+  }
+
+  /**
+   * Adds some document IDs to this set.
+   * @param documentIds
+   * @return <code>true</code> if the set was changed.
+   */
+  public boolean addAll(long[] documentIds) {
+    return update(documentIds, true, true);
+  }
+
+  /**
+   * Removes a document ID from this set.
+   * @param documentId
+   * @return <code>true</code> if the set was changed.
+   */
+  public boolean remove(long documentId) {
+    return removeAll(new long[]{documentId});
+  }
+
+  /**
+   * Removes some document IDs from this set.
+   * @param documentIds
+   * @return <code>true</code> if the set was changed.
+   */
+  public boolean removeAll(long[] documentIds) {
+    return update(documentIds, false, true);
+  }
+
+  /**
+   * Adds or removes a set of document IDs, and publishes the new chunks.
+   * @param documentIds the IDs to add or remove.
+   * @param add <code>true</code> to add the IDs, <code>false</code> to remove
+   * them.
+   * @param journal whether the changes should be recorded in the journal.
+   * @return <code>true</code> if the set was changed.
+   */
+  private synchronized boolean update(long[] documentIds, boolean add,
+      boolean journal) {
+    if(documentIds.length == 0) return false;
+    long[] ids = documentIds.clone();
+    Arrays.sort(ids);
+    if(ids[0] < 0 || ids[ids.length - 1] > MAX_DOCUMENT_ID) {
+      throw new IllegalArgumentException("Document IDs must be between 0 and "
+          + MAX_DOCUMENT_ID);
+    }
+    Chunk[] newChunks = null;
+    long newSize = size;
+    int start = 0;
+    while(start < ids.length) {
+      int chunkId = (int)(ids[start] >>> CHUNK_BITS);
+      int end = start + 1;
+      while(end < ids.length && (ids[end] >>> CHUNK_BITS) == chunkId) end++;
+      Chunk oldChunk = chunkId < chunks.length ? chunks[chunkId] : null;
+      if(oldChunk == null && !add) {
+        // nothing to remove
+        start = end;
+        continue;
+      }
+      long[] bits = new long[1 << (CHUNK_BITS - 6)];
+      int cardinality = 0;
+      if(oldChunk != null) {
+        oldChunk.fill(bits);
+        cardinality = oldChunk.cardinality();
+      }
+      boolean changed = false;
+      for(int i = start; i < end; i++) {
+        if(i > start && ids[i] == ids[i - 1]) continue;
+        int value = (int)(ids[i] & 0xffff);
+        long mask = 1L << value;
+        boolean present = (bits[value >>> 6] & mask) != 0;
+        if(add && !present) {
+          bits[value >>> 6] |= mask;
+          cardinality++;
+        } else if(!add && present) {
+          bits[value >>> 6] &= ~mask;
+          cardinality--;
+        } else {
+          continue;
+        }
+        changed = true;
+        if(journal) pendingChanges.add(add ? ids[i] : ~ids[i]);
+      }
+      if(changed) {
+        if(newChunks == null) {
+          newChunks = chunks.clone();
+        }
+        if(chunkId >= newChunks.length) {
+          newChunks = Arrays.copyOf(newChunks,
+              Math.max(chunkId + 1, newChunks.length * 2));
+        }
+        newSize += cardinality -
+            (oldChunk == null ? 0 : oldChunk.cardinality());
+        newChunks[chunkId] = makeChunk(bits, cardinality);
+      }
+      start = end;
+    }
+    if(newChunks != null) {
+      chunks = newChunks;
+      size = newSize;
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Creates the most compact chunk for a given bitmap.
+   */
+  private static Chunk makeChunk(long[] bits, int cardinality) {
+    if(cardinality == 0) {
+      return null;
+    } else if(cardinality <= MAX_ARRAY_SIZE) {
+      char[] values = new char[cardinality];
+      int pos = 0;
+      for(int i = 0; i < bits.length; i++) {
+        long word = bits[i];
+        while(word != 0) {
+          values[pos++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayChunk(values);
+    } else {
+      return new BitmapChunk(bits, cardinality);
+    }
+  }
+
+  /**
+   * Appends the pending changes to the journal file, folding the journal into
+   * a new snapshot if it has grown too large.
+   * @throws IOException
+   */
+  public synchronized void flush() throws IOException {
+    if(pendingChanges.isEmpty()) return;
+    File journalFile = new File(directory, JOURNAL_FILE_NAME);
+    File snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+    long journalSize = journalFile.length() + pendingChanges.size() * 8L;
+    if(journalSize > Math.max(snapshotFile.length(), MIN_JOURNAL_SIZE)) {
+      writeSnapshot();
+      return;
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(journalFile, true)));
+    try {
+      for(int i = 0; i < pendingChanges.size(); i++) {
+        out.writeLong(pendingChanges.getLong(i));
+      }
+    } finally {
+      out.close();
+    }
+    pendingChanges.clear();
+  }
+
+  /**
+   * Writes a new snapshot file, containing all the document IDs in this set,
+   * and deletes the journal.
+   * @throws IOException
+   */
+  public synchronized void writeSnapshot() throws IOException {
+    File snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+    File newSnapshotFile = new File(directory, SNAPSHOT_FILE_NAME + ".new");
+    Chunk[] chunks = this.chunks;
+    int chunkCount = 0;
+    for(Chunk chunk : chunks) if(chunk != null) chunkCount++;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(newSnapshotFile)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeInt(chunkCount);
+      for(int i = 0; i < chunks.length; i++) {
+        if(chunks[i] == null) continue;
+        out.writeInt(i);
+        out.writeInt(chunks[i].cardinality());
+        chunks[i].write(out);
+      }
+    } finally {
+      out.close();
+    }
+    if(snapshotFile.exists() && !snapshotFile.delete()) {
+      throw new IOException("Could not delete old snapshot file " +
+          snapshotFile);
+    }
+    if(!newSnapshotFile.renameTo(snapshotFile)) {
+      throw new IOException("Could not rename " + newSnapshotFile + " to " +
+          snapshotFile);
+    }
+    File journalFile = new File(directory, JOURNAL_FILE_NAME);
+    if(journalFile.exists() && !journalFile.delete()) {
+      throw new IOException("Could not delete journal file " + journalFile);
+    }
+    pendingChanges.clear();
+  }
+
+  /**
+   * Adds the document IDs saved in the format used by older versions (a 
+   * gzipped, serialised {@link Set} of {@link Integer} or {@link Long} values),
+   * and writes a new snapshot containing them.
+   * @param legacyFile the file to read.
+   * @throws IOException
+   */
+  public synchronized void importLegacyFile(File legacyFile) 
+      throws IOException {
+    ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(
+        new BufferedInputStream(new FileInputStream(legacyFile))));
+    try {
+      Set<?> savedSet = (Set<?>)ois.readObject();
+      long[] ids = new long[savedSet.size()];
+      int i = 0;
+      for(Object anId : savedSet) ids[i++] = ((Number)anId).longValue();
+      update(ids, true, false);
+    } catch(ClassNotFoundException e) {
+      // this should never happen
+      throw new RuntimeException(e);
+    } finally {
+      ois.close();
+    }
+    writeSnapshot();
+  }
+
+  /**
+   * Loads the snapshot file, if one exists.
+   * @throws IOException
+   */
+  private void readSnapshot() throws IOException {
+    File snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+    if(!snapshotFile.exists()) {
+      // a crash may have happened between deleting the old snapshot and
+      // renaming the new one
+      File newSnapshotFile = new File(directory, SNAPSHOT_FILE_NAME + ".new");
+      if(newSnapshotFile.exists()) {
+        newSnapshotFile.renameTo(snapshotFile);
+      } else {
+        return;
+      }
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(snapshotFile)));
+    try {
+      if(in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("File " + snapshotFile +
+            " does not contain a set of deleted documents.");
+      }
+      int version = in.readInt();
+      if(version != SNAPSHOT_VERSION) {
+        throw new IOException("Unsupported version " + version +
+            " for deleted documents file " + snapshotFile);
+      }
+      int chunkCount = in.readInt();
+      Chunk[] chunks = new Chunk[0];
+      long size = 0;
+      for(int i = 0; i < chunkCount; i++) {
+        int chunkId = in.readInt();
+        int cardinality = in.readInt();
+        Chunk chunk;
+        if(cardinality <= MAX_ARRAY_SIZE) {
+          char[] values = new char[cardinality];
+          for(int j = 0; j < cardinality; j++) values[j] = in.readChar();
+          chunk = new ArrayChunk(values);
+        } else {
+          long[] bits = new long[1 << (CHUNK_BITS - 6)];
+          for(int j = 0; j < bits.length; j++) bits[j] = in.readLong();
+          chunk = new BitmapChunk(bits, cardinality);
+        }
+        if(chunkId >= chunks.length) {
+          chunks = Arrays.copyOf(chunks, chunkId + 1);
+        }
+        chunks[chunkId] = chunk;
+        size += cardinality;
+      }
+      this.chunks = chunks;
+      this.size = size;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Re-applies the changes recorded in the journal file, if one exists. A
+   * truncated last record (left by a crash in the middle of a write) is
+   * dropped, and cut off the journal, so that the records appended later
+   * start at a record boundary.
+   * @throws IOException
+   */
+  private void readJournal() throws IOException {
+    File journalFile = new File(directory, JOURNAL_FILE_NAME);
+    if(!journalFile.exists()) return;
+    long recordsRead = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(journalFile)));
+    try {
+      // consecutive changes of the same kind are applied together
+      LongArrayList run = new LongArrayList();
+      boolean runAdds = true;
+      while(true) {
+        long value;
+        try {
+          value = in.readLong();
+        } catch(EOFException e) {
+          // end of file, or a truncated last record
+          break;
+        }
+        recordsRead++;
+        boolean add = value >= 0;
+        if(add != runAdds && !run.isEmpty()) {
+          update(run.toLongArray(), runAdds, false);
+          run.clear();
+        }
+        runAdds = add;
+        run.add(add ? value : ~value);
+      }
+      if(!run.isEmpty()) update(run.toLongArray(), runAdds, false);
+    } finally {
+      in.close();
+    }
+    if(journalFile.length() != recordsRead * 8) {
+      logger.warn("Dropping a truncated record at the end of the journal of " +
+          "deleted documents " + journalFile);
+      RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+      try {
+        raf.setLength(recordsRead * 8);
+      } finally {
+        raf.close();
+      }
+    }
+    logger.debug("Replayed journal of deleted documents; " + size +
+        " documents are marked as deleted.");
+  }
+}
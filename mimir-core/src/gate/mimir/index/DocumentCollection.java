@@ -15,25 +15,22 @@
 package gate.mimir.index;
 
 
+import gate.mimir.IndexConfig;
 import gate.mimir.MimirIndex;
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
@@ -41,28 +38,88 @@ import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import org.apache.log4j.Logger;
 
 
 
 /**
- * A Mimir document collection. Consists of one or more zip files containing 
- * serialised {@link DocumentData} values. Each {@link MimirIndex} contains a
- * document collection.
+ * A Mimir document collection. Consists of one or more document store files 
+ * (see {@link DocumentStoreFile}) containing {@link DocumentData} values. 
+ * Each {@link MimirIndex} contains a document collection. Collections 
+ * created by older versions used zip files containing serialised 
+ * {@link DocumentData} values instead: these can still be read, and can be 
+ * converted to the new format using 
+ * {@link gate.mimir.util.ConvertDocumentCollection}. 
  */
 public class DocumentCollection {
   
   /**
-   * The maximum number of documents to be stored in the in-RAM document cache.
+   * Parent class for the files making up a collection.
    */
-  protected static final int DOCUMENT_DATA_CACHE_SIZE = 100;
+  public static abstract class ArchiveFile implements Comparable<ArchiveFile> {
+    
+    protected File file;
+    
+    protected long firstEntry;
+    
+    protected long lastEntry;
+    
+    /**
+     * Each collection file has a number, used to generate the names for new 
+     * files. 
+     */
+    protected int collectionFileNumber;
+    
+    /**
+     * The size in bytes of the underlying file.
+     */
+    protected long length;
+    
+    /**
+     * The number of documents contained.
+     */
+    protected int documentCount;
+    
+    @Override
+    public int compareTo(ArchiveFile o) {
+      return Long.compare(firstEntry, o.firstEntry);
+    }
+    
+    public File getFile() {
+      return file;
+    }
+    
+    public long getFirstEntry() {
+      return firstEntry;
+    }
+
+    public long getLastEntry() {
+      return lastEntry;
+    }
+
+    public int getDocumentCount() {
+      return documentCount;
+    }
+
+    public abstract boolean containsDocument(long documentID);
+    
+    /**
+     * Gets the document data for a given document ID.
+     * @throws NoSuchElementException if the requested document ID is not 
+     * found.
+     */
+    public abstract DocumentData getDocumentData(long documentID) 
+        throws IOException;
+    
+    public abstract void close() throws IOException;
+  }
   
   /**
-   * Class representing one of the collection (zip) files.
+   * Class representing one of the collection zip files, as created by older
+   * versions. These are only ever read.
    */
-  public static class CollectionFile implements Comparable<CollectionFile> {
+  public static class CollectionFile extends ArchiveFile {
     /**
      * The filename for the zip collection.
      */
@@ -95,31 +152,8 @@ public class DocumentCollection {
     };
     
     
-    protected File file;
-    
 	  protected ZipFile zipFile;
 	  
-	  protected long firstEntry;
-	  
-	  protected long lastEntry;
-
-	  /**
-	   * Each collection file has a number, and optionally a suffix. For example
-	   * in &quot;mimir-collection-0-a.zip&quot;, the number is 0, and the suffix
-	   * is a.
-	   */
-	  protected int collectionFileNumber;
-	  
-	  
-	  /**
-	   * The size in bytes of the underlying file.
-	   */
-	  protected long length;
-	  
-	  /**
-	   * The number of documents contained.
-	   */
-	  protected int documentCount;
 
 	  /**
      * Given the name of a zip file, this method returns its ID: the part of the 
@@ -170,17 +204,14 @@ public class DocumentCollection {
 	  }
 	  
     @Override
-    public int compareTo(CollectionFile o) {
-      return Long.compare(firstEntry, o.firstEntry);
-    }
-    
     public boolean containsDocument(long documentID) {
       return firstEntry <= documentID && 
           documentID <= lastEntry &&
           zipFile.getEntry(Long.toString(documentID)) != null;
     }
     
-    public DocumentData getDocumentData(Long documentID) throws IOException {
+    @Override
+    public DocumentData getDocumentData(long documentID) throws IOException {
       ZipEntry entry = zipFile.getEntry(Long.toString(documentID));
       if(entry == null) throw new NoSuchElementException(
           "No entry found for document ID " + documentID);
@@ -197,6 +228,7 @@ public class DocumentCollection {
     }
     
     
+    @Override
     public void close() throws IOException {
       zipFile.close();
     }
@@ -232,8 +264,8 @@ public class DocumentCollection {
    */
   protected static class CollectionFileWriter {
     /**
-     * The number of documents kept in memory until a new zip file is written. As 
-     * new documents are submitted, they get written to the currently open zip 
+     * The number of documents kept in memory until a new file is written. As 
+     * new documents are submitted, they get written to the currently open 
      * file but they cannot be read from the file. To account for this, we keep 
      * them in memory, in the {@link #inputBuffer} structure.
      */
@@ -241,53 +273,24 @@ public class DocumentCollection {
     
     
     /**
-     * Document data objects that have been written to the zip file currently 
+     * Document data objects that have been written to the file currently 
      * being created and have to be kept in RAM until the file is closed and can 
      * be open in read mode. 
      */
     protected Long2ObjectLinkedOpenHashMap<DocumentData> inputBuffer;
     
     /**
-     * The zip file managed by this collection.
-     */
-    protected ZipOutputStream zipOuputStream;
-    
-    /**
-     * The zip file to which we are currently writing.
-     */
-    protected File zipFile;
-    
-    /**
-     * The number of entries written so far to the current zip file.
-     */
-    protected int currentEntries;
-    
-    /**
-     * The amount of bytes written so far to the current zip file.
-     */
-    protected long currentLength;
-    
-    /**
-     * A {@link ByteArrayOutputStream} used to temporarily store serialised 
-     * document data objects.
+     * The writer for the document store file currently being created.
      */
-    protected ByteArrayOutputStream byteArrayOS;
+    protected DocumentStoreFile.Writer storeWriter;
     
     public CollectionFileWriter(File file) throws IndexException {
-      this.zipFile = file;
-      if(zipFile.exists()) throw new IndexException("Collection zip file (" + 
-          file.getAbsolutePath() + ") already exists!");
-      byteArrayOS = new ByteArrayOutputStream();
-      
       try {
-        zipOuputStream = new ZipOutputStream(new BufferedOutputStream(
-                new  FileOutputStream(zipFile)));
-      } catch(FileNotFoundException e) {
-        throw new IndexException("Cannot write to collection zip file (" + 
-                zipFile.getAbsolutePath() + ")", e);
+        storeWriter = new DocumentStoreFile.Writer(file);
+      } catch(IOException e) {
+        throw new IndexException("Cannot write to collection file (" + 
+                file.getAbsolutePath() + ")", e);
       }
-      currentEntries = 0;
-      currentLength = 0;
       inputBuffer = new Long2ObjectLinkedOpenHashMap<DocumentData>();
     }
     
@@ -301,44 +304,51 @@ public class DocumentCollection {
      * @throws IOException
      */
     public boolean writeDocumentData(long documentId, DocumentData document) throws IOException {
-      //write the new document to the byte array
-      ObjectOutputStream objectOutStream = new ObjectOutputStream(byteArrayOS);
-      objectOutStream.writeObject(document);
-      objectOutStream.close();
-
+      byte[] record = DocumentStoreFile.encode(document);
       // check if this will take us over size
-      if(currentLength + byteArrayOS.size() > ZIP_FILE_MAX_SIZE ||
-         currentEntries >= ZIP_FILE_MAX_ENTRIES ||
+      if(storeWriter.length() + record.length > ZIP_FILE_MAX_SIZE ||
+         storeWriter.getDocumentCount() >= ZIP_FILE_MAX_ENTRIES ||
          inputBuffer.size() >= INPUT_BUFFER_SIZE) return false;
-      
-      // create a new entry in the current zip file
-      ZipEntry entry = new ZipEntry(Long.toString(documentId));
-      zipOuputStream.putNextEntry(entry);
-      //write the data
-      byteArrayOS.writeTo(zipOuputStream);
-      zipOuputStream.closeEntry();
-      currentLength += entry.getCompressedSize();
-      
-      //clean up the byte array for next time
-      byteArrayOS.reset();
-      currentEntries++;
+      storeWriter.write(documentId, record);
       // save the document data to the input buffer
-      inputBuffer.put(documentId, document);
+      synchronized(inputBuffer) {
+        inputBuffer.put(documentId, document);
+      }
       return true;
     }
 
+    /**
+     * Gets the data for a document that was written to the file currently 
+     * being created.
+     * @param documentId
+     * @return the document data, or <code>null</code> if the document is not 
+     * in the current file.
+     */
+    public DocumentData getDocumentData(long documentId) {
+      synchronized(inputBuffer) {
+        return inputBuffer.get(documentId);
+      }
+    }
+
+    /**
+     * Gets the data file being written.
+     * @return
+     */
+    public File getFile() {
+      return storeWriter.getDataFile();
+    }
+    
     public void close() throws IOException {
-      if(zipOuputStream != null) zipOuputStream.close();
-      inputBuffer.clear();
+      storeWriter.close();
     }
   }
   
   /**
-   * The zip files containing the document collection.
+   * The files containing the document collection.
    */
-  protected List<CollectionFile> collectionFiles = null;
+  protected List<ArchiveFile> collectionFiles = null;
   
-  protected CollectionFileWriter collectionFileWriter;
+  protected volatile CollectionFileWriter collectionFileWriter;
   
   
   private static Logger logger = Logger.getLogger(DocumentCollection.class);
@@ -352,8 +362,16 @@ public class DocumentCollection {
    * A cache of {@link DocumentData} values used for returning the various
    * document details (title, URI, text).
    */
-  protected Long2ObjectLinkedOpenHashMap<DocumentData> documentCache;
+  protected DocumentDataCache documentCache;
   
+  /**
+   * Old document store files (data files) that were replaced by a compaction,
+   * but could not be deleted yet. Memory-mapped files cannot be deleted on 
+   * some platforms (e.g. Windows) until the mapping is garbage collected, so 
+   * the deletion is retried by later compactions and on close. Any files still
+   * left over are removed when the collection is next opened.
+   */
+  protected List<File> filesToDelete = new ArrayList<File>();
 
   
   /**
@@ -363,16 +381,12 @@ public class DocumentCollection {
   private volatile boolean closed = false; 
   
   /**
-   * The maximum number of bytes to write to a single zip file.
+   * The maximum number of bytes to write to a single collection file.
    */
   public static final long ZIP_FILE_MAX_SIZE = 2 * 1000 * 1000 * 1000; 
     
   /**
-   * The maximum number of entries to write to a single zip file.
-   * Java 1.5 only support 2^16 entries.
-   * If running on Java 1.6, this limit can safely be increased, however, the
-   * total size of the file (as specified by {@link #ZIP_FILE_MAX_SIZE}) should 
-   * not be greater than 4GB, in either case.
+   * The maximum number of entries to write to a single collection file.
    */
   public static final int ZIP_FILE_MAX_ENTRIES = 250000;
   
@@ -387,33 +401,57 @@ public class DocumentCollection {
   
   
   /**
-   * Creates a DocumentCollection object for accessing the document data.
+   * Creates a DocumentCollection object for accessing the document data, 
+   * using a document cache of the default size (see 
+   * {@link IndexConfig#DEFAULT_DOCUMENT_CACHE_SIZE}).
    * @param indexDirectory
    * @throws IOException 
    */
   public DocumentCollection(File indexDirectory) throws IOException {
+    this(indexDirectory, IndexConfig.DEFAULT_DOCUMENT_CACHE_SIZE);
+  }
+  
+  /**
+   * Creates a DocumentCollection object for accessing the document data.
+   * @param indexDirectory
+   * @param documentCacheSize the approximate maximum amount of memory (in 
+   * bytes) to be used for caching document data.
+   * @throws IOException 
+   */
+  public DocumentCollection(File indexDirectory, long documentCacheSize) 
+      throws IOException {
     this.indexDirectory = indexDirectory;
     
-    collectionFiles = new ArrayList<CollectionFile>();
+    collectionFiles = new ArrayList<ArchiveFile>();
     // prepare for reading
     for(File aCollectionFile : indexDirectory.listFiles(CollectionFile.FILENAME_FILTER)) {
       collectionFiles.add(new CollectionFile(aCollectionFile));
     }
+    for(File aStoreFile : indexDirectory.listFiles(DocumentStoreFile.FILENAME_FILTER)) {
+      DocumentStoreFile storeFile = new DocumentStoreFile(aStoreFile);
+      if(storeFile.documentCount > 0) {
+        collectionFiles.add(storeFile);
+      } else {
+        // an empty file, left behind by an interrupted write
+        storeFile.close();
+      }
+    }
     Collections.sort(collectionFiles);
+    removeReplacedFiles();
     // sanity check
     for(int i = 0;  i < collectionFiles.size() - 1; i++) {
-      CollectionFile first = collectionFiles.get(i);
-      CollectionFile second = collectionFiles.get(i + 1);
+      ArchiveFile first = collectionFiles.get(i);
+      ArchiveFile second = collectionFiles.get(i + 1);
       if(first.lastEntry >= second.firstEntry) {
         throw new IOException(
             "Invalid entries distribution: collection file " + 
-            second.zipFile.getName() + 
+            second.file.getName() + 
             " contains an entry named \"" + second.firstEntry + 
             "\", but an entry with a larger-or-equal ID was " +
             "already seen in a previous collection file!");          
       }
     }
-    documentCache = new Long2ObjectLinkedOpenHashMap<DocumentData>();
+    documentCache = new DocumentDataCache(documentCacheSize);
     
     // prepare for writing
     nextDocumentId = collectionFiles.isEmpty() ? 0 : 
@@ -422,41 +460,102 @@ public class DocumentCollection {
   }
   
 
+  /**
+   * Removes from {@link #collectionFiles}, and deletes, the document store 
+   * files that were replaced by a compaction, but could not be deleted at the
+   * time. All the documents in such a file are also contained in the 
+   * (larger) file produced by the compaction.
+   */
+  protected void removeReplacedFiles() {
+    Iterator<ArchiveFile> filesIter = collectionFiles.iterator();
+    while(filesIter.hasNext()) {
+      ArchiveFile aFile = filesIter.next();
+      if(!(aFile instanceof DocumentStoreFile)) continue;
+      for(ArchiveFile otherFile : collectionFiles) {
+        if(otherFile.firstEntry <= aFile.firstEntry && 
+           aFile.lastEntry <= otherFile.lastEntry &&
+           otherFile.lastEntry - otherFile.firstEntry > 
+               aFile.lastEntry - aFile.firstEntry) {
+          logger.warn("Deleting collection file " + aFile.file + 
+              ", left over from an earlier compaction.");
+          try {
+            aFile.close();
+          } catch(IOException e) {
+            // ignore
+          }
+          filesIter.remove();
+          filesToDelete.add(aFile.file);
+          break;
+        }
+      }
+    }
+    deleteOldFiles();
+  }
+  
+  /**
+   * Tries to delete the files in {@link #filesToDelete}, together with their
+   * offset index files.
+   * @return <code>true</code> if all the files have now been deleted.
+   */
+  protected boolean deleteOldFiles() {
+    synchronized(filesToDelete) {
+      Iterator<File> filesIter = filesToDelete.iterator();
+      while(filesIter.hasNext()) {
+        File dataFile = filesIter.next();
+        File indexFile = DocumentStoreFile.getIndexFile(dataFile);
+        if((!dataFile.exists() || dataFile.delete()) && 
+           (!indexFile.exists() || indexFile.delete())) {
+          filesIter.remove();
+        }
+      }
+      return filesToDelete.isEmpty();
+    }
+  }
+
   /**
    * Gets the document data for a given document ID.
    * @param documentID the ID of the document to be retrieved.
    * @return a {@link DocumentData} object for the requested document ID.
-   * @throws IOException if there are problems accessing the underlying zip file; 
+   * @throws IOException if there are problems accessing the underlying files; 
    * @throws NoSuchElementException if the requested document ID is not found.
    */
   public DocumentData getDocumentData(long documentID) throws IOException{
     if(closed) throw new IllegalStateException(
             "This document collection has already been closed!");
-    DocumentData documentData = null;
-    if(collectionFiles.isEmpty() ||
-       documentID > collectionFiles.get(collectionFiles.size() - 1).lastEntry) {
-      // it's a new document that's not yet available from the zip files
-      documentData = collectionFileWriter != null ?
-          collectionFileWriter.inputBuffer.get(documentID):
-          null;
-    } else {
-      // it's an old document. Try the cache first
-      documentData = documentCache.getAndMoveToFirst(documentID);
-      if(documentData == null) {
-        // cache miss: we need to actually load it
-        //locate the right zip file
+    // try the cache first
+    DocumentData documentData = documentCache.get(documentID);
+    if(documentData != null) return documentData;
+    while(documentData == null) {
+      // locate the right collection file
+      ArchiveFile colFile = null;
+      synchronized(collectionFiles) {
+        files: for(ArchiveFile aColFile : collectionFiles) {
+          if(aColFile.firstEntry <= documentID && 
+             documentID <= aColFile.lastEntry) {
+            colFile = aColFile;
+            break files;
+          }
+        }
+      }
+      if(colFile == null) {
+        // it's a new document that's not yet available from the files
+        CollectionFileWriter writer = collectionFileWriter;
+        if(writer != null) documentData = writer.getDocumentData(documentID);
+        // if the writer has just moved on to a new file, the old one is now 
+        // available for reading, so we try again
+        if(documentData == null && writer == collectionFileWriter) break;
+        continue;
+      }
+      // the file is read outside the lock, so that concurrent reads from 
+      // different files do not wait for each other
+      try {
+        documentData = colFile.getDocumentData(documentID);
+        documentCache.put(documentID, documentData);
+      } catch(IOException e) {
         synchronized(collectionFiles) {
-          files: for(CollectionFile aColFile : collectionFiles) {
-            if(aColFile.containsDocument(documentID)) {
-              // we found the collection file containing the document
-              documentData = aColFile.getDocumentData(documentID);
-              documentCache.putAndMoveToFirst(documentID, documentData);
-              if(documentCache.size() > DOCUMENT_DATA_CACHE_SIZE) {
-                documentCache.removeLast();
-              }
-              break files;
-            }
-          } 
+          // if the file was replaced (by a compact operation) while we were 
+          // reading it, we simply try again 
+          if(collectionFiles.contains(colFile)) throw e;
         }
       }
     }
@@ -466,11 +565,11 @@ public class DocumentCollection {
   }
   
   /**
-   * Writes a new document to the underlying zip file. The documents added 
-   * through this method will get automatically generated names starting from 
-   * &quot;0&quot;, and continuing with &quot;1&quot;, &quot;2&quot;, etc.   
+   * Writes a new document to the current collection file. The documents added 
+   * through this method will get automatically generated IDs starting from 
+   * 0, and continuing with 1, 2, etc.   
    * @param document
-   * @throws IndexException if there are any problems while accessing the zip 
+   * @throws IndexException if there are any problems while accessing the 
    * collection file(s).
    */
   public void writeDocument(DocumentData document) throws IndexException{
@@ -485,8 +584,9 @@ public class DocumentCollection {
           // the current collection file is full: close it
           collectionFileWriter.close();
           synchronized(collectionFiles) {
-            // open the newly saved zip file
-            collectionFiles.add(new CollectionFile(collectionFileWriter.zipFile));
+            // open the newly saved file
+            collectionFiles.add(
+                new DocumentStoreFile(collectionFileWriter.getFile()));
           }
           // open a new one and try again
           openCollectionWriter();
@@ -500,21 +600,26 @@ public class DocumentCollection {
   }
   
   /**
-   * Opens the current zip file and sets the {@link #zipFile} and 
-   * {@link #zipOuputStream} values accordingly. 
-   * @throws IndexException if the collection zip file already exists, or cannot
+   * Opens a new collection file for writing, and sets the 
+   * {@link #collectionFileWriter} value accordingly. 
+   * @throws IndexException if the collection file already exists, or cannot
    * be opened for writing.
    */
   protected void openCollectionWriter() throws IndexException{
-    int zipFileNumber = 0;
+    int fileNumber = 0;
     synchronized(collectionFiles) {
-      zipFileNumber = collectionFiles.isEmpty() ? 0 :
-        collectionFiles.get(collectionFiles.size() - 1).collectionFileNumber + 1; 
+      for(ArchiveFile aColFile : collectionFiles) {
+        fileNumber = Math.max(fileNumber, aColFile.collectionFileNumber + 1);
+      }
     }
-    collectionFileWriter = new CollectionFileWriter(
-        new File(indexDirectory,
-            CollectionFile.getCollectionFileName(
-                Integer.toString(zipFileNumber))));
+    File newFile = new File(indexDirectory,
+        DocumentStoreFile.getDataFileName(Integer.toString(fileNumber)));
+    // the data file may exist if it was left empty by an interrupted write
+    if(newFile.exists()) {
+      newFile.delete();
+      DocumentStoreFile.getIndexFile(newFile).delete();
+    }
+    collectionFileWriter = new CollectionFileWriter(newFile);
   }
   
   /**
@@ -529,7 +634,7 @@ public class DocumentCollection {
     // close the reader
     closed = true;
     if(collectionFiles != null){
-      for(CollectionFile colFile : collectionFiles){
+      for(ArchiveFile colFile : collectionFiles){
         try {
           colFile.close();
         } catch(IOException e) {
@@ -539,9 +644,24 @@ public class DocumentCollection {
       collectionFiles.clear();
       collectionFiles = null;      
     }
+    if(!deleteOldFiles()) {
+      logger.warn("Could not delete old collection files " + filesToDelete + 
+          ". They will be deleted when the collection is next opened.");
+    }
+    logger.info("Document cache statistics for " + indexDirectory + ": " + 
+        documentCache);
     documentCache.clear();
   }
   
+  /**
+   * Gets the cache used for the document data, which can be used to obtain 
+   * cache usage statistics.
+   * @return
+   */
+  public DocumentDataCache getDocumentCache() {
+    return documentCache;
+  }
+  
   
   /**
    * Returns the number of archive files in this collection.
@@ -555,7 +675,9 @@ public class DocumentCollection {
    * Combines multiple smaller collection files into larger ones. If multiple
    * consecutive collection files can be combined without exceeding the maximum
    * permitted sizes ({@link #ZIP_FILE_MAX_ENTRIES} and 
-   * {@link #ZIP_FILE_MAX_SIZE}), then they are combined.
+   * {@link #ZIP_FILE_MAX_SIZE}), then they are combined. Only document store 
+   * files are combined: zip files created by older versions are left as they 
+   * are.
    * 
    * @throws ZipException
    * @throws IOException
@@ -563,18 +685,23 @@ public class DocumentCollection {
    */
   public synchronized void compact() throws ZipException, IOException, IndexException {
     logger.debug("Starting collection compact.");
+    // retry deleting the files left over from earlier compactions
+    deleteOldFiles();
     // find an interval of files that can be joined together
     // we search from the end toward the start so that we can modify the 
     // list without changing the yet-unvisited IDs.
-    CollectionFile[] colFilesArr = collectionFiles.toArray(
-        new CollectionFile[collectionFiles.size()]);
+    ArchiveFile[] colFilesArr;
+    synchronized(collectionFiles) {
+      colFilesArr = collectionFiles.toArray(
+          new ArchiveFile[collectionFiles.size()]);
+    }
     int intervalEnd = -1;
     int intervalLength = 0;
     int intervalEntries = 0;
     long intervalBytes = 0;
     for(int i = colFilesArr.length -1; i >= 0; i--) {
       // is the current file small?
-      boolean smallFile = 
+      boolean smallFile = colFilesArr[i] instanceof DocumentStoreFile &&
           colFilesArr[i].documentCount < ZIP_FILE_MAX_ENTRIES &&
           colFilesArr[i].length < ZIP_FILE_MAX_SIZE;
       if(intervalEnd < 0) { // we're looking for the first 'small' file
@@ -587,6 +714,7 @@ public class DocumentCollection {
         }
       } else { // we're trying to extend the current interval
         boolean currentFileAccepted = 
+            colFilesArr[i] instanceof DocumentStoreFile &&
             intervalEntries + colFilesArr[i].documentCount < ZIP_FILE_MAX_ENTRIES &&
             intervalBytes + colFilesArr[i].length < ZIP_FILE_MAX_SIZE;
         if(currentFileAccepted) {
@@ -600,36 +728,19 @@ public class DocumentCollection {
           if(intervalLength > 1){
             int intervalStart = intervalEnd - intervalLength + 1;
             // combine the files
-            // create the new file
-            String newFileName = "temp-" + 
-                CollectionFile.MIMIR_COLLECTION_BASENAME + 
-                colFilesArr[intervalStart].collectionFileNumber + 
-                "-" + 
-                colFilesArr[intervalEnd].collectionFileNumber + 
-                CollectionFile.MIMIR_COLLECTION_EXTENSION;
-            File newZipFile = new File(indexDirectory, newFileName);
-            ZipOutputStream  zos = new ZipOutputStream(new BufferedOutputStream(
-                      new  FileOutputStream(newZipFile)));
-            byte[] buff = new byte[1024 * 1024];
+            List<DocumentStoreFile> toJoin = new ArrayList<DocumentStoreFile>();
             for(int j = intervalStart; j <= intervalEnd; j++) {
-              Enumeration<? extends ZipEntry> entries = 
-                  colFilesArr[j].zipFile.entries();
-              while(entries.hasMoreElements()) {
-                ZipEntry anEntry = entries.nextElement();
-                zos.putNextEntry(new ZipEntry(anEntry));
-                InputStream is = colFilesArr[j].zipFile.getInputStream(anEntry);
-                int read = is.read(buff);
-                while(read >= 0){
-                  zos.write(buff, 0, read);
-                  read = is.read(buff);
-                }
-                zos.closeEntry();
-              }
+              toJoin.add((DocumentStoreFile)colFilesArr[j]);
             }
-            zos.close();
+            String newFileId = 
+                ((DocumentStoreFile)colFilesArr[intervalStart]).getFirstFileNumber() + 
+                "-" + colFilesArr[intervalEnd].collectionFileNumber;
+            File tempFile = new File(indexDirectory, "temp-" + 
+                DocumentStoreFile.getDataFileName(newFileId));
+            DocumentStoreFile.join(toJoin, tempFile);
             
             //update the collection
-            synchronized(colFilesArr) {
+            synchronized(collectionFiles) {
               //confirm that the collection files have not changed since we started
               for(int j = intervalStart; j <= intervalEnd; j++) {
                 if(colFilesArr[j] != collectionFiles.get(j)) {
@@ -640,30 +751,34 @@ public class DocumentCollection {
                       collectionFiles.get(j).file.getAbsolutePath());
 
                   // delete the newly created collection file
-                  newZipFile.delete();
+                  tempFile.delete();
+                  DocumentStoreFile.getIndexFile(tempFile).delete();
                   return;
                 }
               }
               // build name for new collection file
               File newCollectionFile = new File(indexDirectory, 
-                  CollectionFile.getCollectionFileName(
-                      Integer.toString(colFilesArr[intervalStart].collectionFileNumber) + 
-                      "-" + 
-                      Integer.toString(colFilesArr[intervalEnd].collectionFileNumber)));
-              // delete the old files
+                  DocumentStoreFile.getDataFileName(newFileId));
+              // rename temp files to new name
+              DocumentStoreFile.getIndexFile(tempFile).renameTo(
+                  DocumentStoreFile.getIndexFile(newCollectionFile));
+              tempFile.renameTo(newCollectionFile);
+              DocumentStoreFile newColFile = 
+                  new DocumentStoreFile(newCollectionFile);
+              // replace the old files with the new one
               for(int j = intervalStart; j <= intervalEnd; j++) {
-                CollectionFile oldColFile = collectionFiles.remove(intervalStart);
-                if(!oldColFile.file.delete()) {
-                  throw new IndexException(
-                      "Could not delete old collection file " + 
-                      oldColFile.file + "! " + 
-                      "Document collection now inconsistent.");
+                ArchiveFile oldColFile = collectionFiles.remove(intervalStart);
+                oldColFile.close();
+                synchronized(filesToDelete) {
+                  filesToDelete.add(oldColFile.file);
                 }
               }
-              // rename temp file to new name
-              newZipFile.renameTo(newCollectionFile);
-              // add new collection file
-              collectionFiles.add(intervalStart, new CollectionFile(newCollectionFile));
+              collectionFiles.add(intervalStart, newColFile);
+              // delete the old files, if the platform allows it already
+              if(!deleteOldFiles()) {
+                logger.debug("Could not delete old collection files " + 
+                    filesToDelete + " yet. Will try again later.");
+              }
             }
           }
           // we found and merged an interval, 
@@ -676,4 +791,4 @@ public class DocumentCollection {
       }
     }
   }
-}
\ No newline at end of file
+}
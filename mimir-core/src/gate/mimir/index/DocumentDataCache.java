@@ -0,0 +1,297 @@
+/*
+ *  DocumentDataCache.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A cache of {@link DocumentData} values, keyed by document ID, used by the
+ * {@link DocumentCollection} to avoid re-reading the same documents from disk
+ * (e.g. when the same result page is rendered repeatedly, or by several
+ * users).
+ * </p>
+ * <p>
+ * The cache is bounded by the approximate amount of memory used by the cached
+ * values (see {@link #weigh(DocumentData)}), rather than by the number of
+ * entries, as document sizes vary widely. To allow concurrent access, the
+ * cache is split into a number of segments (selected by hashing the document
+ * ID), each with its own lock and its own share of the total capacity. Each
+ * segment evicts its least recently used entries when full. A value larger
+ * than the share of its segment is still cached, as long as it fits in the
+ * whole cache: entries from the other segments are then evicted to make room
+ * for it.
+ * </p>
+ * <p>
+ * The numbers of hits, misses and evictions are counted, and can be obtained
+ * through {@link #getHitCount()}, {@link #getMissCount()}, and
+ * {@link #getEvictionCount()}.
+ * </p>
+ */
+public class DocumentDataCache {
+
+  /**
+   * The number of segments (must be a power of 2).
+   */
+  protected static final int SEGMENT_COUNT = 16;
+
+  /**
+   * Estimated memory overhead (in bytes) of each object reference held by a
+   * cached value, including the header of the referenced object.
+   */
+  protected static final int OBJECT_OVERHEAD = 48;
+
+  /**
+   * One segment of the cache.
+   */
+  protected static class Segment {
+    /**
+     * The cached values, in access order (most recently used first).
+     */
+    protected final Long2ObjectLinkedOpenHashMap<DocumentData> entries =
+        new Long2ObjectLinkedOpenHashMap<DocumentData>();
+
+    /**
+     * The weights of the cached values.
+     */
+    protected final Long2LongOpenHashMap weights = new Long2LongOpenHashMap();
+
+    /**
+     * The total weight of the values in this segment.
+     */
+    protected long weight;
+  }
+
+  protected final Segment[] segments;
+
+  /**
+   * The maximum total weight of each segment.
+   */
+  protected final long maxSegmentWeight;
+
+  /**
+   * The maximum total weight of the cache.
+   */
+  protected final long maxWeight;
+
+  /**
+   * The total weight of the values in all the segments.
+   */
+  protected final AtomicLong weight = new AtomicLong();
+
+  protected final AtomicLong hits = new AtomicLong();
+
+  protected final AtomicLong misses = new AtomicLong();
+
+  protected final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a new cache.
+   * @param maxWeight the approximate maximum amount of memory (in bytes) to
+   * be used by the cached values.
+   */
+  public DocumentDataCache(long maxWeight) {
+    segments = new Segment[SEGMENT_COUNT];
+    for(int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+    maxSegmentWeight = Math.max(1, maxWeight / SEGMENT_COUNT);
+    this.maxWeight = maxSegmentWeight * SEGMENT_COUNT;
+  }
+
+  protected Segment segmentFor(long documentID) {
+    // mix the bits, as consecutive IDs are common
+    long h = documentID * 0x9E3779B97F4A7C15L;
+    return segments[(int)(h >>> 60) & (SEGMENT_COUNT - 1)];
+  }
+
+  /**
+   * Gets a cached value.
+   * @param documentID the ID of the document.
+   * @return the cached document data, or <code>null</code> if the document
+   * is not in the cache.
+   */
+  public DocumentData get(long documentID) {
+    Segment segment = segmentFor(documentID);
+    DocumentData value;
+    synchronized(segment) {
+      value = segment.entries.getAndMoveToFirst(documentID);
+    }
+    if(value != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    return value;
+  }
+
+  /**
+   * Adds a value to the cache, evicting the least recently used values as
+   * needed to stay within the size limit. Values larger than the capacity of
+   * the segment are stored by evicting values from the other segments, and
+   * values larger than the capacity of the whole cache are not cached.
+   * @param documentID the ID of the document.
+   * @param value the document data.
+   */
+  public void put(long documentID, DocumentData value) {
+    long valueWeight = weigh(value);
+    if(valueWeight > maxWeight) return;
+    Segment segment = segmentFor(documentID);
+    synchronized(segment) {
+      segment.entries.putAndMoveToFirst(documentID, value);
+      long delta = valueWeight - segment.weights.put(documentID, valueWeight);
+      segment.weight += delta;
+      weight.addAndGet(delta);
+      // keep the new value, even if it is larger than the segment
+      while(segment.weight > maxSegmentWeight && segment.entries.size() > 1) {
+        evictLast(segment);
+      }
+    }
+    if(weight.get() > maxWeight) {
+      // the new value is larger than its segment: make room in the others,
+      // locking one segment at a time
+      int first = Arrays.asList(segments).indexOf(segment);
+      for(int i = 1; i < SEGMENT_COUNT && weight.get() > maxWeight; i++) {
+        Segment other = segments[(first + i) % SEGMENT_COUNT];
+        synchronized(other) {
+          while(weight.get() > maxWeight && !other.entries.isEmpty()) {
+            evictLast(other);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used value of a segment. The caller must hold
+   * the lock of the segment.
+   */
+  protected void evictLast(Segment segment) {
+    long evictedID = segment.entries.lastLongKey();
+    segment.entries.removeLast();
+    long evictedWeight = segment.weights.remove(evictedID);
+    segment.weight -= evictedWeight;
+    weight.addAndGet(-evictedWeight);
+    evictions.incrementAndGet();
+  }
+
+  /**
+   * Removes all the values from the cache. The statistics are not reset.
+   */
+  public void clear() {
+    for(Segment segment : segments) {
+      synchronized(segment) {
+        segment.entries.clear();
+        segment.weights.clear();
+        weight.addAndGet(-segment.weight);
+        segment.weight = 0;
+      }
+    }
+  }
+
+  /**
+   * Gets the number of successful look-ups.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Gets the number of look-ups that did not find a value in the cache.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Gets the number of values removed from the cache to make space for new
+   * values.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Gets the proportion of look-ups that found a value in the cache.
+   * @return a value between 0 and 1, or 0 if the cache has not been used.
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (double)h / total;
+  }
+
+  /**
+   * Gets the approximate amount of memory (in bytes) currently used by the
+   * cached values.
+   */
+  public long getWeight() {
+    return weight.get();
+  }
+
+  /**
+   * Gets the approximate maximum amount of memory (in bytes) to be used by
+   * the cached values.
+   */
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("hits: %d, misses: %d (hit rate %.1f%%), " +
+        "evictions: %d, size: %d / %d bytes", getHitCount(), getMissCount(),
+        getHitRate() * 100, getEvictionCount(), getWeight(), getMaxWeight());
+  }
+
+  /**
+   * Estimates the amount of memory used by a document data value. Strings
+   * are counted at two bytes per character, plus a fixed overhead for each
+   * object.
+   * @param value
+   * @return
+   */
+  protected static long weigh(DocumentData value) {
+    long weight = OBJECT_OVERHEAD + weigh(value.documentURI) +
+        weigh(value.documentTitle) + weigh(value.tokens) +
+        weigh(value.nonTokens);
+    if(value.metadata != null) {
+      for(Map.Entry<String, Serializable> entry : value.metadata.entrySet()) {
+        weight += OBJECT_OVERHEAD + weigh(entry.getKey());
+        Serializable fieldValue = entry.getValue();
+        weight += fieldValue instanceof String ? weigh((String)fieldValue) :
+            OBJECT_OVERHEAD;
+      }
+    }
+    return weight;
+  }
+
+  protected static long weigh(String[] strings) {
+    if(strings == null) return 0;
+    long weight = OBJECT_OVERHEAD;
+    for(String aString : strings) {
+      weight += weigh(aString);
+    }
+    return weight;
+  }
+
+  protected static long weigh(String aString) {
+    return aString == null ? 0 : OBJECT_OVERHEAD + 2L * aString.length();
+  }
+}
@@ -0,0 +1,897 @@
+/*
+ *  DocumentStoreFile.java
+ *
+ *  Copyright (c) 2007-2014, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * One of the files of a {@link DocumentCollection}, storing
+ * {@link DocumentData} values in a compact binary encoding.
+ * </p>
+ * <p>
+ * The documents are stored in a data file (with the
+ * {@value #DATA_EXTENSION} extension) as a sequence of self-describing,
+ * deflate-compressed blocks of up to {@link #BLOCK_SIZE} bytes. Each block
+ * starts with the IDs of the documents it contains, and their offsets inside
+ * the (uncompressed) block. An offset index file (with the
+ * {@value #INDEX_EXTENSION} extension) records the first document ID and the
+ * position in the data file for each block. Both files are memory-mapped, so
+ * retrieving a document requires a binary search in the offset index, and
+ * the decompression of a single block.
+ * </p>
+ * <p>
+ * As the blocks are self-describing, the offset index can always be rebuilt
+ * from the data file. This happens when the index file is missing (e.g. after
+ * a crash while the data file was being written), in which case any
+ * incomplete block at the end of the data file is discarded. This also means
+ * that data files can be joined together by simply concatenating them.
+ * </p>
+ */
+public class DocumentStoreFile extends DocumentCollection.ArchiveFile {
+
+  /**
+   * The prefix for the names of all document store files.
+   */
+  public static final String BASENAME = "mimir-documents-";
+
+  /**
+   * The file extension used for data files.
+   */
+  public static final String DATA_EXTENSION = ".dat";
+
+  /**
+   * The file extension used for offset index files.
+   */
+  public static final String INDEX_EXTENSION = ".idx";
+
+  /**
+   * Regex pattern that recognises a valid data file name and its parts. The
+   * following capturing groups can be used when a match occurs:
+   * <ul>
+   *   <li>1: the file ID</li>
+   *   <li>2: the first file number contained</li>
+   *   <li>3: (optional) the last file number contained, for files obtained by
+   *   joining together several other files.</li>
+   * </ul>
+   */
+  protected static final Pattern FILE_NAME_PATTERN = Pattern.compile(
+      "\\Q" + BASENAME + "\\E((\\d+)(?:-(\\d+))?)\\Q" + DATA_EXTENSION + "\\E");
+
+  public static final FilenameFilter FILENAME_FILTER = new FilenameFilter() {
+    @Override
+    public boolean accept(File dir, String name) {
+      return FILE_NAME_PATTERN.matcher(name).matches();
+    }
+  };
+
+  /**
+   * The approximate size (in bytes) of an uncompressed block.
+   */
+  public static final int BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * Magic number written at the start of each block in the data file.
+   */
+  private static final int BLOCK_MAGIC = 0x4d444231;
+
+  /**
+   * Magic number written at the start of the offset index file.
+   */
+  private static final int INDEX_MAGIC = 0x4d444931;
+
+  /**
+   * The size of a block header in the data file: magic number, document count,
+   * uncompressed length, and compressed length.
+   */
+  private static final int BLOCK_HEADER_SIZE = 16;
+
+  /**
+   * The size of the offset index header: magic number, block count, document
+   * count, first document ID, and last document ID.
+   */
+  private static final int INDEX_HEADER_SIZE = 28;
+
+  /**
+   * The size of an entry in the offset index: first document ID, and block
+   * position.
+   */
+  private static final int INDEX_ENTRY_SIZE = 16;
+
+  private static final Logger logger = Logger.getLogger(DocumentStoreFile.class);
+
+  /**
+   * Class that handles the creation of a new document store file.
+   */
+  public static class Writer {
+
+    /**
+     * The output stream for the data file.
+     */
+    protected DataOutputStream dataOutput;
+
+    /**
+     * The data file being written.
+     */
+    protected File dataFile;
+
+    /**
+     * The bytes written so far to the data file.
+     */
+    protected long dataLength;
+
+    /**
+     * The uncompressed records in the current block.
+     */
+    protected ByteArrayOutputStream blockRecords;
+
+    /**
+     * The IDs of the documents in the current block.
+     */
+    protected long[] blockDocumentIds;
+
+    /**
+     * The offsets (within {@link #blockRecords}) of the documents in the
+     * current block.
+     */
+    protected int[] blockOffsets;
+
+    /**
+     * The number of documents in the current block.
+     */
+    protected int blockDocumentCount;
+
+    protected Deflater deflater;
+
+    protected byte[] compressionBuffer;
+
+    /**
+     * The first document ID in each block written so far.
+     */
+    protected ByteArrayOutputStream indexEntries;
+
+    protected int blockCount;
+
+    protected int documentCount;
+
+    protected long firstDocumentId;
+
+    protected long lastDocumentId;
+
+    public Writer(File dataFile) throws IOException {
+      this.dataFile = dataFile;
+      if(dataFile.exists()) throw new IOException("Document store file (" +
+          dataFile.getAbsolutePath() + ") already exists!");
+      dataOutput = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(dataFile), BLOCK_SIZE));
+      blockRecords = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+      blockDocumentIds = new long[16];
+      blockOffsets = new int[16];
+      deflater = new Deflater(Deflater.BEST_SPEED);
+      compressionBuffer = new byte[BLOCK_SIZE];
+      indexEntries = new ByteArrayOutputStream();
+      firstDocumentId = -1;
+      lastDocumentId = -1;
+    }
+
+    /**
+     * Writes a new document to this file. Document IDs must be written in
+     * increasing order.
+     * @param documentId
+     * @param record the document data, as produced by
+     * {@link DocumentStoreFile#encode(DocumentData)}.
+     * @throws IOException
+     */
+    public void write(long documentId, byte[] record) throws IOException {
+      if(documentId <= lastDocumentId) throw new IllegalArgumentException(
+          "Document IDs must be written in increasing order!");
+      if(blockDocumentCount == blockDocumentIds.length) {
+        blockDocumentIds = Arrays.copyOf(blockDocumentIds,
+            blockDocumentCount * 2);
+        blockOffsets = Arrays.copyOf(blockOffsets,
+            blockDocumentCount * 2);
+      }
+      blockDocumentIds[blockDocumentCount] = documentId;
+      blockOffsets[blockDocumentCount] = blockRecords.size();
+      blockDocumentCount++;
+      blockRecords.write(record);
+      if(firstDocumentId < 0) firstDocumentId = documentId;
+      lastDocumentId = documentId;
+      documentCount++;
+      if(blockRecords.size() >= BLOCK_SIZE) writeBlock();
+    }
+
+    /**
+     * Gets the number of bytes used by this file so far. For the current
+     * block, the uncompressed size is used.
+     * @return
+     */
+    public long length() {
+      return dataLength + blockRecords.size();
+    }
+
+    /**
+     * Gets the number of documents written so far.
+     * @return
+     */
+    public int getDocumentCount() {
+      return documentCount;
+    }
+
+    /**
+     * Gets the data file being written.
+     * @return
+     */
+    public File getDataFile() {
+      return dataFile;
+    }
+
+    /**
+     * Compresses the current block, and writes it to the data file.
+     * @throws IOException
+     */
+    protected void writeBlock() throws IOException {
+      if(blockDocumentCount == 0) return;
+      // the uncompressed block: IDs and offsets, followed by the records
+      int headerLength = blockDocumentCount * 12;
+      ByteBuffer block = ByteBuffer.allocate(headerLength + blockRecords.size());
+      for(int i = 0; i < blockDocumentCount; i++) {
+        block.putLong(blockDocumentIds[i]);
+        block.putInt(headerLength + blockOffsets[i]);
+      }
+      block.put(blockRecords.toByteArray());
+      byte[] uncompressed = block.array();
+      deflater.reset();
+      deflater.setInput(uncompressed);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+          uncompressed.length / 2);
+      while(!deflater.finished()) {
+        int len = deflater.deflate(compressionBuffer);
+        compressed.write(compressionBuffer, 0, len);
+      }
+      // record the block in the offset index
+      DataOutputStream indexOutput = new DataOutputStream(indexEntries);
+      indexOutput.writeLong(blockDocumentIds[0]);
+      indexOutput.writeLong(dataLength);
+      blockCount++;
+      // write the block
+      dataOutput.writeInt(BLOCK_MAGIC);
+      dataOutput.writeInt(blockDocumentCount);
+      dataOutput.writeInt(uncompressed.length);
+      dataOutput.writeInt(compressed.size());
+      compressed.writeTo(dataOutput);
+      dataLength += BLOCK_HEADER_SIZE + compressed.size();
+      blockRecords.reset();
+      blockDocumentCount = 0;
+    }
+
+    /**
+     * Writes any pending documents, closes the data file, and writes the
+     * offset index file.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+      if(dataOutput == null) return;
+      writeBlock();
+      dataOutput.close();
+      dataOutput = null;
+      deflater.end();
+      writeIndex(getIndexFile(dataFile), blockCount, documentCount,
+          firstDocumentId, lastDocumentId, indexEntries.toByteArray());
+    }
+  }
+
+  /**
+   * The ID of this file (the part of the file name between {@link #BASENAME}
+   * and {@link #DATA_EXTENSION}).
+   */
+  protected String fileId;
+
+  /**
+   * A decompressed block, together with its position in the data file.
+   * Instances are never modified once created, so they can be shared between
+   * threads.
+   */
+  protected static class CachedBlock {
+    /**
+     * The position in the data file of the block header.
+     */
+    protected final long position;
+    
+    /**
+     * The decompressed block contents. Only absolute reads are used on this
+     * buffer, so its position is never changed.
+     */
+    protected final ByteBuffer contents;
+    
+    /**
+     * The number of documents in the block.
+     */
+    protected final int documentCount;
+
+    public CachedBlock(long position, ByteBuffer contents, int documentCount) {
+      this.position = position;
+      this.contents = contents;
+      this.documentCount = documentCount;
+    }
+  }
+  
+  /**
+   * The memory-mapped data file. Set to <code>null</code> when this file is
+   * closed.
+   */
+  protected volatile MappedByteBuffer data;
+
+  /**
+   * The memory-mapped offset index file.
+   */
+  protected volatile MappedByteBuffer index;
+
+  protected int blockCount;
+
+  /**
+   * The most recently decompressed block. Readers that need a different block
+   * decompress it into a new {@link CachedBlock} and replace this value, so 
+   * reads do not need to lock the file. 
+   */
+  protected volatile CachedBlock cachedBlock;
+
+  /**
+   * Opens an existing document store file. If the offset index file is
+   * missing, it is re-created.
+   * @param dataFile
+   * @throws IOException
+   */
+  public DocumentStoreFile(File dataFile) throws IOException {
+    this.file = dataFile;
+    Matcher m = FILE_NAME_PATTERN.matcher(dataFile.getName());
+    if(!m.matches()) throw new IllegalArgumentException("File " + dataFile +
+        " is not a valid document store file name.");
+    fileId = m.group(1);
+    collectionFileNumber = Integer.parseInt(
+        m.group(3) != null ? m.group(3) : m.group(2));
+    File indexFile = getIndexFile(dataFile);
+    if(!indexFile.exists()) {
+      logger.warn("Re-creating missing offset index for " + dataFile);
+      rebuildIndex(dataFile);
+    }
+    data = map(dataFile);
+    index = map(indexFile);
+    if(index.getInt(0) != INDEX_MAGIC) throw new IOException("File " +
+        indexFile + " is not a valid document store index.");
+    blockCount = index.getInt(4);
+    documentCount = index.getInt(8);
+    firstEntry = index.getLong(12);
+    lastEntry = index.getLong(20);
+    length = dataFile.length();
+  }
+
+  /**
+   * Gets the ID of this file (the part of the file name between
+   * {@link #BASENAME} and {@link #DATA_EXTENSION}).
+   * @return
+   */
+  public String getFileId() {
+    return fileId;
+  }
+
+  /**
+   * Gets the number of the first file contained in this file (which is
+   * different from {@link #collectionFileNumber} for files obtained by
+   * joining together several other files).
+   * @return
+   */
+  public int getFirstFileNumber() {
+    Matcher m = FILE_NAME_PATTERN.matcher(file.getName());
+    m.matches();
+    return Integer.parseInt(m.group(2));
+  }
+
+  public static String getDataFileName(String id) {
+    return BASENAME + id + DATA_EXTENSION;
+  }
+
+  /**
+   * Gets the offset index file corresponding to a data file.
+   * @param dataFile
+   * @return
+   */
+  public static File getIndexFile(File dataFile) {
+    String name = dataFile.getName();
+    return new File(dataFile.getParentFile(),
+        name.substring(0, name.length() - DATA_EXTENSION.length()) +
+        INDEX_EXTENSION);
+  }
+
+  @Override
+  public boolean containsDocument(long documentID) {
+    if(documentID < firstEntry || documentID > lastEntry) return false;
+    try {
+      CachedBlock block = findBlock(documentID);
+      return block != null && findRecord(block, documentID) >= 0;
+    } catch(IOException e) {
+      logger.error("Error while reading document store file " + file, e);
+      return false;
+    }
+  }
+
+  @Override
+  public DocumentData getDocumentData(long documentID) throws IOException {
+    CachedBlock block = documentID < firstEntry || documentID > lastEntry ? 
+        null : findBlock(documentID);
+    int recordOffset = block == null ? -1 : findRecord(block, documentID);
+    if(recordOffset < 0) throw new NoSuchElementException(
+        "No entry found for document ID " + documentID);
+    ByteBuffer record = block.contents.duplicate();
+    record.position(recordOffset);
+    return decode(record);
+  }
+
+  /**
+   * Gets the decompressed block that should contain a given document, 
+   * re-using {@link #cachedBlock} if it is the right one. This method does not
+   * lock the file, so several threads may decompress the same block at the 
+   * same time.
+   * @return the block, or <code>null</code> if this file contains no blocks.
+   * @throws IOException if this file has been closed, or the block is 
+   * invalid.
+   */
+  protected CachedBlock findBlock(long documentID) throws IOException {
+    MappedByteBuffer data = this.data;
+    MappedByteBuffer index = this.index;
+    if(data == null || index == null) throw new IOException(
+        "Document store file " + file + " has been closed.");
+    if(blockCount == 0) return null;
+    // binary search for the last block starting at or before the document
+    int low = 0;
+    int high = blockCount - 1;
+    while(low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if(index.getLong(INDEX_HEADER_SIZE + mid * INDEX_ENTRY_SIZE) <= documentID) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    long blockPosition = index.getLong(
+        INDEX_HEADER_SIZE + low * INDEX_ENTRY_SIZE + 8);
+    CachedBlock block = cachedBlock;
+    if(block == null || block.position != blockPosition) {
+      block = new CachedBlock(blockPosition, 
+          readBlock(data, (int)blockPosition), 
+          data.getInt((int)blockPosition + 4));
+      cachedBlock = block;
+    }
+    return block;
+  }
+  
+  /**
+   * Locates a document inside a block.
+   * @return the offset of the document's record inside the block, or -1 if
+   * the document is not present in the block.
+   */
+  protected static int findRecord(CachedBlock block, long documentID) {
+    // binary search inside the block
+    int low = 0;
+    int high = block.documentCount - 1;
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+      long midId = block.contents.getLong(mid * 12);
+      if(midId < documentID) {
+        low = mid + 1;
+      } else if(midId > documentID) {
+        high = mid - 1;
+      } else {
+        return block.contents.getInt(mid * 12 + 8);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Joins several document store files into a new one, by concatenating their
+   * data files. The input files are left unchanged.
+   * @param files the files to be joined, in document ID order.
+   * @param dataFile the data file to be created. The corresponding offset 
+   * index file is also created.
+   * @throws IOException if any of the input files has been closed, or cannot
+   * be read.
+   */
+  public static void join(List<DocumentStoreFile> files, File dataFile) 
+      throws IOException {
+    ByteArrayOutputStream entriesBytes = new ByteArrayOutputStream();
+    DataOutputStream entries = new DataOutputStream(entriesBytes);
+    int blockCount = 0;
+    int documentCount = 0;
+    long dataLength = 0;
+    FileChannel output = new FileOutputStream(dataFile).getChannel();
+    boolean success = false;
+    try {
+      for(DocumentStoreFile aFile : files) {
+        synchronized(aFile) {
+          MappedByteBuffer data = aFile.data;
+          MappedByteBuffer index = aFile.index;
+          if(data == null || index == null) throw new IOException(
+              "Document store file " + aFile.file + " has been closed.");
+          ByteBuffer source = data.duplicate();
+          source.position(0);
+          while(source.hasRemaining()) output.write(source);
+          for(int i = 0; i < aFile.blockCount; i++) {
+            int entry = INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            entries.writeLong(index.getLong(entry));
+            entries.writeLong(index.getLong(entry + 8) + dataLength);
+          }
+          blockCount += aFile.blockCount;
+          documentCount += aFile.documentCount;
+          dataLength += data.capacity();
+        }
+      }
+      success = true;
+    } finally {
+      output.close();
+      // do not leave a partial file behind
+      if(!success) dataFile.delete();
+    }
+    writeIndex(getIndexFile(dataFile), blockCount, documentCount, 
+        files.get(0).firstEntry, files.get(files.size() - 1).lastEntry, 
+        entriesBytes.toByteArray());
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    // mapped buffers are released by the garbage collector. They cannot be 
+    // unmapped here, as readers may still be using them without a lock. Until
+    // then, some platforms (e.g. Windows) do not allow the files to be deleted.
+    data = null;
+    index = null;
+    cachedBlock = null;
+  }
+
+  /**
+   * Reads and decompresses a block.
+   * @param data the data file contents.
+   * @param position the position of the block header.
+   * @return
+   * @throws IOException if the block is invalid.
+   */
+  protected static ByteBuffer readBlock(ByteBuffer data, int position)
+      throws IOException {
+    if(data.getInt(position) != BLOCK_MAGIC) {
+      throw new IOException("Invalid block header at position " + position);
+    }
+    int uncompressedLength = data.getInt(position + 8);
+    int compressedLength = data.getInt(position + 12);
+    if(uncompressedLength < 0 || compressedLength < 0 || 
+        position + BLOCK_HEADER_SIZE + (long)compressedLength > data.limit()) {
+      throw new IOException("Invalid block lengths at position " + position);
+    }
+    byte[] compressed = new byte[compressedLength];
+    ByteBuffer source = data.duplicate();
+    source.position(position + BLOCK_HEADER_SIZE);
+    source.get(compressed);
+    byte[] uncompressed = new byte[uncompressedLength];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int read = 0;
+      while(read < uncompressedLength && !inflater.finished()) {
+        int inflated = inflater.inflate(uncompressed, read, 
+            uncompressedLength - read);
+        if(inflated == 0 && 
+            (inflater.needsInput() || inflater.needsDictionary())) {
+          // the compressed data ends too soon: it would never finish
+          throw new IOException("Truncated compressed data at position " + 
+              position);
+        }
+        read += inflated;
+      }
+      if(read != uncompressedLength) {
+        throw new IOException("Block at position " + position + " has " + 
+            read + " bytes of data instead of " + uncompressedLength);
+      }
+    } catch(DataFormatException e) {
+      throw new IOException("Invalid compressed data at position " + position,
+          e);
+    } finally {
+      inflater.end();
+    }
+    return ByteBuffer.wrap(uncompressed);
+  }
+
+  protected static MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  protected static void writeIndex(File indexFile, int blockCount,
+      int documentCount, long firstDocumentId, long lastDocumentId,
+      byte[] entries) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(indexFile)));
+    try {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(blockCount);
+      out.writeInt(documentCount);
+      out.writeLong(firstDocumentId);
+      out.writeLong(lastDocumentId);
+      out.write(entries);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Re-creates the offset index file for a data file, by scanning all its
+   * blocks. Any incomplete or invalid data at the end of the data file is
+   * removed.
+   * @param dataFile
+   * @throws IOException
+   */
+  public static void rebuildIndex(File dataFile) throws IOException {
+    ByteArrayOutputStream entriesBytes = new ByteArrayOutputStream();
+    DataOutputStream entries = new DataOutputStream(entriesBytes);
+    int blockCount = 0;
+    int documentCount = 0;
+    long firstDocumentId = -1;
+    long lastDocumentId = -1;
+    long validLength = 0;
+    RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+    try {
+      long fileLength = raf.length();
+      ByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+          0, fileLength);
+      while(validLength + BLOCK_HEADER_SIZE <= fileLength) {
+        int position = (int)validLength;
+        int blockLength = BLOCK_HEADER_SIZE + data.getInt(position + 12);
+        if(data.getInt(position) != BLOCK_MAGIC ||
+            blockLength < BLOCK_HEADER_SIZE ||
+            position + (long)blockLength > fileLength) {
+          break;
+        }
+        ByteBuffer block;
+        try {
+          block = readBlock(data, position);
+        } catch(IOException e) {
+          break;
+        }
+        int count = data.getInt(position + 4);
+        long blockFirstId = block.getLong(0);
+        entries.writeLong(blockFirstId);
+        entries.writeLong(position);
+        if(firstDocumentId < 0) firstDocumentId = blockFirstId;
+        lastDocumentId = block.getLong((count - 1) * 12);
+        documentCount += count;
+        blockCount++;
+        validLength += blockLength;
+      }
+      if(validLength < fileLength) {
+        logger.warn("Discarding " + (fileLength - validLength) +
+            " bytes of incomplete data at the end of " + dataFile);
+        data = null;
+        raf.setLength(validLength);
+      }
+    } finally {
+      raf.close();
+    }
+    writeIndex(getIndexFile(dataFile), blockCount, documentCount,
+        firstDocumentId, lastDocumentId, entriesBytes.toByteArray());
+  }
+
+  /**
+   * Encodes a {@link DocumentData} value. Metadata fields are the only part
+   * that still uses Java serialisation.
+   * @param document
+   * @return
+   * @throws IOException
+   */
+  public static byte[] encode(DocumentData document) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    writeString(out, document.documentURI);
+    writeString(out, document.documentTitle);
+    writeStrings(out, document.tokens);
+    writeStrings(out, document.nonTokens);
+    if(document.metadata == null) {
+      writeVInt(out, 0);
+    } else {
+      writeVInt(out, document.metadata.size() + 1);
+      for(Map.Entry<String, Serializable> field :
+          document.metadata.entrySet()) {
+        writeString(out, field.getKey());
+        ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(valueBytes);
+        oos.writeObject(field.getValue());
+        oos.close();
+        writeVInt(out, valueBytes.size());
+        valueBytes.writeTo(out);
+      }
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a {@link DocumentData} value written by
+   * {@link #encode(DocumentData)}.
+   * @param in a buffer positioned at the start of the encoded value.
+   * @return
+   * @throws IOException
+   */
+  public static DocumentData decode(ByteBuffer in) throws IOException {
+    String uri = readString(in);
+    String title = readString(in);
+    String[] tokens = readStrings(in);
+    String[] nonTokens = readStrings(in);
+    DocumentData document = new DocumentData(uri, title, tokens, nonTokens);
+    int fields = readVInt(in) - 1;
+    for(int i = 0; i < fields; i++) {
+      String name = readString(in);
+      byte[] value = new byte[readVInt(in)];
+      in.get(value);
+      DocumentCollection.CustomObjectInputStream ois =
+          new DocumentCollection.CustomObjectInputStream(
+              new ByteArrayInputStream(value));
+      try {
+        document.putMetadataField(name, (Serializable)ois.readObject());
+      } catch(ClassNotFoundException e) {
+        throw new IOException("Invalid metadata value for field " + name, e);
+      } finally {
+        ois.close();
+      }
+    }
+    return document;
+  }
+
+  private static void writeVInt(DataOutputStream out, int value)
+      throws IOException {
+    while((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVInt(ByteBuffer in) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = in.get();
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while(b < 0);
+    return value;
+  }
+
+  /**
+   * Writes a string, as its length in bytes plus one (zero is used for
+   * <code>null</code>) followed by its characters in modified UTF-8 (see
+   * {@link java.io.DataInput}). Unlike standard UTF-8, this encodes each
+   * <code>char</code> separately, so strings containing unpaired surrogates
+   * (which can occur in the tokens of real documents) are read back
+   * unchanged.
+   */
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    if(value == null) {
+      writeVInt(out, 0);
+      return;
+    }
+    int length = value.length();
+    int byteLength = 0;
+    for(int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if(c >= 0x0001 && c <= 0x007f) {
+        byteLength++;
+      } else if(c <= 0x07ff) {
+        byteLength += 2;
+      } else {
+        byteLength += 3;
+      }
+    }
+    byte[] bytes = new byte[byteLength];
+    int pos = 0;
+    for(int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if(c >= 0x0001 && c <= 0x007f) {
+        bytes[pos++] = (byte)c;
+      } else if(c <= 0x07ff) {
+        bytes[pos++] = (byte)(0xc0 | (c >> 6));
+        bytes[pos++] = (byte)(0x80 | (c & 0x3f));
+      } else {
+        bytes[pos++] = (byte)(0xe0 | (c >> 12));
+        bytes[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+        bytes[pos++] = (byte)(0x80 | (c & 0x3f));
+      }
+    }
+    writeVInt(out, byteLength + 1);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+   */
+  private static String readString(ByteBuffer in) throws IOException {
+    int length = readVInt(in) - 1;
+    if(length < 0) return null;
+    byte[] bytes = in.array();
+    int pos = in.arrayOffset() + in.position();
+    int end = pos + length;
+    char[] chars = new char[length];
+    int count = 0;
+    while(pos < end) {
+      int b = bytes[pos++] & 0xff;
+      if(b < 0x80) {
+        chars[count++] = (char)b;
+      } else if((b & 0xe0) == 0xc0 && pos < end) {
+        chars[count++] = (char)(((b & 0x1f) << 6) | (bytes[pos++] & 0x3f));
+      } else if((b & 0xf0) == 0xe0 && pos + 1 < end) {
+        chars[count++] = (char)(((b & 0x0f) << 12) |
+            ((bytes[pos] & 0x3f) << 6) | (bytes[pos + 1] & 0x3f));
+        pos += 2;
+      } else {
+        throw new IOException("Malformed string encoding");
+      }
+    }
+    in.position(in.position() + length);
+    return new String(chars, 0, count);
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] values)
+      throws IOException {
+    if(values == null) {
+      writeVInt(out, 0);
+    } else {
+      writeVInt(out, values.length + 1);
+      for(String value : values) writeString(out, value);
+    }
+  }
+
+  private static String[] readStrings(ByteBuffer in) throws IOException {
+    int length = readVInt(in) - 1;
+    if(length < 0) return null;
+    String[] values = new String[length];
+    for(int i = 0; i < length; i++) values[i] = readString(in);
+    return values;
+  }
+}
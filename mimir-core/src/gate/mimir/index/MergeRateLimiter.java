@@ -0,0 +1,258 @@
+/*
+ *  MergeRateLimiter.java
+ *
+ *  Copyright (c) 2007-2014, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.di.big.mg4j.io.IOFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Limits the disk bandwidth used by the background merges of an index. The
+ * merges write their output through the streams provided by 
+ * {@link #limit(IOFactory)}, which reserve bandwidth for every chunk of data 
+ * before writing it, and are made to wait until enough time has passed 
+ * since the previous reservations for the average write rate to stay below 
+ * the limit. One instance is shared between all the merge threads of an 
+ * index, so the limit applies to all merges taken together.
+ */
+public class MergeRateLimiter {
+
+  /**
+   * The number of bytes written before bandwidth is reserved for them, so 
+   * that small writes do not each pay the cost of a reservation.
+   */
+  protected static final int CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * Output stream reserving bandwidth for the data written through it.
+   */
+  protected class LimitedOutputStream extends FilterOutputStream {
+
+    /**
+     * The number of bytes written, but not yet reserved.
+     */
+    private long unreserved = 0;
+
+    public LimitedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      reserve(1);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      reserve(len);
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        reserve(-1);
+      } finally {
+        super.close();
+      }
+    }
+
+    /**
+     * Records that some bytes are about to be written, reserving bandwidth 
+     * once a whole chunk has been accumulated.
+     * @param bytes the number of bytes, or -1 to reserve bandwidth for all 
+     * the bytes not yet reserved.
+     */
+    private void reserve(int bytes) throws IOException {
+      if(bytes >= 0) {
+        unreserved += bytes;
+        if(unreserved < CHUNK_SIZE) return;
+      }
+      long toReserve = unreserved;
+      unreserved = 0;
+      try {
+        acquire(toReserve);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for merge bandwidth");
+      }
+    }
+  }
+
+  /**
+   * Writable channel reserving bandwidth for the data written through it.
+   */
+  protected class LimitedByteChannel implements WritableByteChannel {
+
+    private final WritableByteChannel channel;
+
+    public LimitedByteChannel(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      try {
+        acquire(src.remaining());
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for merge bandwidth");
+      }
+      return channel.write(src);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * The maximum number of bytes written per second. A value less than or equal
+   * to zero means there is no limit.
+   */
+  protected volatile long bytesPerSecond;
+
+  /**
+   * The time (as returned by {@link System#nanoTime()}) until which the
+   * bandwidth is already allocated.
+   */
+  private long nextFreeTime;
+
+  /**
+   * Creates a new rate limiter.
+   * @param bytesPerSecond the maximum number of bytes written per second, or
+   * <code>0</code> if there should be no limit.
+   */
+  public MergeRateLimiter(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.nextFreeTime = System.nanoTime();
+  }
+
+  /**
+   * Gets the maximum number of bytes written per second, or a value less than
+   * or equal to zero if there is no limit.
+   */
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Changes the maximum number of bytes written per second. A value less than
+   * or equal to zero disables the limit.
+   * @param bytesPerSecond
+   */
+  public void setBytesPerSecond(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Reserves bandwidth for writing a given number of bytes, blocking the 
+   * calling thread until the bandwidth reserved by previous calls has been 
+   * used up.
+   * @param bytes the number of bytes about to be written.
+   * @throws InterruptedException if the calling thread was interrupted while
+   * waiting.
+   */
+  public void acquire(long bytes) throws InterruptedException {
+    long rate = bytesPerSecond;
+    if(rate <= 0 || bytes <= 0) return;
+    long waitUntil;
+    synchronized(this) {
+      long now = System.nanoTime();
+      if(nextFreeTime < now) nextFreeTime = now;
+      waitUntil = nextFreeTime;
+      nextFreeTime += (long)(bytes * (1000000000.0 / rate));
+    }
+    long delay = waitUntil - System.nanoTime();
+    if(delay > 0) {
+      Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+    }
+  }
+
+  /**
+   * Wraps an output stream, so that writing to it reserves bandwidth from 
+   * this limiter.
+   * @param out the stream to wrap.
+   */
+  public OutputStream limit(OutputStream out) {
+    return new LimitedOutputStream(out);
+  }
+
+  /**
+   * Wraps an I/O factory, so that all the data written through the streams
+   * and channels it creates reserves bandwidth from this limiter. Reading is
+   * not limited.
+   * @param ioFactory the factory to wrap.
+   */
+  public IOFactory limit(final IOFactory ioFactory) {
+    return new IOFactory() {
+      @Override
+      public InputStream getInputStream(String name) throws IOException {
+        return ioFactory.getInputStream(name);
+      }
+
+      @Override
+      public OutputStream getOutputStream(String name) throws IOException {
+        return new LimitedOutputStream(ioFactory.getOutputStream(name));
+      }
+
+      @Override
+      public WritableByteChannel getWritableByteChannel(String name)
+          throws IOException {
+        return new LimitedByteChannel(ioFactory.getWritableByteChannel(name));
+      }
+
+      @Override
+      public ReadableByteChannel getReadableByteChannel(String name)
+          throws IOException {
+        return ioFactory.getReadableByteChannel(name);
+      }
+
+      @Override
+      public boolean exists(String name) throws IOException {
+        return ioFactory.exists(name);
+      }
+
+      @Override
+      public boolean delete(String name) throws IOException {
+        return ioFactory.delete(name);
+      }
+
+      @Override
+      public void createNewFile(String name) throws IOException {
+        ioFactory.createNewFile(name);
+      }
+
+      @Override
+      public long length(String name) throws IOException {
+        return ioFactory.length(name);
+      }
+    };
+  }
+}
@@ -0,0 +1,569 @@
+/*
+ *  SlabPostingsStore.java
+ *
+ *  Copyright (c) 2007-2014, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import it.unimi.di.big.mg4j.index.IndexWriter;
+import it.unimi.di.big.mg4j.index.QuasiSuccinctIndexWriter;
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrays;
+import it.unimi.dsi.io.OutputBitStream;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * An in-RAM store for the (positional) postings of an index batch, used as an
+ * alternative to keeping one {@link AtomicIndex.PostingsList} object per term.
+ * </p>
+ * <p>
+ * The postings of all the terms are stored in a small number of large
+ * <code>byte[]</code> blocks. Each term gets a chain of slices in these
+ * blocks, with each new slice being twice as large as the previous one (up to
+ * {@link #MAX_SLICE_SIZE}), and the last four bytes of a full slice holding
+ * the address of the next one. The postings are appended to the slices as
+ * they arrive, using variable-byte encoding of the gaps between document
+ * pointers and between positions. All the per-term statistics are kept in
+ * primitive arrays indexed by term ID, so the number of objects is
+ * independent of the number of postings. The blocks are kept when the store
+ * is cleared, and reused for the next batch.
+ * </p>
+ * <p>
+ * Each posting is encoded as the value <tt>(gap &lt;&lt; 1) | newDocument</tt>,
+ * where <tt>gap</tt> is the difference from the previous position in the
+ * same document. If the posting is the first one in a new document, the gap
+ * is the absolute position, and the value is followed by the difference from
+ * the previous document pointer.
+ * </p>
+ * <p>
+ * Slice addresses are stored as <code>int</code> values counting 4-byte
+ * words, so one store can hold up to 8 GB of encoded postings.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+public class SlabPostingsStore {
+
+  /**
+   * The size of the blocks used to store the postings.
+   */
+  protected static final int BLOCK_SIZE = 1 << 17;
+
+  /**
+   * The size of the first slice allocated for each term.
+   */
+  protected static final int MIN_SLICE_SIZE = 16;
+
+  /**
+   * The maximum size for a slice.
+   */
+  protected static final int MAX_SLICE_SIZE = 1 << 14;
+
+  /**
+   * The number of bytes at the end of each slice used to store the address
+   * of the next slice.
+   */
+  private static final int ADDRESS_SIZE = 4;
+
+  /**
+   * The initial capacity for the per-term arrays.
+   */
+  private static final int INITIAL_TERM_CAPACITY = 1024;
+
+  /**
+   * A reusable reader for the postings of one term.
+   */
+  public class Cursor {
+
+    /**
+     * The current read offset.
+     */
+    private long offset;
+
+    /**
+     * The offset where the payload of the current slice ends.
+     */
+    private long limit;
+
+    /**
+     * The offset where the data for the current term ends.
+     */
+    private long end;
+
+    /**
+     * The size of the current slice.
+     */
+    private int sliceSize;
+
+    /**
+     * The first value of the next document, already read, or -1 if there are
+     * no more documents.
+     */
+    private long nextHeader;
+
+    /**
+     * The current document pointer.
+     */
+    private long document;
+
+    /**
+     * The positions in the current document.
+     */
+    private int[] positions = new int[16];
+
+    /**
+     * The number of positions in the current document.
+     */
+    private int count;
+
+    /**
+     * Positions this cursor at the start of the postings for a given term.
+     * @param termId the ID of the term to be read.
+     */
+    public void reset(int termId) {
+      offset = ((long)firstSlice[termId]) << 2;
+      sliceSize = MIN_SLICE_SIZE;
+      limit = offset + sliceSize - ADDRESS_SIZE;
+      end = writeOffset[termId];
+      document = -1;
+      count = 0;
+      nextHeader = offset < end ? readVLong() : -1;
+    }
+
+    /**
+     * Moves to the next document in the postings list.
+     * @return <code>true</code> if a new document is available,
+     * <code>false</code> if the end of the list was reached.
+     */
+    public boolean nextDocument() {
+      if(nextHeader < 0) return false;
+      int position = (int)(nextHeader >>> 1);
+      document += readVLong();
+      count = 0;
+      positions[count++] = position;
+      nextHeader = -1;
+      while(offset < end) {
+        long value = readVLong();
+        if((value & 1) != 0) {
+          nextHeader = value;
+          break;
+        }
+        position += (int)(value >>> 1);
+        positions = IntArrays.grow(positions, count + 1);
+        positions[count++] = position;
+      }
+      return true;
+    }
+
+    /**
+     * Gets the store this cursor reads from.
+     */
+    public SlabPostingsStore getStore() {
+      return SlabPostingsStore.this;
+    }
+
+    /**
+     * Gets the pointer for the current document.
+     */
+    public long document() {
+      return document;
+    }
+
+    /**
+     * Gets the number of positions in the current document.
+     */
+    public int count() {
+      return count;
+    }
+
+    /**
+     * Gets the positions in the current document. Only the first
+     * {@link #count()} values are valid.
+     */
+    public int[] positions() {
+      return positions;
+    }
+
+    private long readVLong() {
+      long value = 0;
+      int shift = 0;
+      int b;
+      do {
+        if(offset == limit) {
+          // follow the link to the next slice
+          offset = ((long)readInt(offset)) << 2;
+          if(sliceSize < MAX_SLICE_SIZE) sliceSize <<= 1;
+          limit = offset + sliceSize - ADDRESS_SIZE;
+        }
+        b = blocks[(int)(offset / BLOCK_SIZE)][(int)(offset % BLOCK_SIZE)];
+        offset++;
+        value |= ((long)(b & 0x7F)) << shift;
+        shift += 7;
+      } while((b & 0x80) != 0);
+      return value;
+    }
+  }
+
+  /**
+   * The blocks storing the encoded postings.
+   */
+  private byte[][] blocks;
+
+  /**
+   * The number of blocks in use.
+   */
+  private int blocksUsed;
+
+  /**
+   * The offset of the first free byte in the last block in use.
+   */
+  private int blockOffset;
+
+  /**
+   * Maps term strings to term IDs.
+   */
+  private Object2IntOpenHashMap<MutableString> termIds;
+
+  /**
+   * The address (in 4-byte words) of the first slice for each term.
+   */
+  private int[] firstSlice;
+
+  /**
+   * The offset where the next byte will be written, for each term.
+   */
+  private long[] writeOffset;
+
+  /**
+   * The size of the current slice, for each term.
+   */
+  private int[] sliceSize;
+
+  /**
+   * The offset where the payload of the current slice ends, for each term.
+   */
+  private long[] sliceLimit;
+
+  /**
+   * The last document pointer seen, for each term.
+   */
+  private long[] lastDocument;
+
+  /**
+   * The last position seen in the current document, for each term.
+   */
+  private int[] lastPosition;
+
+  /**
+   * The number of positions in the current document, for each term.
+   */
+  private int[] count;
+
+  /**
+   * The maximum count in any document, for each term.
+   */
+  private int[] maxCount;
+
+  /**
+   * The number of documents, for each term.
+   */
+  private long[] frequency;
+
+  /**
+   * The number of occurrences, for each term.
+   */
+  private long[] occurrences;
+
+  /**
+   * The sum of the maximum positions in each document, for each term.
+   */
+  private long[] sumMaxPos;
+
+  /**
+   * The cursor used internally when writing postings lists.
+   */
+  private Cursor writeCursor;
+
+  public SlabPostingsStore() {
+    blocks = new byte[16][];
+    termIds = new Object2IntOpenHashMap<MutableString>(INITIAL_TERM_CAPACITY,
+        Hash.FAST_LOAD_FACTOR);
+    termIds.defaultReturnValue(-1);
+    firstSlice = new int[INITIAL_TERM_CAPACITY];
+    writeOffset = new long[INITIAL_TERM_CAPACITY];
+    sliceSize = new int[INITIAL_TERM_CAPACITY];
+    sliceLimit = new long[INITIAL_TERM_CAPACITY];
+    lastDocument = new long[INITIAL_TERM_CAPACITY];
+    lastPosition = new int[INITIAL_TERM_CAPACITY];
+    count = new int[INITIAL_TERM_CAPACITY];
+    maxCount = new int[INITIAL_TERM_CAPACITY];
+    frequency = new long[INITIAL_TERM_CAPACITY];
+    occurrences = new long[INITIAL_TERM_CAPACITY];
+    sumMaxPos = new long[INITIAL_TERM_CAPACITY];
+    writeCursor = new Cursor();
+    clear();
+  }
+
+  /**
+   * Adds a new posting.
+   * @param term the term.
+   * @param documentPointer the document pointer. Document pointers for any
+   * given term must be supplied in non-decreasing order.
+   * @param position the position of the term in the document.
+   * @return <code>true</code> if the posting was added, or <code>false</code>
+   * if the term was already recorded at the same (or a later) position in the
+   * same document.
+   */
+  public boolean addPosting(MutableString term, long documentPointer,
+      int position) {
+    int termId = termIds.getInt(term);
+    if(termId < 0) {
+      termId = newTerm(term.copy());
+    }
+    if(documentPointer != lastDocument[termId]) {
+      flush(termId);
+      writeVLong(termId, (((long)position) << 1) | 1);
+      writeVLong(termId, documentPointer - lastDocument[termId]);
+      lastDocument[termId] = documentPointer;
+      frequency[termId]++;
+    } else {
+      if(position <= lastPosition[termId]) return false;
+      writeVLong(termId, ((long)(position - lastPosition[termId])) << 1);
+    }
+    lastPosition[termId] = position;
+    count[termId]++;
+    occurrences[termId]++;
+    return true;
+  }
+
+  /**
+   * Gets the number of terms in this store.
+   */
+  public int size() {
+    return termIds.size();
+  }
+
+  /**
+   * Gets the terms in this store, in no particular order.
+   */
+  public MutableString[] terms() {
+    return termIds.keySet().toArray(new MutableString[termIds.size()]);
+  }
+
+  /**
+   * Gets the ID for a given term.
+   * @return the term ID, or -1 if the term is not in this store.
+   */
+  public int getTermId(MutableString term) {
+    return termIds.getInt(term);
+  }
+
+  /**
+   * Gets the number of documents containing a given term.
+   */
+  public long frequency(int termId) {
+    return frequency[termId];
+  }
+
+  /**
+   * Gets the number of occurrences of a given term.
+   */
+  public long occurrences(int termId) {
+    return occurrences[termId];
+  }
+
+  /**
+   * Gets the maximum count of a given term in any one document, including
+   * the document currently being added.
+   */
+  public int maxCount(int termId) {
+    return Math.max(maxCount[termId], count[termId]);
+  }
+
+  /**
+   * Gets a new cursor that can be used to read the postings in this store.
+   */
+  public Cursor newCursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Writes the postings list for a given term to an index writer. This closes
+   * the last document for the term, so no more postings may be added for it
+   * until the store is cleared.
+   * @param termId the term ID.
+   * @param indexWriter the writer.
+   * @throws IOException
+   */
+  public void write(int termId, IndexWriter indexWriter) throws IOException {
+    flush(termId);
+    if(indexWriter instanceof QuasiSuccinctIndexWriter) {
+      ((QuasiSuccinctIndexWriter)indexWriter).newInvertedList(
+          frequency[termId], occurrences[termId], sumMaxPos[termId]);
+    } else {
+      indexWriter.newInvertedList();
+    }
+    indexWriter.writeFrequency(frequency[termId]);
+    writeCursor.reset(termId);
+    while(writeCursor.nextDocument()) {
+      OutputBitStream obs = indexWriter.newDocumentRecord();
+      indexWriter.writeDocumentPointer(obs, writeCursor.document());
+      indexWriter.writePositionCount(obs, writeCursor.count());
+      indexWriter.writeDocumentPositions(obs, writeCursor.positions(), 0,
+          writeCursor.count(), -1);
+    }
+  }
+
+  /**
+   * Empties this store, making it ready to be reused. The blocks already
+   * allocated are kept for reuse.
+   */
+  public void clear() {
+    termIds.clear();
+    termIds.trim(INITIAL_TERM_CAPACITY);
+    blocksUsed = 0;
+    blockOffset = BLOCK_SIZE;
+  }
+
+  /**
+   * Gets the number of bytes currently allocated for storing postings.
+   */
+  public long getAllocatedBytes() {
+    long res = 0;
+    for(byte[] aBlock : blocks) {
+      if(aBlock != null) res += aBlock.length;
+    }
+    return res;
+  }
+
+  /**
+   * Registers a new term.
+   * @return the ID for the new term.
+   */
+  private int newTerm(MutableString term) {
+    int termId = termIds.size();
+    termIds.put(term, termId);
+    if(termId == firstSlice.length) {
+      firstSlice = IntArrays.grow(firstSlice, termId + 1);
+      writeOffset = LongArrays.grow(writeOffset, termId + 1);
+      sliceSize = IntArrays.grow(sliceSize, termId + 1);
+      sliceLimit = LongArrays.grow(sliceLimit, termId + 1);
+      lastDocument = LongArrays.grow(lastDocument, termId + 1);
+      lastPosition = IntArrays.grow(lastPosition, termId + 1);
+      count = IntArrays.grow(count, termId + 1);
+      maxCount = IntArrays.grow(maxCount, termId + 1);
+      frequency = LongArrays.grow(frequency, termId + 1);
+      occurrences = LongArrays.grow(occurrences, termId + 1);
+      sumMaxPos = LongArrays.grow(sumMaxPos, termId + 1);
+    }
+    long sliceStart = allocateSlice(MIN_SLICE_SIZE);
+    firstSlice[termId] = (int)(sliceStart >>> 2);
+    writeOffset[termId] = sliceStart;
+    sliceSize[termId] = MIN_SLICE_SIZE;
+    sliceLimit[termId] = sliceStart + MIN_SLICE_SIZE - ADDRESS_SIZE;
+    lastDocument[termId] = -1;
+    lastPosition[termId] = -1;
+    count[termId] = 0;
+    maxCount[termId] = 0;
+    frequency[termId] = 0;
+    occurrences[termId] = 0;
+    sumMaxPos[termId] = 0;
+    return termId;
+  }
+
+  /**
+   * Closes the current document for a given term, updating the term
+   * statistics. This must only be called when the term moves to a new
+   * document, or from {@link #write(int, IndexWriter)}: closing a document
+   * early would count its last position twice in the sum of maximum
+   * positions.
+   */
+  private void flush(int termId) {
+    if(count[termId] > 0) {
+      if(count[termId] > maxCount[termId]) maxCount[termId] = count[termId];
+      sumMaxPos[termId] += lastPosition[termId];
+      count[termId] = 0;
+    }
+  }
+
+  /**
+   * Allocates a new slice.
+   * @param size the size of the slice.
+   * @return the offset of the new slice.
+   */
+  private long allocateSlice(int size) {
+    if(blockOffset + size > BLOCK_SIZE) {
+      // start a new block
+      if(blocksUsed == blocks.length) {
+        blocks = ObjectArrays.grow(blocks, blocksUsed + 1);
+      }
+      if(blocks[blocksUsed] == null) {
+        blocks[blocksUsed] = new byte[BLOCK_SIZE];
+      }
+      blocksUsed++;
+      blockOffset = 0;
+      if(((long)blocksUsed) * BLOCK_SIZE > (((long)Integer.MAX_VALUE) << 2)) {
+        throw new IllegalStateException("Postings store is full.");
+      }
+    }
+    long res = ((long)(blocksUsed - 1)) * BLOCK_SIZE + blockOffset;
+    blockOffset += size;
+    return res;
+  }
+
+  private void writeVLong(int termId, long value) {
+    while((value & ~0x7FL) != 0) {
+      writeByte(termId, (byte)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    writeByte(termId, (byte)value);
+  }
+
+  private void writeByte(int termId, byte b) {
+    long offset = writeOffset[termId];
+    if(offset == sliceLimit[termId]) {
+      // we have reached the address area of the current slice: link a new one
+      int newSize = sliceSize[termId] < MAX_SLICE_SIZE ?
+          sliceSize[termId] << 1 : MAX_SLICE_SIZE;
+      long newSlice = allocateSlice(newSize);
+      writeInt(offset, (int)(newSlice >>> 2));
+      sliceSize[termId] = newSize;
+      sliceLimit[termId] = newSlice + newSize - ADDRESS_SIZE;
+      offset = newSlice;
+    }
+    blocks[(int)(offset / BLOCK_SIZE)][(int)(offset % BLOCK_SIZE)] = b;
+    writeOffset[termId] = offset + 1;
+  }
+
+  private void writeInt(long offset, int value) {
+    byte[] block = blocks[(int)(offset / BLOCK_SIZE)];
+    int blockPos = (int)(offset % BLOCK_SIZE);
+    block[blockPos] = (byte)(value >>> 24);
+    block[blockPos + 1] = (byte)(value >>> 16);
+    block[blockPos + 2] = (byte)(value >>> 8);
+    block[blockPos + 3] = (byte)value;
+  }
+
+  private int readInt(long offset) {
+    byte[] block = blocks[(int)(offset / BLOCK_SIZE)];
+    int blockPos = (int)(offset % BLOCK_SIZE);
+    return ((block[blockPos] & 0xFF) << 24) |
+        ((block[blockPos + 1] & 0xFF) << 16) |
+        ((block[blockPos + 2] & 0xFF) << 8) |
+        (block[blockPos + 3] & 0xFF);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ *  TieredMergePolicy.java
+ *
+ *  Copyright (c) 2007-2014, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.index;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Decides which on-disk batches of an {@link AtomicIndex} should be merged
+ * together.
+ * </p>
+ * <p>
+ * The batches of an atomic index form a documental cluster, where the order of
+ * the batches gives the order of the documents, so only runs of adjacent
+ * batches can be merged. Each batch is allocated to a <em>tier</em>, based on
+ * its size: tier 0 contains all the batches smaller than
+ * {@link #MIN_BATCH_SIZE}, and each subsequent tier contains batches
+ * <em>mergeFactor</em> times larger than the previous one. Whenever
+ * <em>mergeFactor</em> adjacent batches belong to the same tier, they are
+ * merged into a single batch, which will normally belong to the next tier up.
+ * This way each document gets re-written a logarithmic number of times,
+ * rather than every time the index is compacted.
+ * </p>
+ * <p>
+ * As a safety net, if the number of batches exceeds the configured maximum
+ * and no tiered merges are possible, the run of adjacent batches with the
+ * smallest total size is merged.
+ * </p>
+ */
+public class TieredMergePolicy {
+
+  /**
+   * The size (in bytes) below which all batches are considered to belong to
+   * the lowest tier.
+   */
+  public static final long MIN_BATCH_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * The number of adjacent batches of the same tier that get merged together.
+   */
+  protected int mergeFactor;
+
+  /**
+   * The number of batches above which a merge is forced, even if there are no
+   * suitable candidates in the same tier.
+   */
+  protected int maximumBatches;
+
+  /**
+   * Creates a new merge policy.
+   * @param mergeFactor the number of adjacent batches of the same tier that
+   * get merged together.
+   * @param maximumBatches the number of batches above which a merge is forced,
+   * even if there are no suitable candidates in the same tier.
+   */
+  public TieredMergePolicy(int mergeFactor, int maximumBatches) {
+    this.mergeFactor = Math.max(mergeFactor, 2);
+    this.maximumBatches = maximumBatches;
+  }
+
+  /**
+   * Gets the tier for a batch of a given size.
+   * @param size the size of the batch, in bytes.
+   * @return
+   */
+  public int getTier(long size) {
+    int tier = 0;
+    long tierLimit = MIN_BATCH_SIZE;
+    while(size >= tierLimit && tierLimit <= Long.MAX_VALUE / mergeFactor) {
+      tier++;
+      tierLimit *= mergeFactor;
+    }
+    return tier;
+  }
+
+  /**
+   * Finds the runs of batches that should be merged.
+   * @param sizes the sizes of all the batches, in order.
+   * @param merging for each batch, whether it is already being merged.
+   * @return a list of runs of batches, each represented as an array with two
+   * elements: the index of the first batch, and the index of the batch after
+   * the last one.
+   */
+  public List<int[]> findMerges(long[] sizes, boolean[] merging) {
+    List<int[]> merges = new ArrayList<int[]>();
+    int[] tiers = new int[sizes.length];
+    boolean mergeInProgress = false;
+    for(int i = 0; i < sizes.length; i++) {
+      tiers[i] = getTier(sizes[i]);
+      if(merging[i]) mergeInProgress = true;
+    }
+    int runStart = 0;
+    while(runStart < sizes.length) {
+      if(merging[runStart]) {
+        runStart++;
+        continue;
+      }
+      int runEnd = runStart + 1;
+      while(runEnd < sizes.length && !merging[runEnd] &&
+          tiers[runEnd] == tiers[runStart]) {
+        runEnd++;
+      }
+      for(int i = runStart; i + mergeFactor <= runEnd; i += mergeFactor) {
+        merges.add(new int[]{i, i + mergeFactor});
+      }
+      runStart = runEnd;
+    }
+    if(merges.isEmpty() && !mergeInProgress &&
+        sizes.length > Math.max(maximumBatches, 1)) {
+      // too many batches: merge the cheapest run of adjacent batches
+      int runLength = Math.min(mergeFactor, sizes.length);
+      int bestStart = -1;
+      long bestSize = Long.MAX_VALUE;
+      for(int i = 0; i + runLength <= sizes.length; i++) {
+        long runSize = 0;
+        for(int j = i; j < i + runLength; j++) runSize += sizes[j];
+        if(runSize < bestSize) {
+          bestSize = runSize;
+          bestStart = i;
+        }
+      }
+      merges.add(new int[]{bestStart, bestStart + runLength});
+    }
+    return merges;
+  }
+}
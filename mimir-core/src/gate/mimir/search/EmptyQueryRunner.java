@@ -0,0 +1,118 @@
+/*
+ *  EmptyQueryRunner.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import gate.mimir.index.IndexException;
+import gate.mimir.search.query.Binding;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link QueryRunner} with no result documents. This is used in place of
+ * the query runner for a sub-index of a federated index that could not be
+ * searched, when partial results are acceptable (see
+ * {@link FederatedFanOut}).
+ */
+public class EmptyQueryRunner implements QueryRunner {
+
+  @Override
+  public long getDocumentsCount() {
+    return 0;
+  }
+
+  @Override
+  public long getDocumentsCountSync() {
+    return 0;
+  }
+
+  @Override
+  public long getDocumentsCurrentCount() {
+    return 0;
+  }
+
+  private IndexOutOfBoundsException noDocument(long rank) {
+    return new IndexOutOfBoundsException("Document rank too large (" + rank +
+        " >= 0).");
+  }
+
+  @Override
+  public long getDocumentID(long rank) throws IndexOutOfBoundsException,
+      IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public double getDocumentScore(long rank) throws IndexOutOfBoundsException,
+      IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public List<Binding> getDocumentHits(long rank)
+      throws IndexOutOfBoundsException, IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public String[][] getDocumentText(long rank, int termPosition, int length)
+      throws IndexException, IndexOutOfBoundsException, IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public String getDocumentURI(long rank) throws IndexException,
+      IndexOutOfBoundsException, IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public String getDocumentTitle(long rank) throws IndexException,
+      IndexOutOfBoundsException, IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public Serializable getDocumentMetadataField(long rank, String fieldName)
+      throws IndexException, IndexOutOfBoundsException, IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public Map<String, Serializable> getDocumentMetadataFields(long rank,
+      Set<String> fieldNames) throws IndexException,
+      IndexOutOfBoundsException, IOException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public ResultsPage getResultsPage(long firstRank, int size,
+      int contextLength, int maxSnippets, Set<String> fieldNames)
+      throws IndexException, IndexOutOfBoundsException, IOException {
+    return new ResultsPage(firstRank, ResultsPage.pageSize(firstRank, size, 0));
+  }
+
+  @Override
+  public void renderDocument(long rank, Appendable out) throws IOException,
+      IndexException {
+    throw noDocument(rank);
+  }
+
+  @Override
+  public void close() throws IOException {
+    // nothing to do
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ *  FederatedFanOut.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends a request to all the sub-indexes of a federated index in parallel,
+ * and hands over the answers as they arrive.
+ *
+ * Each sub-index is given a limited time to answer (see
+ * {@link #FederatedFanOut(Executor, long, boolean)}). Sub-indexes that fail
+ * or do not answer in time are either left out (if partial results are
+ * acceptable), or cause the whole request to fail. Answers arriving after
+ * their sub-index was left out are passed to
+ * {@link Handler#discard(int, Object)}, so that any resources they hold can
+ * be released.
+ *
+ * Sub-indexes may themselves be federated indexes, whose requests are sent
+ * by a nested fan-out. To avoid the nested requests waiting for threads held
+ * by the outer requests of the same executor, nested fan-outs start a new
+ * thread for each request instead of using the executor.
+ *
+ * @param <T> the type of the answers from the sub-indexes.
+ */
+public class FederatedFanOut<T> {
+
+  /**
+   * Receives the answers from the sub-indexes.
+   */
+  public interface Handler<T> {
+
+    /**
+     * Called with the answer from a sub-index, as soon as it is available.
+     * This is always called in the thread that called
+     * {@link FederatedFanOut#run(List, Handler)}, so implementations need
+     * not be thread-safe.
+     * @param subIndex the position of the sub-index.
+     * @param answer the answer.
+     */
+    public void answer(int subIndex, T answer) throws Exception;
+
+    /**
+     * Called with an answer from a sub-index that arrived too late, and is
+     * not used. This is called in a background thread.
+     * @param subIndex the position of the sub-index.
+     * @param answer the answer.
+     */
+    public void discard(int subIndex, T answer);
+  }
+
+  private static final int RUNNING = 0;
+
+  private static final int DONE = 1;
+
+  private static final int ABANDONED = 2;
+
+  /**
+   * Set in the threads running the request to a sub-index, so that nested
+   * fan-outs can be recognised.
+   */
+  private static final ThreadLocal<Boolean> inSubIndexTask =
+      new ThreadLocal<Boolean>();
+
+  /**
+   * The request to one of the sub-indexes, run in a background thread.
+   */
+  protected class SubIndexTask implements Runnable {
+
+    protected final int subIndex;
+
+    protected final Callable<? extends T> request;
+
+    protected final Handler<? super T> handler;
+
+    protected final BlockingQueue<SubIndexTask> completed;
+
+    /**
+     * The state of the task: once {@link #DONE}, the task is (or will
+     * shortly be) in the queue of completed tasks; once {@link #ABANDONED},
+     * the answer is discarded.
+     */
+    protected final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    protected T answer;
+
+    protected Exception error;
+
+    /**
+     * Set (in the calling thread) once the answer has been passed to the
+     * handler.
+     */
+    protected boolean handedOver;
+
+    public SubIndexTask(int subIndex, Callable<? extends T> request,
+        Handler<? super T> handler, BlockingQueue<SubIndexTask> completed) {
+      this.subIndex = subIndex;
+      this.request = request;
+      this.handler = handler;
+      this.completed = completed;
+    }
+
+    @Override
+    public void run() {
+      // don't start work that is no longer needed
+      if(state.get() != RUNNING) return;
+      inSubIndexTask.set(Boolean.TRUE);
+      try {
+        answer = request.call();
+      } catch(Exception e) {
+        error = e;
+      } catch(Throwable t) {
+        error = new RuntimeException(t);
+      } finally {
+        inSubIndexTask.remove();
+      }
+      if(state.compareAndSet(RUNNING, DONE)) {
+        completed.add(this);
+      } else {
+        discard();
+      }
+    }
+
+    /**
+     * Passes the answer (if any) to {@link Handler#discard(int, Object)}.
+     */
+    protected void discard() {
+      if(answer == null) return;
+      try {
+        handler.discard(subIndex, answer);
+      } catch(Exception e) {
+        logger.warn("Error while discarding the answer from sub-index " +
+            subIndex, e);
+      }
+    }
+  }
+
+  private static final Logger logger = Logger.getLogger(FederatedFanOut.class);
+
+  /**
+   * The executor running the requests.
+   */
+  protected Executor executor;
+
+  /**
+   * The maximum number of milliseconds to wait for the sub-indexes to answer.
+   */
+  protected long timeout;
+
+  /**
+   * Are partial results acceptable?
+   */
+  protected boolean partialResults;
+
+  /**
+   * Creates a new fan-out.
+   * @param executor the executor used to send the requests to the
+   * sub-indexes. A bounded thread pool limits the number of requests sent at
+   * the same time. If <code>null</code>, a new thread is started for each
+   * request (as do fan-outs nested inside the requests of another fan-out).
+   * @param timeout the maximum time (in milliseconds) to wait for the
+   * sub-indexes to answer, measured from the start of the fan-out. Values
+   * smaller than 1 mean no limit.
+   * @param partialResults if <code>true</code>, sub-indexes that fail or do
+   * not answer in time are left out (as long as at least one sub-index has
+   * answered); if <code>false</code>, any such sub-index causes the whole
+   * fan-out to fail.
+   */
+  public FederatedFanOut(Executor executor, long timeout,
+      boolean partialResults) {
+    this.executor = executor;
+    this.timeout = timeout;
+    this.partialResults = partialResults;
+  }
+
+  /**
+   * Sends the requests to the sub-indexes, and passes the answers to the
+   * handler as they arrive. When this method returns normally, the handler
+   * has received the answers from all the sub-indexes that answered in time.
+   * @param requests the request for each sub-index, in the order of the
+   * sub-indexes.
+   * @param handler the handler for the answers.
+   * @throws Exception the error from the first sub-index that failed, or a
+   * {@link TimeoutException} if a sub-index did not answer in time, if this
+   * happened for all sub-indexes or if partial results are not acceptable.
+   */
+  public void run(List<? extends Callable<? extends T>> requests,
+      Handler<? super T> handler) throws Exception {
+    BlockingQueue<SubIndexTask> completed =
+        new LinkedBlockingQueue<SubIndexTask>();
+    List<SubIndexTask> tasks = new ArrayList<SubIndexTask>(requests.size());
+    // nested fan-outs must not wait for the executor used by the outer one
+    Executor taskExecutor = inSubIndexTask.get() == null ? executor : null;
+    for(int i = 0; i < requests.size(); i++) {
+      SubIndexTask task = new SubIndexTask(i, requests.get(i), handler,
+          completed);
+      tasks.add(task);
+      if(taskExecutor != null) {
+        taskExecutor.execute(task);
+      } else {
+        new Thread(task, SubIndexTask.class.getCanonicalName()).start();
+      }
+    }
+    long deadline = timeout > 0 ? System.currentTimeMillis() + timeout :
+        Long.MAX_VALUE;
+    int pending = tasks.size();
+    int answered = 0;
+    Exception firstError = null;
+    boolean timedOut = false;
+    try {
+      boolean abandoned = false;
+      while(pending > 0) {
+        SubIndexTask task;
+        if(abandoned) {
+          // the remaining tasks are all done, and will be in the queue shortly
+          task = completed.take();
+        } else {
+          long waitTime = deadline - System.currentTimeMillis();
+          task = waitTime > 0 ?
+              completed.poll(waitTime, TimeUnit.MILLISECONDS) : 
+              completed.poll();
+        }
+        if(task == null) {
+          // time is up: abandon the sub-indexes that have not answered yet
+          for(SubIndexTask aTask : tasks) {
+            if(aTask.state.compareAndSet(RUNNING, ABANDONED)) {
+              logger.warn("Sub-index " + aTask.subIndex +
+                  " did not answer within " + timeout + " ms.");
+              timedOut = true;
+              pending--;
+            }
+          }
+          abandoned = true;
+          continue;
+        }
+        pending--;
+        if(task.error == null) {
+          answered++;
+          task.handedOver = true;
+          handler.answer(task.subIndex, task.answer);
+        } else {
+          logger.warn("Error from sub-index " + task.subIndex, task.error);
+          if(firstError == null) firstError = task.error;
+        }
+      }
+    } catch(Exception e) {
+      // give up on all the remaining sub-indexes
+      for(SubIndexTask aTask : tasks) {
+        if(!aTask.state.compareAndSet(RUNNING, ABANDONED)) {
+          // already done: discard the answer, unless already handed over
+          if(!aTask.handedOver) aTask.discard();
+        }
+      }
+      throw e;
+    }
+    if(firstError != null || timedOut) {
+      if(answered == 0 || !partialResults) {
+        if(firstError != null) {
+          throw firstError;
+        } else {
+          throw new TimeoutException("Sub-indexes did not answer within " +
+              timeout + " ms.");
+        }
+      }
+    }
+  }
+}
@@ -17,29 +17,121 @@ package gate.mimir.search;
 import gate.mimir.index.IndexException;
 import gate.mimir.search.query.Binding;
 
-import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.doubles.Double2ObjectRBTreeMap;
+import it.unimi.dsi.fastutil.doubles.Double2ObjectSortedMap;
 import it.unimi.dsi.fastutil.ints.IntBigArrayBigList;
 import it.unimi.dsi.fastutil.ints.IntBigList;
-import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntRBTreeSet;
+import it.unimi.dsi.fastutil.ints.IntSortedSet;
 import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
 import it.unimi.dsi.fastutil.longs.LongBigList;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import org.apache.log4j.Logger;
 
 /**
  * A {@link QueryRunner} that presents a set of sub-indexes (represented by
  * their own QueryRunners) as a single index.
+ * 
+ * The result lists of the sub-runners are merged in decreasing score order, 
+ * using a priority queue of the next document from each sub-runner. The 
+ * scores are fetched from the sub-runners in blocks (see 
+ * {@link #SCORE_BLOCK_SIZE}), in background threads, and the next block for
+ * each sub-runner is requested as soon as the previous one starts being used,
+ * so that the (possibly remote) sub-runners work in parallel.
  */
 public class FederatedQueryRunner implements QueryRunner {
   
   private static final Logger log = Logger.getLogger(FederatedQueryRunner.class);
   
+  /**
+   * The number of document scores fetched from a sub-runner in one operation. 
+   */
+  protected static final int SCORE_BLOCK_SIZE = 1000;
+  
+  /**
+   * The minimum number of ranks resolved each time more documents need to 
+   * be merged.
+   */
+  protected static final int MERGE_BLOCK_SIZE = 100;
+  
+  /**
+   * A block of consecutive document scores from one of the sub-runners, which
+   * are fetched in a background thread.
+   */
+  protected class ScoreBlock implements Callable<double[]> {
+    
+    /**
+     * The index of the sub-runner.
+     */
+    protected final int subRunnerIndex;
+    
+    /**
+     * The rank (in the sub-runner) of the first document in this block.
+     */
+    protected final long firstRank;
+    
+    /**
+     * The number of documents in this block.
+     */
+    protected final int size;
+    
+    protected final FutureTask<double[]> future;
+    
+    public ScoreBlock(int subRunnerIndex, long firstRank, int size) {
+      this.subRunnerIndex = subRunnerIndex;
+      this.firstRank = firstRank;
+      this.size = size;
+      this.future = new FutureTask<double[]>(this);
+    }
+
+    @Override
+    public double[] call() throws Exception {
+      QueryRunner subRunner = subRunners[subRunnerIndex];
+      double[] scores = new double[size];
+      for(int i = 0; i < size; i++) {
+        scores[i] = subRunner.getDocumentScore(firstRank + i);
+      }
+      return scores;
+    }
+    
+    /**
+     * Gets the score for a document in this block, waiting for the scores to
+     * be fetched if necessary. 
+     * @param rank the rank of the document in the sub-runner.
+     */
+    public double getScore(long rank) throws IOException {
+      try {
+        return future.get()[(int)(rank - firstRank)];
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for document scores");
+      } catch(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if(cause instanceof IOException) {
+          throw (IOException)cause;
+        } else if(cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else {
+          throw new IOException("Error while obtaining document scores", 
+              cause);
+        }
+      }
+    }
+  }
+  
   /**
    * The total number of result documents (or -1 if not yet known).
    */
@@ -74,8 +166,45 @@ public class FederatedQueryRunner implements QueryRunner {
    */
   protected LongBigList rank2subRank;
   
+  /**
+   * For each sub-runner, the block of scores including the next document to
+   * be merged.
+   */
+  protected ScoreBlock[] currentScoreBlocks;
+  
+  /**
+   * For each sub-runner, the block of scores following the current one, 
+   * which is being pre-fetched.
+   */
+  protected ScoreBlock[] nextScoreBlocks;
+  
+  /**
+   * The priority queue used for merging: the indexes of the sub-runners that
+   * have documents left, grouped by the score of their next document. 
+   * <code>null</code> if it needs to be (re-)built.
+   */
+  protected Double2ObjectSortedMap<IntSortedSet> subRunnersByScore;
+  
+  /**
+   * A source of threads used for fetching scores from the sub-runners.
+   */
+  protected Executor threadSource;
+  
   public FederatedQueryRunner(QueryRunner[] subrunners) {
+    this(subrunners, null);
+  }
+  
+  /**
+   * Creates a new federated query runner.
+   * @param subrunners the query runners for the sub-indexes.
+   * @param threadSource a source of threads  (such as a thread pool) used for
+   * fetching document scores from the sub-runners in the background. If 
+   * <code>null</code> is given then new threads are started as required.
+   */
+  public FederatedQueryRunner(QueryRunner[] subrunners, 
+      Executor threadSource) {
     this.subRunners = subrunners;
+    this.threadSource = threadSource;
     this.nextSubRunnerRank = null;
     this.rank2runnerIndex = new IntBigArrayBigList();
     this.rank2subRank = new LongBigArrayBigList();
@@ -97,14 +226,21 @@ public class FederatedQueryRunner implements QueryRunner {
         }
       }
       synchronized(this) {
-        // initialize the nextSubRunnerRank array
-        nextSubRunnerRank = new long[subRunners.length];
-        for(int i = 0; i < nextSubRunnerRank.length; i++) {
-          if(subRunners[i].getDocumentsCount() == 0) {
-            nextSubRunnerRank[i] = -1;
+        if(documentsCount < 0) {
+          // initialize the nextSubRunnerRank array
+          nextSubRunnerRank = new long[subRunners.length];
+          currentScoreBlocks = new ScoreBlock[subRunners.length];
+          nextScoreBlocks = new ScoreBlock[subRunners.length];
+          for(int i = 0; i < nextSubRunnerRank.length; i++) {
+            if(subRunners[i].getDocumentsCount() == 0) {
+              nextSubRunnerRank[i] = -1;
+            } else {
+              // start fetching the first scores from all sub-runners
+              nextScoreBlocks[i] = startScoreBlock(i, 0);
+            }
           }
+          documentsCount = newDocumentsCount;
         }
-        documentsCount = newDocumentsCount;
       }
     }
     return documentsCount;
@@ -139,6 +275,69 @@ public class FederatedQueryRunner implements QueryRunner {
     }
   }
   
+  /**
+   * Starts fetching a block of scores from a sub-runner.
+   * @param subRunnerIndex the index of the sub-runner.
+   * @param firstRank the rank of the first document in the block.
+   * @return the new block, or <code>null</code> if the sub-runner has no
+   * documents at the given rank.
+   */
+  protected ScoreBlock startScoreBlock(int subRunnerIndex, long firstRank) {
+    long size = Math.min(SCORE_BLOCK_SIZE, 
+        subRunners[subRunnerIndex].getDocumentsCount() - firstRank);
+    if(size <= 0) return null;
+    ScoreBlock block = new ScoreBlock(subRunnerIndex, firstRank, (int)size);
+    if(threadSource != null) {
+      threadSource.execute(block.future);
+    } else {
+      new Thread(block.future, 
+          ScoreBlock.class.getCanonicalName()).start();
+    }
+    return block;
+  }
+  
+  /**
+   * Gets the score of the next document to be merged from a sub-runner. When
+   * this moves to a new block of scores, fetching the following block is 
+   * started.
+   * @param subRunnerIndex the index of the sub-runner.
+   */
+  protected double getNextScore(int subRunnerIndex) throws IOException {
+    long rank = nextSubRunnerRank[subRunnerIndex];
+    ScoreBlock block = currentScoreBlocks[subRunnerIndex];
+    if(block == null || rank >= block.firstRank + block.size) {
+      block = nextScoreBlocks[subRunnerIndex];
+      if(block == null || block.firstRank != rank) {
+        block = startScoreBlock(subRunnerIndex, rank);
+      }
+      currentScoreBlocks[subRunnerIndex] = block;
+      nextScoreBlocks[subRunnerIndex] = startScoreBlock(subRunnerIndex, 
+          block.firstRank + block.size);
+    }
+    try {
+      return block.getScore(rank);
+    } catch(IOException | RuntimeException e) {
+      // the blocks will be fetched again next time
+      currentScoreBlocks[subRunnerIndex] = null;
+      nextScoreBlocks[subRunnerIndex] = null;
+      throw e;
+    }
+  }
+  
+  /**
+   * Adds a sub-runner to the {@link #subRunnersByScore} priority queue.
+   */
+  private void enqueue(int subRunnerIndex, double score) {
+    // normalise -0.0, which would otherwise be different from 0.0
+    score += 0.0;
+    IntSortedSet sameScore = subRunnersByScore.get(score);
+    if(sameScore == null) {
+      sameScore = new IntRBTreeSet();
+      subRunnersByScore.put(score, sameScore);
+    }
+    sameScore.add(subRunnerIndex);
+  }
+  
   /**
    * Ensure that the given rank is resolved to the appropriate sub-runner rank.
    * @throws IndexOutOfBoundsException if rank is beyond the last document.
@@ -153,44 +352,51 @@ public class FederatedQueryRunner implements QueryRunner {
     if(rank < rank2runnerIndex.size64()) {
       return;
     }
-    for(long nextRank = rank2runnerIndex.size64(); nextRank <= rank; nextRank++) {
-      boolean allOut = true;
-      // start with the runner next the previously chosen one
-      bestSubRunnerIndex = (bestSubRunnerIndex + 1) % subRunners.length;
-      double maxScore = Double.NEGATIVE_INFINITY;
-      if(nextSubRunnerRank[bestSubRunnerIndex] >= 0) {
-        maxScore = subRunners[bestSubRunnerIndex].getDocumentScore(
-            nextSubRunnerRank[bestSubRunnerIndex]);
-        allOut = false;
-      }
-      // now check all remaining runners, in round-robin fashion
-      final int from = bestSubRunnerIndex + 1;
-      final int to = bestSubRunnerIndex + subRunners.length;
-      for(int bigI = from; bigI < to; bigI++) {
-        int i = bigI % subRunners.length;
-        if(nextSubRunnerRank[i] >= 0) {
-          allOut = false;
-          if(subRunners[i].getDocumentScore(nextSubRunnerRank[i]) > maxScore) {
-            bestSubRunnerIndex = i;
-            maxScore = subRunners[i].getDocumentScore(nextSubRunnerRank[i]);
-          }
+    // resolve a whole range of ranks at once
+    long lastRank = Math.min(maxRank - 1, 
+        Math.max(rank, rank2runnerIndex.size64() + MERGE_BLOCK_SIZE - 1));
+    try {
+      if(subRunnersByScore == null) {
+        subRunnersByScore = new Double2ObjectRBTreeMap<IntSortedSet>();
+        for(int i = 0; i < subRunners.length; i++) {
+          if(nextSubRunnerRank[i] >= 0) enqueue(i, getNextScore(i));
         }
       }
-      if(allOut) {
-        // we ran out of docs
-        throw new IndexOutOfBoundsException("Requested rank was " + rank +
-          " but ran out of documents at " + nextRank + "!");
-      }
-      // consume the next doc from bestSubRunnerIndex
-      rank2runnerIndex.add(bestSubRunnerIndex);
-      rank2subRank.add(nextSubRunnerRank[bestSubRunnerIndex]);
-      if(nextSubRunnerRank[bestSubRunnerIndex] <
-          subRunners[bestSubRunnerIndex].getDocumentsCount() -1) {
-        nextSubRunnerRank[bestSubRunnerIndex]++;
-      } else {
-        // this runner has run out of documents
-        nextSubRunnerRank[bestSubRunnerIndex] = -1;
+      for(long nextRank = rank2runnerIndex.size64(); nextRank <= lastRank; 
+          nextRank++) {
+        if(subRunnersByScore.isEmpty()) {
+          // we ran out of docs
+          if(nextRank > rank) break;
+          throw new IndexOutOfBoundsException("Requested rank was " + rank +
+            " but ran out of documents at " + nextRank + "!");
+        }
+        // take a sub-runner with the best score: if there are several, 
+        // rotate between them, starting with the one after the previously 
+        // chosen one
+        double maxScore = subRunnersByScore.lastDoubleKey();
+        IntSortedSet bestSubRunners = subRunnersByScore.get(maxScore);
+        IntSortedSet nextSubRunners = 
+            bestSubRunners.tailSet(bestSubRunnerIndex + 1);
+        bestSubRunnerIndex = nextSubRunners.isEmpty() ? 
+            bestSubRunners.firstInt() : nextSubRunners.firstInt();
+        bestSubRunners.remove(bestSubRunnerIndex);
+        if(bestSubRunners.isEmpty()) subRunnersByScore.remove(maxScore);
+        // consume the next doc from bestSubRunnerIndex
+        rank2runnerIndex.add(bestSubRunnerIndex);
+        rank2subRank.add(nextSubRunnerRank[bestSubRunnerIndex]);
+        if(nextSubRunnerRank[bestSubRunnerIndex] <
+            subRunners[bestSubRunnerIndex].getDocumentsCount() -1) {
+          nextSubRunnerRank[bestSubRunnerIndex]++;
+          enqueue(bestSubRunnerIndex, getNextScore(bestSubRunnerIndex));
+        } else {
+          // this runner has run out of documents
+          nextSubRunnerRank[bestSubRunnerIndex] = -1;
+        }
       }
+    } catch(IOException | RuntimeException e) {
+      // the priority queue may be incomplete: re-build it next time
+      subRunnersByScore = null;
+      throw e;
     }
   }
   
@@ -284,6 +490,101 @@ public class FederatedQueryRunner implements QueryRunner {
           rank2subRank.getLong(rank), fieldNames);
   }
 
+  /* (non-Javadoc)
+   * @see gate.mimir.search.QueryRunner#getResultsPage(long, int, int, int, java.util.Set)
+   */
+  @Override
+  public ResultsPage getResultsPage(long firstRank, int size,
+      final int contextLength, final int maxSnippets,
+      final Set<String> fieldNames) throws IndexException,
+      IndexOutOfBoundsException, IOException {
+    ResultsPage page = new ResultsPage(firstRank, 
+        ResultsPage.pageSize(firstRank, size, getDocumentsCountSync()));
+    if(page.size() == 0) return page;
+    checkRank(firstRank + page.size() - 1);
+    // the documents on the page coming from each sub-runner have consecutive
+    // ranks in that sub-runner, so one sub-page is requested from each
+    final long[] subFirstRanks = new long[subRunners.length];
+    final int[] subSizes = new int[subRunners.length];
+    int lastSubRunnerIndex = -1;
+    for(int i = 0; i < page.size(); i++) {
+      int subRunnerIndex = rank2runnerIndex.getInt(firstRank + i);
+      if(subSizes[subRunnerIndex]++ == 0) {
+        subFirstRanks[subRunnerIndex] = rank2subRank.getLong(firstRank + i);
+        lastSubRunnerIndex = Math.max(lastSubRunnerIndex, subRunnerIndex);
+      }
+    }
+    // request the sub-pages in parallel
+    List<FutureTask<ResultsPage>> futures = 
+        new ArrayList<FutureTask<ResultsPage>>(subRunners.length);
+    for(int i = 0; i < subRunners.length; i++) {
+      if(subSizes[i] == 0) {
+        futures.add(null);
+        continue;
+      }
+      final int subRunnerIndex = i;
+      FutureTask<ResultsPage> future = new FutureTask<ResultsPage>(
+          new Callable<ResultsPage>() {
+        @Override
+        public ResultsPage call() throws Exception {
+          return subRunners[subRunnerIndex].getResultsPage(
+              subFirstRanks[subRunnerIndex], subSizes[subRunnerIndex], 
+              contextLength, maxSnippets, fieldNames);
+        }
+      });
+      futures.add(future);
+      if(subRunnerIndex == lastSubRunnerIndex) {
+        // use the current thread for the last one
+        future.run();
+      } else if(threadSource != null) {
+        threadSource.execute(future);
+      } else {
+        new Thread(future, FederatedQueryRunner.class.getCanonicalName() +
+            " results page").start();
+      }
+    }
+    ResultsPage[] subPages = new ResultsPage[subRunners.length];
+    for(int i = 0; i < subRunners.length; i++) {
+      if(futures.get(i) != null) subPages[i] = getSubPage(futures.get(i));
+    }
+    // merge the sub-pages
+    int[] nextSubPageIndex = new int[subRunners.length];
+    for(int i = 0; i < page.size(); i++) {
+      int subRunnerIndex = rank2runnerIndex.getInt(firstRank + i);
+      ResultsPage subPage = subPages[subRunnerIndex];
+      int subPageIndex = nextSubPageIndex[subRunnerIndex]++;
+      page.setDocument(i, subPage, subPageIndex, 
+          subPage.getDocumentId(subPageIndex) * subRunners.length + 
+          subRunnerIndex);
+    }
+    return page;
+  }
+  
+  /**
+   * Waits for a sub-page of results requested from a sub-runner.
+   */
+  private ResultsPage getSubPage(FutureTask<ResultsPage> future) 
+      throws IndexException, IOException {
+    try {
+      return future.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted while waiting for a results page");
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if(cause instanceof IndexException) {
+        throw (IndexException)cause;
+      } else if(cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else {
+        throw new IOException("Error while obtaining a results page", cause);
+      }
+    }
+  }
+  
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#renderDocument(int, java.lang.Appendable)
    */
@@ -300,6 +601,13 @@ public class FederatedQueryRunner implements QueryRunner {
    */
   @Override
   public void close() throws IOException {
+    synchronized(this) {
+      if(nextScoreBlocks != null) {
+        for(ScoreBlock block : nextScoreBlocks) {
+          if(block != null) block.future.cancel(false);
+        }
+      }
+    }
     for(QueryRunner r : subRunners) {
       try{
         r.close();
@@ -32,14 +32,18 @@ import gate.mimir.search.query.QueryNode;
 import gate.mimir.search.query.parser.ParseException;
 import gate.mimir.search.query.parser.QueryParser;
 import gate.mimir.search.score.MimirScorer;
+import gate.mimir.search.terms.AnnotationTermsCache;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.log4j.Logger;
 
@@ -78,6 +82,13 @@ public class QueryEngine {
    * @see #setDocumentBlockSize(int)
    */
   public static final int DEFAULT_DOCUMENT_BLOCK_SIZE = 1000;
+  
+  /**
+   * The default value for the query parallelism (queries are executed by a 
+   * single thread).
+   * @see #setQueryParallelism(int)
+   */
+  public static final int DEFAULT_QUERY_PARALLELISM = 1;
 
   /**
    * The index being searched.
@@ -120,6 +131,30 @@ public class QueryEngine {
    */
   private int documentBlockSize = DEFAULT_DOCUMENT_BLOCK_SIZE;
   
+  /**
+   * The number of threads used to collect the results of a single query.
+   */
+  private int queryParallelism = DEFAULT_QUERY_PARALLELISM;
+  
+  /**
+   * The pool used to run the partitions of a query in parallel. This is 
+   * created when first needed.
+   */
+  private ForkJoinPool forkJoinPool;
+  
+  /**
+   * The number of queries currently using each fork/join pool. A pool 
+   * replaced by {@link #setQueryParallelism(int)} is only shut down once the
+   * queries using it have released it. 
+   */
+  private final Map<ForkJoinPool, Integer> forkJoinPoolUsers = 
+      new IdentityHashMap<ForkJoinPool, Integer>();
+  
+  /**
+   * Cache for the mention URIs matching the annotation queries.
+   */
+  private AnnotationTermsCache annotationTermsCache;
+  
   /**
    * A list of currently active QueryRunners. This is used to close all active 
    * runners when the query engine itself is closed (thus releasing all open 
@@ -169,6 +204,79 @@ public class QueryEngine {
     this.documentBlockSize = documentBlockSize;
   }
 
+  /**
+   * Gets the number of threads used to collect the results of a single query.
+   * @see #setQueryParallelism(int)
+   * @return
+   */
+  public int getQueryParallelism() {
+    return queryParallelism;
+  }
+  
+  /**
+   * Sets the number of threads used to collect the results of a single query.
+   * When this is larger than 1, the document ID space of large indexes is 
+   * split into ranges, and a separate query executor is run over each range 
+   * in a fork/join pool. The partial results are then merged, in document ID 
+   * order. This makes expensive queries faster, at the cost of using more 
+   * threads (and more open index readers) for each query. Defaults to 
+   * {@link #DEFAULT_QUERY_PARALLELISM}.
+   * @param queryParallelism
+   */
+  public synchronized void setQueryParallelism(int queryParallelism) {
+    queryParallelism = Math.max(1, queryParallelism);
+    if(queryParallelism == this.queryParallelism) return;
+    this.queryParallelism = queryParallelism;
+    // queries still running in the old pool keep using it until they finish
+    ForkJoinPool oldPool = forkJoinPool;
+    forkJoinPool = null;
+    if(oldPool != null && !forkJoinPoolUsers.containsKey(oldPool)) {
+      oldPool.shutdown();
+    }
+  }
+  
+  /**
+   * Gets the fork/join pool used for running the partitions of a query in 
+   * parallel (see {@link #setQueryParallelism(int)}). Each call must be 
+   * matched by a call to {@link #releaseForkJoinPool(ForkJoinPool)}, once 
+   * all the tasks have been submitted to the pool and completed.
+   * @return
+   */
+  public synchronized ForkJoinPool acquireForkJoinPool() {
+    if(forkJoinPool == null) {
+      forkJoinPool = new ForkJoinPool(queryParallelism);
+    }
+    Integer users = forkJoinPoolUsers.get(forkJoinPool);
+    forkJoinPoolUsers.put(forkJoinPool, users == null ? 1 : users + 1);
+    return forkJoinPool;
+  }
+  
+  /**
+   * Releases a fork/join pool obtained from {@link #acquireForkJoinPool()}.
+   * If the pool has been replaced in the meantime, it is shut down when its 
+   * last user releases it.
+   * @param pool
+   */
+  public synchronized void releaseForkJoinPool(ForkJoinPool pool) {
+    Integer users = forkJoinPoolUsers.get(pool);
+    if(users == null) return;
+    if(users > 1) {
+      forkJoinPoolUsers.put(pool, users - 1);
+    } else {
+      forkJoinPoolUsers.remove(pool);
+      if(pool != forkJoinPool) pool.shutdown();
+    }
+  }
+
+  /**
+   * Gets the cache used to store the mention URIs that match annotation 
+   * queries.
+   * @return
+   */
+  public AnnotationTermsCache getAnnotationTermsCache() {
+    return annotationTermsCache;
+  }
+
   /**
    * Gets the current source of scorers.
    * @see #setScorerSource(Callable)
@@ -319,6 +427,7 @@ public class QueryEngine {
     activeQueryRunners = Collections.synchronizedList(
         new ArrayList<QueryRunner>());
     subBindingsEnabled = false;
+    annotationTermsCache = new AnnotationTermsCache(this);
   }
 
 //  /**
@@ -646,6 +755,13 @@ public class QueryEngine {
         logger.error("Exception while closing query runner.", e);
       }
     }
+    synchronized(this) {
+      if(forkJoinPool != null) {
+        forkJoinPool.shutdown();
+        forkJoinPool = null;
+      }
+    }
+    annotationTermsCache.clear();
   }
 
 }
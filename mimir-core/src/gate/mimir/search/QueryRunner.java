@@ -192,6 +192,31 @@ public interface QueryRunner {
           Set<String> fieldNames) throws IndexException,
           IndexOutOfBoundsException, IOException;
 
+  /**
+   * Gets all the data needed to display a range of result documents (IDs, 
+   * scores, titles, URIs, metadata fields and hit snippets) in one call. 
+   * This is more efficient than obtaining the same values one at a time, as
+   * the stored data for each document is only retrieved once (and, for 
+   * remote indexes, only one request is made).
+   * @param firstRank the rank of the first requested document.
+   * @param size the number of requested documents. The returned page is 
+   * shorter if there are not enough documents. This call waits for the 
+   * search to complete if necessary.
+   * @param contextLength the number of terms to include in the snippets on
+   * either side of each hit.
+   * @param maxSnippets the maximum number of snippets for each document. 
+   * Negative values mean no limit.
+   * @param fieldNames the names of the metadata fields to include. May be 
+   * <code>null</code>.
+   * @return the page of results.
+   * @throws IndexException
+   * @throws IndexOutOfBoundsException if firstRank is negative.
+   * @throws IOException
+   */
+  public ResultsPage getResultsPage(long firstRank, int size, 
+      int contextLength, int maxSnippets, Set<String> fieldNames) 
+          throws IndexException, IndexOutOfBoundsException, IOException;
+  
   /**
    * Render the content of the given document, with the hits for this query
    * highlighted.
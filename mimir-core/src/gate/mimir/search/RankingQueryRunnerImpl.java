@@ -19,8 +19,12 @@ import gate.mimir.index.IndexException;
 import gate.mimir.search.query.Binding;
 import gate.mimir.search.query.QueryExecutor;
 import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.score.BoundedScorer;
 import gate.mimir.search.score.MimirScorer;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleBigArrayBigList;
+import it.unimi.dsi.fastutil.doubles.DoubleHeapPriorityQueue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
 import it.unimi.dsi.fastutil.longs.LongBigList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectAVLTreeMap;
@@ -31,6 +35,7 @@ import it.unimi.dsi.fastutil.objects.ObjectList;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -39,6 +44,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -197,43 +206,48 @@ public class RankingQueryRunnerImpl implements QueryRunner {
    *   completion, will also start a background job to collect all the hits for 
    *   that block).</li>  
    * </ul>
+   * If the scorer is a {@link BoundedScorer}, the documents that cannot be 
+   * part of the first block of results (because their score upper bound is 
+   * not larger than the lowest score in the top block so far) are not scored. 
+   * Their scores are calculated later by a {@link ScoresCollector}. 
+   * Additionally, as soon as the lowest score in the top block is not smaller 
+   * than the upper bound for the scores of all the documents not visited yet
+   * (see {@link BoundedScorer#remainingScoreUpperBound()}), the first block 
+   * is ranked, and made available to the clients, while the remaining 
+   * document IDs are still being collected. The hits for the first block are
+   * collected after all the document IDs.
+   * 
+   * If the query engine is configured to use more than one thread per query 
+   * (see {@link QueryEngine#setQueryParallelism(int)}), and the index is large
+   * enough, the document ID space is split into ranges, which are processed in 
+   * parallel by {@link PartitionCollector}s. Their results are then appended
+   * (in document ID order) by this collector, and the first block is only 
+   * ranked when all the partitions have completed. 
    */
   protected class DocIdsCollector implements Runnable {
     @Override
     public void run() {
       try{
-        // collect all documents and their scores
-        if(ranking) scorer.wrap(queryExecutor);
-        long docId = nextNotDeleted();
-        while(docId >= 0) {
-          // enlarge the hits list
-          if(ranking){
-            documentScores.add(scorer.score());
-            documentHits.add(null);
-          } else {
-            // not scoring: also collect the hits for the first block of documents
-            if(docId < docBlockSize) {
-              ObjectList<Binding> hits = new ObjectArrayList<Binding>();
-              Binding hit = queryExecutor.nextHit();
-              while(hit != null) {
-                hits.add(hit);
-                hit = queryExecutor.nextHit();
-              }
-              documentHits.add(hits);
-            } else {
-              documentHits.add(null);
-            }
-          }
-          // and store the new doc ID
-          documentIds.add(docId);
-          docId = nextNotDeleted();
+        int partitionCount = getPartitionCount();
+        if(partitionCount > 1) {
+          collectPartitions(partitionCount);
+        } else {
+          collectDocuments();
         }
         allDocIdsCollected = true;
+        FutureTask<Object> scoresFuture = null;
+        if(unscoredDocuments > 0) {
+          scoresFuture = new FutureTask<Object>(new ScoresCollector(), null);
+          scoresCollectorFuture = scoresFuture;
+        }
         if(ranking) {
           // now rank the first batch of documents
           // this will also start a second background job to collect the hits
           rankDocuments(docBlockSize -1);
         }
+        // the remaining scores are only needed for later blocks, so they are
+        // calculated after the hits for the first block have been collected
+        if(scoresFuture != null) backgroundTasks.put(scoresFuture);
       } catch (Exception e) {
         // this could happen if we've been closed in the mean time
         if(closed) return;
@@ -244,10 +258,303 @@ public class RankingQueryRunnerImpl implements QueryRunner {
         } catch(IOException e1) {
           logger.error("Exception while closing, after exception.", e1);
         }
+      } finally {
+        // don't leave any clients waiting
+        firstBlockRanked.countDown();
+      }
+    }
+  }
+  
+  /**
+   * Collects all the document IDs (and scores, or the hits for the first block 
+   * of documents) using the query executor of this query runner.
+   * @throws IOException
+   */
+  protected void collectDocuments() throws IOException {
+    if(ranking) scorer.wrap(queryExecutor);
+    BoundedScorer boundedScorer = scorer instanceof BoundedScorer ?
+        (BoundedScorer)scorer : null;
+    // the scores of the top docBlockSize documents seen so far
+    DoubleHeapPriorityQueue topScores = boundedScorer != null ?
+        new DoubleHeapPriorityQueue(docBlockSize) : null;
+    // the upper bound for the scores of the documents not visited yet, and 
+    // the number of documents visited since it was calculated. The bound can
+    // only decrease, so an old value is still valid.
+    double remainingBound = Double.POSITIVE_INFINITY;
+    int boundAge = BOUND_REFRESH_INTERVAL;
+    long docId = nextNotDeleted();
+    while(docId >= 0) {
+      // enlarge the hits list
+      if(ranking){
+        double score = scoreDocument(scorer, topScores);
+        if(Double.isNaN(score)) unscoredDocuments++;
+        documentScores.add(score);
+        documentHits.add(null);
+      } else {
+        // not scoring: also collect the hits for the first block of documents
+        if(documentIds.size64() < docBlockSize) {
+          ObjectList<Binding> hits = new ObjectArrayList<Binding>();
+          Binding hit = queryExecutor.nextHit();
+          while(hit != null) {
+            hits.add(hit);
+            hit = queryExecutor.nextHit();
+          }
+          documentHits.add(hits);
+        } else {
+          documentHits.add(null);
+        }
+      }
+      // and store the new doc ID
+      documentIds.add(docId);
+      if(topScores != null && topScores.size() == docBlockSize &&
+         documentsOrder.size64() == 0) {
+        if(++boundAge >= BOUND_REFRESH_INTERVAL) {
+          remainingBound = boundedScorer.remainingScoreUpperBound();
+          boundAge = 0;
+        }
+        // a later document with the same score is ranked lower, so none of 
+        // the remaining documents can make it into the first block
+        if(topScores.firstDouble() >= remainingBound) {
+          rankDocuments(docBlockSize - 1);
+          firstBlockRanked.countDown();
+        }
       }
+      docId = nextNotDeleted();
+    }
+  }
+  
+  /**
+   * Scores the current document of a scorer.
+   * @param scorer the scorer, positioned on the document to be scored.
+   * @param topScores the top scores seen so far, if the scorer is a
+   * {@link BoundedScorer}, or <code>null</code> otherwise.
+   * @return the document score, or {@link Double#NaN} if the document cannot
+   * be part of the first block of results, so it was not scored. 
+   * @throws IOException
+   */
+  protected double scoreDocument(MimirScorer scorer, 
+      DoubleHeapPriorityQueue topScores) throws IOException {
+    double score;
+    if(topScores == null) {
+      score = scorer.score();
+    } else if(topScores.size() < docBlockSize) {
+      score = scorer.score();
+      topScores.enqueue(score);
+    } else if(((BoundedScorer)scorer).scoreUpperBound() > 
+        topScores.firstDouble()) {
+      score = scorer.score();
+      if(score > topScores.firstDouble()) {
+        topScores.dequeueDouble();
+        topScores.enqueue(score);
+      }
+    } else {
+      // this document cannot make it into the first block (a later 
+      // document with the same score is ranked lower): score it later
+      score = Double.NaN;
     }
+    return score;
   }
   
+  /**
+   * Gets the number of partitions the document ID space should be split into 
+   * for collecting the documents in parallel. 
+   * @return the number of partitions, or 1 if the documents should be 
+   * collected by a single thread.
+   */
+  protected int getPartitionCount() {
+    int parallelism = queryEngine.getQueryParallelism();
+    if(parallelism <= 1) return 1;
+    // each partition needs its own scorer
+    if(ranking && queryEngine.getScorerSource() == null) return 1;
+    long partitions = queryEngine.getIndex().getIndexedDocumentsCount() / 
+        MIN_PARTITION_SIZE;
+    return (int)Math.max(1, Math.min(partitions, 
+        parallelism * PARTITIONS_PER_THREAD));
+  }
+  
+  /**
+   * Collects all the document IDs (and scores) by running a 
+   * {@link PartitionCollector} for each range of document IDs, in the query
+   * engine's fork/join pool. The partial results are appended as soon as all 
+   * the preceding partitions are complete. 
+   * @param partitionCount
+   * @throws Exception
+   */
+  protected void collectPartitions(int partitionCount) throws Exception {
+    // the partitions use their own executors, so the one created for this
+    // runner is closed, rather than holding on to its index readers while the 
+    // documents are collected. As it has not been used, the hits collectors 
+    // replace it with a new one.
+    queryExecutor.close();
+    long documentCount = queryEngine.getIndex().getIndexedDocumentsCount();
+    ForkJoinPool pool = queryEngine.acquireForkJoinPool();
+    List<Future<PartitionCollector>> partitions = 
+        new ArrayList<Future<PartitionCollector>>(partitionCount);
+    try {
+      for(int i = 0; i < partitionCount; i++) {
+        long start = documentCount * i / partitionCount;
+        // the last partition also includes any documents added since
+        long end = i == partitionCount - 1 ? Long.MAX_VALUE : 
+            documentCount * (i + 1) / partitionCount;
+        partitions.add(pool.submit(new PartitionCollector(start, end)));
+      }
+      boolean firstBlockCollected = ranking;
+      for(Future<PartitionCollector> aFuture : partitions) {
+        PartitionCollector partition = aFuture.get();
+        for(int i = 0; i < partition.documentIds.size(); i++) {
+          if(ranking) documentScores.add(partition.documentScores.getDouble(i));
+          documentHits.add(null);
+          documentIds.add(partition.documentIds.getLong(i));
+        }
+        unscoredDocuments += partition.unscoredDocuments;
+        if(!firstBlockCollected && documentIds.size64() >= docBlockSize) {
+          new HitsCollector(0, docBlockSize).run();
+          firstBlockCollected = true;
+        }
+      }
+      if(!firstBlockCollected && documentIds.size64() > 0) {
+        new HitsCollector(0, documentIds.size64()).run();
+      }
+    } finally {
+      // stop any partitions still running if something went wrong 
+      for(Future<PartitionCollector> aFuture : partitions) {
+        aFuture.cancel(false);
+      }
+      queryEngine.releaseForkJoinPool(pool);
+    }
+  }
+  
+  /**
+   * Collects the IDs (and, if ranking, the scores) of the documents in a 
+   * range of document IDs, using its own query executor (and scorer). 
+   * Several partition collectors can run in parallel, as they only share
+   * the (read-only) index.
+   */
+  protected class PartitionCollector implements Callable<PartitionCollector> {
+    /**
+     * The first document ID in this partition.
+     */
+    protected final long start;
+    
+    /**
+     * The end of this partition (exclusive).
+     */
+    protected final long end;
+    
+    protected final LongArrayList documentIds = new LongArrayList();
+    
+    protected final DoubleArrayList documentScores = new DoubleArrayList();
+    
+    protected long unscoredDocuments = 0;
+    
+    public PartitionCollector(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public PartitionCollector call() throws Exception {
+      QueryExecutor executor = queryExecutor.getQueryNode().getQueryExecutor(
+          queryEngine);
+      try {
+        MimirScorer partitionScorer = null;
+        DoubleHeapPriorityQueue topScores = null;
+        if(ranking) {
+          partitionScorer = queryEngine.getScorerSource().call();
+          partitionScorer.wrap(executor);
+          if(partitionScorer instanceof BoundedScorer) {
+            topScores = new DoubleHeapPriorityQueue(docBlockSize);
+          }
+        }
+        long docId = partitionScorer != null ? 
+            partitionScorer.nextDocument(start - 1) : 
+            executor.nextDocument(start - 1);
+        while(docId >= 0 && docId < end && !closed) {
+          if(!queryEngine.getIndex().isDeleted(docId)) {
+            if(ranking) {
+              double score = scoreDocument(partitionScorer, topScores);
+              if(Double.isNaN(score)) unscoredDocuments++;
+              documentScores.add(score);
+            }
+            documentIds.add(docId);
+          }
+          docId = partitionScorer != null ? partitionScorer.nextDocument(-1) :
+              executor.nextDocument(-1);
+        }
+        return this;
+      } finally {
+        executor.close();
+      }
+    }
+  }
+  
+  /**
+   * Calculates the scores for the documents that were not scored by the 
+   * {@link DocIdsCollector} (whose score is set to {@link Double#NaN}), 
+   * using a new query executor. The exact scores are required before any
+   * documents outside the first block can be ranked.
+   */
+  protected class ScoresCollector implements Runnable {
+    @Override
+    public void run() {
+      QueryExecutor executor = null;
+      try {
+        executor = queryExecutor.getQueryNode().getQueryExecutor(queryEngine);
+        scorer.wrap(executor);
+        long currentDoc = -1;
+        for(long i = 0; i < documentIds.size64() && !closed; i++) {
+          if(!Double.isNaN(documentScores.getDouble(i))) continue;
+          long docId = documentIds.getLong(i);
+          if(currentDoc < docId) currentDoc = scorer.nextDocument(docId - 1);
+          // the document may have been deleted since the query was started, 
+          // in which case it ranks last
+          documentScores.set(i, currentDoc == docId ? scorer.score() : 0);
+        }
+      } catch(Exception e) {
+        // this could happen if we've been closed in the mean time
+        if(closed) return;
+        // otherwise, it's an error
+        logger.error("Exception while calculating document scores", e);
+        try {
+          close();
+        } catch(IOException e1) {
+          logger.error("Exception while closing, after exception.", e1);
+        }
+      } finally {
+        if(executor != null) {
+          try {
+            executor.close();
+          } catch(IOException e) {
+            logger.error("Exception while closing query executor.", e);
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * The minimum number of indexed documents in each partition, when the 
+   * documents are collected in parallel (see 
+   * {@link QueryEngine#setQueryParallelism(int)}). Smaller indexes are 
+   * processed by a single thread.  
+   */
+  protected static final long MIN_PARTITION_SIZE = 50000;
+  
+  /**
+   * The number of partitions created for each thread, when the documents are 
+   * collected in parallel. Using more partitions than threads evens out the 
+   * load when the matching documents are not uniformly distributed.
+   */
+  protected static final int PARTITIONS_PER_THREAD = 4;
+  
+  /**
+   * The number of documents collected between two calculations of the upper
+   * bound for the scores of the documents not visited yet (see 
+   * {@link BoundedScorer#remainingScoreUpperBound()}), which can be 
+   * expensive for queries with many terms.
+   */
+  protected static final int BOUND_REFRESH_INTERVAL = 64;
+  
   /**
    * Shared logger instance.
    */
@@ -334,6 +641,29 @@ public class RankingQueryRunnerImpl implements QueryRunner {
    */
   protected volatile FutureTask<Object> docIdCollectorFuture;
   
+  /**
+   * The number of documents that were not scored by the 
+   * {@link DocIdsCollector}, because they could not be part of the first block
+   * of results.
+   */
+  protected long unscoredDocuments = 0;
+  
+  /**
+   * The task that calculates the scores for the documents that were not 
+   * scored by the {@link DocIdsCollector}. This is <code>null</code> if all 
+   * documents were scored. 
+   */
+  protected volatile FutureTask<Object> scoresCollectorFuture;
+  
+  /**
+   * Released when the first block of documents has been ranked, which may 
+   * happen before all the document IDs are collected (see 
+   * {@link DocIdsCollector}), or when collecting the document IDs has failed.
+   * Clients asking for a document in the first block wait for this, rather 
+   * than ranking the documents found so far. 
+   */
+  protected final CountDownLatch firstBlockRanked = new CountDownLatch(1);
+  
   /**
    * Internal flag used to mark when this query runner has been closed.
    */
@@ -490,8 +820,17 @@ public class RankingQueryRunnerImpl implements QueryRunner {
       "Document rank too large (" + rank + " > " + maxRank + ".");
     if(documentsOrder != null) {
       // we're in ranking mode
+      if(rank < docBlockSize && rank >= documentsOrder.size64()) {
+        // the first block is ranked by the document IDs collector
+        awaitFirstBlock();
+      }
       if(rank >= documentsOrder.size64()) {
         // document exists, but has not been ranked yet
+        if(scorer instanceof BoundedScorer && 
+           (rank >= docBlockSize || documentsOrder.size64() > 0)) {
+          // we're ranking beyond the first block, so we need all the scores
+          waitForScores();
+        }
         rankDocuments(rank);
       }
       return documentsOrder.getLong(rank);
@@ -507,7 +846,8 @@ public class RankingQueryRunnerImpl implements QueryRunner {
    * larger than the number of result documents, then all documents will be
    * ranked before this method returns. 
    * This is the only method that writes to the {@link #documentsOrder} list.
-   * This method is executed synchronously in the client thread.
+   * This method is executed synchronously in the client thread, or in the 
+   * {@link DocIdsCollector} for the first block of documents.
    *  
    * @param rank
    * @throws IOException 
@@ -535,26 +875,23 @@ public class RankingQueryRunnerImpl implements QueryRunner {
       for(long i = 0; i < documentIds.size64(); i++) {
         long documentId = documentIds.getLong(i);
         double documentScore = documentScores.getDouble(i);
-        // the index for the document with the smallest score, 
-        // from the new ones being ranked 
-        long smallestDocIndex = rankRangeStart < documentsOrder.size64() ?
-            documentsOrder.getLong(rankRangeStart) : -1;
+        // documents not scored yet are known not to be in the first block
+        if(Double.isNaN(documentScore)) continue;
+        // documents with a larger score, or with the same score and a smaller
+        // ID, have already been ranked
+        if(documentScore > smallestOldScore || 
+           (documentScore == smallestOldScore && 
+            documentId <= smallestOldScoreDocId)) continue;
         // the smallest score that's been seen in this new round 
-        double smallestNewScore = smallestDocIndex == -1 ? Double.NEGATIVE_INFINITY : 
-            documentScores.getDouble(smallestDocIndex);
+        double smallestNewScore = documentsOrder.size64() > rankRangeStart ?
+            documentScores.getDouble(documentsOrder.getLong(
+                documentsOrder.size64() - 1)) : Double.NEGATIVE_INFINITY;
         // we care about this new document if:
         // - we haven't collected enough documents yet, or
-        // - it has a better score than the smallest score so far, but a 
-        // smaller score than the maximum permitted score (i.e. it has not 
-        // already been ranked)., or
-        // - it's a new document (i.e. with an ID strictly larger) with the same 
-        // score as the largest permitted score
-        if(documentsOrder.size64() < rankRangeEnd
-           || 
-           (documentScore > smallestNewScore && documentScore < smallestOldScore) 
-           ||
-           (documentScore == smallestOldScore && documentId > smallestOldScoreDocId)
-           ) {
+        // - it has a better score than the smallest score so far (a later 
+        // document with the same score is ranked lower)
+        if(documentsOrder.size64() < rankRangeEnd || 
+           documentScore > smallestNewScore) {
           // find the rank for the new doc in the documentsOrder list, and insert
           documentsOrder.add(findRank(documentScore, rankRangeStart, 
               documentsOrder.size64()), i);
@@ -571,6 +908,44 @@ public class RankingQueryRunnerImpl implements QueryRunner {
     }
   }
   
+  /**
+   * Waits until the first block of documents has been ranked by the 
+   * {@link DocIdsCollector}. This must not be called from the background 
+   * thread.
+   * @throws IOException if interrupted while waiting.
+   */
+  protected void awaitFirstBlock() throws IOException {
+    try {
+      firstBlockRanked.await();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(
+          "Interrupted while waiting for the first block of results", e);
+    }
+  }
+  
+  /**
+   * Waits until the documents skipped by the {@link DocIdsCollector} have been
+   * scored (see {@link ScoresCollector}). This must not be called from the 
+   * background thread, or while holding the lock on {@link #documentsOrder}, 
+   * so it is only called by the client threads.
+   * @throws IOException
+   */
+  protected void waitForScores() throws IOException {
+    try {
+      if(!allDocIdsCollected) docIdCollectorFuture.get();
+      Future<?> scoresFuture = scoresCollectorFuture;
+      if(scoresFuture != null) scoresFuture.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for document scores", 
+          e);
+    } catch(ExecutionException e) {
+      throw new IOException("Exception while calculating document scores", 
+          e.getCause());
+    }
+  }
+  
   /**
    * Given a document score, finds the correct insertion point into the 
    * {@link #documentsOrder} list, within a given range of ranks.
@@ -596,7 +971,7 @@ public class RankingQueryRunnerImpl implements QueryRunner {
      else if (midVal < documentScore) end = mid - 1;
      else {
        // we found a doc with exactly the same score: scan to the right
-       while(documentsOrder.size64() < mid && 
+       while(mid < documentsOrder.size64() && 
              documentScores.getDouble(documentsOrder.getLong(mid)) == 
            documentScore){
          mid++;
@@ -707,6 +1082,26 @@ public class RankingQueryRunnerImpl implements QueryRunner {
     return res;
   }
   
+  /* (non-Javadoc)
+   * @see gate.mimir.search.QueryRunner#getResultsPage(long, int, int, int, java.util.Set)
+   */
+  @Override
+  public ResultsPage getResultsPage(long firstRank, int size, 
+      int contextLength, int maxSnippets, Set<String> fieldNames) 
+          throws IndexException, IndexOutOfBoundsException, IOException {
+    ResultsPage page = new ResultsPage(firstRank, 
+        ResultsPage.pageSize(firstRank, size, getDocumentsCountSync()));
+    for(int i = 0; i < page.size(); i++) {
+      long rank = firstRank + i;
+      long documentId = getDocumentID(rank);
+      // the document data is only fetched once for all the values
+      page.setDocument(i, documentId, getDocumentScore(rank), 
+          queryEngine.getIndex().getDocumentData(documentId), 
+          getDocumentHits(rank), contextLength, maxSnippets, fieldNames);
+    }
+    return page;
+  }
+  
   /* (non-Javadoc)
    * @see gate.mimir.search.QueryRunner#renderDocument(int, java.lang.Appendable)
    */
@@ -723,6 +1118,7 @@ public class RankingQueryRunnerImpl implements QueryRunner {
   @Override
   public void close() throws IOException {
     this.closed = true;
+    firstBlockRanked.countDown();
     try{
       if(queryEngine != null) queryEngine.releaseQueryRunner(this);
       if(queryExecutor != null) queryExecutor.close();
@@ -0,0 +1,261 @@
+/*
+ *  ResultsPage.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search;
+
+import gate.mimir.index.DocumentData;
+import gate.mimir.search.query.Binding;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * All the data needed to display a range of result documents: the document
+ * IDs, scores, titles, URIs, some metadata fields, and snippets of text
+ * around the hits in each document. See
+ * {@link QueryRunner#getResultsPage(long, int, int, int, Set)}.
+ */
+public class ResultsPage implements Serializable {
+
+  /**
+   * A hit, together with some of the text around it.
+   */
+  public static class Snippet implements Serializable {
+
+    private static final long serialVersionUID = 3326577402262233391L;
+
+    protected int termPosition;
+
+    protected int length;
+
+    protected int textStart;
+
+    protected String[][] text;
+
+    public Snippet(int termPosition, int length, int textStart,
+        String[][] text) {
+      this.termPosition = termPosition;
+      this.length = length;
+      this.textStart = textStart;
+      this.text = text;
+    }
+
+    /**
+     * Gets the term position of the hit.
+     */
+    public int getTermPosition() {
+      return termPosition;
+    }
+
+    /**
+     * Gets the length (number of terms) of the hit.
+     */
+    public int getLength() {
+      return length;
+    }
+
+    /**
+     * Gets the term position of the first term in the snippet text (which
+     * may be before the hit).
+     */
+    public int getTextStart() {
+      return textStart;
+    }
+
+    /**
+     * Gets the snippet text: the hit, and up to the requested number of
+     * terms on either side, in the same format as
+     * {@link QueryRunner#getDocumentText(long, int, int)}.
+     */
+    public String[][] getText() {
+      return text;
+    }
+  }
+
+  private static final long serialVersionUID = -1520367880357404425L;
+
+  protected long firstRank;
+
+  protected long[] documentIds;
+
+  protected double[] scores;
+
+  protected String[] titles;
+
+  protected String[] uris;
+
+  protected List<Map<String, Serializable>> metadata;
+
+  protected int[] hitsCounts;
+
+  protected Snippet[][] snippets;
+
+  /**
+   * Creates a new, empty, page.
+   * @param firstRank the rank of the first document on the page.
+   * @param size the number of documents on the page.
+   */
+  public ResultsPage(long firstRank, int size) {
+    this.firstRank = firstRank;
+    documentIds = new long[size];
+    scores = new double[size];
+    titles = new String[size];
+    uris = new String[size];
+    metadata = new ArrayList<Map<String, Serializable>>(
+        Collections.<Map<String, Serializable>>nCopies(size, null));
+    hitsCounts = new int[size];
+    snippets = new Snippet[size][];
+  }
+
+  /**
+   * Calculates the number of documents on a page, so that the page does not
+   * go past the last document.
+   * @param firstRank the rank of the first document on the page.
+   * @param size the requested number of documents.
+   * @param documentsCount the total number of documents.
+   */
+  public static int pageSize(long firstRank, int size, long documentsCount) {
+    if(firstRank < 0) throw new IndexOutOfBoundsException(
+        "Negative document rank: " + firstRank);
+    return (int)Math.max(0, Math.min(firstRank + size, documentsCount) -
+        firstRank);
+  }
+
+  /**
+   * Fills in the data for one of the documents on this page.
+   * @param index the position of the document on this page.
+   * @param documentId the ID of the document.
+   * @param score the score of the document.
+   * @param docData the stored data for the document, which provides the
+   * title, URI, metadata fields and snippet text.
+   * @param hits the hits in the document.
+   * @param contextLength the number of terms to include in the snippets on
+   * either side of each hit.
+   * @param maxSnippets the maximum number of snippets (starting from the
+   * first hit). Negative values mean no limit.
+   * @param fieldNames the names of the metadata fields to include. May be
+   * <code>null</code>.
+   */
+  public void setDocument(int index, long documentId, double score,
+      DocumentData docData, List<Binding> hits, int contextLength,
+      int maxSnippets, Set<String> fieldNames) {
+    documentIds[index] = documentId;
+    scores[index] = score;
+    titles[index] = docData.getDocumentTitle();
+    uris[index] = docData.getDocumentURI();
+    if(fieldNames != null && !fieldNames.isEmpty()) {
+      Map<String, Serializable> fields = new HashMap<String, Serializable>();
+      for(String fieldName : fieldNames) {
+        Serializable value = docData.getMetadataField(fieldName);
+        if(value != null) fields.put(fieldName, value);
+      }
+      metadata.set(index, fields);
+    }
+    hitsCounts[index] = hits.size();
+    int snippetsCount = maxSnippets < 0 ? hits.size() :
+        Math.min(maxSnippets, hits.size());
+    Snippet[] docSnippets = new Snippet[snippetsCount];
+    for(int i = 0; i < snippetsCount; i++) {
+      Binding hit = hits.get(i);
+      int textStart = Math.max(0, hit.getTermPosition() - contextLength);
+      int textEnd = Math.min(docData.getTokens().length,
+          hit.getTermPosition() + hit.getLength() + contextLength);
+      docSnippets[i] = new Snippet(hit.getTermPosition(), hit.getLength(),
+          textStart, docData.getText(textStart, 
+              Math.max(0, textEnd - textStart)));
+    }
+    snippets[index] = docSnippets;
+  }
+
+  /**
+   * Copies the data for a document from another page.
+   * @param index the position of the document on this page.
+   * @param other the page to copy from.
+   * @param otherIndex the position of the document on the other page.
+   * @param documentId the ID to use for the document on this page.
+   */
+  public void setDocument(int index, ResultsPage other, int otherIndex,
+      long documentId) {
+    documentIds[index] = documentId;
+    scores[index] = other.scores[otherIndex];
+    titles[index] = other.titles[otherIndex];
+    uris[index] = other.uris[otherIndex];
+    metadata.set(index, other.metadata.get(otherIndex));
+    hitsCounts[index] = other.hitsCounts[otherIndex];
+    snippets[index] = other.snippets[otherIndex];
+  }
+
+  /**
+   * Gets the rank of the first document on this page.
+   */
+  public long getFirstRank() {
+    return firstRank;
+  }
+
+  /**
+   * Gets the number of documents on this page.
+   */
+  public int size() {
+    return documentIds.length;
+  }
+
+  /**
+   * Gets the ID of a document.
+   * @param index the position of the document on this page (i.e. its rank
+   * minus {@link #getFirstRank()}).
+   */
+  public long getDocumentId(int index) {
+    return documentIds[index];
+  }
+
+  public double getDocumentScore(int index) {
+    return scores[index];
+  }
+
+  public String getDocumentTitle(int index) {
+    return titles[index];
+  }
+
+  public String getDocumentURI(int index) {
+    return uris[index];
+  }
+
+  /**
+   * Gets the requested metadata fields of a document. Fields that have no
+   * value for the document are omitted.
+   * @return the field values, or <code>null</code> if no fields were
+   * requested.
+   */
+  public Map<String, Serializable> getDocumentMetadataFields(int index) {
+    return metadata.get(index);
+  }
+
+  /**
+   * Gets the total number of hits in a document, which may be larger than
+   * the number of snippets.
+   */
+  public int getDocumentHitsCount(int index) {
+    return hitsCounts[index];
+  }
+
+  /**
+   * Gets the snippets for the hits in a document.
+   */
+  public Snippet[] getDocumentSnippets(int index) {
+    return snippets[index];
+  }
+}
@@ -15,8 +15,11 @@
 package gate.mimir.search.query;
 
 
+import gate.mimir.index.DeletedDocumentSet;
 import gate.mimir.search.QueryEngine;
 
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.objects.ReferenceArraySet;
 import it.unimi.dsi.fastutil.objects.ReferenceSet;
 import it.unimi.di.big.mg4j.index.Index;
@@ -45,11 +48,24 @@ public abstract class AbstractIntersectionQueryExecutor extends AbstractQueryExe
   
   protected ReferenceSet<Index> indices;
   
+  /**
+   * The documents marked as deleted in the index, which are never returned.
+   */
+  protected DeletedDocumentSet deletedDocuments;
+  
   /**
    * The {@link QueryExecutor}s for the contained nodes.
    */
   protected QueryExecutor[] executors;
   
+  /**
+   * The order in which the {@link #executors} are advanced: indexes in the
+   * executors array, sorted by increasing estimated document count (see 
+   * {@link QueryExecutor#getDocumentCountEstimate()}), so that the rarest 
+   * sub-query drives the intersection.
+   */
+  protected int[] advanceOrder;
+  
   /**
    * Constructor from {@link QueryEngine}.
    * @throws IOException if the index files cannot be accessed.
@@ -57,6 +73,7 @@ public abstract class AbstractIntersectionQueryExecutor extends AbstractQueryExe
   public AbstractIntersectionQueryExecutor(QueryEngine engine, QueryNode query,
           QueryNode... subNodes) throws IOException {
     super(engine, query);
+    this.deletedDocuments = engine.getIndex().getDeletedDocuments();
     this.nodes = subNodes;
     // prepare all the executors
     this.executors = new QueryExecutor[subNodes.length];
@@ -72,6 +89,20 @@ public abstract class AbstractIntersectionQueryExecutor extends AbstractQueryExe
         break;
       }
     }
+    advanceOrder = new int[executors.length];
+    final long[] estimates = new long[executors.length];
+    for(int i = 0; i < executors.length; i++) {
+      advanceOrder[i] = i;
+      estimates[i] = executors[i].getDocumentCountEstimate();
+      // executors with no estimate go last
+      if(estimates[i] < 0) estimates[i] = Long.MAX_VALUE;
+    }
+    IntArrays.mergeSort(advanceOrder, new AbstractIntComparator() {
+      @Override
+      public int compare(int k1, int k2) {
+        return Long.compare(estimates[k1], estimates[k2]);
+      }
+    });
   }
 
   @Override
@@ -84,12 +115,17 @@ public abstract class AbstractIntersectionQueryExecutor extends AbstractQueryExe
     // Note that the greterThan value can be anything (e.g.-100), so we need to  
     // force the advance by comparing to latestDocument.
     long max = Math.max(latestDocument, greaterThan)  + 1;
-    // move all documentIDs to at or over current max,
-    // until they all have the same ID
+    // move all documentIDs to at or over current max, until they all have 
+    // the same ID. The executors are advanced rarest first, and as soon as one
+    // overshoots, we start again from the rarest, so the frequent executors
+    // only ever skip to the candidates proposed by the rare ones.
     boolean doneAdvancing = false;
     while(!doneAdvancing) {
       doneAdvancing = true;
-      for(int i = 0; i < executors.length; i++) {
+      // never converge on a deleted document
+      max = deletedDocuments.nextAbsent(max);
+      for(int k = 0; k < advanceOrder.length; k++) {
+        int i = advanceOrder[k];
         if(nextDocIDs[i] < max) {
           // this needs to move forward to at least max
           nextDocIDs[i] = executors[i].nextDocument(max - 1);
@@ -97,12 +133,12 @@ public abstract class AbstractIntersectionQueryExecutor extends AbstractQueryExe
             // one executor has run out of documents -> we're done here!
             return latestDocument = -1;
           }
-          doneAdvancing = false;
         }
         if(nextDocIDs[i] > max) {
           max = nextDocIDs[i];
           //we need to move all others to the same value
           doneAdvancing = false;
+          break;
         }
       }
     }
@@ -112,6 +148,22 @@ public abstract class AbstractIntersectionQueryExecutor extends AbstractQueryExe
   }
   
   
+  /**
+   * An intersection cannot return more documents than its rarest 
+   * sub-executor.
+   */
+  @Override
+  public long getDocumentCountEstimate() throws IOException {
+    long estimate = -1;
+    for(QueryExecutor executor : executors) {
+      long subEstimate = executor.getDocumentCountEstimate();
+      if(subEstimate >= 0 && (estimate < 0 || subEstimate < estimate)) {
+        estimate = subEstimate;
+      }
+    }
+    return estimate;
+  }
+  
   public <T> T accept( final DocumentIteratorVisitor<T> visitor ) throws IOException {
     if ( ! visitor.visitPre( this ) ) return null;
     int n = executors.length;
@@ -126,6 +126,20 @@ public abstract class AbstractOverlapQuery implements QueryNode{
       if(closed) return null;
       return hitsOnCurrentDocument.isEmpty() ?  null : hitsOnCurrentDocument.remove(0);
     }
+    
+    /**
+     * The hits are found by {@link #nextDocument(long)}, which needs them to
+     * skip the documents without any overlaps, so the sub-hits are still 
+     * obtained as {@link Binding}s. They are copied to the buffer directly.
+     */
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed) return;
+      for(Binding aHit : hitsOnCurrentDocument) {
+        hits.add(aHit.getTermPosition(), aHit.getLength());
+      }
+      hitsOnCurrentDocument.clear();
+    }
   
     protected List<Binding> hitsOnCurrentDocument;
     
@@ -77,6 +77,41 @@ public abstract class AbstractQueryExecutor implements QueryExecutor {
     return engine;
   }
 
+  /**
+   * Default implementation, which obtains the hits from {@link #nextHit()}.
+   */
+  public void nextHits(HitBuffer hits) throws IOException {
+    Binding aHit = nextHit();
+    while(aHit != null) {
+      hits.add(aHit.getTermPosition(), aHit.getLength());
+      aHit = nextHit();
+    }
+  }
+
+  /**
+   * Default implementation, which does not provide a bound.
+   * @return always <code>-1</code>.
+   */
+  public long getMaxHitCount() throws IOException {
+    return -1;
+  }
+
+  /**
+   * Default implementation, which does not provide a bound.
+   * @return always <code>-1</code>.
+   */
+  public long getMaxHitCountBound() throws IOException {
+    return -1;
+  }
+
+  /**
+   * Default implementation, which does not provide an estimate.
+   * @return always <code>-1</code>.
+   */
+  public long getDocumentCountEstimate() throws IOException {
+    return -1;
+  }
+
   
   @Override
   public QueryNode getQueryNode() {
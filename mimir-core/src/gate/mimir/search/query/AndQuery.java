@@ -16,6 +16,8 @@ package gate.mimir.search.query;
 
 
 import gate.mimir.search.QueryEngine;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntHeapSemiIndirectPriorityQueue;
 import it.unimi.dsi.fastutil.objects.ObjectHeapSemiIndirectPriorityQueue;
 
 import java.io.IOException;
@@ -78,6 +80,38 @@ public class AndQuery implements QueryNode {
       return super.nextDocument(greaterThan);
     }
 
+    /**
+     * Each hit is a minimal interval starting with a different sub-hit, so the 
+     * total number of sub-hits is an upper bound. 
+     */
+    @Override
+    public long getMaxHitCount() throws IOException {
+      if(closed || latestDocument < 0) return 0;
+      long maxHits = 0;
+      for(QueryExecutor executor : executors) {
+        long subHits = executor.getMaxHitCount();
+        if(subHits < 0) return -1;
+        maxHits += subHits;
+      }
+      return maxHits;
+    }
+    
+    /**
+     * The same bound as {@link #getMaxHitCount()}, using the bounds of the 
+     * sub-executors for all the remaining documents.
+     */
+    @Override
+    public long getMaxHitCountBound() throws IOException {
+      if(closed || latestDocument == -1) return 0;
+      long maxHits = 0;
+      for(QueryExecutor executor : executors) {
+        long subHits = executor.getMaxHitCountBound();
+        if(subHits < 0) return -1;
+        maxHits += subHits;
+      }
+      return maxHits;
+    }
+
     /**
      * @throws IOException
      */
@@ -254,6 +288,150 @@ public class AndQuery implements QueryNode {
       }
     }
 
+    /**
+     * Finds the same hits as {@link #getHitsOnCurrentDocument()}, working on
+     * the term positions and lengths of the sub-hits instead of 
+     * {@link Binding}s, and adds them to the given buffer in the same order as
+     * {@link #nextHit()}.
+     */
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed || latestDocument < 0) return;
+      if(hitsOnCurrentDocument != null) {
+        // return the hits left over after calls to nextHit()
+        super.nextHits(hits);
+        return;
+      }
+      // nextHit() will not return any more hits on this document
+      hitsOnCurrentDocument = Collections.emptyList();
+      if(minimalSubHits == null) {
+        minimalSubHits = new HitBuffer();
+        subHitsEnd = new int[executors.length];
+        candidates = new int[executors.length];
+        candidatesQueue = new IntHeapSemiIndirectPriorityQueue(candidates,
+            new AbstractIntComparator() {
+              // the same order as the one used in getHitsOnCurrentDocument()
+              @Override
+              public int compare(int h1, int h2) {
+                int start1 = minimalSubHits.getTermPosition(h1);
+                int start2 = minimalSubHits.getTermPosition(h2);
+                if(start1 < start2) {
+                  return -1;
+                } else if(start1 == start2) {
+                  // note the inversion!
+                  return subHitEnd(h2) - subHitEnd(h1);
+                } else {
+                  return 1;
+                }
+              }
+            });
+      }
+      minimalSubHits.clear();
+      candidatesQueue.clear();
+      for(int i = 0; i < executors.length; i++) {
+        int subHitsStart = minimalSubHits.size();
+        executors[i].nextHits(minimalSubHits);
+        // filter all the non minimal intervals
+        int kept = subHitsStart;
+        for(int j = subHitsStart; j < minimalSubHits.size(); j++) {
+          int end = subHitEnd(j);
+          while(kept > subHitsStart && subHitEnd(kept - 1) >= end) kept--;
+          minimalSubHits.set(kept++, minimalSubHits.getTermPosition(j), minimalSubHits.getLength(j));
+        }
+        minimalSubHits.truncate(kept);
+        subHitsEnd[i] = kept;
+        if(kept == subHitsStart) {
+          // this should never happen
+          logger.warn("Malfunction in AND operator (or one of the sub-nodes):\n" +
+                  "No ouput sub-hits from " + nodes[i].toString() + "!");
+          return;
+        }
+      }
+      // the algorithm from getHitsOnCurrentDocument(), where each candidate
+      // is the index of a sub-hit in the buffer
+      int maxRight = Integer.MIN_VALUE;
+      for(int i = 0; i < executors.length; i++) {
+        candidates[i] = i == 0 ? 0 : subHitsEnd[i - 1];
+        if(subHitEnd(candidates[i]) > maxRight) {
+          maxRight = subHitEnd(candidates[i]);
+        }
+        candidatesQueue.enqueue(i);
+      }
+      bigwhile: while(true) {
+        int solutionLeft;
+        int solutionRight;
+        int first;
+        step1: while(true) {
+          first = candidatesQueue.first();
+          if(candidates[first] + 1 == subHitsEnd[first]) {
+            // no more inputs -> save current solution and exit
+            addSolution(hits, -1, -1);
+            break bigwhile;
+          } else {
+            // advance Queue
+            int oldTop = candidates[first];
+            int oldFirst = first;
+            candidates[first]++;
+            candidatesQueue.changed();
+            first = candidatesQueue.first();
+            if(minimalSubHits.getTermPosition(candidates[first]) < 
+                   minimalSubHits.getTermPosition(oldTop) || 
+               subHitEnd(candidates[oldFirst]) > maxRight) {
+              // cannot improve current solution any more
+              addSolution(hits, oldFirst, oldTop);
+              solutionLeft = minimalSubHits.getTermPosition(oldTop);
+              solutionRight = maxRight;
+              if(subHitEnd(candidates[first]) > maxRight) {
+                maxRight = subHitEnd(candidates[first]);
+              }
+              break step1;
+            }
+          }
+        }
+        // step 2 while c in Span(Q)
+        while(minimalSubHits.getTermPosition(candidates[first]) <= solutionLeft &&
+              subHitEnd(candidates[first]) >= solutionRight) {
+          if(candidates[first] + 1 == subHitsEnd[first]) {
+            // no more input hits -> we're done
+            break bigwhile;
+          } else {
+            candidates[first]++;
+            candidatesQueue.changed();
+            first = candidatesQueue.first();
+          }
+        }
+      }
+    }
+    
+    /**
+     * Gets the end (exclusive) of a sub-hit stored in {@link #minimalSubHits}.
+     */
+    protected int subHitEnd(int subHit) {
+      return minimalSubHits.getTermPosition(subHit) + minimalSubHits.getLength(subHit);
+    }
+    
+    /**
+     * Adds the span of the current candidates to a buffer, as a hit.
+     * @param hits the buffer.
+     * @param replacedExecutor the executor whose candidate is replaced by 
+     * <code>replacement</code>, or <code>-1</code>.
+     * @param replacement the sub-hit used instead of the candidate of 
+     * <code>replacedExecutor</code>.
+     */
+    protected void addSolution(HitBuffer hits, int replacedExecutor, 
+        int replacement) {
+      int start = Integer.MAX_VALUE;
+      int end = Integer.MIN_VALUE;
+      for(int i = 0; i < candidates.length; i++) {
+        int aSubHit = i == replacedExecutor ? replacement : candidates[i];
+        if(minimalSubHits.getTermPosition(aSubHit) < start) {
+          start = minimalSubHits.getTermPosition(aSubHit);
+        }
+        if(subHitEnd(aSubHit) > end) end = subHitEnd(aSubHit);
+      }
+      hits.add(start, end - start);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -321,6 +499,31 @@ public class AndQuery implements QueryNode {
      * of {@link Binding} values, one from each sub-query.
      */
     protected List<Binding[]> hitsOnCurrentDocument;
+    
+    /**
+     * The minimal sub-hits on the current document, used by 
+     * {@link #nextHits(HitBuffer)}. The sub-hits from each sub-executor are 
+     * stored after the ones from the previous sub-executor, and end at the 
+     * index stored in {@link #subHitsEnd}.
+     */
+    protected HitBuffer minimalSubHits;
+    
+    /**
+     * The end (exclusive) of the sub-hits from each sub-executor in 
+     * {@link #minimalSubHits}.
+     */
+    protected int[] subHitsEnd;
+    
+    /**
+     * The candidate solution used by {@link #nextHits(HitBuffer)}: the index
+     * in {@link #minimalSubHits} of one sub-hit from each sub-executor.
+     */
+    protected int[] candidates;
+    
+    /**
+     * The queue of sub-executors, ordered by their candidate sub-hits.
+     */
+    protected IntHeapSemiIndirectPriorityQueue candidatesQueue;
   }// public static class AndQueryExecutor
 
   /**
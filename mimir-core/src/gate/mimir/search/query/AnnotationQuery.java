@@ -19,7 +19,6 @@ import gate.mimir.Constraint;
 import gate.mimir.ConstraintType;
 import gate.mimir.SemanticAnnotationHelper;
 import gate.mimir.search.QueryEngine;
-import gate.mimir.search.terms.AnnotationTermsQuery;
 import gate.mimir.search.terms.TermsResultSet;
 import it.unimi.di.big.mg4j.index.Index;
 import it.unimi.di.big.mg4j.search.visitor.DocumentIteratorVisitor;
@@ -81,7 +80,7 @@ public class AnnotationQuery implements QueryNode {
       isInDocumentMode = (helper.getMode() == 
           SemanticAnnotationHelper.Mode.DOCUMENT);
       // get the mention URIs
-      TermsResultSet trs = new AnnotationTermsQuery(query).execute(engine);
+      TermsResultSet trs = engine.getAnnotationTermsCache().getTerms(query);
       if(trs.termStrings != null && trs.termStrings.length > 0 && 
          trs.termLengths != null) {
         QueryNode[] disjuncts = new QueryNode[trs.termStrings.length];
@@ -143,6 +142,41 @@ public class AnnotationQuery implements QueryNode {
       }
     }
    
+    @Override
+    public long getDocumentCountEstimate() throws IOException {
+      return underlyingExecutor == null ? 0 : 
+          underlyingExecutor.getDocumentCountEstimate();
+    }
+    
+    /**
+     * There is one hit for each hit of the underlying executor (in document 
+     * mode, each one covers the whole document).
+     */
+    @Override
+    public long getMaxHitCount() throws IOException {
+      if(closed || latestDocument < 0) return 0;
+      return underlyingExecutor.getMaxHitCount();
+    }
+    
+    @Override
+    public long getMaxHitCountBound() throws IOException {
+      if(closed || latestDocument == -1) return 0;
+      return underlyingExecutor.getMaxHitCountBound();
+    }
+   
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed || latestDocument == -1) return;
+      int first = hits.size();
+      underlyingExecutor.nextHits(hits);
+      if(isInDocumentMode && hits.size() > first) {
+        int documentSize = engine.getIndex().getDocumentSize(latestDocument);
+        for(int i = first; i < hits.size(); i++) {
+          hits.set(i, 0, documentSize);
+        }
+      }
+    }
+   
     @Override
     public ReferenceSet<Index> indices() {
       if(underlyingExecutor != null) {
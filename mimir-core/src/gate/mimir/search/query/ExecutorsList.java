@@ -58,6 +58,8 @@ public class ExecutorsList {
     Arrays.fill(latestDocuments, EXECUTOR_NOT_STARTED);
     hitsOnLatestDocument = new Binding[nodes.length][];
     hitsReturned = new int[nodes.length];
+    maxHitCountBounds = new long[nodes.length];
+    Arrays.fill(maxHitCountBounds, BOUND_NOT_CALCULATED);
     
     executorsOpened = 0;
     executorsClosed = 0;
@@ -151,19 +153,9 @@ public class ExecutorsList {
       return null;
     }
     
-    if(hitsReturned[nodeId] == 0) {
+    if(hitsOnLatestDocument[nodeId] == null) {
       // we're asking for the first hit on this document: build the cache
-      QueryExecutor executor = getExecutor(nodeId);
-      if(executor.getLatestDocument() < 0) {
-        // newly (re)created executor, so we need to skip ahead
-        long oldLatest = latestDocuments[nodeId];
-        latestDocuments[nodeId] = executor.nextDocument(latestDocuments[nodeId] - 1);
-        if(oldLatest != latestDocuments[nodeId]){
-          throw new RuntimeException("Malfunction in " + 
-                  this.getClass().getName() + 
-                  ": executor scrolled to a different document after reload!");
-        }      
-      }
+      QueryExecutor executor = getExecutorOnLatestDocument(nodeId);
       List<Binding> hits = new LinkedList<Binding>();
       Binding aHit = executor.nextHit();
       while(aHit != null) {
@@ -183,6 +175,90 @@ public class ExecutorsList {
     return aHhit;
   }
   
+  /**
+   * Adds the hits of the given executor on its latest document to a buffer 
+   * (see {@link QueryExecutor#nextHits(HitBuffer)}). The hits are not cached,
+   * so they cannot also be obtained from {@link #nextHit(int)}, except for 
+   * the ones left over if {@link #nextHit(int)} was called first.
+   * @param nodeId
+   * @param hits the buffer to which the hits are added.
+   * @throws IOException
+   */
+  public void nextHits(int nodeId, HitBuffer hits) throws IOException {
+    if(latestDocuments[nodeId] == -1) return;
+    if(hitsOnLatestDocument[nodeId] == null) {
+      getExecutorOnLatestDocument(nodeId).nextHits(hits);
+      hitsOnLatestDocument[nodeId] = NO_HITS;
+    } else {
+      Binding[] cachedHits = hitsOnLatestDocument[nodeId];
+      for(; hitsReturned[nodeId] < cachedHits.length; hitsReturned[nodeId]++) {
+        Binding aHit = cachedHits[hitsReturned[nodeId]];
+        hits.add(aHit.getTermPosition(), aHit.getLength());
+      }
+    }
+  }
+  
+  /**
+   * Gets the executor for the given node, making sure it is positioned on 
+   * the latest document (which is needed if it has been re-created).
+   * @param nodeId
+   * @return
+   * @throws IOException
+   */
+  protected QueryExecutor getExecutorOnLatestDocument(int nodeId) 
+      throws IOException {
+    QueryExecutor executor = getExecutor(nodeId);
+    if(executor.getLatestDocument() < 0) {
+      // newly (re)created executor, so we need to skip ahead
+      long oldLatest = latestDocuments[nodeId];
+      latestDocuments[nodeId] = executor.nextDocument(latestDocuments[nodeId] - 1);
+      if(oldLatest != latestDocuments[nodeId]){
+        throw new RuntimeException("Malfunction in " + 
+                this.getClass().getName() + 
+                ": executor scrolled to a different document after reload!");
+      }      
+    }
+    return executor;
+  }
+  
+  /**
+   * Gets an upper bound for the number of hits of the given executor on its 
+   * latest document (see {@link QueryExecutor#getMaxHitCount()}).
+   * @param nodeId
+   * @return the maximum number of hits, or <code>-1</code> if no bound is 
+   * available (e.g. because the executor has been closed to save resources).
+   * @throws IOException
+   */
+  public long getMaxHitCount(int nodeId) throws IOException {
+    if(latestDocuments[nodeId] == -1) return 0;
+    if(hitsOnLatestDocument[nodeId] != null) {
+      return hitsOnLatestDocument[nodeId].length;
+    }
+    QueryExecutor executor = executors[nodeId];
+    if(executor == null || 
+       executor.getLatestDocument() != latestDocuments[nodeId]) return -1;
+    return executor.getMaxHitCount();
+  }
+  
+  /**
+   * Gets an upper bound for the number of hits of the given executor on any
+   * of its remaining documents (see 
+   * {@link QueryExecutor#getMaxHitCountBound()}). The bound is calculated 
+   * once, so it stays available after the executor is closed to save 
+   * resources.
+   * @param nodeId
+   * @return the maximum number of hits, or <code>-1</code> if no bound is 
+   * available.
+   * @throws IOException
+   */
+  public long getMaxHitCountBound(int nodeId) throws IOException {
+    if(latestDocuments[nodeId] == -1) return 0;
+    if(maxHitCountBounds[nodeId] == BOUND_NOT_CALCULATED) {
+      maxHitCountBounds[nodeId] = getExecutor(nodeId).getMaxHitCountBound();
+    }
+    return maxHitCountBounds[nodeId];
+  }
+  
   public long latestDocument(int nodeId){
     return latestDocuments[nodeId];
   }
@@ -227,6 +303,18 @@ public class ExecutorsList {
    */
   public static final int EXECUTOR_NOT_STARTED = -2;
   
+  /**
+   * Value stored in {@link #maxHitCountBounds} for the executors whose bound
+   * was not requested yet.
+   */
+  protected static final long BOUND_NOT_CALCULATED = -2;
+  
+  /**
+   * Marks the executors whose hits on the latest document have all been 
+   * returned by {@link #nextHits(int, HitBuffer)}.
+   */
+  protected static final Binding[] NO_HITS = new Binding[0];
+  
   /**
    * The maximum number of executors that should be kept in memory at any one 
    * time.
@@ -273,6 +361,12 @@ public class ExecutorsList {
    */
   protected Binding[][] hitsOnLatestDocument;
   
+  /**
+   * The bounds returned by {@link #getMaxHitCountBound(int)}, for each 
+   * executor.
+   */
+  protected long[] maxHitCountBounds;
+  
   
   /**
    * An array contining the executors (some position may be null, if the 
@@ -111,6 +111,38 @@ public class GapQuery implements QueryNode {
       }
     }
     
+    @Override
+    public long getDocumentCountEstimate() throws IOException {
+      return wrappedExecutor.getDocumentCountEstimate();
+    }
+    
+    /**
+     * The gap only changes the length of the hits, so the wrapped executor 
+     * has the same number of hits.
+     */
+    @Override
+    public long getMaxHitCount() throws IOException {
+      if(closed) return 0;
+      return wrappedExecutor.getMaxHitCount();
+    }
+    
+    @Override
+    public long getMaxHitCountBound() throws IOException {
+      if(closed) return 0;
+      return wrappedExecutor.getMaxHitCountBound();
+    }
+    
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed) return;
+      int first = hits.size();
+      wrappedExecutor.nextHits(hits);
+      for(int i = first; i < hits.size(); i++) {
+        hits.set(i, hits.getTermPosition(i), 
+            hits.getLength(i) + gapQuery.getGap());
+      }
+    }
+    
     @Override
     public ReferenceSet<Index> indices() {
       return wrappedExecutor.indices();
@@ -0,0 +1,151 @@
+/*
+ *  HitBuffer.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search.query;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+
+/**
+ * A reusable buffer holding the hits on one document, as pairs of
+ * (term position, length) values. This is used to enumerate hits without
+ * creating a {@link Binding} object for each one (see
+ * {@link QueryExecutor#nextHits(HitBuffer)}). The storage grows as needed
+ * and is kept when the buffer is cleared, so the same buffer should be used for
+ * all the documents.
+ */
+public class HitBuffer {
+
+  /**
+   * The term positions of the hits.
+   */
+  protected int[] positions;
+
+  /**
+   * The lengths of the hits.
+   */
+  protected int[] lengths;
+
+  /**
+   * The number of hits in the buffer.
+   */
+  protected int size;
+
+  public HitBuffer() {
+    positions = IntArrays.EMPTY_ARRAY;
+    lengths = IntArrays.EMPTY_ARRAY;
+    size = 0;
+  }
+
+  /**
+   * Removes all the hits from this buffer.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Adds a new hit at the end of this buffer.
+   * @param termPosition the term position where the hit starts.
+   * @param length the length (number of terms) of the hit.
+   */
+  public void add(int termPosition, int length) {
+    if(size == positions.length) {
+      positions = IntArrays.grow(positions, size + 1);
+      lengths = IntArrays.grow(lengths, size + 1);
+    }
+    positions[size] = termPosition;
+    lengths[size] = length;
+    size++;
+  }
+
+  /**
+   * Replaces a hit in this buffer.
+   * @param index the index of the hit in this buffer.
+   * @param termPosition the new term position.
+   * @param length the new length.
+   */
+  public void set(int index, int termPosition, int length) {
+    if(index >= size) throw new IndexOutOfBoundsException("Index " + index + 
+        " is not smaller than the buffer size (" + size + ")");
+    positions[index] = termPosition;
+    lengths[index] = length;
+  }
+
+  /**
+   * Removes the hits at the end of this buffer, keeping only the first ones.
+   * @param newSize the number of hits to keep.
+   */
+  public void truncate(int newSize) {
+    if(newSize > size) throw new IndexOutOfBoundsException("New size " + 
+        newSize + " is larger than the buffer size (" + size + ")");
+    size = newSize;
+  }
+
+  /**
+   * Sorts a range of hits in this buffer by term position, and then by 
+   * length (the same order as {@link Binding#compareTo(Binding)} for hits on 
+   * the same document).
+   * @param from the index of the first hit to be sorted (inclusive).
+   * @param to the index of the last hit to be sorted (exclusive).
+   */
+  public void sort(int from, int to) {
+    Arrays.quickSort(from, to, new AbstractIntComparator() {
+      @Override
+      public int compare(int one, int other) {
+        if(positions[one] != positions[other]) {
+          return positions[one] < positions[other] ? -1 : 1;
+        }
+        return lengths[one] < lengths[other] ? -1 : 
+            (lengths[one] == lengths[other] ? 0 : 1);
+      }
+    }, new Swapper() {
+      @Override
+      public void swap(int one, int other) {
+        int temp = positions[one];
+        positions[one] = positions[other];
+        positions[other] = temp;
+        temp = lengths[one];
+        lengths[one] = lengths[other];
+        lengths[other] = temp;
+      }
+    });
+  }
+
+  /**
+   * Gets the number of hits in this buffer.
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the term position for a hit.
+   * @param index the index of the hit in this buffer.
+   * @return
+   */
+  public int getTermPosition(int index) {
+    return positions[index];
+  }
+
+  /**
+   * Gets the length for a hit.
+   * @param index the index of the hit in this buffer.
+   * @return
+   */
+  public int getLength(int index) {
+    return lengths[index];
+  }
+}
@@ -102,6 +102,21 @@ public class MinusQuery implements QueryNode {
       if(closed) return null;
       return hitsOnCurrentDocument.isEmpty() ?  null : hitsOnCurrentDocument.remove(0);
     }
+    
+    /**
+     * The hits are found by {@link #nextDocument(long)}, which needs them to
+     * skip the documents where all the hits are vetoed, so the sub-hits are 
+     * still obtained as {@link Binding}s. They are copied to the buffer 
+     * directly.
+     */
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed) return;
+      for(Binding aHit : hitsOnCurrentDocument) {
+        hits.add(aHit.getTermPosition(), aHit.getLength());
+      }
+      hitsOnCurrentDocument.clear();
+    }
 
     @Override
     public ReferenceSet<Index> indices() {
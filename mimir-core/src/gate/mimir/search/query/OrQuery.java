@@ -210,6 +210,54 @@ public class OrQuery implements QueryNode {
       }
     }
 
+    /**
+     * A disjunction cannot return more documents than all its sub-executors 
+     * together.
+     */
+    @Override
+    public long getDocumentCountEstimate() throws IOException {
+      if(executors == null) return 0;
+      long estimate = 0;
+      for(int i = 0; i < executors.size(); i++) {
+        long subEstimate = executors.getExecutor(i).getDocumentCountEstimate();
+        if(subEstimate < 0) return -1;
+        estimate += subEstimate;
+      }
+      return estimate;
+    }
+
+    /**
+     * The hits on the current document are all the hits of the sub-executors
+     * positioned on it, so the bound is the sum of their bounds.
+     */
+    @Override
+    public long getMaxHitCount() throws IOException {
+      if(closed || latestDocument < 0) return 0;
+      long maxHits = 0;
+      for(int i = 0; i < frontSize; i++) {
+        long subHits = executors.getMaxHitCount(front[i]);
+        if(subHits < 0) return -1;
+        maxHits += subHits;
+      }
+      return maxHits;
+    }
+    
+    /**
+     * Any remaining document may contain hits from all the sub-executors that
+     * are not exhausted, so the bound is the sum of their bounds.
+     */
+    @Override
+    public long getMaxHitCountBound() throws IOException {
+      if(closed || latestDocument == -1) return 0;
+      long maxHits = 0;
+      for(int i = 0; i < executors.size(); i++) {
+        long subHits = executors.getMaxHitCountBound(i);
+        if(subHits < 0) return -1;
+        maxHits += subHits;
+      }
+      return maxHits;
+    }
+
     /* (non-Javadoc)
      * @see gate.mimir.search.query.QueryExecutor#nextHit()
      */
@@ -256,6 +304,26 @@ public class OrQuery implements QueryNode {
       }
     }
     
+    /**
+     * Adds the hits of all the sub-executors on the current document, sorted 
+     * in the same order as {@link #nextHit()}.
+     */
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed || latestDocument < 0) return;
+      if(hitsObtained) {
+        // return the hits left over after calls to nextHit()
+        super.nextHits(hits);
+        return;
+      }
+      int first = hits.size();
+      for(int i = 0; i < frontSize; i++) {
+        executors.nextHits(front[i], hits);
+      }
+      hits.sort(first, hits.size());
+      hitsObtained = true;
+    }
+    
     @Override
     public ReferenceSet<Index> indices() {
       if(indices == null) {
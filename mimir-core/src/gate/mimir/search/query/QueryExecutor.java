@@ -69,6 +69,60 @@ public interface QueryExecutor extends DocumentIterator{
    */
   public Binding nextHit() throws IOException;
   
+  /**
+   * Adds all the remaining hits on the current document to the given buffer,
+   * in the order in which {@link #nextHit()} would return them. This has the 
+   * same effect as calling {@link #nextHit()} until it returns 
+   * <code>null</code>, but it avoids creating a {@link Binding} object for
+   * each hit (executors that need the hits to decide whether a document 
+   * matches, such as MINUS, WITHIN, CONTAINS and repeats queries, still 
+   * obtain the hits of their sub-queries as {@link Binding}s). The 
+   * sub-bindings are not available through this method, so 
+   * callers that require them (see 
+   * {@link QueryEngine#isSubBindingsEnabled()}) must use {@link #nextHit()}
+   * instead.
+   * @param hits the buffer to which the hits are added. It is not cleared 
+   * before the new hits are added.
+   * @throws IOException if the index files cannot be accessed.
+   */
+  public void nextHits(HitBuffer hits) throws IOException;
+  
+  /**
+   * Gets an upper bound for the number of hits in the document last returned 
+   * by {@link #nextDocument(long)}, calculated without enumerating the hits 
+   * (e.g. from the term counts stored in the index). Scorers use this value to
+   * skip the documents that cannot score highly enough to be of interest.
+   * This method must be called before the first call to {@link #nextHit()} on
+   * the current document. 
+   * @return the maximum number of hits, or <code>-1</code> if no bound can be 
+   * calculated cheaply.
+   * @throws IOException if the index files cannot be accessed.
+   */
+  public long getMaxHitCount() throws IOException;
+  
+  /**
+   * Gets an upper bound for the number of hits in any of the documents that 
+   * have not been returned yet by {@link #nextDocument(long)} (calculated from
+   * the index statistics, e.g. the largest number of occurrences of a term in
+   * any one document). Rankers use this value to decide when none of the 
+   * remaining documents can make it into the top results.
+   * @return the maximum number of hits, or <code>-1</code> if no bound can be
+   * calculated cheaply.
+   * @throws IOException if the index files cannot be accessed.
+   */
+  public long getMaxHitCountBound() throws IOException;
+  
+  /**
+   * Gets an upper bound for the total number of documents this executor can
+   * return, calculated from the index statistics (e.g. the frequencies of 
+   * the terms being searched). This is used to decide which sub-executor 
+   * should drive an intersection. 
+   * @return the maximum number of documents, or <code>-1</code> if no 
+   * estimate is available.
+   * @throws IOException if the index files cannot be accessed.
+   */
+  public long getDocumentCountEstimate() throws IOException;
+  
   
   /**
    * Closes this {@link QueryExecutor} and releases all resources used.
@@ -256,6 +256,23 @@ public class RepeatsQuery implements QueryNode {
       }
     }
 
+    /**
+     * The hits are found by {@link #nextDocument(long)}, which needs them to
+     * skip the documents without enough consecutive repeats, so the sub-hits
+     * are still obtained as {@link Binding}s. The spans of the hits are added
+     * to the buffer without creating a new {@link Binding} for each.
+     */
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed) return;
+      for(Binding[] hitSlots : hitsOnCurrentDocument) {
+        Binding last = hitSlots[hitSlots.length - 1];
+        hits.add(hitSlots[0].getTermPosition(), last.getTermPosition() + 
+            last.getLength() - hitSlots[0].getTermPosition());
+      }
+      hitsOnCurrentDocument.clear();
+    }
+
     @Override
     public ReferenceSet<Index> indices() {
       return wrappedExecutor.indices();
@@ -16,6 +16,7 @@ package gate.mimir.search.query;
 
 
 import gate.mimir.search.QueryEngine;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -105,6 +106,31 @@ public class SequenceQuery implements QueryNode {
       //initialise the internal data
       hitsOnCurrentDocument = new LinkedList<Binding[]>();
       candidateHits = new List[executors.length];
+      resultHits = new HitBuffer();
+      subHits = new HitBuffer[executors.length];
+      subHitMarks = new int[executors.length][];
+      for(int i = 0; i < executors.length; i++) {
+        subHits[i] = new HitBuffer();
+        subHitMarks[i] = IntArrays.EMPTY_ARRAY;
+      }
+      // check if this is an exact phrase: only terms, and no gaps
+      boolean phrase = executors.length == query.nodes.length;
+      for(int i = 0; phrase && i < query.nodes.length; i++) {
+        phrase = query.nodes[i] instanceof TermQuery && 
+            (i == query.gaps.length || 
+             (query.gaps[i].min == 0 && query.gaps[i].max == 0));
+      }
+      if(phrase) {
+        // each term must start where the previous one ends
+        phraseOffsets = new int[executors.length];
+        phrasePointers = new int[executors.length];
+        int offset = 0;
+        for(int i = 0; i < query.nodes.length; i++) {
+          phraseOffsets[i] = offset;
+          offset += ((TermQuery)query.nodes[i]).getLength();
+        }
+        phraseLength = offset;
+      }
     }
 
 
@@ -124,6 +150,54 @@ public class SequenceQuery implements QueryNode {
      */
     protected List<Binding>[] candidateHits;
     
+    /**
+     * Are sub-bindings being produced for the current document? If not, the
+     * hits are calculated without creating {@link Binding} objects, and are 
+     * stored in {@link #resultHits} instead of {@link #hitsOnCurrentDocument}.
+     */
+    protected boolean subBindings;
+    
+    /**
+     * The hits on the current document, when sub-bindings are not produced.
+     */
+    protected HitBuffer resultHits;
+    
+    /**
+     * The number of hits from {@link #resultHits} already returned.
+     */
+    protected int resultHitsReturned;
+    
+    /**
+     * The hits on the current document from each of the {@link #executors}, 
+     * when sub-bindings are not produced. The buffers are reused for all 
+     * documents.
+     */
+    protected HitBuffer[] subHits;
+    
+    /**
+     * If the query is an exact phrase (a sequence of terms with no gaps), the
+     * offset of each term from the start of the phrase; <code>null</code> 
+     * otherwise.
+     */
+    protected int[] phraseOffsets;
+    
+    /**
+     * The length of the exact phrase.
+     */
+    protected int phraseLength;
+    
+    /**
+     * For exact phrases, the current index into each of the {@link #subHits}.
+     */
+    protected int[] phrasePointers;
+    
+    /**
+     * The marks for the hits in {@link #subHits} (see 
+     * {@link #computeMark(int, int, HitBuffer, int[])}). The arrays are reused
+     * for all documents, so they may be longer than the number of hits.
+     */
+    protected int[][] subHitMarks;
+    
     
     
     /* (non-Javadoc)
@@ -133,6 +207,9 @@ public class SequenceQuery implements QueryNode {
       super.close();
       //release all pointers
       hitsOnCurrentDocument = null;
+      resultHits = null;
+      subHits = null;
+      subHitMarks = null;
       query = null;
     }
 
@@ -145,7 +222,11 @@ public class SequenceQuery implements QueryNode {
       
       //we've just been asked to change documents -> old hits not current any more
       hitsOnCurrentDocument.clear();
-      while(hitsOnCurrentDocument.isEmpty()){
+      resultHits.clear();
+      resultHitsReturned = 0;
+      subBindings = engine.isSubBindingsEnabled();
+      while(subBindings ? hitsOnCurrentDocument.isEmpty() : 
+                          resultHits.size() == 0){
         long nextDocFromSuper = super.nextDocument(greaterThan);
         if(nextDocFromSuper < 0){
           //no more documents
@@ -153,12 +234,167 @@ public class SequenceQuery implements QueryNode {
         }else{
           //We have a common document from super.
           //Now confirm if there is a match in that document.
-          getHitsOnCurrentDocumentv3();          
+          if(subBindings) getHitsOnCurrentDocumentv3();
+          else if(phraseOffsets != null) getPhraseHitsOnCurrentDocument();
+          else getHitsOnCurrentDocumentv4();
         }
       }    
       return latestDocument;
     }
     
+    /**
+     * Finds all the matches on the current document, using the same algorithm
+     * as {@link #getHitsOnCurrentDocumentv3()}, but without creating any
+     * {@link Binding} objects: the hits are stored in {@link #resultHits}, 
+     * and all the intermediate data is kept in reusable arrays. This is used 
+     * when sub-bindings are not required.
+     * 
+     * @throws IOException
+     */
+    protected void getHitsOnCurrentDocumentv4() throws IOException{
+      for(int i = 0; i < executors.length; i++){
+        subHits[i].clear();
+        executors[i].nextHits(subHits[i]);
+        subHitMarks[i] = IntArrays.ensureCapacity(subHitMarks[i], 
+            subHits[i].size());
+      }
+      //all the hits in the last slot are valid
+      int lastSlot = executors.length - 1;
+      Arrays.fill(subHitMarks[lastSlot], 0, subHits[lastSlot].size(), 0);
+      for(int currentSlot = lastSlot - 1; currentSlot >= 0; currentSlot--){
+        HitBuffer hits = subHits[currentSlot];
+        Gap gap = query.gaps[currentSlot];
+        for(int i = 0 ; i < hits.size(); i++ ){
+          int end = hits.getTermPosition(i) + hits.getLength(i);
+          subHitMarks[currentSlot][i] = computeMark(end + gap.min, 
+              end + gap.max, subHits[currentSlot + 1], 
+              subHitMarks[currentSlot + 1]);
+        }
+      }
+      //we collect results from left to right
+      resultHits.clear();
+      resultHitsReturned = 0;
+      for(int i = 0; i < subHits[0].size(); i++){
+        if(subHitMarks[0][i] >= 0){
+          extractHits(subHits[0].getTermPosition(i), 0, i);
+        }
+      }
+    }
+    
+    /**
+     * Finds all the matches on the current document, for exact phrases. The 
+     * term positions (read directly from the index by the term executors) 
+     * are merged, looking for places where each term occurs at its offset 
+     * from the start of the phrase. As each term has at most one occurrence 
+     * at any position, there is exactly one result for each such place, so
+     * this produces the same hits as {@link #getHitsOnCurrentDocumentv4()}.
+     * 
+     * @throws IOException
+     */
+    protected void getPhraseHitsOnCurrentDocument() throws IOException{
+      for(int i = 0; i < executors.length; i++){
+        subHits[i].clear();
+        executors[i].nextHits(subHits[i]);
+        phrasePointers[i] = 0;
+      }
+      resultHits.clear();
+      resultHitsReturned = 0;
+      HitBuffer firstHits = subHits[0];
+      candidates: for(int j = 0; j < firstHits.size(); j++){
+        int start = firstHits.getTermPosition(j);
+        for(int i = 1; i < executors.length; i++){
+          int target = start + phraseOffsets[i];
+          HitBuffer hits = subHits[i];
+          int pointer = phrasePointers[i];
+          while(pointer < hits.size() && hits.getTermPosition(pointer) < target){
+            pointer++;
+          }
+          phrasePointers[i] = pointer;
+          // this term has no more occurrences: no more results
+          if(pointer == hits.size()) break candidates;
+          if(hits.getTermPosition(pointer) != target) continue candidates;
+        }
+        resultHits.add(start, phraseLength);
+      }
+    }
+    
+    /**
+     * Recursively extracts the hits into {@link #resultHits}. This does the 
+     * same job as 
+     * {@link #extractHitsRec(SequenceQuery, List, Binding[][], int[][], int, int, Binding[])},
+     * but only keeps the start and end of each result.
+     * @param start the term position where the hit being built starts.
+     * @param currentSlot which slot to fill at this stage.
+     * @param currentHit for the current slot, which candidate hit to use.
+     */
+    protected void extractHits(int start, int currentSlot, int currentHit){
+      HitBuffer hits = subHits[currentSlot];
+      int end = hits.getTermPosition(currentHit) + hits.getLength(currentHit);
+      if(currentSlot == subHits.length - 1){
+        //we have a full result
+        resultHits.add(start, end - start);
+      }else{
+        int[] marks = subHitMarks[currentSlot];
+        HitBuffer nextHits = subHits[currentSlot + 1];
+        int[] nextMarks = subHitMarks[currentSlot + 1];
+        //recursive call for the first next candidate
+        extractHits(start, currentSlot + 1, marks[currentHit]);
+        //find all other candidates for next slot
+        for(int i = marks[currentHit] + 1; i < nextHits.size(); i++){
+          if(query.gaps[currentSlot].check(end - 1, 
+              nextHits.getTermPosition(i)) == 0){
+            if(nextMarks[i] >= 0){
+              extractHits(start, currentSlot + 1, i);
+            }
+          }else{
+            //no more next candidates
+            break;
+          }
+        }
+      }
+    }
+    
+    /**
+     * Version of {@link #computeMark(int, int, Binding[], int[])} working on 
+     * a {@link HitBuffer}.
+     */
+    protected static int computeMark(int minStart, int maxStart, 
+            HitBuffer hits, int[] marks){
+      //binary search for the first valid next hit
+      int low = 0;
+      int high = hits.size() -1;
+      while(low <= high){
+        int mid = (low + high) >>> 1;
+        if(hits.getTermPosition(mid) < minStart){
+          low = mid + 1;
+        }else if(hits.getTermPosition(mid) > maxStart){
+          high = mid - 1;
+        }else{
+          //scroll up to find the first good hit
+          int lastValidMark = -1;
+          int newMid = mid;
+          while(newMid >= 0 && hits.getTermPosition(newMid) >= minStart){
+            if(marks[newMid] >= 0) lastValidMark = newMid;
+            newMid--;
+          }
+          //if not found, scroll down while the starting position is still valid
+          if(lastValidMark < 0){
+            newMid = mid + 1;
+            while(newMid < hits.size() && 
+                  hits.getTermPosition(newMid) <= maxStart){
+              if(marks[newMid] >= 0){
+                lastValidMark = newMid;
+                break;
+              }
+              newMid++;
+            } 
+          }
+          return lastValidMark;
+        }
+      }
+      return -1;
+    }
+    
     protected void getHitsOnCurrentDocumentv3() throws IOException{
       //For each candidate hit, we keep either:
       //> the index of the candidate in the next list that forms a chain, or
@@ -503,6 +739,13 @@ public class SequenceQuery implements QueryNode {
      */
     public Binding nextHit() throws IOException {
       if(closed) return null;
+      if(!subBindings) {
+        if(resultHitsReturned >= resultHits.size()) return null;
+        int hitIdx = resultHitsReturned++;
+        return new Binding(query, latestDocument, 
+            resultHits.getTermPosition(hitIdx), resultHits.getLength(hitIdx),
+            null);
+      }
       if(hitsOnCurrentDocument.isEmpty()) return null;
       else{
         //get the first hit, and construct the corresponding bindings array for 
@@ -539,6 +782,56 @@ public class SequenceQuery implements QueryNode {
                 hitSlots[0].getTermPosition(), length, containedBindings);
       }
     }
+    
+    /**
+     * The hits on the current document are found by 
+     * {@link #nextDocument(long)}, which has to check that there is at least
+     * one, so the number of hits not returned yet is known exactly.
+     */
+    @Override
+    public long getMaxHitCount() throws IOException {
+      if(closed || latestDocument < 0) return 0;
+      return subBindings ? hitsOnCurrentDocument.size() : 
+          resultHits.size() - resultHitsReturned;
+    }
+    
+    /**
+     * For exact phrases, each hit uses a different occurrence of every term, 
+     * so the bound is the smallest of the term bounds. Otherwise, each hit is 
+     * a different combination of sub-hits, so the bound is the product of the
+     * sub-executor bounds.
+     */
+    @Override
+    public long getMaxHitCountBound() throws IOException {
+      if(closed || latestDocument == -1) return 0;
+      long maxHits = phraseOffsets != null ? Long.MAX_VALUE : 1;
+      for(QueryExecutor executor : executors) {
+        long subHits = executor.getMaxHitCountBound();
+        if(subHits < 0) return -1;
+        if(phraseOffsets != null) {
+          maxHits = Math.min(maxHits, subHits);
+        } else if(subHits > 0 && maxHits > Long.MAX_VALUE / subHits) {
+          // too large to be of any use
+          return -1;
+        } else {
+          maxHits *= subHits;
+        }
+      }
+      return maxHits;
+    }
+    
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed) return;
+      if(subBindings) {
+        super.nextHits(hits);
+      } else {
+        for(; resultHitsReturned < resultHits.size(); resultHitsReturned++) {
+          hits.add(resultHits.getTermPosition(resultHitsReturned), 
+              resultHits.getLength(resultHitsReturned));
+        }
+      }
+    }
   }
   
   /**
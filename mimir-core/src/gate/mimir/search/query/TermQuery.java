@@ -17,6 +17,7 @@ package gate.mimir.search.query;
 
 import gate.mimir.IndexConfig;
 import gate.mimir.index.AtomicIndex;
+import gate.mimir.index.DeletedDocumentSet;
 import gate.mimir.search.IndexReaderPool;
 import gate.mimir.search.QueryEngine;
 import it.unimi.dsi.fastutil.ints.IntIterator;
@@ -100,10 +101,27 @@ public class TermQuery implements QueryNode {
     private IndexIterator indexIterator;
     
     /**
-     * The positions iterator for the latest document.
+     * The positions iterator for the latest document. This is only created 
+     * when the first hit is requested.
      */
     private IntIterator positionsIterator;
     
+    /**
+     * The documents marked as deleted in the index, which are skipped. 
+     */
+    private DeletedDocumentSet deletedDocuments;
+    
+    /**
+     * The query term, as processed by the term processor of the index.
+     */
+    private String processedTerm;
+    
+    /**
+     * The largest number of occurrences of the term in any one document, or 
+     * <code>-1</code> if not calculated yet.
+     */
+    private long termMaxCount = -1;
+    
     
     /**
      * @param node
@@ -114,6 +132,7 @@ public class TermQuery implements QueryNode {
       super(engine, node);
       this.query = node;
       atomicIndex = query.getIndex(engine);
+      deletedDocuments = engine.getIndex().getDeletedDocuments();
 
       if(atomicIndex == null) throw new IllegalArgumentException(
               "No index provided for field " + node.getIndexName() + "!");
@@ -127,11 +146,13 @@ public class TermQuery implements QueryNode {
           MutableString mutableString = new MutableString(query.getTerm());
           atomicIndex.getIndex().termProcessor.processTerm(mutableString);
           this.indexIterator.term(mutableString);
+          processedTerm = mutableString.toString();
         } else {
           //use the term processor for the query term
           MutableString mutableString = new MutableString(query.getTerm());
           atomicIndex.getIndex().termProcessor.processTerm(mutableString);
-          this.indexIterator = indexReader.documents(mutableString.toString());        
+          processedTerm = mutableString.toString();
+          this.indexIterator = indexReader.documents(processedTerm);        
         }        
       } else {
         // the atomic index is empty: we have exhausted the search already
@@ -159,11 +180,16 @@ public class TermQuery implements QueryNode {
         //so we just return the next document
         latestDocument = indexIterator.nextDocument();
       }
+      // leap over any deleted documents, without reading their positions
+      while(latestDocument != DocumentIterator.END_OF_LIST && 
+          deletedDocuments.contains(latestDocument)) {
+        latestDocument = indexIterator.skipTo(
+            deletedDocuments.nextAbsent(latestDocument));
+      }
+      positionsIterator = null;
       if(latestDocument == DocumentIterator.END_OF_LIST){
         //no more documents available
         latestDocument = -1;
-      } else {
-        positionsIterator = IndexIterators.positionIterator(indexIterator);
       }
       return latestDocument;
     }
@@ -172,18 +198,65 @@ public class TermQuery implements QueryNode {
      * @see gate.mimir.search.query.QueryExecutor#nextHit(java.util.Map)
      */
     public Binding nextHit() throws IOException{
-      if(closed) return null;
+      // no more documents (or none yet): there is no position iterator
+      if(closed || latestDocument < 0) return null;
       if(positionsIterator == null) positionsIterator = 
           IndexIterators.positionIterator(indexIterator);
-      if(latestDocument >= 0 && positionsIterator.hasNext()){
+      if(positionsIterator.hasNext()){
         int position = positionsIterator.nextInt();
         return new Binding(query, latestDocument, position, query.length, null);
       }else{
-        //no more positions, or no more documents
+        //no more positions
         return null;
       }
     }
 
+    @Override
+    public void nextHits(HitBuffer hits) throws IOException {
+      if(closed || latestDocument < 0) return;
+      if(positionsIterator == null) positionsIterator = 
+          IndexIterators.positionIterator(indexIterator);
+      while(positionsIterator.hasNext()) {
+        hits.add(positionsIterator.nextInt(), query.length);
+      }
+    }
+
+    /**
+     * The estimate is the frequency of the term (the number of documents in 
+     * which it occurs), which is stored in the index.
+     */
+    @Override
+    public long getDocumentCountEstimate() throws IOException {
+      return indexIterator == null ? 0 : indexIterator.frequency();
+    }
+
+    /**
+     * Each occurrence of the term is a hit, so the term count for the current 
+     * document (which is read without decoding the positions) is the exact 
+     * number of hits.
+     */
+    @Override
+    public long getMaxHitCount() throws IOException {
+      if(closed || latestDocument < 0) return 0;
+      return indexIterator.count();
+    }
+    
+    /**
+     * The bound is the largest number of occurrences of the term in any one
+     * document, which is stored with each index batch (see 
+     * {@link AtomicIndex#getTermMaxCount(CharSequence)}). It is read after 
+     * the index reader was opened, so it covers all the documents the reader 
+     * can return.
+     */
+    @Override
+    public long getMaxHitCountBound() throws IOException {
+      if(closed || latestDocument == -1) return 0;
+      if(termMaxCount < 0) {
+        termMaxCount = atomicIndex.getTermMaxCount(processedTerm);
+      }
+      return termMaxCount;
+    }
+
     /* (non-Javadoc)
      * @see gate.mimir.search.query.QueryExecutor#close()
      */
@@ -15,6 +15,7 @@
 package gate.mimir.search.score;
 
 import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.HitBuffer;
 import gate.mimir.search.query.QueryExecutor;
 import it.unimi.di.big.mg4j.index.Index;
 import it.unimi.di.big.mg4j.search.DocumentIterator;
@@ -22,7 +23,7 @@ import it.unimi.di.big.mg4j.search.score.AbstractWeightedScorer;
 
 import java.io.IOException;
 
-public class BindingScorer  extends AbstractWeightedScorer implements MimirScorer {
+public class BindingScorer  extends AbstractWeightedScorer implements BoundedScorer {
   public BindingScorer() {
     this(16, 0.9);
   }
@@ -42,15 +43,33 @@ public class BindingScorer  extends AbstractWeightedScorer implements MimirScore
   @Override
   public double score() throws IOException {
     double score= 0.0;
-    Binding aHit = nextHit();
-    while(aHit != null) {
-      int length = aHit.getLength();
+    hits.clear();
+    underlyingExecutor.nextHits(hits);
+    for(int i = 0; i < hits.size(); i++) {
+      int length = hits.getLength(i);
       score += length < h ? 1 : Math.pow((double)h / length,  alpha);
-      aHit = nextHit();
     }
     return score;
   }
   
+  /**
+   * Each hit contributes at most 1 to the score, so the maximum number of 
+   * hits is also the maximum score.
+   */
+  @Override
+  public double scoreUpperBound() throws IOException {
+    if(alpha < 0) return Double.POSITIVE_INFINITY;
+    long maxHits = underlyingExecutor.getMaxHitCount();
+    return maxHits < 0 ? Double.POSITIVE_INFINITY : maxHits;
+  }
+  
+  @Override
+  public double remainingScoreUpperBound() throws IOException {
+    if(alpha < 0) return Double.POSITIVE_INFINITY;
+    long maxHits = underlyingExecutor.getMaxHitCountBound();
+    return maxHits < 0 ? Double.POSITIVE_INFINITY : maxHits;
+  }
+  
   @Override
   public boolean usesIntervals() {
     return true;
@@ -69,6 +88,11 @@ public class BindingScorer  extends AbstractWeightedScorer implements MimirScore
 
   protected QueryExecutor underlyingExecutor;
   
+  /**
+   * Buffer for the hits being scored, reused for all documents.
+   */
+  protected HitBuffer hits = new HitBuffer();
+  
   protected int h;
   
   protected double alpha;
@@ -0,0 +1,51 @@
+/*
+ *  BoundedScorer.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html), 
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search.score;
+
+import gate.mimir.search.query.QueryExecutor;
+
+import java.io.IOException;
+
+/**
+ * A {@link MimirScorer} that can cheaply calculate an upper bound for the 
+ * score of the current document, before actually scoring it. When ranking, 
+ * documents whose upper bound is not larger than the lowest score in the 
+ * current top block of results are not scored until a later block of results
+ * is requested.
+ */
+public interface BoundedScorer extends MimirScorer {
+
+  /**
+   * Gets an upper bound for the value that {@link #score()} would return for 
+   * the current document. This method must be called before 
+   * {@link #score()} or {@link #nextHit()}, and it should normally be based on
+   * {@link QueryExecutor#getMaxHitCount()}.
+   * @return the upper bound, or {@link Double#POSITIVE_INFINITY} if no bound
+   * is available. 
+   * @throws IOException
+   */
+  public double scoreUpperBound() throws IOException;
+  
+  /**
+   * Gets an upper bound for the score of any of the documents not returned 
+   * yet by {@link #nextDocument(long)}. When ranking, once the lowest score in
+   * the top block of results is not smaller than this value, the top block 
+   * cannot change any more, so it is made available before all the matching
+   * documents are collected. This should normally be based on
+   * {@link QueryExecutor#getMaxHitCountBound()}.
+   * @return the upper bound, or {@link Double#POSITIVE_INFINITY} if no bound
+   * is available.
+   * @throws IOException
+   */
+  public double remainingScoreUpperBound() throws IOException;
+}
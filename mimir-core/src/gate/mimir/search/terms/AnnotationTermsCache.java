@@ -0,0 +1,215 @@
+/*
+ *  AnnotationTermsCache.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.search.terms;
+
+import gate.mimir.Constraint;
+import gate.mimir.SemanticAnnotationHelper;
+import gate.mimir.index.AtomicAnnotationIndex;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.AnnotationQuery;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of the mention URIs that satisfy {@link AnnotationQuery} values, 
+ * as obtained from the {@link SemanticAnnotationHelper}s (see 
+ * {@link AnnotationTermsQuery}). Each annotation query executor needs the 
+ * mention URIs, and executors are re-created frequently while a query is 
+ * running (e.g. for each repetition in a sequence, or when the hits for a new
+ * block of documents are collected), so caching them avoids repeated calls to
+ * the helpers, which may need to access a database or a remote server.
+ * 
+ * Queries are identified by their annotation type and their set of 
+ * constraints (so the order of the constraints is not relevant). A cached 
+ * value is discarded when a new batch is written to the annotation index 
+ * (see {@link AtomicAnnotationIndex#getGeneration()}), as the new documents 
+ * may contain new mentions. 
+ * 
+ * The generation only covers the data in the index: some helpers also depend
+ * on data held elsewhere (e.g. the SPARQL helper, which first sends a query 
+ * to a SPARQL endpoint), which can change at any time. To bound how stale 
+ * such values can get, every cached value is also discarded once it is older
+ * than the cache's time to live (see {@link #DEFAULT_TIME_TO_LIVE}), whatever
+ * the helper. The time to live is long compared to the time needed to run a 
+ * query, so the executors re-created while a query runs still share the 
+ * cached values.
+ * 
+ * The size of the cache is limited by the total number of mention URIs 
+ * stored, and the least recently used values are evicted first.
+ */
+public class AnnotationTermsCache {
+  
+  /**
+   * The default maximum number of mention URIs held in the cache.
+   */
+  public static final int DEFAULT_MAX_TERMS = 1024 * 1024;
+  
+  /**
+   * The default time to live for cached values, in milliseconds (one 
+   * minute).
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 60 * 1000;
+  
+  /**
+   * The key for cached values.
+   */
+  protected static class Key {
+    protected final String annotationType;
+    
+    protected final Set<Constraint> constraints;
+    
+    public Key(AnnotationQuery query) {
+      this.annotationType = query.getAnnotationType();
+      this.constraints = new HashSet<Constraint>(query.getConstraints());
+    }
+
+    @Override
+    public int hashCode() {
+      return annotationType.hashCode() * 31 + constraints.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(this == obj) return true;
+      if(!(obj instanceof Key)) return false;
+      Key other = (Key)obj;
+      return annotationType.equals(other.annotationType) && 
+          constraints.equals(other.constraints);
+    }
+  }
+  
+  /**
+   * A cached value, together with the generation of the annotation index
+   * and the time at the moment it was calculated.
+   */
+  protected static class Entry {
+    protected final TermsResultSet terms;
+    
+    protected final long generation;
+    
+    protected final long time;
+
+    public Entry(TermsResultSet terms, long generation, long time) {
+      this.terms = terms;
+      this.generation = generation;
+      this.time = time;
+    }
+  }
+  
+  /**
+   * The cached values, in access order.
+   */
+  protected final LinkedHashMap<Key, Entry> entries;
+  
+  /**
+   * The number of mention URIs in the cached values. 
+   */
+  protected long size;
+  
+  protected final long maxTerms;
+  
+  /**
+   * The time (in milliseconds) after which cached values are discarded.
+   */
+  protected final long timeToLive;
+  
+  protected final QueryEngine engine;
+  
+  /**
+   * Creates a new cache, with the default size limit and time to live.
+   * @param engine the query engine used to execute the queries.
+   */
+  public AnnotationTermsCache(QueryEngine engine) {
+    this(engine, DEFAULT_MAX_TERMS, DEFAULT_TIME_TO_LIVE);
+  }
+  
+  /**
+   * Creates a new cache.
+   * @param engine the query engine used to execute the queries.
+   * @param maxTerms the maximum total number of mention URIs held in the 
+   * cache.
+   * @param timeToLive the time (in milliseconds) after which cached values 
+   * are discarded.
+   */
+  public AnnotationTermsCache(QueryEngine engine, long maxTerms, 
+      long timeToLive) {
+    this.engine = engine;
+    this.maxTerms = maxTerms;
+    this.timeToLive = timeToLive;
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  }
+  
+  /**
+   * Gets the mention URIs (and their lengths) for an annotation query, from 
+   * the cache if possible, otherwise by running an 
+   * {@link AnnotationTermsQuery}. The returned value is shared, and must not 
+   * be modified.
+   * @param query
+   * @return
+   * @throws IOException
+   */
+  public TermsResultSet getTerms(AnnotationQuery query) throws IOException {
+    AtomicAnnotationIndex annotationIndex = engine.getAnnotationIndex(
+        query.getAnnotationType());
+    if(annotationIndex == null) {
+      return new AnnotationTermsQuery(query).execute(engine);
+    }
+    // read the generation and the time first, so a batch written while the
+    // query runs makes the new value stale
+    long generation = annotationIndex.getGeneration();
+    long time = System.currentTimeMillis();
+    Key key = new Key(query);
+    synchronized(entries) {
+      Entry entry = entries.get(key);
+      if(entry != null && entry.generation == generation && 
+         time - entry.time < timeToLive) {
+        return entry.terms;
+      }
+    }
+    TermsResultSet terms = new AnnotationTermsQuery(query).execute(engine);
+    int weight = weigh(terms);
+    if(weight <= maxTerms && timeToLive > 0) {
+      synchronized(entries) {
+        Entry old = entries.put(key, new Entry(terms, generation, time));
+        if(old != null) size -= weigh(old.terms);
+        size += weight;
+        Iterator<Map.Entry<Key, Entry>> iter = entries.entrySet().iterator();
+        while(size > maxTerms && iter.hasNext()) {
+          size -= weigh(iter.next().getValue().terms);
+          iter.remove();
+        }
+      }
+    }
+    return terms;
+  }
+  
+  /**
+   * Removes all the values from the cache.
+   */
+  public void clear() {
+    synchronized(entries) {
+      entries.clear();
+      size = 0;
+    }
+  }
+  
+  protected static int weigh(TermsResultSet terms) {
+    // count empty results too, so the number of entries is bounded 
+    return terms.termStrings == null ? 1 : terms.termStrings.length + 1;
+  }
+}
@@ -218,30 +218,80 @@ public class TermsResultSet implements Serializable {
    * @return the combined result set.
    */
   public static TermsResultSet groupByDescription(TermsResultSet... resSets) {
-    boolean descriptionsAvaialble = true;
-    boolean countsAvaialble = true;
-    boolean lengthsAvaialble = false;
-    for(TermsResultSet trs : resSets) {
-      if(trs.termDescriptions == null) {
-        descriptionsAvaialble = false;
-      }
+    Grouper grouper = new Grouper(resSets.length);
+    for(int subIndexPos = 0; subIndexPos < resSets.length; subIndexPos++) {
+      grouper.add(subIndexPos, resSets[subIndexPos]);
+    }
+    return grouper.getResult();
+  }
+  
+  /**
+   * Combines terms result sets in the same way as 
+   * {@link TermsResultSet#groupByDescription(TermsResultSet...)}, but one 
+   * result set at a time, so that the results from the sub-indexes of a 
+   * federated index can be combined as each of them becomes available. 
+   * Positions for which no result set is added (e.g. because the sub-index 
+   * did not answer) are treated as empty result sets.
+   */
+  public static class Grouper {
+    
+    private boolean descriptionsAvailable = true;
+    
+    private boolean countsAvailable = true;
+    
+    private boolean lengthsAvailable = false;
+    
+    /**
+     * The result sets added so far, by position. These are needed if the 
+     * terms have to be re-grouped, when a result set without descriptions 
+     * is added.
+     */
+    private TermsResultSet[] resSets;
+    
+    private Object2ObjectOpenHashMap<String, TermData> desc2TermData;
+    
+    /**
+     * Creates a new grouper.
+     * @param arity the number of result sets being combined (i.e. the number
+     * of sub-indexes).
+     */
+    public Grouper(int arity) {
+      resSets = new TermsResultSet[arity];
+      desc2TermData = new Object2ObjectOpenHashMap<String, TermData>();
+    }
+    
+    /**
+     * Adds the result set for a position.
+     * @param subIndexPos the position of the result set (i.e. the position 
+     * of the sub-index that produced it). 
+     * @param trs the result set.
+     */
+    public void add(int subIndexPos, TermsResultSet trs) {
+      if(resSets[subIndexPos] != null) throw new IllegalArgumentException(
+          "A result set was already added for position " + subIndexPos);
+      resSets[subIndexPos] = trs;
       if(trs.termCounts == null) {
-        countsAvaialble = false;
+        countsAvailable = false;
       }
       if(trs.termLengths != null) {
-        lengthsAvaialble = true;
+        lengthsAvailable = true;
+      }
+      if(trs.termDescriptions == null && descriptionsAvailable) {
+        // terms now need to be grouped by term string: start again
+        descriptionsAvailable = false;
+        desc2TermData.clear();
+        for(int i = 0; i < resSets.length; i++) {
+          if(resSets[i] != null) addTerms(i, resSets[i]);
+        }
+      } else {
+        addTerms(subIndexPos, trs);
       }
     }
-
-    Object2ObjectOpenHashMap<String, TermData> desc2TermData = 
-        new Object2ObjectOpenHashMap<String, TermData>();
     
-    for(int subIndexPos = 0; subIndexPos < resSets.length; subIndexPos++) {
-      TermsResultSet trs = resSets[subIndexPos];
+    private void addTerms(int subIndexPos, TermsResultSet trs) {
       for(int i = 0; i < trs.termStrings.length; i++) {
-        String description = descriptionsAvaialble ? 
+        String description = descriptionsAvailable ? 
             trs.termDescriptions[i] : trs.termStrings[i];
-//          String string = descriptionsAvaialble ? trs.termStrings[i] : null;
         // get all the strings describing the current term
         String[] strings = null;
         if(trs.originalTermStrings != null) {
@@ -255,7 +305,7 @@ public class TermsResultSet implements Serializable {
           }
         } else {
           // no old original term strings: use the actual term string
-          strings = descriptionsAvaialble ? 
+          strings = descriptionsAvailable ? 
               new String[]{trs.termStrings[i]} : null;
         }
         
@@ -264,66 +314,75 @@ public class TermsResultSet implements Serializable {
           tData = new TermData(description, resSets.length);
           desc2TermData.put(description, tData);
         }
-        if(descriptionsAvaialble && strings != null){
+        if(descriptionsAvailable && strings != null){
           for(String s : strings) tData.addString(subIndexPos, s);
-//          tData.addString(subIndexPos, string);
         }
-        if(countsAvaialble) {
+        if(trs.termCounts != null) {
           tData.count += trs.termCounts[i];
         }
-        if(lengthsAvaialble && trs.termLengths != null && tData.length < 0) {
+        // use the length from the first sub-index that has one, whatever 
+        // the order in which the result sets are added
+        if(trs.termLengths != null && 
+           (tData.length < 0 || subIndexPos < tData.lengthSubIndex)) {
           tData.length = trs.termLengths[i];
+          tData.lengthSubIndex = subIndexPos;
         }
       }
     }
-    // produce the compound result set
-    String[] newStrings = new String[desc2TermData.size()];
-    String[] newDescriptions = descriptionsAvaialble ? 
-        new String[desc2TermData.size()] : null;
-    int[] newCounts = countsAvaialble ? new int[desc2TermData.size()] : null;
-    int[] newLenghts = lengthsAvaialble ? new int[desc2TermData.size()] : null;
-    String[][][] originalTermStrings = descriptionsAvaialble ?
-      new String[desc2TermData.size()][][] : null;
-    ObjectIterator<Object2ObjectMap.Entry<String, TermData>> iter = 
-        desc2TermData.object2ObjectEntrySet().fastIterator();    
-    int pos = 0;
-    while(iter.hasNext()) {
-      TermData tData = iter.next().getValue();
-      if(descriptionsAvaialble) {
-        newDescriptions[pos] = tData.description;
-        originalTermStrings[pos] = tData.getStrings();
-        // term string does not actually mean anything; 
-        // we use the term position instead
-        // newStrings[pos] = Integer.toString(pos);
-        Set<String> uniq = new HashSet<String>();
-        for(String[] terms : originalTermStrings[pos]) {
-          for(String term : terms) {
-            uniq.add(term);
+    
+    /**
+     * Produces the combined result set, from the result sets added so far.
+     */
+    public TermsResultSet getResult() {
+      // produce the compound result set
+      String[] newStrings = new String[desc2TermData.size()];
+      String[] newDescriptions = descriptionsAvailable ? 
+          new String[desc2TermData.size()] : null;
+      int[] newCounts = countsAvailable ? new int[desc2TermData.size()] : null;
+      int[] newLenghts = lengthsAvailable ? new int[desc2TermData.size()] : null;
+      String[][][] originalTermStrings = descriptionsAvailable ?
+        new String[desc2TermData.size()][][] : null;
+      ObjectIterator<Object2ObjectMap.Entry<String, TermData>> iter = 
+          desc2TermData.object2ObjectEntrySet().fastIterator();    
+      int pos = 0;
+      while(iter.hasNext()) {
+        TermData tData = iter.next().getValue();
+        if(descriptionsAvailable) {
+          newDescriptions[pos] = tData.description;
+          originalTermStrings[pos] = tData.getStrings();
+          // term string does not actually mean anything; 
+          // we use the term position instead
+          // newStrings[pos] = Integer.toString(pos);
+          Set<String> uniq = new HashSet<String>();
+          for(String[] terms : originalTermStrings[pos]) {
+            for(String term : terms) {
+              uniq.add(term);
+            }
           }
-        }
-        if(uniq.isEmpty()) {
-          newStrings[pos] = Integer.toString(pos);
-        } else {
-          List<String> termList= new ArrayList<String>(uniq);
-          Collections.sort(termList);
-          StringBuilder strb = new StringBuilder(termList.get(0));
-          for(int i = 1; i < termList.size(); i++) {
-            strb.append(" | ").append(termList.get(i));
+          if(uniq.isEmpty()) {
+            newStrings[pos] = Integer.toString(pos);
+          } else {
+            List<String> termList= new ArrayList<String>(uniq);
+            Collections.sort(termList);
+            StringBuilder strb = new StringBuilder(termList.get(0));
+            for(int i = 1; i < termList.size(); i++) {
+              strb.append(" | ").append(termList.get(i));
+            }
+            newStrings[pos] = strb.toString();          
           }
-          newStrings[pos] = strb.toString();          
+        } else {
+          newStrings[pos] = tData.description;
         }
-      } else {
-        newStrings[pos] = tData.description;
+        if(countsAvailable) newCounts[pos] = tData.count;
+        if(lengthsAvailable) newLenghts[pos] = tData.length;
+        pos++;
       }
-      if(countsAvaialble) newCounts[pos] = tData.count;
-      if(lengthsAvaialble) newLenghts[pos] = tData.length;
-      pos++;
-    }
     
-    TermsResultSet res = new TermsResultSet(newStrings, newLenghts, newCounts, 
-      newDescriptions);
-    res.originalTermStrings = originalTermStrings;
-    return res;
+      TermsResultSet res = new TermsResultSet(newStrings, newLenghts, newCounts, 
+        newDescriptions);
+      res.originalTermStrings = originalTermStrings;
+      return res;
+    }
   }
   
   /**
@@ -335,6 +394,11 @@ public class TermsResultSet implements Serializable {
     private int count;
     private int length;
     
+    /**
+     * The position of the result set that provided the {@link #length}.
+     */
+    private int lengthSubIndex;
+    
     /**
      * The number of result sets being combined 
      */
@@ -0,0 +1,126 @@
+/*
+ *  ConvertDocumentCollection.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.util;
+
+import gate.Gate;
+import gate.mimir.index.DocumentCollection;
+import gate.mimir.index.DocumentStoreFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Utility class to convert the document collection of a Mimir index from the
+ * zip files used by older versions to document store files (see
+ * {@link DocumentStoreFile}). Indexes with zip collections can still be used
+ * without conversion, but retrieving documents from zip files is much slower.
+ * The index must be closed to use this tool, which either means the Mimir
+ * webapp is not running, or the index has been deleted from the running
+ * Mimir. It is strongly recommended to back up an index before converting it.
+ *
+ * Usage: <code>ConvertDocumentCollection [-p pluginDir]... indexDir...</code>,
+ * where the plugin directories are those of any GATE plugins whose classes
+ * may be used in the document metadata.
+ */
+public class ConvertDocumentCollection {
+
+  private static final Logger log =
+      Logger.getLogger(ConvertDocumentCollection.class);
+
+  public static void main(String... args) throws Exception {
+    Gate.runInSandbox(true);
+    Gate.init();
+    int i = 0;
+    while(i < args.length && "-p".equals(args[i])) {
+      Gate.getCreoleRegister().registerDirectories(new File(args[++i]).toURI().toURL());
+      i++;
+    }
+    for(; i < args.length; i++) {
+      convertDocumentCollection(new File(args[i]));
+    }
+  }
+
+  /**
+   * Converts all the zip collection files in an index into document store
+   * files. Each zip file is replaced by a store file containing the same
+   * documents.
+   *
+   * @param indexDirectory the top-level directory of the Mimir index
+   *          (containing config.xml)
+   */
+  public static void convertDocumentCollection(File indexDirectory)
+      throws IOException {
+    File[] zipFiles = indexDirectory.listFiles(
+        DocumentCollection.CollectionFile.FILENAME_FILTER);
+    if(zipFiles == null || zipFiles.length == 0) {
+      log.info("No zip collection files found in " +
+          indexDirectory.getAbsolutePath());
+      return;
+    }
+    List<DocumentCollection.CollectionFile> collectionFiles =
+        new ArrayList<DocumentCollection.CollectionFile>();
+    for(File aZipFile : zipFiles) {
+      collectionFiles.add(new DocumentCollection.CollectionFile(aZipFile));
+    }
+    Collections.sort(collectionFiles);
+    // the zip files have distinct numbers, all greater than or equal to their
+    // position, and any store files in the index already are numbered after
+    // all the zip files, so numbering the new files by position is safe.
+    for(int i = 0; i < collectionFiles.size(); i++) {
+      DocumentCollection.CollectionFile zipFile = collectionFiles.get(i);
+      String storeFileName = DocumentStoreFile.getDataFileName(
+          Integer.toString(i));
+      File storeFile = new File(indexDirectory, storeFileName);
+      File tempFile = new File(indexDirectory, "temp-" + storeFileName);
+      if(tempFile.exists()) tempFile.delete();
+      log.info("Converting " + zipFile.getFile().getName() + " to " +
+          storeFileName);
+      DocumentStoreFile.Writer writer = new DocumentStoreFile.Writer(tempFile);
+      try {
+        for(long documentId = zipFile.getFirstEntry();
+            documentId >= 0 && documentId <= zipFile.getLastEntry();
+            documentId++) {
+          if(zipFile.containsDocument(documentId)) {
+            writer.write(documentId, DocumentStoreFile.encode(
+                zipFile.getDocumentData(documentId)));
+          }
+        }
+      } finally {
+        writer.close();
+      }
+      if(writer.getDocumentCount() != zipFile.getDocumentCount()) {
+        throw new IOException("Converted " + writer.getDocumentCount() +
+            " documents from " + zipFile.getFile() + ", but it contains " +
+            zipFile.getDocumentCount());
+      }
+      zipFile.close();
+      if(!DocumentStoreFile.getIndexFile(tempFile).renameTo(
+             DocumentStoreFile.getIndexFile(storeFile)) ||
+         !tempFile.renameTo(storeFile)) {
+        throw new IOException("Could not rename " + tempFile + " to " +
+            storeFile);
+      }
+      if(!zipFile.getFile().delete()) {
+        throw new IOException("Could not delete " + zipFile.getFile() +
+            "; it must be deleted manually before the index is opened.");
+      }
+    }
+    log.info("Converted " + collectionFiles.size() +
+        " zip collection files in " + indexDirectory.getAbsolutePath());
+  }
+}
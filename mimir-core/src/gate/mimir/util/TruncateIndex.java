@@ -21,6 +21,7 @@ import gate.mimir.IndexConfig.TokenIndexerConfig;
 import gate.mimir.MimirIndex;
 import gate.mimir.index.AtomicIndex;
 import gate.mimir.index.DocumentCollection;
+import gate.mimir.index.DocumentStoreFile;
 import it.unimi.di.big.mg4j.index.CompressionFlags;
 import it.unimi.di.big.mg4j.index.CompressionFlags.Coding;
 import it.unimi.di.big.mg4j.index.CompressionFlags.Component;
@@ -412,12 +413,79 @@ public class TruncateIndex {
         totalDocs += zf.size();
       }
     }
+    // opening a document store file discards any incomplete data at its end
+    File[] storeFiles =
+            indexDirectory.listFiles(DocumentStoreFile.FILENAME_FILTER);
+    for(File storeFile : storeFiles) {
+      DocumentStoreFile dsf = new DocumentStoreFile(storeFile);
+      totalDocs += dsf.getDocumentCount();
+      dsf.close();
+    }
 
     return totalDocs;
   }
 
+  /**
+   * Truncates the document store files in the collection so that they end
+   * at document (numDocs-1). Store files that only contain later documents
+   * are stashed in broken-batches.
+   * 
+   * @return <code>true</code> if the cut point was found in the document
+   *         store files, <code>false</code> if it lies in the zip files.
+   */
+  public static boolean truncateStoreCollectionTo(File indexDirectory,
+          long numDocs) throws IOException {
+    File[] storeFiles =
+            indexDirectory.listFiles(DocumentStoreFile.FILENAME_FILTER);
+    File brokenBatches = new File(indexDirectory, "broken-batches");
+    boolean cutPointFound = false;
+    for(File storeFile : storeFiles) {
+      DocumentStoreFile dsf = new DocumentStoreFile(storeFile);
+      long firstEntry = dsf.getFirstEntry();
+      long lastEntry = dsf.getLastEntry();
+      dsf.close();
+      if(lastEntry < numDocs) continue;
+      // this file needs to be stashed
+      brokenBatches.mkdirs();
+      File movedFile = new File(brokenBatches, storeFile.getName());
+      File movedIndexFile = DocumentStoreFile.getIndexFile(movedFile);
+      movedFile.delete();
+      movedIndexFile.delete();
+      if(!storeFile.renameTo(movedFile)
+              || !DocumentStoreFile.getIndexFile(storeFile).renameTo(
+                      movedIndexFile)) {
+        throw new RuntimeException("Could not stash " + storeFile.getName()
+                + " in broken-batches");
+      }
+      if(firstEntry < numDocs) {
+        // the cut point is in this file: re-write it, up to the cut point
+        cutPointFound = true;
+        DocumentStoreFile source = new DocumentStoreFile(movedFile);
+        DocumentStoreFile.Writer writer = new DocumentStoreFile.Writer(storeFile);
+        try {
+          for(long documentId = firstEntry; documentId < numDocs; documentId++) {
+            if(source.containsDocument(documentId)) {
+              writer.write(documentId, DocumentStoreFile.encode(
+                      source.getDocumentData(documentId)));
+            }
+          }
+        } finally {
+          writer.close();
+          source.close();
+        }
+        log.info("Truncated document store file " + storeFile
+                + " to document " + (numDocs - 1));
+      } else {
+        log.info("Stashed document store file " + storeFile.getName()
+                + " in broken-batches");
+      }
+    }
+    return cutPointFound;
+  }
+
   public static void truncateZipCollectionTo(File indexDirectory, long numDocs)
           throws IOException {
+    if(truncateStoreCollectionTo(indexDirectory, numDocs)) return;
     File[] zipCollectionFiles =
             indexDirectory
                     .listFiles(DocumentCollection.CollectionFile.FILENAME_FILTER);
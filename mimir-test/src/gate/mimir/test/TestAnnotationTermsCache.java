@@ -0,0 +1,208 @@
+/*
+ *  TestAnnotationTermsCache.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.mimir.AbstractSemanticAnnotationHelper;
+import gate.mimir.Constraint;
+import gate.mimir.ConstraintType;
+import gate.mimir.IndexConfig;
+import gate.mimir.IndexConfig.SemanticIndexerConfig;
+import gate.mimir.IndexConfig.TokenIndexerConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.SemanticAnnotationHelper;
+import gate.mimir.SemanticAnnotationHelper.Mode;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.AnnotationQuery;
+import gate.mimir.search.terms.AnnotationTermsCache;
+import gate.mimir.search.terms.TermsResultSet;
+import it.unimi.di.big.mg4j.index.DowncaseTermProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AnnotationTermsCache}: values are shared between equal
+ * queries, and recalculated once a new batch is written to the annotation
+ * index, or once they are older than the cache's time to live.
+ */
+public class TestAnnotationTermsCache {
+
+  private static File indexDir;
+
+  private static MimirIndex index;
+
+  private static QueryEngine engine;
+
+  /**
+   * The number of documents indexed so far.
+   */
+  private static int documents;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+    // load the DB plugin
+    Gate.getCreoleRegister().registerDirectories(new File("../plugins/db-h2").toURI().toURL());
+
+    Class<? extends AbstractSemanticAnnotationHelper> helperClass =
+        Class.forName("gate.mimir.db.DBSemanticAnnotationHelper", true,
+            Gate.getClassLoader()).asSubclass(
+                AbstractSemanticAnnotationHelper.class);
+    SemanticAnnotationHelper helper = TestUtils.createHelper(helperClass,
+        "Person", new String[]{"gender", "country"}, null, null, null, null,
+        Mode.ANNOTATION);
+    indexDir = File.createTempFile("mimir-index", null);
+    indexDir.delete();
+    IndexConfig indexConfig = new IndexConfig(indexDir, "mimir", "Token",
+        "mimir", new TokenIndexerConfig[]{
+          new TokenIndexerConfig("string", DowncaseTermProcessor.getInstance(),
+              true)},
+        new SemanticIndexerConfig[]{ new SemanticIndexerConfig(
+            new String[]{"Person"},
+            new SemanticAnnotationHelper[]{helper}, true)},
+        null, null);
+    // the index stays open, so that new batches can be written while the
+    // cache is in use
+    index = new MimirIndex(indexConfig);
+    indexPersons("male", "uk", "female", "uk", "male", "fr");
+    engine = index.getQueryEngine();
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    if(index != null) index.close();
+    if(indexDir != null && !TestUtils.deleteDir(indexDir)) {
+      System.err.println("Could not delete index directory " + indexDir);
+    }
+  }
+
+  /**
+   * Indexes a document with one Person annotation on each token, and writes
+   * it to a new batch.
+   * @param features alternating gender and country values, one pair for
+   * each annotation.
+   */
+  private static void indexPersons(String... features) throws Exception {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < features.length; i += 2) {
+      if(i > 0) text.append(' ');
+      text.append("person");
+    }
+    Document doc = Factory.newDocument(text.toString());
+    doc.getFeatures().put("gate.mimir.uri",
+        "http://example.org/doc" + documents++);
+    AnnotationSet annots = doc.getAnnotations("mimir");
+    for(int i = 0; i < features.length; i += 2) {
+      long start = i / 2 * 7;
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.put("string", "person");
+      annots.add(start, start + 6, "Token", fm);
+      fm = Factory.newFeatureMap();
+      fm.put("gender", features[i]);
+      fm.put("country", features[i + 1]);
+      annots.add(start, start + 6, "Person", fm);
+    }
+    index.indexDocument(doc);
+    for(Future<Long> aFuture : index.requestSyncToDisk()) aFuture.get();
+    Factory.deleteResource(doc);
+  }
+
+  /**
+   * Creates a query for Person annotations having all the given feature
+   * values.
+   * @param features alternating feature names and values.
+   */
+  private static AnnotationQuery personQuery(String... features) {
+    List<Constraint> constraints = new ArrayList<Constraint>();
+    for(int i = 0; i < features.length; i += 2) {
+      constraints.add(new Constraint(ConstraintType.EQ, features[i],
+          features[i + 1]));
+    }
+    return new AnnotationQuery("Person", constraints);
+  }
+
+  /**
+   * Equal queries, whatever the order of their constraints, share the cached
+   * value, while different queries get their own.
+   */
+  @Test
+  public void testHitsAndMisses() throws Exception {
+    AnnotationTermsCache cache = new AnnotationTermsCache(engine);
+    TermsResultSet male = cache.getTerms(personQuery("gender", "male"));
+    assertEquals(2, male.termStrings.length);
+    assertSame(male, cache.getTerms(personQuery("gender", "male")));
+    TermsResultSet maleUk = cache.getTerms(personQuery("gender", "male",
+        "country", "uk"));
+    assertEquals(1, maleUk.termStrings.length);
+    assertNotSame(male, maleUk);
+    assertSame(maleUk, cache.getTerms(personQuery("country", "uk",
+        "gender", "male")));
+    assertSame(male, cache.getTerms(personQuery("gender", "male")));
+    cache.clear();
+    assertNotSame(male, cache.getTerms(personQuery("gender", "male")));
+  }
+
+  /**
+   * A new batch written to the annotation index makes the cached values
+   * stale, as it may contain new mentions.
+   */
+  @Test
+  public void testGenerationInvalidation() throws Exception {
+    AnnotationTermsCache cache = new AnnotationTermsCache(engine);
+    TermsResultSet female = cache.getTerms(personQuery("gender", "female"));
+    assertSame(female, cache.getTerms(personQuery("gender", "female")));
+    indexPersons("female", "de");
+    TermsResultSet newFemale = cache.getTerms(personQuery("gender",
+        "female"));
+    assertNotSame(female, newFemale);
+    assertEquals(female.termStrings.length + 1, newFemale.termStrings.length);
+    assertSame(newFemale, cache.getTerms(personQuery("gender", "female")));
+  }
+
+  /**
+   * Values older than the time to live are recalculated, even if the index
+   * has not changed.
+   */
+  @Test
+  public void testTimeToLive() throws Exception {
+    AnnotationTermsCache cache = new AnnotationTermsCache(engine,
+        AnnotationTermsCache.DEFAULT_MAX_TERMS, 200);
+    TermsResultSet uk = cache.getTerms(personQuery("country", "uk"));
+    assertSame(uk, cache.getTerms(personQuery("country", "uk")));
+    Thread.sleep(400);
+    TermsResultSet newUk = cache.getTerms(personQuery("country", "uk"));
+    assertNotSame(uk, newUk);
+    assertEquals(uk.termStrings.length, newUk.termStrings.length);
+    // no caching at all without a time to live
+    cache = new AnnotationTermsCache(engine,
+        AnnotationTermsCache.DEFAULT_MAX_TERMS, 0);
+    assertNotSame(cache.getTerms(personQuery("country", "uk")),
+        cache.getTerms(personQuery("country", "uk")));
+  }
+}
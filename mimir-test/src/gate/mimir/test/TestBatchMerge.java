@@ -0,0 +1,144 @@
+/*
+ *  TestBatchMerge.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gate.Gate;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.TermQuery;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the merging of on-disk index batches: an index written in several
+ * batches and then compacted must give the same results as the same documents
+ * written in a single batch.
+ */
+public class TestBatchMerge {
+
+  private static final String[] WORDS = {"the", "of", "and", "alpha", "beta",
+    "gamma", "delta", "epsilon", "zeta", "eta", "theta", "iota"};
+
+  private static final int DOCUMENTS = 90;
+
+  private static final int DOCUMENTS_PER_BATCH = 20;
+
+  private static File singleBatchDir;
+
+  private static File mergedDir;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+
+    singleBatchDir = File.createTempFile("mimir-index", null);
+    singleBatchDir.delete();
+    mergedDir = File.createTempFile("mimir-index", null);
+    mergedDir.delete();
+    MimirIndex singleBatch = new MimirIndex(
+        TestUtils.getTokenIndexConfig(singleBatchDir));
+    MimirIndex merged = new MimirIndex(
+        TestUtils.getTokenIndexConfig(mergedDir));
+    Random random = new Random(42);
+    for(int d = 0; d < DOCUMENTS; d++) {
+      String text = randomText(random, 20 + random.nextInt(200));
+      TestUtils.indexTokens(singleBatch, "http://example.org/doc" + d, text);
+      TestUtils.indexTokens(merged, "http://example.org/doc" + d, text);
+      if((d + 1) % DOCUMENTS_PER_BATCH == 0) {
+        for(Future<Long> aFuture : merged.requestSyncToDisk()) aFuture.get();
+      }
+    }
+    for(Future<Long> aFuture : merged.requestSyncToDisk()) aFuture.get();
+    assertTrue("The index was not written in several batches",
+        merged.getTokenIndex("string").getBatchCount() > 1);
+    for(Future<Void> aFuture : merged.requestCompactIndex()) aFuture.get();
+    assertEquals(1, merged.getTokenIndex("string").getBatchCount());
+    singleBatch.close();
+    merged.close();
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    for(File aDir : new File[] {singleBatchDir, mergedDir}) {
+      if(aDir != null && !TestUtils.deleteDir(aDir)) {
+        System.err.println("Could not delete index directory " + aDir);
+      }
+    }
+  }
+
+  /**
+   * Generates some text where the first words are more frequent than the
+   * last ones, and words are often repeated.
+   */
+  private static String randomText(Random random, int length) {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < length; i++) {
+      if(i > 0) text.append(' ');
+      int word = Math.min(random.nextInt(WORDS.length),
+          random.nextInt(WORDS.length));
+      text.append(WORDS[word]);
+    }
+    return text.toString();
+  }
+
+  @Test
+  public void testMergedBatchesMatchSingleBatch() throws Exception {
+    MimirIndex singleBatch = new MimirIndex(singleBatchDir);
+    MimirIndex merged = new MimirIndex(mergedDir);
+    try {
+      assertEquals(1, merged.getTokenIndex("string").getBatchCount());
+      QueryEngine singleEngine = singleBatch.getQueryEngine();
+      QueryEngine mergedEngine = merged.getQueryEngine();
+      for(String aWord : WORDS) {
+        QueryNode query = new TermQuery("string", aWord);
+        assertEquals("Different hits for " + aWord,
+            TestUtils.getHits(query, singleEngine),
+            TestUtils.getHits(query, mergedEngine));
+      }
+      for(int i = 0; i + 2 < WORDS.length; i++) {
+        QueryNode query = new SequenceQuery(null,
+            new TermQuery("string", WORDS[i]),
+            new TermQuery("string", WORDS[i + 1]),
+            new TermQuery("string", WORDS[i + 2]));
+        assertEquals("Different hits for phrase starting with " + WORDS[i],
+            TestUtils.getHits(query, singleEngine),
+            TestUtils.getHits(query, mergedEngine));
+      }
+    } finally {
+      singleBatch.close();
+      merged.close();
+    }
+  }
+
+  /**
+   * Compaction requests made after the index has been closed are rejected.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void testCompactAfterClose() throws Exception {
+    MimirIndex merged = new MimirIndex(mergedDir);
+    merged.close();
+    merged.requestCompactIndex();
+  }
+}
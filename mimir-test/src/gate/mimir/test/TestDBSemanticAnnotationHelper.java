@@ -0,0 +1,220 @@
+/*
+ *  TestDBSemanticAnnotationHelper.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.mimir.AbstractSemanticAnnotationHelper;
+import gate.mimir.Constraint;
+import gate.mimir.ConstraintType;
+import gate.mimir.IndexConfig;
+import gate.mimir.IndexConfig.SemanticIndexerConfig;
+import gate.mimir.IndexConfig.TokenIndexerConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.SemanticAnnotationHelper;
+import gate.mimir.SemanticAnnotationHelper.Mode;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.AnnotationQuery;
+import gate.mimir.search.query.QueryNode;
+import it.unimi.di.big.mg4j.index.DowncaseTermProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the DB semantic annotation helper, indexing documents with more
+ * distinct annotation templates than fit in a single bulk look-up, or in the
+ * helper's template caches.
+ */
+public class TestDBSemanticAnnotationHelper {
+
+  private static final String[] GENDERS = {"male", "female", null};
+
+  private static final int COUNTRIES = 60;
+
+  private static final int DOCUMENTS = 20;
+
+  /**
+   * The number of Person annotations in each document, one on each token.
+   */
+  private static final int PERSONS = 200;
+
+  private static File indexDir;
+
+  private static MimirIndex index;
+
+  private static QueryEngine engine;
+
+  /**
+   * The features of each Person annotation, by document and token position.
+   */
+  private static FeatureMap[][] persons;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+    // load the DB plugin
+    Gate.getCreoleRegister().registerDirectories(new File("../plugins/db-h2").toURI().toURL());
+
+    Class<? extends AbstractSemanticAnnotationHelper> helperClass =
+        Class.forName("gate.mimir.db.DBSemanticAnnotationHelper", true,
+            Gate.getClassLoader()).asSubclass(
+                AbstractSemanticAnnotationHelper.class);
+    SemanticAnnotationHelper helper = TestUtils.createHelper(helperClass,
+        "Person", new String[]{"gender", "country"}, new String[]{"age"},
+        null, null, null, Mode.ANNOTATION);
+    // caches much smaller than the number of templates in each document
+    helperClass.getMethod("setCacheSizes", int.class, int.class, int.class)
+        .invoke(helper, 8, 8, -1);
+
+    indexDir = File.createTempFile("mimir-index", null);
+    indexDir.delete();
+    IndexConfig indexConfig = new IndexConfig(indexDir, "mimir", "Token",
+        "mimir", new TokenIndexerConfig[]{
+          new TokenIndexerConfig("string", DowncaseTermProcessor.getInstance(),
+              true)},
+        new SemanticIndexerConfig[]{ new SemanticIndexerConfig(
+            new String[]{"Person"},
+            new SemanticAnnotationHelper[]{helper}, true)},
+        null, null);
+    index = new MimirIndex(indexConfig);
+    Random random = new Random(23);
+    persons = new FeatureMap[DOCUMENTS][PERSONS];
+    // the documents are indexed in the background, so they are only deleted
+    // once the index has been closed
+    List<Document> documents = new ArrayList<Document>();
+    for(int d = 0; d < DOCUMENTS; d++) {
+      StringBuilder text = new StringBuilder();
+      for(int t = 0; t < PERSONS; t++) {
+        if(t > 0) text.append(' ');
+        text.append("person");
+      }
+      Document doc = Factory.newDocument(text.toString());
+      doc.getFeatures().put("gate.mimir.uri", "http://example.org/doc" + d);
+      AnnotationSet annots = doc.getAnnotations("mimir");
+      for(int t = 0; t < PERSONS; t++) {
+        long start = t * 7;
+        FeatureMap fm = Factory.newFeatureMap();
+        fm.put("string", "person");
+        annots.add(start, start + 6, "Token", fm);
+        // some of the features are missing, so some templates contain nulls
+        fm = Factory.newFeatureMap();
+        String gender = GENDERS[random.nextInt(GENDERS.length)];
+        if(gender != null) fm.put("gender", gender);
+        int country = random.nextInt(COUNTRIES + 1);
+        if(country < COUNTRIES) fm.put("country", "c" + country);
+        if(random.nextInt(4) != 0) fm.put("age", Long.valueOf(random.nextInt(10)));
+        annots.add(start, start + 6, "Person", fm);
+        persons[d][t] = fm;
+      }
+      index.indexDocument(doc);
+      documents.add(doc);
+    }
+    index.close();
+    for(Document aDocument : documents) Factory.deleteResource(aDocument);
+    index = new MimirIndex(indexDir);
+    engine = index.getQueryEngine();
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    if(index != null) index.close();
+    if(indexDir != null && !TestUtils.deleteDir(indexDir)) {
+      System.err.println("Could not delete index directory " + indexDir);
+    }
+  }
+
+  /**
+   * Creates a query for Person annotations having all the given feature
+   * values.
+   * @param features alternating feature names and values.
+   */
+  private static QueryNode personQuery(Object... features) {
+    List<Constraint> constraints = new ArrayList<Constraint>();
+    for(int i = 0; i < features.length; i += 2) {
+      constraints.add(new Constraint(ConstraintType.EQ,
+          (String)features[i], features[i + 1]));
+    }
+    return new AnnotationQuery("Person", constraints);
+  }
+
+  /**
+   * Gets the expected hits for {@link #personQuery(Object...)}, in the format
+   * used by {@link TestUtils#getHits(QueryNode, QueryEngine)}.
+   */
+  private static List<String> expectedHits(Object... features) {
+    List<String> hits = new ArrayList<String>();
+    for(int d = 0; d < DOCUMENTS; d++) {
+      for(int t = 0; t < PERSONS; t++) {
+        boolean matches = true;
+        for(int i = 0; i < features.length; i += 2) {
+          if(!features[i + 1].equals(persons[d][t].get(features[i]))) {
+            matches = false;
+          }
+        }
+        if(matches) hits.add(d + ", " + t + ", 1");
+      }
+    }
+    return hits;
+  }
+
+  private static void assertHits(Object... features) throws Exception {
+    List<String> expected = expectedHits(features);
+    assertTrue("No annotations with " + Arrays.toString(features),
+        expected.size() > 0);
+    assertEquals("Different hits for " + Arrays.toString(features), expected,
+        TestUtils.getHits(personQuery(features), engine));
+  }
+
+  /**
+   * Every annotation is found by the values of its nominal features, which
+   * are stored in the Level-1 table.
+   */
+  @Test
+  public void testLevel1Features() throws Exception {
+    for(String aGender : GENDERS) {
+      if(aGender != null) assertHits("gender", aGender);
+    }
+    for(int country = 0; country < COUNTRIES; country += 7) {
+      assertHits("country", "c" + country);
+      assertHits("gender", "female", "country", "c" + country);
+    }
+  }
+
+  /**
+   * Every annotation is found by the values of its non-nominal features,
+   * which are stored in the Level-2 table.
+   */
+  @Test
+  public void testLevel2Features() throws Exception {
+    for(long age = 0; age < 10; age++) {
+      assertHits("age", age);
+      assertHits("gender", "male", "age", age);
+    }
+    assertHits("country", "c3", "age", 5L);
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ *  TestDeletedDocumentSet.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gate.mimir.index.DeletedDocumentSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A JUnit test class for {@link DeletedDocumentSet}. The results are checked
+ * against a plain {@link TreeSet} holding the same document IDs.
+ */
+public class TestDeletedDocumentSet {
+
+  /**
+   * The number of document IDs in each chunk of the set.
+   */
+  private static final long CHUNK_SIZE = 1 << 16;
+
+  /**
+   * The largest number of values stored in an array chunk.
+   */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  private File directory;
+
+  private DeletedDocumentSet set;
+
+  private TreeSet<Long> expected;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("mimir-deleted", null);
+    directory.delete();
+    directory.mkdir();
+    set = new DeletedDocumentSet(directory);
+    expected = new TreeSet<Long>();
+  }
+
+  @After
+  public void tearDown() {
+    if(!TestUtils.deleteDir(directory)) {
+      System.err.println("Could not delete directory " + directory);
+    }
+  }
+
+  private void add(long... ids) {
+    set.addAll(ids);
+    for(long anId : ids) expected.add(anId);
+  }
+
+  private void remove(long... ids) {
+    set.removeAll(ids);
+    for(long anId : ids) expected.remove(anId);
+  }
+
+  private static long[] range(long from, long to) {
+    long[] ids = new long[(int)(to - from)];
+    for(int i = 0; i < ids.length; i++) ids[i] = from + i;
+    return ids;
+  }
+
+  /**
+   * Checks the contents of a set against {@link #expected}, for all the IDs
+   * up to a given limit.
+   */
+  private void assertContents(DeletedDocumentSet aSet, long limit) {
+    assertEquals(expected.size(), aSet.size());
+    for(long id = 0; id < limit; id++) {
+      assertEquals("Wrong membership for " + id, expected.contains(id),
+          aSet.contains(id));
+    }
+  }
+
+  /**
+   * Calculates the expected result of {@link DeletedDocumentSet#nextAbsent}.
+   */
+  private long expectedNextAbsent(long id) {
+    while(expected.contains(id)) id++;
+    return id;
+  }
+
+  /**
+   * Gets the size of the snapshot file, which depends on the kinds of chunks
+   * in the set: array chunks take 2 bytes for each value, bitmap chunks take
+   * 8KB.
+   */
+  private long snapshotSize() throws IOException {
+    set.writeSnapshot();
+    return new File(directory, DeletedDocumentSet.SNAPSHOT_FILE_NAME).length();
+  }
+
+  @Test
+  public void testChunkBoundaries() {
+    add(CHUNK_SIZE - 2, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1);
+    add(2 * CHUNK_SIZE - 1, 2 * CHUNK_SIZE);
+    add(0);
+    assertContents(set, 3 * CHUNK_SIZE);
+    remove(CHUNK_SIZE - 1, CHUNK_SIZE);
+    assertContents(set, 3 * CHUNK_SIZE);
+    // removing absent IDs, including ones in chunks that don't exist
+    assertFalse(set.removeAll(new long[]{CHUNK_SIZE - 1, 5 * CHUNK_SIZE}));
+    assertFalse(set.contains(-1));
+    assertFalse(set.contains(DeletedDocumentSet.MAX_DOCUMENT_ID));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIdTooLarge() {
+    set.add(DeletedDocumentSet.MAX_DOCUMENT_ID + 1);
+  }
+
+  @Test
+  public void testArrayAndBitmapChunks() throws IOException {
+    // header: magic, version, chunk count; each chunk: ID, cardinality
+    long header = 12;
+    long chunkHeader = 8;
+    long bitmapSize = CHUNK_SIZE / 8;
+    // every other ID, so the array chunk has no runs
+    long[] ids = new long[MAX_ARRAY_SIZE + 1];
+    for(int i = 0; i < ids.length; i++) ids[i] = CHUNK_SIZE + 2 * i;
+    long[] arrayIds = new long[MAX_ARRAY_SIZE];
+    System.arraycopy(ids, 0, arrayIds, 0, arrayIds.length);
+    add(arrayIds);
+    assertContents(set, 3 * CHUNK_SIZE);
+    assertEquals(header + chunkHeader + 2 * MAX_ARRAY_SIZE, snapshotSize());
+    // one more value turns the array into a bitmap
+    add(ids[MAX_ARRAY_SIZE]);
+    assertContents(set, 3 * CHUNK_SIZE);
+    assertEquals(header + chunkHeader + bitmapSize, snapshotSize());
+    // and removing it turns the bitmap back into an array
+    remove(ids[0]);
+    assertContents(set, 3 * CHUNK_SIZE);
+    assertEquals(header + chunkHeader + 2 * MAX_ARRAY_SIZE, snapshotSize());
+    // removing all the values drops the chunk
+    remove(ids);
+    assertContents(set, 3 * CHUNK_SIZE);
+    assertEquals(header, snapshotSize());
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() throws IOException {
+    add(range(0, MAX_ARRAY_SIZE * 3));
+    add(CHUNK_SIZE + 7, CHUNK_SIZE + 9, 3 * CHUNK_SIZE);
+    set.writeSnapshot();
+    DeletedDocumentSet reopened = new DeletedDocumentSet(directory);
+    assertContents(reopened, 4 * CHUNK_SIZE);
+  }
+
+  @Test
+  public void testJournalRoundTrip() throws IOException {
+    add(range(0, 100));
+    set.writeSnapshot();
+    // changes after the snapshot go to the journal
+    add(CHUNK_SIZE + 1, CHUNK_SIZE + 2);
+    remove(range(10, 20));
+    add(15);
+    set.flush();
+    assertTrue(new File(directory,
+        DeletedDocumentSet.JOURNAL_FILE_NAME).exists());
+    DeletedDocumentSet reopened = new DeletedDocumentSet(directory);
+    assertContents(reopened, 3 * CHUNK_SIZE);
+    // unflushed changes are lost
+    add(CHUNK_SIZE + 3);
+    expected.remove(CHUNK_SIZE + 3);
+    reopened = new DeletedDocumentSet(directory);
+    assertContents(reopened, 3 * CHUNK_SIZE);
+  }
+
+  /**
+   * A truncated last record in the journal is dropped, and does not corrupt
+   * the records appended after it.
+   */
+  @Test
+  public void testTruncatedJournal() throws IOException {
+    add(range(0, 50));
+    set.writeSnapshot();
+    add(CHUNK_SIZE + 5, 2 * CHUNK_SIZE + 1);
+    remove(3);
+    set.flush();
+    File journalFile = new File(directory,
+        DeletedDocumentSet.JOURNAL_FILE_NAME);
+    long journalLength = journalFile.length();
+    // a record left incomplete by a crash
+    FileOutputStream out = new FileOutputStream(journalFile, true);
+    try {
+      out.write(new byte[] {0x12, 0x34, 0x56});
+    } finally {
+      out.close();
+    }
+    set = new DeletedDocumentSet(directory);
+    assertContents(set, 3 * CHUNK_SIZE);
+    assertEquals(journalLength, journalFile.length());
+    // changes appended after re-opening are read back correctly
+    add(7 * CHUNK_SIZE + 11, 60, 61);
+    remove(10, CHUNK_SIZE + 5);
+    set.flush();
+    assertEquals(0, journalFile.length() % 8);
+    set = new DeletedDocumentSet(directory);
+    assertContents(set, 8 * CHUNK_SIZE);
+  }
+
+  /**
+   * Writes a deleted documents file in the format used by older versions.
+   */
+  private File writeLegacyFile(Set<? extends Serializable> ids)
+      throws IOException {
+    File legacyFile = new File(directory, "deleted.ser");
+    ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(
+        new FileOutputStream(legacyFile)));
+    try {
+      oos.writeObject(ids);
+    } finally {
+      oos.close();
+    }
+    return legacyFile;
+  }
+
+  @Test
+  public void testLegacyIntegerFile() throws IOException {
+    Set<Integer> ids = new HashSet<Integer>();
+    for(int i = 0; i < 3 * CHUNK_SIZE; i += 7) {
+      ids.add(i);
+      expected.add((long)i);
+    }
+    set.importLegacyFile(writeLegacyFile(ids));
+    assertContents(set, 4 * CHUNK_SIZE);
+    // the imported IDs are in the new snapshot
+    assertContents(new DeletedDocumentSet(directory), 4 * CHUNK_SIZE);
+  }
+
+  @Test
+  public void testLegacyLongFile() throws IOException {
+    Set<Long> ids = new HashSet<Long>();
+    ids.add(1L);
+    ids.add(CHUNK_SIZE);
+    ids.add(5 * CHUNK_SIZE + 3);
+    expected.addAll(ids);
+    set.importLegacyFile(writeLegacyFile(ids));
+    assertContents(new DeletedDocumentSet(directory), 6 * CHUNK_SIZE);
+  }
+
+  @Test
+  public void testNextAbsent() {
+    assertEquals(0, set.nextAbsent(0));
+    assertEquals(-1, set.nextAbsent(-1));
+    // a full chunk, followed by a run spilling into the next chunk
+    add(range(0, CHUNK_SIZE + 10));
+    assertEquals(CHUNK_SIZE + 10, set.nextAbsent(0));
+    assertEquals(CHUNK_SIZE + 10, set.nextAbsent(CHUNK_SIZE - 1));
+    assertEquals(CHUNK_SIZE + 11, set.nextAbsent(CHUNK_SIZE + 11));
+    // a full chunk followed by an empty one
+    add(range(2 * CHUNK_SIZE, 3 * CHUNK_SIZE));
+    assertEquals(3 * CHUNK_SIZE, set.nextAbsent(2 * CHUNK_SIZE));
+    // a full chunk at the end of the set
+    assertEquals(3 * CHUNK_SIZE, set.nextAbsent(3 * CHUNK_SIZE - 1));
+    // a run ending on a bitmap word boundary, in an array chunk
+    add(range(3 * CHUNK_SIZE + 60, 3 * CHUNK_SIZE + 128));
+    assertEquals(3 * CHUNK_SIZE + 128, set.nextAbsent(3 * CHUNK_SIZE + 60));
+    assertEquals(3 * CHUNK_SIZE + 59, set.nextAbsent(3 * CHUNK_SIZE + 59));
+  }
+
+  @Test
+  public void testNextAbsentRandom() {
+    Random random = new Random(7);
+    // dense and sparse chunks, with some empty ones in between
+    for(int chunk = 0; chunk < 6; chunk++) {
+      if(chunk == 2) continue;
+      int runs = chunk % 2 == 0 ? 2000 : 50;
+      for(int i = 0; i < runs; i++) {
+        long start = chunk * CHUNK_SIZE + random.nextInt((int)CHUNK_SIZE);
+        add(range(start, start + 1 + random.nextInt(40)));
+      }
+    }
+    assertContents(set, 7 * CHUNK_SIZE);
+    for(long id = 0; id < 7 * CHUNK_SIZE; id++) {
+      assertEquals("Wrong next absent ID from " + id, expectedNextAbsent(id),
+          set.nextAbsent(id));
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ *  TestDocumentDataCache.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import gate.mimir.IndexConfig;
+import gate.mimir.index.DocumentData;
+import gate.mimir.index.DocumentDataCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * A JUnit test class for {@link DocumentDataCache}.
+ */
+public class TestDocumentDataCache {
+
+  /**
+   * Exposes the segment selection and the weight estimate of the cache.
+   */
+  private static class InspectableCache extends DocumentDataCache {
+    public InspectableCache(long maxWeight) {
+      super(maxWeight);
+    }
+
+    public int segmentIndex(long documentID) {
+      return Arrays.asList(segments).indexOf(
+          segmentFor(documentID));
+    }
+
+    public static long weightOf(DocumentData value) {
+      return weigh(value);
+    }
+  }
+
+  /**
+   * Creates a document. All the documents have the same weight.
+   */
+  private static DocumentData document(long documentId) {
+    String id = String.format("%08d", documentId);
+    return new DocumentData("http://example.org/doc" + id, "Document " + id,
+        new String[] {"some", "tokens", id}, new String[] {" ", " ", null});
+  }
+
+  /**
+   * Finds several document IDs that are stored in the same segment.
+   */
+  private static long[] sameSegmentIds(InspectableCache cache, int count) {
+    long[] ids = new long[count];
+    int segment = cache.segmentIndex(0);
+    int found = 0;
+    for(long anId = 0; found < count; anId++) {
+      if(cache.segmentIndex(anId) == segment) ids[found++] = anId;
+    }
+    return ids;
+  }
+
+  /**
+   * Creates a cache where each segment has room for the given number of
+   * documents.
+   */
+  private static InspectableCache cacheFor(int documentsPerSegment) {
+    long segmentWeight = documentsPerSegment *
+        InspectableCache.weightOf(document(0));
+    // 16 segments
+    return new InspectableCache(segmentWeight * 16);
+  }
+
+  @Test
+  public void testCounters() {
+    DocumentDataCache cache = cacheFor(10);
+    DocumentData doc = document(1);
+    cache.put(1, doc);
+    assertSame(doc, cache.get(1));
+    assertNull(cache.get(2));
+    assertSame(doc, cache.get(1));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+    assertEquals(InspectableCache.weightOf(doc), cache.getWeight());
+    // replacing a value does not count its weight twice
+    cache.put(1, document(1));
+    assertEquals(InspectableCache.weightOf(doc), cache.getWeight());
+    // clearing the cache keeps the statistics
+    cache.clear();
+    assertEquals(0, cache.getWeight());
+    assertNull(cache.get(1));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testLruEviction() {
+    InspectableCache cache = cacheFor(3);
+    long[] ids = sameSegmentIds(cache, 5);
+    cache.put(ids[0], document(ids[0]));
+    cache.put(ids[1], document(ids[1]));
+    cache.put(ids[2], document(ids[2]));
+    // using the oldest entry makes the second one the least recently used
+    assertNotNull(cache.get(ids[0]));
+    cache.put(ids[3], document(ids[3]));
+    assertEquals(1, cache.getEvictionCount());
+    assertNull(cache.get(ids[1]));
+    assertNotNull(cache.get(ids[0]));
+    assertNotNull(cache.get(ids[2]));
+    assertNotNull(cache.get(ids[3]));
+    // now the least recently used is ids[0]
+    cache.put(ids[4], document(ids[4]));
+    assertEquals(2, cache.getEvictionCount());
+    assertNull(cache.get(ids[0]));
+    assertNotNull(cache.get(ids[2]));
+  }
+
+  @Test
+  public void testWeightBound() {
+    InspectableCache cache = cacheFor(4);
+    long docWeight = InspectableCache.weightOf(document(0));
+    int puts = 2000;
+    for(long anId = 0; anId < puts; anId++) {
+      cache.put(anId, document(anId));
+      assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    }
+    // every document not in the cache any more was evicted
+    int cached = 0;
+    for(long anId = 0; anId < puts; anId++) {
+      if(cache.get(anId) != null) cached++;
+    }
+    assertEquals(puts - cached, cache.getEvictionCount());
+    assertEquals(cached * docWeight, cache.getWeight());
+    assertEquals(16 * 4, cached);
+    // values larger than the whole cache are not cached
+    DocumentData huge = bigDocument(1000);
+    assertTrue(InspectableCache.weightOf(huge) > cache.getMaxWeight());
+    cache.put(puts, huge);
+    assertNull(cache.get(puts));
+    assertEquals(puts - cached, cache.getEvictionCount());
+    // values larger than a segment are cached, evicting values from other
+    // segments
+    DocumentData big = bigDocument(100);
+    long bigWeight = InspectableCache.weightOf(big);
+    assertTrue(bigWeight > cache.getMaxWeight() / 16);
+    assertTrue(bigWeight < cache.getMaxWeight());
+    cache.put(puts + 1, big);
+    assertSame(big, cache.get(puts + 1));
+    assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    assertTrue(cache.getEvictionCount() > puts - cached);
+    // small values evict the big one from its segment eventually
+    for(long anId = puts + 2; anId < 2 * puts; anId++) {
+      cache.put(anId, document(anId));
+      assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    }
+    assertNull(cache.get(puts + 1));
+  }
+
+  /**
+   * Creates a document with the given number of tokens.
+   */
+  private static DocumentData bigDocument(int tokenCount) {
+    String[] manyTokens = new String[tokenCount];
+    Arrays.fill(manyTokens, "token");
+    return new DocumentData("http://example.org/big", "Big",
+        manyTokens, new String[manyTokens.length]);
+  }
+
+  /**
+   * With the default size, a document much larger than the share of one
+   * segment is still cached. Only the older values in its segment are
+   * evicted, as there is room for the others.
+   */
+  @Test
+  public void testLargeDocumentAtDefaultSize() {
+    InspectableCache cache = new InspectableCache(
+        IndexConfig.DEFAULT_DOCUMENT_CACHE_SIZE);
+    int smallDocs = 1000;
+    for(long anId = 0; anId < smallDocs; anId++) {
+      cache.put(anId, document(anId));
+    }
+    // about 5 MiB, while each segment gets 2 MiB
+    DocumentData big = bigDocument(100000);
+    assertTrue(InspectableCache.weightOf(big) > cache.getMaxWeight() / 16);
+    cache.put(smallDocs, big);
+    assertSame(big, cache.get(smallDocs));
+    assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    int bigSegment = cache.segmentIndex(smallDocs);
+    int sameSegment = 0;
+    for(long anId = 0; anId < smallDocs; anId++) {
+      if(cache.segmentIndex(anId) == bigSegment) {
+        sameSegment++;
+        assertNull(cache.get(anId));
+      } else {
+        assertNotNull(cache.get(anId));
+      }
+    }
+    assertEquals(sameSegment, cache.getEvictionCount());
+  }
+
+  /**
+   * Several threads using the cache at the same time keep the counters
+   * consistent, and the weight within bounds.
+   */
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final DocumentDataCache cache = cacheFor(8);
+    final int threads = 8;
+    final int lookups = 20000;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Long>> results = new ArrayList<Future<Long>>();
+      for(int i = 0; i < threads; i++) {
+        final Random random = new Random(i);
+        results.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws Exception {
+            long found = 0;
+            for(int j = 0; j < lookups; j++) {
+              long anId = random.nextInt(500);
+              DocumentData doc = cache.get(anId);
+              if(doc != null) {
+                found++;
+                assertEquals(document(anId).getDocumentURI(),
+                    doc.getDocumentURI());
+              } else {
+                cache.put(anId, document(anId));
+              }
+            }
+            return found;
+          }
+        }));
+      }
+      long found = 0;
+      for(Future<Long> aResult : results) found += aResult.get();
+      assertEquals(found, cache.getHitCount());
+      assertEquals((long)threads * lookups,
+          cache.getHitCount() + cache.getMissCount());
+      assertTrue(cache.getEvictionCount() > 0);
+      assertTrue(cache.getWeight() <= cache.getMaxWeight());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
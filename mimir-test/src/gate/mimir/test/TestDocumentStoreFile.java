@@ -0,0 +1,386 @@
+/*
+ *  TestDocumentStoreFile.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import gate.mimir.index.DocumentCollection;
+import gate.mimir.index.DocumentData;
+import gate.mimir.index.DocumentStoreFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A JUnit test class for {@link DocumentStoreFile}, and for reading documents
+ * from a {@link DocumentCollection} while its files are being written.
+ */
+public class TestDocumentStoreFile {
+
+  /**
+   * The number of documents written to each test file: enough to fill
+   * several blocks.
+   */
+  private static final int DOCUMENTS = 3000;
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("mimir-documents", null);
+    directory.delete();
+    directory.mkdir();
+  }
+
+  @After
+  public void tearDown() {
+    if(!TestUtils.deleteDir(directory)) {
+      System.err.println("Could not delete directory " + directory);
+    }
+  }
+
+  /**
+   * Generates the data for a document. The same ID always gives the same
+   * data.
+   */
+  private static DocumentData document(long documentId) {
+    Random random = new Random(documentId);
+    String[] tokens = new String[10 + random.nextInt(50)];
+    String[] nonTokens = new String[tokens.length];
+    for(int i = 0; i < tokens.length; i++) {
+      tokens[i] = "t" + random.nextInt(1000) + (i % 7 == 0 ? "é" : "");
+      nonTokens[i] = i % 5 == 0 ? null : " ";
+    }
+    DocumentData document = new DocumentData(
+        "http://example.org/doc" + documentId,
+        documentId % 3 == 0 ? null : "Document " + documentId,
+        tokens, nonTokens);
+    if(documentId % 2 == 0) document.putMetadataField("id", documentId);
+    return document;
+  }
+
+  private static void assertDocument(long documentId, DocumentData actual) {
+    DocumentData expected = document(documentId);
+    assertEquals(expected.getDocumentURI(), actual.getDocumentURI());
+    assertEquals(expected.getDocumentTitle(), actual.getDocumentTitle());
+    assertArrayEquals(expected.getTokens(), actual.getTokens());
+    assertArrayEquals(expected.getNonTokens(), actual.getNonTokens());
+    assertEquals(expected.getMetadataField("id"),
+        actual.getMetadataField("id"));
+  }
+
+  /**
+   * Writes a document store file containing the given document IDs.
+   */
+  private File writeFile(String fileId, long[] documentIds)
+      throws IOException {
+    File dataFile = new File(directory,
+        DocumentStoreFile.getDataFileName(fileId));
+    DocumentStoreFile.Writer writer = new DocumentStoreFile.Writer(dataFile);
+    for(long anId : documentIds) {
+      writer.write(anId, DocumentStoreFile.encode(document(anId)));
+    }
+    writer.close();
+    return dataFile;
+  }
+
+  /**
+   * Every third document ID, starting from a given one.
+   */
+  private static long[] documentIds(long first) {
+    long[] ids = new long[DOCUMENTS];
+    for(int i = 0; i < ids.length; i++) ids[i] = first + 3 * i;
+    return ids;
+  }
+
+  /**
+   * Gets the number of blocks listed in the offset index of a data file.
+   */
+  private static long blockCount(File dataFile) {
+    // 28 bytes of header, then 16 bytes for each block
+    return (DocumentStoreFile.getIndexFile(dataFile).length() - 28) / 16;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    long[] ids = documentIds(5);
+    File dataFile = writeFile("0", ids);
+    assertTrue("The documents were not written in several blocks",
+        blockCount(dataFile) > 2);
+    DocumentStoreFile storeFile = new DocumentStoreFile(dataFile);
+    try {
+      assertEquals(ids.length, storeFile.getDocumentCount());
+      assertEquals(ids[0], storeFile.getFirstEntry());
+      assertEquals(ids[ids.length - 1], storeFile.getLastEntry());
+      // read the documents out of order, so that blocks are not just read
+      // one after the other
+      Random random = new Random(3);
+      for(int i = 0; i < ids.length; i++) {
+        long anId = ids[random.nextInt(ids.length)];
+        assertTrue(storeFile.containsDocument(anId));
+        assertDocument(anId, storeFile.getDocumentData(anId));
+      }
+      for(long anId : ids) {
+        assertDocument(anId, storeFile.getDocumentData(anId));
+        assertFalse(storeFile.containsDocument(anId + 1));
+      }
+      assertFalse(storeFile.containsDocument(0));
+      assertFalse(storeFile.containsDocument(ids[ids.length - 1] + 3));
+      try {
+        storeFile.getDocumentData(ids[0] + 1);
+        fail("Found a document that was never written");
+      } catch(NoSuchElementException e) {
+        // expected
+      }
+    } finally {
+      storeFile.close();
+    }
+  }
+
+  /**
+   * Strings containing unpaired surrogates, as well as NUL characters and
+   * valid surrogate pairs, are read back unchanged.
+   */
+  @Test
+  public void testUnpairedSurrogates() throws IOException {
+    String[] tokens = new String[] {"a\uD800b", "\uDC00", "\uD83D\uDE00",
+        "x\uDFFF\uD800", "\u0000", "\u07FF\u0800\uFFFF", ""};
+    String[] nonTokens = new String[] {" ", "\uD800", null, " ", "\uDBFF",
+        " ", null};
+    DocumentData document = new DocumentData("http://example.org/\uDC01",
+        "Title \uD801", tokens, nonTokens);
+    document.putMetadataField("field\uDFFE", "value");
+    DocumentData decoded = DocumentStoreFile.decode(
+        ByteBuffer.wrap(DocumentStoreFile.encode(document)));
+    assertEquals(document.getDocumentURI(), decoded.getDocumentURI());
+    assertEquals(document.getDocumentTitle(), decoded.getDocumentTitle());
+    assertArrayEquals(tokens, decoded.getTokens());
+    assertArrayEquals(nonTokens, decoded.getNonTokens());
+    assertEquals("value", decoded.getMetadataField("field\uDFFE"));
+    // and through a data file
+    File dataFile = new File(directory,
+        DocumentStoreFile.getDataFileName("0"));
+    DocumentStoreFile.Writer writer = new DocumentStoreFile.Writer(dataFile);
+    writer.write(7, DocumentStoreFile.encode(document));
+    writer.close();
+    DocumentStoreFile storeFile = new DocumentStoreFile(dataFile);
+    try {
+      decoded = storeFile.getDocumentData(7);
+      assertEquals(document.getDocumentTitle(), decoded.getDocumentTitle());
+      assertArrayEquals(tokens, decoded.getTokens());
+      assertArrayEquals(nonTokens, decoded.getNonTokens());
+    } finally {
+      storeFile.close();
+    }
+  }
+
+  /**
+   * A missing offset index is re-created from the data file, and an
+   * incomplete block at the end of the data file (as left by a crash while
+   * writing) is discarded.
+   */
+  @Test
+  public void testRebuildIndex() throws IOException {
+    long[] ids = documentIds(0);
+    File dataFile = writeFile("0", ids);
+    long blocks = blockCount(dataFile);
+    byte[] index = readFile(DocumentStoreFile.getIndexFile(dataFile));
+    // a missing index is re-created exactly as it was written
+    DocumentStoreFile.getIndexFile(dataFile).delete();
+    new DocumentStoreFile(dataFile).close();
+    assertArrayEquals(index, readFile(DocumentStoreFile.getIndexFile(dataFile)));
+    // truncate the last block
+    DocumentStoreFile.getIndexFile(dataFile).delete();
+    RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+    try {
+      raf.setLength(raf.length() - 10);
+    } finally {
+      raf.close();
+    }
+    DocumentStoreFile storeFile = new DocumentStoreFile(dataFile);
+    try {
+      assertEquals(blocks - 1, blockCount(dataFile));
+      assertTrue(storeFile.getDocumentCount() < ids.length);
+      assertEquals(ids[0], storeFile.getFirstEntry());
+      int count = storeFile.getDocumentCount();
+      assertEquals(ids[count - 1], storeFile.getLastEntry());
+      for(int i = 0; i < count; i++) {
+        assertDocument(ids[i], storeFile.getDocumentData(ids[i]));
+      }
+      assertFalse(storeFile.containsDocument(ids[count]));
+    } finally {
+      storeFile.close();
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] contents = new byte[(int)raf.length()];
+      raf.readFully(contents);
+      return contents;
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void testJoin() throws IOException {
+    long[] firstIds = documentIds(0);
+    long[] secondIds = documentIds(firstIds[firstIds.length - 1] + 1);
+    List<DocumentStoreFile> toJoin = new ArrayList<DocumentStoreFile>();
+    toJoin.add(new DocumentStoreFile(writeFile("0", firstIds)));
+    toJoin.add(new DocumentStoreFile(writeFile("1", secondIds)));
+    File joinedFile = new File(directory,
+        DocumentStoreFile.getDataFileName("0-1"));
+    DocumentStoreFile.join(toJoin, joinedFile);
+    DocumentStoreFile joined = new DocumentStoreFile(joinedFile);
+    try {
+      assertEquals(2 * DOCUMENTS, joined.getDocumentCount());
+      assertEquals(firstIds[0], joined.getFirstEntry());
+      assertEquals(secondIds[secondIds.length - 1], joined.getLastEntry());
+      for(long anId : firstIds) {
+        assertDocument(anId, joined.getDocumentData(anId));
+      }
+      for(long anId : secondIds) {
+        assertDocument(anId, joined.getDocumentData(anId));
+      }
+    } finally {
+      joined.close();
+    }
+    // joining a closed file fails, and leaves no partial output
+    toJoin.get(1).close();
+    File failedFile = new File(directory,
+        DocumentStoreFile.getDataFileName("2-3"));
+    try {
+      DocumentStoreFile.join(toJoin, failedFile);
+      fail("Joined a closed file");
+    } catch(IOException e) {
+      // expected
+    }
+    assertFalse(failedFile.exists());
+    toJoin.get(0).close();
+  }
+
+  /**
+   * Reading a block whose compressed data is truncated fails, instead of 
+   * waiting forever for more input.
+   */
+  @Test(timeout = 10000)
+  public void testTruncatedBlock() throws IOException {
+    long[] ids = documentIds(0);
+    File dataFile = writeFile("0", ids);
+    // shorten the compressed length of the first block
+    RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+    try {
+      raf.seek(12);
+      raf.writeInt(100);
+    } finally {
+      raf.close();
+    }
+    DocumentStoreFile storeFile = new DocumentStoreFile(dataFile);
+    try {
+      storeFile.getDocumentData(ids[0]);
+      fail("Read a document from a truncated block");
+    } catch(IOException e) {
+      // expected
+    } finally {
+      storeFile.close();
+    }
+  }
+
+  /**
+   * Files replaced by a compaction, but not deleted (e.g. because they were 
+   * still memory-mapped), are removed when the collection is opened again.
+   */
+  @Test
+  public void testReplacedFilesRemoved() throws IOException {
+    long[] firstIds = documentIds(0);
+    long[] secondIds = documentIds(firstIds[firstIds.length - 1] + 1);
+    List<DocumentStoreFile> toJoin = new ArrayList<DocumentStoreFile>();
+    File firstFile = writeFile("0", firstIds);
+    File secondFile = writeFile("1", secondIds);
+    toJoin.add(new DocumentStoreFile(firstFile));
+    toJoin.add(new DocumentStoreFile(secondFile));
+    DocumentStoreFile.join(toJoin, new File(directory,
+        DocumentStoreFile.getDataFileName("0-1")));
+    for(DocumentStoreFile aFile : toJoin) aFile.close();
+    DocumentCollection collection = new DocumentCollection(directory);
+    try {
+      assertEquals(1, collection.getArchiveCount());
+      assertFalse(firstFile.exists());
+      assertFalse(DocumentStoreFile.getIndexFile(firstFile).exists());
+      assertFalse(secondFile.exists());
+      assertDocument(firstIds[0], 
+          collection.getDocumentData(firstIds[0]));
+      assertDocument(secondIds[secondIds.length - 1], 
+          collection.getDocumentData(secondIds[secondIds.length - 1]));
+    } finally {
+      collection.close();
+    }
+  }
+
+  /**
+   * Documents can be read from a collection as soon as they are written,
+   * including while the file they were written to is still open, and after
+   * the collection has moved on to a new file.
+   */
+  @Test
+  public void testReadWhileWriting() throws Exception {
+    DocumentCollection collection = new DocumentCollection(directory);
+    Random random = new Random(11);
+    // enough documents to fill several files
+    int documents = 2500;
+    try {
+      for(int i = 0; i < documents; i++) {
+        collection.writeDocument(document(i));
+        assertDocument(i, collection.getDocumentData(i));
+        long earlier = random.nextInt(i + 1);
+        assertDocument(earlier, collection.getDocumentData(earlier));
+      }
+      assertTrue("All documents were written to the same file",
+          collection.getArchiveCount() > 1);
+      try {
+        collection.getDocumentData(documents);
+        fail("Found a document that was never written");
+      } catch(NoSuchElementException e) {
+        // expected
+      }
+    } finally {
+      collection.close();
+    }
+    File[] dataFiles = directory.listFiles(DocumentStoreFile.FILENAME_FILTER);
+    collection = new DocumentCollection(directory);
+    try {
+      assertEquals(dataFiles.length, collection.getArchiveCount());
+      for(int i = 0; i < documents; i++) {
+        assertDocument(i, collection.getDocumentData(i));
+      }
+    } finally {
+      collection.close();
+    }
+  }
+}
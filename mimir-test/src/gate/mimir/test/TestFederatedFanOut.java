@@ -0,0 +1,334 @@
+/*
+ *  TestFederatedFanOut.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import gate.mimir.search.FederatedFanOut;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A JUnit test class for {@link FederatedFanOut}, using in-process requests
+ * standing in for the sub-indexes of a federated index.
+ */
+public class TestFederatedFanOut {
+
+  /**
+   * A request to a sub-index that answers with a given value, after a given
+   * delay.
+   */
+  private static class SubIndexRequest implements Callable<Integer> {
+    private final int value;
+
+    private final long delay;
+
+    private final Exception error;
+
+    public SubIndexRequest(int value, long delay) {
+      this(value, delay, null);
+    }
+
+    public SubIndexRequest(int value, long delay, Exception error) {
+      this.value = value;
+      this.delay = delay;
+      this.error = error;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+      if(delay > 0) Thread.sleep(delay);
+      if(error != null) throw error;
+      return value;
+    }
+  }
+
+  /**
+   * A handler recording the answers, and the discarded answers.
+   */
+  private static class RecordingHandler
+      implements FederatedFanOut.Handler<Integer> {
+
+    final Map<Integer, Integer> answers =
+        Collections.synchronizedMap(new TreeMap<Integer, Integer>());
+
+    final Map<Integer, Integer> discarded =
+        Collections.synchronizedMap(new TreeMap<Integer, Integer>());
+
+    final CountDownLatch discardedLatch;
+
+    final Thread callingThread = Thread.currentThread();
+
+    volatile boolean answeredInOtherThread = false;
+
+    public RecordingHandler(int expectedDiscards) {
+      discardedLatch = new CountDownLatch(expectedDiscards);
+    }
+
+    @Override
+    public void answer(int subIndex, Integer answer) throws Exception {
+      if(Thread.currentThread() != callingThread) answeredInOtherThread = true;
+      answers.put(subIndex, answer);
+    }
+
+    @Override
+    public void discard(int subIndex, Integer answer) {
+      discarded.put(subIndex, answer);
+      discardedLatch.countDown();
+    }
+  }
+
+  private ExecutorService executor;
+
+  @Before
+  public void createExecutor() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  private static List<Callable<Integer>> requests(Callable<Integer>... reqs) {
+    List<Callable<Integer>> requests = new ArrayList<Callable<Integer>>();
+    Collections.addAll(requests, reqs);
+    return requests;
+  }
+
+  private static Map<Integer, Integer> answers(int... subIndexAndValue) {
+    Map<Integer, Integer> answers = new TreeMap<Integer, Integer>();
+    for(int i = 0; i < subIndexAndValue.length; i += 2) {
+      answers.put(subIndexAndValue[i], subIndexAndValue[i + 1]);
+    }
+    return answers;
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testAllAnswer() throws Exception {
+    RecordingHandler handler = new RecordingHandler(0);
+    new FederatedFanOut<Integer>(executor, 0, false).run(requests(
+        new SubIndexRequest(10, 50), new SubIndexRequest(11, 0),
+        new SubIndexRequest(12, 20), new SubIndexRequest(13, 0),
+        new SubIndexRequest(14, 10)), handler);
+    assertEquals(answers(0, 10, 1, 11, 2, 12, 3, 13, 4, 14), handler.answers);
+    assertTrue("Answers must be handed over in the calling thread",
+        !handler.answeredInOtherThread);
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testTimeoutWithPartialResults() throws Exception {
+    RecordingHandler handler = new RecordingHandler(1);
+    long start = System.currentTimeMillis();
+    new FederatedFanOut<Integer>(executor, 200, true).run(requests(
+        new SubIndexRequest(10, 0), new SubIndexRequest(11, 2000),
+        new SubIndexRequest(12, 0)), handler);
+    assertTrue("The fan-out did not time out",
+        System.currentTimeMillis() - start < 1500);
+    assertEquals(answers(0, 10, 2, 12), handler.answers);
+    // the late answer is discarded
+    assertTrue("The late answer was not discarded",
+        handler.discardedLatch.await(5, TimeUnit.SECONDS));
+    assertEquals(answers(1, 11), handler.discarded);
+    assertEquals(answers(0, 10, 2, 12), handler.answers);
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testTimeoutWithoutPartialResults() throws Exception {
+    RecordingHandler handler = new RecordingHandler(1);
+    try {
+      new FederatedFanOut<Integer>(executor, 200, false).run(requests(
+          new SubIndexRequest(10, 0), new SubIndexRequest(11, 2000)),
+          handler);
+      fail("No exception thrown after timeout");
+    } catch(TimeoutException e) {
+      // expected
+    }
+    assertTrue("The late answer was not discarded",
+        handler.discardedLatch.await(5, TimeUnit.SECONDS));
+    assertEquals(answers(1, 11), handler.discarded);
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testTimeoutOfAllSubIndexes() throws Exception {
+    RecordingHandler handler = new RecordingHandler(2);
+    try {
+      new FederatedFanOut<Integer>(executor, 100, true).run(requests(
+          new SubIndexRequest(10, 1000), new SubIndexRequest(11, 1000)),
+          handler);
+      fail("No exception thrown when no sub-index answered");
+    } catch(TimeoutException e) {
+      // expected
+    }
+    assertTrue("The late answers were not discarded",
+        handler.discardedLatch.await(5, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Answers that arrive while the handler is still busy past the deadline
+   * must still be handed over, rather than being waited for forever.
+   */
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testSlowHandlerPastDeadline() throws Exception {
+    RecordingHandler handler = new RecordingHandler(0) {
+      @Override
+      public void answer(int subIndex, Integer answer) throws Exception {
+        Thread.sleep(300);
+        super.answer(subIndex, answer);
+      }
+    };
+    new FederatedFanOut<Integer>(executor, 100, false).run(requests(
+        new SubIndexRequest(10, 0), new SubIndexRequest(11, 0),
+        new SubIndexRequest(12, 0)), handler);
+    assertEquals(answers(0, 10, 1, 11, 2, 12), handler.answers);
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testErrorWithoutPartialResults() throws Exception {
+    IOException error = new IOException("Sub-index failure");
+    RecordingHandler handler = new RecordingHandler(0);
+    try {
+      new FederatedFanOut<Integer>(executor, 0, false).run(requests(
+          new SubIndexRequest(10, 0), new SubIndexRequest(11, 50, error),
+          new SubIndexRequest(12, 0)), handler);
+      fail("The sub-index error was not propagated");
+    } catch(IOException e) {
+      assertSame(error, e);
+    }
+  }
+
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testErrorWithPartialResults() throws Exception {
+    RecordingHandler handler = new RecordingHandler(0);
+    new FederatedFanOut<Integer>(executor, 0, true).run(requests(
+        new SubIndexRequest(10, 0),
+        new SubIndexRequest(11, 50, new IOException("Sub-index failure")),
+        new SubIndexRequest(12, 0)), handler);
+    assertEquals(answers(0, 10, 2, 12), handler.answers);
+    // when all sub-indexes fail, the first error is propagated
+    IOException error = new IOException("First failure");
+    try {
+      new FederatedFanOut<Integer>(executor, 0, true).run(requests(
+          new SubIndexRequest(10, 0, error),
+          new SubIndexRequest(11, 200, new IOException("Second failure"))),
+          new RecordingHandler(0));
+      fail("The sub-index error was not propagated");
+    } catch(IOException e) {
+      assertSame(error, e);
+    }
+  }
+
+  /**
+   * When the handler fails, the answers that were not handed over yet, and
+   * the ones arriving later, are discarded.
+   */
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testHandlerError() throws Exception {
+    final IllegalStateException error = new IllegalStateException();
+    RecordingHandler handler = new RecordingHandler(1) {
+      @Override
+      public void answer(int subIndex, Integer answer) throws Exception {
+        super.answer(subIndex, answer);
+        throw error;
+      }
+    };
+    // the second request must have started when the first one answers, or 
+    // it would be abandoned without producing an answer
+    final CountDownLatch started = new CountDownLatch(1);
+    Callable<Integer> first = new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        started.await();
+        return 10;
+      }
+    };
+    Callable<Integer> second = new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        started.countDown();
+        Thread.sleep(500);
+        return 11;
+      }
+    };
+    try {
+      new FederatedFanOut<Integer>(executor, 0, false).run(requests(first, 
+          second), handler);
+      fail("The handler error was not propagated");
+    } catch(IllegalStateException e) {
+      assertSame(error, e);
+    }
+    assertEquals(answers(0, 10), handler.answers);
+    assertTrue("The late answer was not discarded",
+        handler.discardedLatch.await(5, TimeUnit.SECONDS));
+    assertEquals(answers(1, 11), handler.discarded);
+  }
+
+  /**
+   * Federated indexes containing federated indexes run nested fan-outs,
+   * which must not wait for the threads held by the outer fan-out.
+   */
+  @Test(timeout = 10000)
+  @SuppressWarnings("unchecked")
+  public void testNestedFanOut() throws Exception {
+    final ExecutorService singleThread = Executors.newSingleThreadExecutor();
+    try {
+      List<Callable<Integer>> outerRequests = new ArrayList<Callable<Integer>>();
+      for(int i = 0; i < 2; i++) {
+        final int outer = i;
+        outerRequests.add(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            RecordingHandler inner = new RecordingHandler(0);
+            new FederatedFanOut<Integer>(singleThread, 0, false).run(
+                requests(new SubIndexRequest(outer * 10, 0),
+                    new SubIndexRequest(outer * 10 + 1, 0)), inner);
+            int sum = 0;
+            for(int value : inner.answers.values()) sum += value;
+            return sum;
+          }
+        });
+      }
+      RecordingHandler handler = new RecordingHandler(0);
+      new FederatedFanOut<Integer>(singleThread, 0, false).run(outerRequests,
+          handler);
+      assertEquals(answers(0, 1, 1, 21), handler.answers);
+    } finally {
+      singleThread.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ *  TestFederatedQueryRunner.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import gate.mimir.search.EmptyQueryRunner;
+import gate.mimir.search.FederatedQueryRunner;
+import gate.mimir.search.QueryRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A JUnit test class for the merging of results in
+ * {@link FederatedQueryRunner}, using in-process sub-runners standing in for
+ * the sub-indexes. The merged order is checked against a straightforward
+ * linear scan of the sub-runners for each rank, which takes the sub-runner
+ * with the best next score and, when several have the same score, the first
+ * one after the previously chosen sub-runner.
+ */
+public class TestFederatedQueryRunner {
+
+  /**
+   * A sub-runner with a fixed list of (non-increasing) document scores. The
+   * document at rank <code>r</code> has the ID <code>2r + 1</code>.
+   */
+  private static class StubQueryRunner extends EmptyQueryRunner {
+    protected final double[] scores;
+
+    /**
+     * The rank whose score fails to be fetched the first time it is
+     * requested, or -1.
+     */
+    private final long failingRank;
+
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    public StubQueryRunner(double[] scores) {
+      this(scores, -1);
+    }
+
+    public StubQueryRunner(double[] scores, long failingRank) {
+      this.scores = scores;
+      this.failingRank = failingRank;
+    }
+
+    @Override
+    public long getDocumentsCount() {
+      return scores.length;
+    }
+
+    @Override
+    public long getDocumentsCountSync() {
+      return scores.length;
+    }
+
+    @Override
+    public long getDocumentsCurrentCount() {
+      return scores.length;
+    }
+
+    @Override
+    public long getDocumentID(long rank) throws IndexOutOfBoundsException,
+        IOException {
+      checkRank(rank);
+      return 2 * rank + 1;
+    }
+
+    @Override
+    public double getDocumentScore(long rank)
+        throws IndexOutOfBoundsException, IOException {
+      checkRank(rank);
+      if(rank == failingRank && failed.compareAndSet(false, true)) {
+        throw new IOException("Failed to fetch the score for rank " + rank);
+      }
+      return scores[(int)rank];
+    }
+
+    private void checkRank(long rank) {
+      if(rank < 0 || rank >= scores.length) {
+        throw new IndexOutOfBoundsException("No document at rank " + rank);
+      }
+    }
+  }
+
+  private ExecutorService executor;
+
+  @Before
+  public void createExecutor() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Generates non-increasing scores, taken from a small set of values, so
+   * that there are many equal scores, both inside and across sub-runners.
+   */
+  private static double[] scores(Random random, int count) {
+    double[] scores = new double[count];
+    for(int i = 0; i < count; i++) scores[i] = random.nextInt(6) * 0.5;
+    Arrays.sort(scores);
+    // reverse, for decreasing order
+    for(int i = 0; i < count / 2; i++) {
+      double tmp = scores[i];
+      scores[i] = scores[count - 1 - i];
+      scores[count - 1 - i] = tmp;
+    }
+    return scores;
+  }
+
+  /**
+   * Merges the sub-runner results by scanning all the sub-runners for each
+   * rank.
+   * @return the federated document IDs, in rank order.
+   */
+  private static long[] linearScanOrder(double[][] subScores) {
+    int subRunnersCount = subScores.length;
+    int total = 0;
+    for(double[] someScores : subScores) total += someScores.length;
+    long[] ids = new long[total];
+    int[] nextRank = new int[subRunnersCount];
+    int best = -1;
+    for(int rank = 0; rank < total; rank++) {
+      // start with the sub-runner after the previously chosen one
+      int first = (best + 1) % subRunnersCount;
+      best = -1;
+      double maxScore = Double.NEGATIVE_INFINITY;
+      for(int j = 0; j < subRunnersCount; j++) {
+        int i = (first + j) % subRunnersCount;
+        if(nextRank[i] < subScores[i].length &&
+           (best < 0 || subScores[i][nextRank[i]] > maxScore)) {
+          best = i;
+          maxScore = subScores[i][nextRank[i]];
+        }
+      }
+      ids[rank] = (2L * nextRank[best] + 1) * subRunnersCount + best;
+      nextRank[best]++;
+    }
+    return ids;
+  }
+
+  private FederatedQueryRunner federatedRunner(double[][] subScores,
+      int failingSubRunner, long failingRank) {
+    QueryRunner[] subRunners = new QueryRunner[subScores.length];
+    for(int i = 0; i < subRunners.length; i++) {
+      subRunners[i] = subScores[i].length == 0 ? new EmptyQueryRunner() :
+          new StubQueryRunner(subScores[i],
+              i == failingSubRunner ? failingRank : -1);
+    }
+    return new FederatedQueryRunner(subRunners, executor);
+  }
+
+  private static void assertOrder(long[] expected, QueryRunner runner)
+      throws IOException {
+    assertEquals(expected.length, runner.getDocumentsCount());
+    for(int rank = 0; rank < expected.length; rank++) {
+      assertEquals("Wrong document at rank " + rank, expected[rank],
+          runner.getDocumentID(rank));
+    }
+    try {
+      runner.getDocumentID(expected.length);
+      fail("Found a document after the last rank");
+    } catch(IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testMergeOrder() throws IOException {
+    Random random = new Random(7);
+    // several blocks of scores for some of the sub-runners, and one empty
+    // sub-runner
+    double[][] subScores = new double[][] {scores(random, 2500),
+        new double[0], scores(random, 700), scores(random, 3100)};
+    long[] expected = linearScanOrder(subScores);
+    FederatedQueryRunner runner = federatedRunner(subScores, -1, -1);
+    try {
+      assertOrder(expected, runner);
+    } finally {
+      runner.close();
+    }
+    // asking for a late rank first merges all the ranks before it
+    runner = federatedRunner(subScores, -1, -1);
+    try {
+      assertEquals(expected[5000], runner.getDocumentID(5000));
+      assertOrder(expected, runner);
+    } finally {
+      runner.close();
+    }
+  }
+
+  /**
+   * When all the scores are equal, the sub-runners take turns.
+   */
+  @Test(timeout = 30000)
+  public void testEqualScores() throws IOException {
+    double[][] subScores = new double[3][];
+    int[] sizes = new int[] {4, 2, 3};
+    for(int i = 0; i < sizes.length; i++) {
+      subScores[i] = new double[sizes[i]];
+      Arrays.fill(subScores[i], 1.0);
+    }
+    // sub-runner and sub-rank for each rank
+    int[][] turns = new int[][] {{0, 0}, {1, 0}, {2, 0}, {0, 1}, {1, 1},
+        {2, 1}, {0, 2}, {2, 2}, {0, 3}};
+    List<Long> expected = new ArrayList<Long>();
+    for(int[] aTurn : turns) {
+      expected.add((2L * aTurn[1] + 1) * subScores.length + aTurn[0]);
+    }
+    long[] scanOrder = linearScanOrder(subScores);
+    for(int i = 0; i < scanOrder.length; i++) {
+      assertEquals(expected.get(i).longValue(), scanOrder[i]);
+    }
+    FederatedQueryRunner runner = federatedRunner(subScores, -1, -1);
+    try {
+      assertOrder(scanOrder, runner);
+    } finally {
+      runner.close();
+    }
+  }
+
+  /**
+   * A score fetch that fails is reported, and the merge carries on
+   * correctly when the same rank is requested again.
+   */
+  @Test(timeout = 30000)
+  public void testScoreFetchFailure() throws IOException {
+    Random random = new Random(13);
+    double[][] subScores = new double[][] {scores(random, 1800),
+        scores(random, 2600), scores(random, 900)};
+    long[] expected = linearScanOrder(subScores);
+    // failures in the first block of scores, and in a later block
+    for(long failingRank : new long[] {5, 1500}) {
+      FederatedQueryRunner runner = federatedRunner(subScores, 1,
+          failingRank);
+      try {
+        int failures = 0;
+        for(int rank = 0; rank < expected.length; rank++) {
+          long documentId;
+          try {
+            documentId = runner.getDocumentID(rank);
+          } catch(IOException e) {
+            failures++;
+            // the second attempt succeeds
+            documentId = runner.getDocumentID(rank);
+          }
+          assertEquals("Wrong document at rank " + rank, expected[rank],
+              documentId);
+        }
+        assertEquals(1, failures);
+        assertOrder(expected, runner);
+      } finally {
+        runner.close();
+      }
+    }
+  }
+}
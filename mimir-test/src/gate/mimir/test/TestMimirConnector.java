@@ -0,0 +1,207 @@
+/*
+ *  TestMimirConnector.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.mimir.index.MimirConnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for the handling of upload errors by {@link MimirConnector}. The
+ * server is an in-process HTTP server that can be made to fail uploads.
+ */
+public class TestMimirConnector {
+
+  private static HttpServer server;
+
+  private static String indexUrl;
+
+  /**
+   * Should the server reject the uploads?
+   */
+  private static volatile boolean failUploads;
+
+  /**
+   * The number of uploads received by the server, including failed ones.
+   */
+  private static final AtomicInteger uploads = new AtomicInteger();
+
+  private static Document document;
+
+  private MimirConnector connector;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+    document = Factory.newDocument("some text");
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    indexUrl = "http://127.0.0.1:" + server.getAddress().getPort() +
+        "/index/";
+    server.createContext("/index/manage/indexUrl", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, indexUrl + "manage/addDocuments");
+      }
+    });
+    server.createContext("/index/manage/addDocuments", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        while(in.read(new byte[4096]) >= 0) {
+          // discard the documents
+        }
+        uploads.incrementAndGet();
+        respond(exchange, failUploads ? 500 : 200, "");
+      }
+    });
+    server.start();
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    if(server != null) server.stop(0);
+    if(document != null) Factory.deleteResource(document);
+  }
+
+  private static void respond(HttpExchange exchange, int code, String text)
+      throws IOException {
+    byte[] body = text.getBytes("UTF-8");
+    exchange.sendResponseHeaders(code, body.length > 0 ? body.length : -1);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    failUploads = false;
+    uploads.set(0);
+    // each document is sent in its own batch, as soon as it is submitted
+    connector = new MimirConnector(new URL(indexUrl));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    failUploads = false;
+    try {
+      connector.close();
+    } catch(IOException e) {
+      // the tests leave failed batches behind
+    }
+  }
+
+  /**
+   * Waits until the given number of batches have failed to upload.
+   */
+  private void awaitFailedBatches(int count) throws InterruptedException {
+    for(int i = 0; i < 500 && connector.getFailedBatchCount() < count; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, connector.getFailedBatchCount());
+  }
+
+  /**
+   * A failed batch is not sent again until asked to, and the error is
+   * reported once, to the next thread submitting a document.
+   */
+  @Test
+  public void testFailedBatchesKept() throws Exception {
+    failUploads = true;
+    connector.sendToMimir(document, "http://example.org/doc0");
+    awaitFailedBatches(1);
+    failUploads = false;
+    try {
+      connector.sendToMimir(document, "http://example.org/doc1");
+      fail("The upload error was not reported");
+    } catch(IOException e) {
+      // expected
+    }
+    connector.sendToMimir(document, "http://example.org/doc1");
+    connector.sendToMimir(document, "http://example.org/doc2");
+    try {
+      connector.close();
+      fail("Closing did not report the failed batch");
+    } catch(IOException e) {
+      // expected
+    }
+    assertEquals("A failed batch was sent again", 3, uploads.get());
+    assertEquals(1, connector.getFailedBatchCount());
+    // the batch can still be sent after the connector has been closed
+    assertEquals(1, connector.retryFailedBatches());
+    assertEquals(0, connector.getFailedBatchCount());
+    assertEquals(4, uploads.get());
+  }
+
+  /**
+   * Closing the connector fails while some batches have not been delivered,
+   * but not once they have been sent again, even if the error was never
+   * reported.
+   */
+  @Test
+  public void testCloseAfterRetry() throws Exception {
+    failUploads = true;
+    connector.sendToMimir(document, "http://example.org/doc0");
+    awaitFailedBatches(1);
+    // the retry fails too, and the batch is kept
+    try {
+      connector.retryFailedBatches();
+      fail("The upload error was not reported");
+    } catch(IOException e) {
+      // expected
+    }
+    assertEquals(1, connector.getFailedBatchCount());
+    failUploads = false;
+    assertEquals(1, connector.retryFailedBatches());
+    connector.sendToMimir(document, "http://example.org/doc1");
+    connector.close();
+    assertEquals(4, uploads.get());
+  }
+
+  @Test
+  public void testCloseWithFailedBatches() throws Exception {
+    failUploads = true;
+    connector.sendToMimir(document, "http://example.org/doc0");
+    try {
+      connector.close();
+      fail("Closing did not report the failed batch");
+    } catch(IOException e) {
+      // expected
+    }
+    assertEquals(1, uploads.get());
+    assertEquals(1, connector.getFailedBatchCount());
+  }
+}
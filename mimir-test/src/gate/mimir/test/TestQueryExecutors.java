@@ -0,0 +1,312 @@
+/*
+ *  TestQueryExecutors.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import gate.Gate;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.AndQuery;
+import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.ContainsQuery;
+import gate.mimir.search.query.HitBuffer;
+import gate.mimir.search.query.MinusQuery;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.RepeatsQuery;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.search.query.WithinQuery;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for the query executors, run against a small index of generated
+ * documents.
+ */
+public class TestQueryExecutors {
+
+  private static File indexDir;
+
+  private static MimirIndex index;
+
+  private static QueryEngine engine;
+
+  private static File emptyIndexDir;
+
+  private static MimirIndex emptyIndex;
+
+  private static File phraseIndexDir;
+
+  private static MimirIndex phraseIndex;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+
+    indexDir = File.createTempFile("mimir-index", null);
+    indexDir.delete();
+    index = new MimirIndex(TestUtils.getTokenIndexConfig(indexDir));
+    // two batches, so the queries run on a cluster of indexes
+    TestUtils.indexTokens(index, "http://example.org/doc0", "a b c");
+    for(Future<Long> aFuture : index.requestSyncToDisk()) aFuture.get();
+    TestUtils.indexTokens(index, "http://example.org/doc1", "c a b a");
+    index.close();
+    index = new MimirIndex(indexDir);
+    engine = index.getQueryEngine();
+
+    emptyIndexDir = File.createTempFile("mimir-index", null);
+    emptyIndexDir.delete();
+    emptyIndex = new MimirIndex(TestUtils.getTokenIndexConfig(emptyIndexDir));
+
+    phraseIndexDir = File.createTempFile("mimir-index", null);
+    phraseIndexDir.delete();
+    phraseIndex = new MimirIndex(TestUtils.getTokenIndexConfig(phraseIndexDir));
+    // repeated terms, and phrases that overlap themselves
+    TestUtils.indexTokens(phraseIndex, "http://example.org/doc0", "a a a a");
+    TestUtils.indexTokens(phraseIndex, "http://example.org/doc1",
+        "a b a b a b c");
+    Random random = new Random(5);
+    for(int d = 2; d < 60; d++) {
+      StringBuilder text = new StringBuilder();
+      int length = 1 + random.nextInt(40);
+      for(int i = 0; i < length; i++) {
+        if(i > 0) text.append(' ');
+        text.append(random.nextInt(4) == 0 ? "c" : 
+            (random.nextBoolean() ? "a" : "b"));
+      }
+      TestUtils.indexTokens(phraseIndex, "http://example.org/doc" + d,
+          text.toString());
+      if(d % 20 == 0) {
+        for(Future<Long> aFuture : phraseIndex.requestSyncToDisk()) {
+          aFuture.get();
+        }
+      }
+    }
+    phraseIndex.close();
+    phraseIndex = new MimirIndex(phraseIndexDir);
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    if(index != null) index.close();
+    if(emptyIndex != null) emptyIndex.close();
+    if(phraseIndex != null) phraseIndex.close();
+    for(File aDir : new File[] {indexDir, emptyIndexDir, phraseIndexDir}) {
+      if(aDir != null && !TestUtils.deleteDir(aDir)) {
+        System.err.println("Could not delete index directory " + aDir);
+      }
+    }
+  }
+
+  /**
+   * Asking for hits once the documents are exhausted gives no hits.
+   */
+  @Test
+  public void testTermHitsAfterLastDocument() throws Exception {
+    QueryExecutor executor = new TermQuery("string", "a")
+        .getQueryExecutor(engine);
+    try {
+      assertEquals(0, executor.nextDocument(-1));
+      assertNotNull(executor.nextHit());
+      assertEquals(1, executor.nextDocument(-1));
+      assertNotNull(executor.nextHit());
+      assertEquals(-1, executor.nextDocument(-1));
+      assertNull(executor.nextHit());
+      assertNull(executor.nextHit());
+    } finally {
+      executor.close();
+    }
+  }
+
+  /**
+   * Skipping straight to the last document of an index made of several 
+   * batches finds it.
+   */
+  @Test
+  public void testSkipToLastDocument() throws Exception {
+    QueryExecutor executor = new TermQuery("string", "a")
+        .getQueryExecutor(engine);
+    try {
+      assertEquals(1, executor.nextDocument(0));
+      assertNotNull(executor.nextHit());
+    } finally {
+      executor.close();
+    }
+  }
+
+  /**
+   * A term query on an index with no documents on disk finds no hits.
+   */
+  @Test
+  public void testTermHitsOnEmptyIndex() throws Exception {
+    QueryExecutor executor = new TermQuery("string", "a")
+        .getQueryExecutor(emptyIndex.getQueryEngine());
+    try {
+      assertNull(executor.nextHit());
+      assertEquals(-1, executor.nextDocument(-1));
+      assertNull(executor.nextHit());
+    } finally {
+      executor.close();
+    }
+  }
+
+  /**
+   * Creates a sequence query with no gaps.
+   * @param wrapTerms if <code>true</code>, each term is wrapped in an 
+   * {@link OrQuery}, so the sequence is no longer recognised as an exact 
+   * phrase, and the general sequence matcher is used.
+   */
+  private static QueryNode phrase(boolean wrapTerms, String... terms) {
+    QueryNode[] nodes = new QueryNode[terms.length];
+    for(int i = 0; i < terms.length; i++) {
+      nodes[i] = new TermQuery("string", terms[i]);
+      if(wrapTerms) nodes[i] = new OrQuery(nodes[i]);
+    }
+    return new SequenceQuery(null, nodes);
+  }
+
+  /**
+   * Exact phrases give the same hits as the general sequence matcher, with 
+   * and without sub-bindings.
+   */
+  @Test
+  public void testPhraseHits() throws Exception {
+    QueryEngine phraseEngine = phraseIndex.getQueryEngine();
+    String[][] phrases = {
+      {"a", "a"}, {"a", "a", "a"}, {"a", "b"}, {"a", "b", "a"}, 
+      {"a", "b", "a", "b"}, {"b", "a", "b", "c"}, {"c", "c"}, {"a", "d"}
+    };
+    boolean subBindings = phraseEngine.isSubBindingsEnabled();
+    try {
+      for(String[] terms : phrases) {
+        phraseEngine.setSubBindingsEnabled(false);
+        List<String> hits = TestUtils.getHits(phrase(false, terms), 
+            phraseEngine);
+        String message = "Different hits for " + Arrays.toString(terms);
+        assertEquals(message, TestUtils.getHits(phrase(true, terms), 
+            phraseEngine), hits);
+        phraseEngine.setSubBindingsEnabled(true);
+        assertEquals(message, TestUtils.getHits(phrase(false, terms), 
+            phraseEngine), hits);
+      }
+      // overlapping occurrences of the same phrase are all found
+      phraseEngine.setSubBindingsEnabled(false);
+      List<String> hits = TestUtils.getHits(phrase(false, "a", "a"), 
+          phraseEngine);
+      assertEquals(Arrays.asList("0, 0, 2", "0, 1, 2", "0, 2, 2"), 
+          hits.subList(0, 3));
+      hits = TestUtils.getHits(phrase(false, "a", "b", "a", "b"), 
+          phraseEngine);
+      assertEquals(Arrays.asList("1, 0, 4", "1, 2, 4"), hits.subList(0, 2));
+    } finally {
+      phraseEngine.setSubBindingsEnabled(subBindings);
+    }
+  }
+
+  /**
+   * Gets the hits of a query, as strings containing the document ID, term
+   * position and length, in the order in which they are returned.
+   * @param useBuffer whether the hits should be obtained from
+   * {@link QueryExecutor#nextHits(HitBuffer)}. If <code>true</code>, the
+   * first hit on each document is still obtained from
+   * {@link QueryExecutor#nextHit()} when <code>firstHitAsBinding</code> is
+   * set, so the remaining hits come from the buffer.
+   */
+  private static List<String> getHits(QueryNode query, QueryEngine engine,
+      boolean useBuffer, boolean firstHitAsBinding) throws Exception {
+    List<String> hits = new ArrayList<String>();
+    QueryExecutor executor = query.getQueryExecutor(engine);
+    try {
+      HitBuffer buffer = new HitBuffer();
+      long docId = executor.nextDocument(-1);
+      while(docId != -1) {
+        Binding aHit = !useBuffer || firstHitAsBinding ? 
+            executor.nextHit() : null;
+        while(aHit != null) {
+          hits.add(docId + ", " + aHit.getTermPosition() + ", " + 
+              aHit.getLength());
+          aHit = useBuffer ? null : executor.nextHit();
+        }
+        if(useBuffer) {
+          buffer.clear();
+          executor.nextHits(buffer);
+          for(int i = 0; i < buffer.size(); i++) {
+            hits.add(docId + ", " + buffer.getTermPosition(i) + ", " + 
+                buffer.getLength(i));
+          }
+        }
+        docId = executor.nextDocument(-1);
+      }
+    } finally {
+      executor.close();
+    }
+    return hits;
+  }
+
+  /**
+   * The executors that fill the hit buffer directly give the same hits, in 
+   * the same order, as their {@link Binding}s, including when some hits were 
+   * already returned as {@link Binding}s.
+   */
+  @Test
+  public void testHitBuffer() throws Exception {
+    QueryEngine phraseEngine = phraseIndex.getQueryEngine();
+    QueryNode a = new TermQuery("string", "a");
+    QueryNode b = new TermQuery("string", "b");
+    QueryNode c = new TermQuery("string", "c");
+    QueryNode[] queries = {
+      new OrQuery(a, b), new OrQuery(a, a, c), 
+      new OrQuery(phrase(false, "a", "b"), phrase(false, "b", "a")),
+      new AndQuery(a, c), new AndQuery(a, b, c), new AndQuery(a, a),
+      new AndQuery(new OrQuery(a, b), phrase(false, "c", "a")),
+      new RepeatsQuery(a, 1, 3), 
+      new RepeatsQuery(phrase(false, "a", "b"), 2, 2),
+      new WithinQuery(b, phrase(false, "a", "b", "a")),
+      new ContainsQuery(phrase(false, "a", "b", "a"), b),
+      new MinusQuery(new OrQuery(a, b), b),
+      new MinusQuery(phrase(false, "a", "b"), phrase(false, "a", "b", "c"))
+    };
+    boolean subBindings = phraseEngine.isSubBindingsEnabled();
+    try {
+      for(boolean enabled : new boolean[] {false, true}) {
+        phraseEngine.setSubBindingsEnabled(enabled);
+        for(QueryNode aQuery : queries) {
+          List<String> expected = getHits(aQuery, phraseEngine, false, false);
+          assertFalse("No hits for " + aQuery, expected.isEmpty());
+          assertEquals("Different hits for " + aQuery, expected, 
+              getHits(aQuery, phraseEngine, true, false));
+          assertEquals("Different left-over hits for " + aQuery, expected, 
+              getHits(aQuery, phraseEngine, true, true));
+        }
+      }
+    } finally {
+      phraseEngine.setSubBindingsEnabled(subBindings);
+    }
+  }
+}
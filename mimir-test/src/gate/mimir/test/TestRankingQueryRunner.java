@@ -0,0 +1,536 @@
+/*
+ *  TestRankingQueryRunner.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gate.Gate;
+import gate.mimir.MimirIndex;
+import gate.mimir.search.FederatedQueryRunner;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.QueryRunner;
+import gate.mimir.search.RankingQueryRunnerImpl;
+import gate.mimir.search.ResultsPage;
+import gate.mimir.search.query.AndQuery;
+import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.GapQuery;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryExecutor;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.search.query.SequenceQuery;
+import gate.mimir.search.query.TermQuery;
+import gate.mimir.search.score.BindingScorer;
+import gate.mimir.search.score.DelegatingScoringQueryExecutor;
+import gate.mimir.search.score.MimirScorer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RankingQueryRunnerImpl}: the optimised ways of collecting
+ * the results must give the same ranking as scoring every document, one at a
+ * time.
+ */
+public class TestRankingQueryRunner {
+
+  private static final String[] WORDS = {"the", "of", "and", "alpha", "beta",
+    "gamma", "delta", "epsilon"};
+
+  private static final int DOCUMENTS = 300;
+
+  /**
+   * A word added once to every third document, so all the documents
+   * matching it have the same score.
+   */
+  private static final String MARKER = "marker";
+
+  /**
+   * A small block size, so that most documents are outside the first block.
+   */
+  private static final int BLOCK_SIZE = 10;
+
+  private static File indexDir;
+
+  private static MimirIndex index;
+
+  private static QueryEngine engine;
+
+  /**
+   * The number of partitions used by {@link TestQueryRunner}s, or 0 to let
+   * them decide based on the size of the index.
+   */
+  private static volatile int partitionCount = 0;
+
+  /**
+   * Query runner that exposes the number of documents not scored while the
+   * document IDs were collected, and the number of documents found when the
+   * first block was ranked, and that can split small indexes into
+   * partitions.
+   */
+  private static class TestQueryRunner extends RankingQueryRunnerImpl {
+    private volatile long firstBlockRankedAt = -1;
+
+    public TestQueryRunner(QueryExecutor executor, MimirScorer scorer)
+        throws IOException {
+      super(executor, scorer);
+    }
+
+    public long getUnscoredDocuments() {
+      return unscoredDocuments;
+    }
+
+    /**
+     * Gets the number of documents that had been found when the first block
+     * was ranked, or -1 if it has not been ranked yet.
+     */
+    public long getFirstBlockRankedAt() {
+      return firstBlockRankedAt;
+    }
+
+    @Override
+    protected void rankDocuments(long rank) throws IOException {
+      synchronized(documentsOrder) {
+        if(firstBlockRankedAt < 0) firstBlockRankedAt = documentIds.size64();
+      }
+      super.rankDocuments(rank);
+    }
+
+    @Override
+    protected int getPartitionCount() {
+      return partitionCount > 0 ? partitionCount : super.getPartitionCount();
+    }
+  }
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+
+    indexDir = File.createTempFile("mimir-index", null);
+    indexDir.delete();
+    index = new MimirIndex(TestUtils.getTokenIndexConfig(indexDir));
+    Random random = new Random(17);
+    for(int d = 0; d < DOCUMENTS; d++) {
+      // the first words are more frequent, and some documents are much
+      // longer than others, so the scores vary widely
+      int length = 5 + random.nextInt(d % 10 == 0 ? 400 : 40);
+      StringBuilder text = new StringBuilder();
+      for(int i = 0; i < length; i++) {
+        if(i > 0) text.append(' ');
+        text.append(WORDS[Math.min(random.nextInt(WORDS.length),
+            random.nextInt(WORDS.length))]);
+      }
+      // a word that occurs at most once in each document
+      if(d % 3 == 0) text.append(' ').append(MARKER);
+      TestUtils.indexTokens(index, "http://example.org/doc" + d,
+          text.toString());
+      if((d + 1) % 100 == 0) {
+        for(Future<Long> aFuture : index.requestSyncToDisk()) aFuture.get();
+      }
+    }
+    index.close();
+    index = new MimirIndex(indexDir);
+    engine = index.getQueryEngine();
+    engine.setDocumentBlockSize(BLOCK_SIZE);
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    if(index != null) index.close();
+    if(indexDir != null && !TestUtils.deleteDir(indexDir)) {
+      System.err.println("Could not delete index directory " + indexDir);
+    }
+  }
+
+  private static QueryNode[] queries() {
+    return new QueryNode[] {
+      new TermQuery("string", "alpha"),
+      new TermQuery("string", "epsilon"),
+      new OrQuery(new TermQuery("string", "delta"),
+          new TermQuery("string", "epsilon")),
+      new SequenceQuery(null, new TermQuery("string", "the"),
+          new TermQuery("string", "of"))
+    };
+  }
+
+  /**
+   * Gets all the results from a query runner, in rank order, as strings
+   * containing the document ID and score. The hits are also included for
+   * the documents in the first block.
+   */
+  private static List<String> getResults(RankingQueryRunnerImpl runner)
+      throws IOException {
+    List<String> results = new ArrayList<String>();
+    long count = runner.getDocumentsCountSync();
+    for(long rank = 0; rank < count; rank++) {
+      StringBuilder result = new StringBuilder();
+      result.append(runner.getDocumentID(rank)).append(": ")
+          .append(runner.getDocumentScore(rank));
+      if(rank < BLOCK_SIZE) {
+        for(Binding aHit : runner.getDocumentHits(rank)) {
+          result.append(' ').append(aHit.getTermPosition()).append('+')
+              .append(aHit.getLength());
+        }
+      }
+      results.add(result.toString());
+    }
+    return results;
+  }
+
+  /**
+   * Gets a scorer that gives the same scores as a {@link BindingScorer}, but
+   * cannot bound them.
+   */
+  private static MimirScorer unboundedScorer() throws IOException {
+    return new DelegatingScoringQueryExecutor(new BindingScorer());
+  }
+
+  /**
+   * Runs a query on a single thread, scoring every document as it is found.
+   */
+  private static List<String> getUnboundedResults(QueryNode query)
+      throws IOException {
+    return getSerialResults(query, unboundedScorer());
+  }
+
+  /**
+   * Runs a query on a single thread.
+   * @param scorer the scorer to be used, or <code>null</code> if the results
+   * should not be ranked.
+   */
+  private static List<String> getSerialResults(QueryNode query,
+      MimirScorer scorer) throws IOException {
+    RankingQueryRunnerImpl runner = new RankingQueryRunnerImpl(
+        query.getQueryExecutor(engine), scorer);
+    try {
+      return getResults(runner);
+    } finally {
+      runner.close();
+    }
+  }
+
+  /**
+   * Documents that cannot reach the first block are only scored later, but
+   * the ranking is the same as when all documents are scored straight away.
+   */
+  @Test
+  public void testBoundedScorer() throws Exception {
+    long unscored = 0;
+    for(QueryNode aQuery : queries()) {
+      List<String> expected = getUnboundedResults(aQuery);
+      assertTrue("Too few results for " + aQuery,
+          expected.size() > 2 * BLOCK_SIZE);
+      TestQueryRunner runner = new TestQueryRunner(
+          aQuery.getQueryExecutor(engine), new BindingScorer());
+      try {
+        runner.getDocumentsCountSync();
+        unscored += runner.getUnscoredDocuments();
+        // the top block, before the remaining documents are scored
+        List<String> topBlock = new ArrayList<String>();
+        for(int rank = 0; rank < BLOCK_SIZE; rank++) {
+          topBlock.add(runner.getDocumentID(rank) + ": " +
+              runner.getDocumentScore(rank));
+        }
+        for(int rank = 0; rank < BLOCK_SIZE; rank++) {
+          assertTrue("Different top block for " + aQuery,
+              expected.get(rank).startsWith(topBlock.get(rank) + " "));
+        }
+        assertEquals("Different ranking for " + aQuery, expected,
+            getResults(runner));
+      } finally {
+        runner.close();
+      }
+    }
+    assertTrue("No documents were skipped", unscored > 0);
+  }
+
+  /**
+   * When no remaining document can score more than the lowest score in the
+   * top block, the first block is ranked before all the documents are found,
+   * and the ranking is still the same.
+   */
+  @Test
+  public void testFirstBlockPublishedEarly() throws Exception {
+    QueryNode query = new TermQuery("string", MARKER);
+    List<String> expected = getUnboundedResults(query);
+    assertEquals((DOCUMENTS + 2) / 3, expected.size());
+    TestQueryRunner runner = new TestQueryRunner(
+        query.getQueryExecutor(engine), new BindingScorer());
+    try {
+      // the first document can be requested while the IDs are collected
+      assertTrue(expected.get(0).startsWith(runner.getDocumentID(0) + ": " +
+          runner.getDocumentScore(0) + " "));
+      assertEquals(expected, getResults(runner));
+      // every document has the highest possible score, so the first block
+      // is known as soon as it is full
+      assertEquals(BLOCK_SIZE, runner.getFirstBlockRankedAt());
+    } finally {
+      runner.close();
+    }
+  }
+
+  /**
+   * The bounds given by the query executors for the number of hits are not
+   * smaller than the actual number of hits, both for the current document
+   * and for all the remaining ones.
+   */
+  @Test
+  public void testMaxHitCounts() throws Exception {
+    List<QueryNode> allQueries = new ArrayList<QueryNode>(
+        Arrays.asList(queries()));
+    allQueries.add(new TermQuery("string", MARKER));
+    allQueries.add(new SequenceQuery(new SequenceQuery.Gap[] {
+        SequenceQuery.getGap(0, 2)}, new TermQuery("string", "alpha"),
+        new TermQuery("string", "beta")));
+    allQueries.add(new AndQuery(new TermQuery("string", "gamma"),
+        new GapQuery(new TermQuery("string", "delta"), 1)));
+    for(QueryNode aQuery : allQueries) {
+      QueryExecutor executor = aQuery.getQueryExecutor(engine);
+      try {
+        long bound = -1;
+        long docId = executor.nextDocument(-1);
+        while(docId != -1) {
+          long maxHits = executor.getMaxHitCount();
+          int hits = 0;
+          while(executor.nextHit() != null) hits++;
+          assertTrue("Too few hits allowed for " + aQuery,
+              maxHits < 0 || hits <= maxHits);
+          assertTrue("Too low bound for " + aQuery,
+              bound < 0 || hits <= bound);
+          bound = executor.getMaxHitCountBound();
+          docId = executor.nextDocument(-1);
+        }
+        assertTrue("No bound for " + aQuery, bound >= 0);
+      } finally {
+        executor.close();
+      }
+    }
+  }
+
+  /**
+   * Collecting the documents in parallel over several ranges of document IDs
+   * gives the same results as collecting them on a single thread, with and
+   * without ranking.
+   */
+  @Test
+  public void testPartitions() throws Exception {
+    Callable<MimirScorer> scorerSource = engine.getScorerSource();
+    int parallelism = engine.getQueryParallelism();
+    engine.setQueryParallelism(3);
+    // more partitions than index batches, so some batches are split
+    partitionCount = 7;
+    try {
+      for(QueryNode aQuery : queries()) {
+        List<String> expected = getUnboundedResults(aQuery);
+        // bounded scorers, skipping documents in each partition
+        engine.setScorerSource(new Callable<MimirScorer>() {
+          @Override
+          public MimirScorer call() throws Exception {
+            return new BindingScorer();
+          }
+        });
+        assertEquals("Different ranking for " + aQuery, expected,
+            getPartitionedResults(aQuery, new BindingScorer()));
+        // scoring every document
+        engine.setScorerSource(new Callable<MimirScorer>() {
+          @Override
+          public MimirScorer call() throws Exception {
+            return unboundedScorer();
+          }
+        });
+        assertEquals("Different ranking for " + aQuery, expected,
+            getPartitionedResults(aQuery, unboundedScorer()));
+        // no ranking
+        engine.setScorerSource(null);
+        assertEquals("Different results for " + aQuery,
+            getSerialResults(aQuery, null),
+            getPartitionedResults(aQuery, null));
+      }
+    } finally {
+      partitionCount = 0;
+      engine.setScorerSource(scorerSource);
+      engine.setQueryParallelism(parallelism);
+    }
+  }
+
+  private static List<String> getPartitionedResults(QueryNode query,
+      MimirScorer scorer) throws IOException {
+    RankingQueryRunnerImpl runner = new TestQueryRunner(
+        query.getQueryExecutor(engine), scorer);
+    try {
+      return getResults(runner);
+    } finally {
+      runner.close();
+    }
+  }
+
+  /**
+   * Counts of the snippet cases seen while checking results pages, so that
+   * the tests can check that all the cases were covered.
+   */
+  private static class SnippetCounts {
+    int clippedAtStart;
+    int clippedAtEnd;
+    int truncated;
+  }
+
+  /**
+   * Checks a results page against the values returned by the per-rank
+   * methods of the same query runner.
+   */
+  private static void assertResultsPage(QueryRunner runner, long firstRank,
+      int size, int contextLength, int maxSnippets, SnippetCounts counts)
+      throws Exception {
+    Set<String> fieldNames = Collections.singleton("id");
+    ResultsPage page = runner.getResultsPage(firstRank, size, contextLength,
+        maxSnippets, fieldNames);
+    long count = runner.getDocumentsCountSync();
+    assertEquals(firstRank, page.getFirstRank());
+    assertEquals(Math.max(0, Math.min(firstRank + size, count) - firstRank),
+        page.size());
+    for(int i = 0; i < page.size(); i++) {
+      long rank = firstRank + i;
+      String where = "rank " + rank;
+      assertEquals(where, runner.getDocumentID(rank), page.getDocumentId(i));
+      assertEquals(where, runner.getDocumentScore(rank),
+          page.getDocumentScore(i), 0.0);
+      assertEquals(where, runner.getDocumentTitle(rank),
+          page.getDocumentTitle(i));
+      assertEquals(where, runner.getDocumentURI(rank), 
+          page.getDocumentURI(i));
+      assertEquals(where, runner.getDocumentMetadataFields(rank, fieldNames),
+          page.getDocumentMetadataFields(i));
+      List<Binding> hits = runner.getDocumentHits(rank);
+      assertEquals(where, hits.size(), page.getDocumentHitsCount(i));
+      int expectedSnippets = maxSnippets < 0 ? hits.size() :
+          Math.min(maxSnippets, hits.size());
+      ResultsPage.Snippet[] snippets = page.getDocumentSnippets(i);
+      assertEquals(where, expectedSnippets, snippets.length);
+      if(snippets.length < hits.size()) counts.truncated++;
+      int docLength = runner.getDocumentText(rank, 0, -1)[0].length;
+      for(int j = 0; j < snippets.length; j++) {
+        Binding hit = hits.get(j);
+        int textStart = Math.max(0, hit.getTermPosition() - contextLength);
+        int textEnd = Math.min(docLength,
+            hit.getTermPosition() + hit.getLength() + contextLength);
+        if(textStart > hit.getTermPosition() - contextLength) {
+          counts.clippedAtStart++;
+        }
+        if(textEnd < hit.getTermPosition() + hit.getLength() + contextLength) {
+          counts.clippedAtEnd++;
+        }
+        assertEquals(where, hit.getTermPosition(),
+            snippets[j].getTermPosition());
+        assertEquals(where, hit.getLength(), snippets[j].getLength());
+        assertEquals(where, textStart, snippets[j].getTextStart());
+        String[][] expectedText = runner.getDocumentText(rank, textStart,
+            textEnd - textStart);
+        assertArrayEquals(where, expectedText[0], snippets[j].getText()[0]);
+        assertArrayEquals(where, expectedText[1], snippets[j].getText()[1]);
+      }
+    }
+  }
+
+  /**
+   * Checks pages at the start, across the end of the first block, and at the
+   * end of the results, with different snippet limits.
+   */
+  private static void assertResultsPages(QueryRunner runner,
+      SnippetCounts counts) throws Exception {
+    long count = runner.getDocumentsCountSync();
+    for(int maxSnippets : new int[] {-1, 0, 2}) {
+      assertResultsPage(runner, 0, 7, 4, maxSnippets, counts);
+      assertResultsPage(runner, BLOCK_SIZE - 2, 5, 4, maxSnippets, counts);
+      // past the last document
+      assertResultsPage(runner, count - 3, 7, 4, maxSnippets, counts);
+      assertResultsPage(runner, count, 5, 4, maxSnippets, counts);
+    }
+  }
+
+  /**
+   * A results page holds the same values as the ones obtained from the
+   * per-rank methods.
+   */
+  @Test
+  public void testResultsPage() throws Exception {
+    SnippetCounts counts = new SnippetCounts();
+    for(QueryNode aQuery : queries()) {
+      for(MimirScorer scorer : new MimirScorer[] {new BindingScorer(), null}) {
+        RankingQueryRunnerImpl runner = new RankingQueryRunnerImpl(
+            aQuery.getQueryExecutor(engine), scorer);
+        try {
+          assertResultsPages(runner, counts);
+        } finally {
+          runner.close();
+        }
+      }
+    }
+    assertTrue("No snippet was clipped at the document start",
+        counts.clippedAtStart > 0);
+    assertTrue("No snippet was clipped at the document end",
+        counts.clippedAtEnd > 0);
+    assertTrue("No snippets were left out", counts.truncated > 0);
+  }
+
+  /**
+   * A federated results page maps the sub-runner document IDs in the same 
+   * way as {@link FederatedQueryRunner#getDocumentID(long)}.
+   */
+  @Test
+  public void testFederatedResultsPage() throws Exception {
+    QueryNode[] queries = queries();
+    QueryRunner[] subRunners = new QueryRunner[] {
+      new RankingQueryRunnerImpl(queries[0].getQueryExecutor(engine),
+          new BindingScorer()),
+      new RankingQueryRunnerImpl(queries[2].getQueryExecutor(engine),
+          new BindingScorer()),
+      new RankingQueryRunnerImpl(queries[1].getQueryExecutor(engine),
+          new BindingScorer())};
+    FederatedQueryRunner runner = new FederatedQueryRunner(subRunners);
+    try {
+      SnippetCounts counts = new SnippetCounts();
+      assertResultsPages(runner, counts);
+      // a page containing all the results, from every sub-runner
+      int count = (int)runner.getDocumentsCountSync();
+      ResultsPage page = runner.getResultsPage(0, count, 0, 0, null);
+      assertEquals(count, page.size());
+      boolean[] seen = new boolean[subRunners.length];
+      for(int i = 0; i < count; i++) {
+        long documentId = page.getDocumentId(i);
+        assertEquals(runner.getDocumentID(i), documentId);
+        int subRunnerIndex = (int)(documentId % subRunners.length);
+        seen[subRunnerIndex] = true;
+        // all the sub-runners search the same index
+        assertEquals(runner.getDocumentURI(i), 
+            engine.getDocumentURI(documentId / subRunners.length));
+      }
+      for(boolean aSubRunnerSeen : seen) assertTrue(aSubRunnerSeen);
+    } finally {
+      runner.close();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ *  TestRemoteQueryRunner.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gate.mimir.search.RemoteQueryRunner;
+import gate.mimir.tool.WebUtils;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for the downloading of document IDs and scores by
+ * {@link RemoteQueryRunner}. The server is an in-process HTTP server that can
+ * hold back the documents after the first block.
+ */
+public class TestRemoteQueryRunner {
+
+  private static final int DOCUMENTS = 3000;
+
+  /**
+   * The number of documents sent with the query results, as requested by the
+   * query runner.
+   */
+  private static final int FIRST_BLOCK = 1000;
+
+  private static HttpServer server;
+
+  private static String indexUrl;
+
+  /**
+   * The number of documents stream requests received by the server.
+   */
+  private static final AtomicInteger streamRequests = new AtomicInteger();
+
+  /**
+   * Counted down when the server receives a request for the documents after
+   * the first block.
+   */
+  private static volatile CountDownLatch downloadStarted;
+
+  /**
+   * The server sends the documents after the first block once this has been
+   * counted down.
+   */
+  private static volatile CountDownLatch releaseDownload;
+
+  private RemoteQueryRunner runner;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    indexUrl = "http://127.0.0.1:" + server.getAddress().getPort() +
+        "/index/";
+    server.createContext("/index/search/postQueryBin", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ObjectOutputStream out = startResponse(exchange);
+        out.writeObject("query0");
+        out.close();
+      }
+    });
+    server.createContext("/index/search/documentsStreamBin",
+        new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        streamRequests.incrementAndGet();
+        Map<String, String> params = getParams(exchange);
+        int firstRank = Integer.parseInt(params.get("firstRank"));
+        int size = (int)Math.min(Long.parseLong(params.get("size")),
+            DOCUMENTS - firstRank);
+        if(firstRank >= FIRST_BLOCK) {
+          downloadStarted.countDown();
+          try {
+            releaseDownload.await();
+          } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        ObjectOutputStream out = startResponse(exchange);
+        out.writeByte(RemoteQueryRunner.MSG_DOCUMENTS_COUNT);
+        out.writeLong(DOCUMENTS);
+        out.writeByte(RemoteQueryRunner.MSG_DOCUMENTS);
+        out.writeInt(size);
+        for(int rank = firstRank; rank < firstRank + size; rank++) {
+          out.writeLong(documentId(rank));
+        }
+        for(int rank = firstRank; rank < firstRank + size; rank++) {
+          out.writeDouble(documentScore(rank));
+        }
+        out.writeByte(RemoteQueryRunner.MSG_END);
+        out.close();
+      }
+    });
+    server.createContext("/index/search/close", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    if(server != null) server.stop(0);
+  }
+
+  private static ObjectOutputStream startResponse(HttpExchange exchange)
+      throws IOException {
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = exchange.getResponseBody();
+    return new ObjectOutputStream(out);
+  }
+
+  private static Map<String, String> getParams(HttpExchange exchange) {
+    Map<String, String> params = new HashMap<String, String>();
+    for(String aParam : exchange.getRequestURI().getQuery().split("&")) {
+      int equals = aParam.indexOf('=');
+      params.put(aParam.substring(0, equals), aParam.substring(equals + 1));
+    }
+    return params;
+  }
+
+  private static long documentId(long rank) {
+    return rank * 2;
+  }
+
+  private static double documentScore(long rank) {
+    return 1.0 / (rank + 1);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    streamRequests.set(0);
+    downloadStarted = new CountDownLatch(1);
+    releaseDownload = new CountDownLatch(1);
+    runner = new RemoteQueryRunner(indexUrl, "query", null, new WebUtils());
+    assertEquals(DOCUMENTS, runner.getDocumentsCountSync());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    releaseDownload.countDown();
+    runner.close();
+  }
+
+  /**
+   * Starts getting the ID of the document at the given rank, on a new
+   * thread.
+   */
+  private FutureTask<Long> getDocumentIdLater(final long rank) {
+    FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        return runner.getDocumentID(rank);
+      }
+    });
+    new Thread(task).start();
+    return task;
+  }
+
+  /**
+   * The documents already downloaded can be read while more documents are
+   * being downloaded.
+   */
+  @Test(timeout = 10000)
+  public void testDocumentsAvailableDuringDownload() throws Exception {
+    FutureTask<Long> download = getDocumentIdLater(1500);
+    assertTrue(downloadStarted.await(5, TimeUnit.SECONDS));
+    assertEquals(documentId(5), runner.getDocumentID(5));
+    assertEquals(documentScore(FIRST_BLOCK - 1),
+        runner.getDocumentScore(FIRST_BLOCK - 1), 0);
+    releaseDownload.countDown();
+    assertEquals(documentId(1500), download.get().longValue());
+    assertEquals(documentScore(1500), runner.getDocumentScore(1500), 0);
+    assertEquals(2, streamRequests.get());
+  }
+
+  /**
+   * Threads asking for documents that are being downloaded wait for the
+   * download instead of requesting the same documents again.
+   */
+  @Test(timeout = 10000)
+  public void testConcurrentDownloads() throws Exception {
+    FutureTask<Long> download = getDocumentIdLater(1200);
+    assertTrue(downloadStarted.await(5, TimeUnit.SECONDS));
+    FutureTask<Long> otherDownload = getDocumentIdLater(1100);
+    Thread.sleep(100);
+    releaseDownload.countDown();
+    assertEquals(documentId(1200), download.get().longValue());
+    assertEquals(documentId(1100), otherDownload.get().longValue());
+    assertEquals(2, streamRequests.get());
+    // documents past the downloaded block are downloaded next
+    assertEquals(documentId(DOCUMENTS - 1),
+        runner.getDocumentID(DOCUMENTS - 1));
+    assertEquals(3, streamRequests.get());
+  }
+}
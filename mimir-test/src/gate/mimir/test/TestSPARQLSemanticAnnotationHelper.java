@@ -0,0 +1,456 @@
+/*
+ *  TestSPARQLSemanticAnnotationHelper.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.mimir.AbstractSemanticAnnotationHelper;
+import gate.mimir.Constraint;
+import gate.mimir.ConstraintType;
+import gate.mimir.IndexConfig;
+import gate.mimir.IndexConfig.SemanticIndexerConfig;
+import gate.mimir.IndexConfig.TokenIndexerConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.SemanticAnnotationHelper;
+import gate.mimir.SemanticAnnotationHelper.Mode;
+import gate.mimir.index.Mention;
+import gate.mimir.search.QueryEngine;
+import gate.mimir.search.query.AnnotationQuery;
+import gate.mimir.search.query.Binding;
+import gate.mimir.search.query.OrQuery;
+import gate.mimir.search.query.QueryNode;
+import gate.mimir.util.DelegatingSemanticAnnotationHelper;
+import it.unimi.di.big.mg4j.index.DowncaseTermProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for the SPARQL semantic annotation helper, which sends queries to a
+ * SPARQL endpoint and resolves the result rows through its delegate helper.
+ * The endpoint is an in-process HTTP server returning canned results, and
+ * the delegate is a DB helper, wrapped so that the bulk look-ups can be
+ * observed.
+ */
+public class TestSPARQLSemanticAnnotationHelper {
+
+  /**
+   * The number of rows the SPARQL helper passes to its delegate at once.
+   */
+  private static final int ROW_BLOCK_SIZE = 1000;
+
+  private static final String[] GENDERS = {"male", "female", "unknown"};
+
+  /**
+   * A canned response of the stand-in SPARQL endpoint.
+   */
+  private static class Response {
+    final String[] columns;
+
+    final String[][] rows;
+
+    /**
+     * If positive, the endpoint sends this many rows, and then waits for the
+     * first block of rows to be resolved before sending the rest.
+     */
+    final int pauseAfter;
+
+    /**
+     * Set when the first block of rows was resolved while the endpoint was
+     * still waiting to send the rest of the rows.
+     */
+    volatile boolean resolvedWhileStreaming;
+
+    final AtomicInteger requests = new AtomicInteger();
+
+    Response(String[] columns, String[][] rows, int pauseAfter) {
+      this.columns = columns;
+      this.rows = rows;
+      this.pauseAfter = pauseAfter;
+    }
+  }
+
+  /**
+   * The stand-in SPARQL endpoint, answering the GET requests for the queries
+   * registered in {@link #responses}.
+   */
+  private static class StandInEndpoint implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String rawQuery = exchange.getRequestURI().getRawQuery();
+      String query = URLDecoder.decode(
+          rawQuery.substring(rawQuery.indexOf("query=") + 6), "UTF-8");
+      Response response = responses.get(query);
+      if(response == null) {
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+        return;
+      }
+      response.requests.incrementAndGet();
+      exchange.getResponseHeaders().set("Content-Type",
+          "application/sparql-results+xml");
+      // send the results in chunks, as they are written
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      Writer writer = new OutputStreamWriter(out, "UTF-8");
+      try {
+        writer.write("<?xml version=\"1.0\"?>\n<sparql xmlns=" +
+            "\"http://www.w3.org/2005/sparql-results#\">\n<head>\n");
+        for(String aColumn : response.columns) {
+          writer.write("<variable name=\"" + aColumn + "\"/>\n");
+        }
+        writer.write("</head>\n<results>\n");
+        for(int i = 0; i < response.rows.length; i++) {
+          if(i == response.pauseAfter) {
+            writer.flush();
+            try {
+              response.resolvedWhileStreaming =
+                  firstBlockResolved.await(10, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+          }
+          writer.write("<result>");
+          for(int j = 0; j < response.columns.length; j++) {
+            writer.write("<binding name=\"" + response.columns[j] +
+                "\"><literal>" + response.rows[i][j] +
+                "</literal></binding>");
+          }
+          writer.write("</result>\n");
+        }
+        writer.write("</results>\n</sparql>\n");
+      } finally {
+        writer.close();
+        exchange.close();
+      }
+    }
+  }
+
+  /**
+   * A delegating helper that records the bulk look-ups made by the SPARQL
+   * helper.
+   */
+  public static class RecordingHelper extends DelegatingSemanticAnnotationHelper {
+    private static final long serialVersionUID = -3436581539520232406L;
+
+    @Override
+    public List<Mention> getMentions(String annotationType,
+        List<Constraint> constraints, List<List<Constraint>> alternatives,
+        QueryEngine engine) {
+      bulkLookups.incrementAndGet();
+      try {
+        return ((AbstractSemanticAnnotationHelper)delegate).getMentions(
+            annotationType, constraints, alternatives, engine);
+      } finally {
+        firstBlockResolved.countDown();
+      }
+    }
+  }
+
+  private static final Map<String, Response> responses =
+      new ConcurrentHashMap<String, Response>();
+
+  private static final AtomicInteger bulkLookups = new AtomicInteger();
+
+  private static volatile CountDownLatch firstBlockResolved =
+      new CountDownLatch(1);
+
+  private static HttpServer endpoint;
+
+  private static File indexDir;
+
+  private static MimirIndex index;
+
+  private static QueryEngine engine;
+
+  /**
+   * The SPARQL helper of the re-opened index.
+   */
+  private static SemanticAnnotationHelper sparqlHelper;
+
+  /**
+   * The DB helper of the re-opened index.
+   */
+  private static AbstractSemanticAnnotationHelper dbHelper;
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+    // load the DB plugin
+    Gate.getCreoleRegister().registerDirectories(new File("../plugins/db-h2").toURI().toURL());
+    // load the SPARQL plugin
+    Gate.getCreoleRegister().registerDirectories(new File("../plugins/sparql").toURI().toURL());
+
+    endpoint = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    endpoint.createContext("/sparql", new StandInEndpoint());
+    endpoint.start();
+
+    // Person annotations, resolved by the DB helper through the SPARQL helper
+    SemanticAnnotationHelper newDbHelper = TestUtils.createHelper(
+        Class.forName("gate.mimir.db.DBSemanticAnnotationHelper", true,
+            Gate.getClassLoader()).asSubclass(
+                AbstractSemanticAnnotationHelper.class),
+        "Person", new String[]{"gender"}, new String[]{"age"}, null, null,
+        null, Mode.ANNOTATION);
+    RecordingHelper recordingHelper = new RecordingHelper();
+    recordingHelper.setDelegate(newDbHelper);
+    Class<? extends DelegatingSemanticAnnotationHelper> sparqlHelperClass =
+        Class.forName("gate.mimir.sparql.SPARQLSemanticAnnotationHelper", true,
+            Gate.getClassLoader()).asSubclass(
+                DelegatingSemanticAnnotationHelper.class);
+    DelegatingSemanticAnnotationHelper newSparqlHelper =
+        sparqlHelperClass.newInstance();
+    newSparqlHelper.setDelegate(recordingHelper);
+    sparqlHelperClass.getMethod("setSparqlEndpoint", String.class).invoke(
+        newSparqlHelper, "http://127.0.0.1:" + endpoint.getAddress().getPort() +
+        "/sparql");
+
+    indexDir = File.createTempFile("mimir-index", null);
+    indexDir.delete();
+    IndexConfig indexConfig = new IndexConfig(indexDir, "mimir", "Token",
+        "mimir", new TokenIndexerConfig[]{
+          new TokenIndexerConfig("string", DowncaseTermProcessor.getInstance(),
+              true)},
+        new SemanticIndexerConfig[]{ new SemanticIndexerConfig(
+            new String[]{"Person"},
+            new SemanticAnnotationHelper[]{newSparqlHelper}, true)},
+        null, null);
+    index = new MimirIndex(indexConfig);
+    // one Person per document; only every other Person has an age
+    for(int d = 0; d < 60; d++) {
+      StringBuilder text = new StringBuilder();
+      List<long[]> tokens = new ArrayList<long[]>();
+      for(int t = 0; t < 10; t++) {
+        long start = text.length();
+        text.append("word").append(t);
+        tokens.add(new long[]{start, text.length()});
+        text.append(' ');
+      }
+      Document doc = Factory.newDocument(text.toString());
+      doc.getFeatures().put("gate.mimir.uri", "http://example.org/doc" + d);
+      AnnotationSet annots = doc.getAnnotations("mimir");
+      for(long[] aToken : tokens) {
+        FeatureMap fm = Factory.newFeatureMap();
+        fm.put("string", text.substring((int)aToken[0], (int)aToken[1]));
+        annots.add(aToken[0], aToken[1], "Token", fm);
+      }
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.put("gender", GENDERS[d % GENDERS.length]);
+      if(d % 2 == 0) fm.put("age", Long.valueOf(20 + d % 10));
+      annots.add(tokens.get(d % 5)[0], tokens.get(d % 5 + 1)[1], "Person", fm);
+      index.indexDocument(doc);
+      Factory.deleteResource(doc);
+    }
+    index.close();
+    index = new MimirIndex(indexDir);
+    engine = index.getQueryEngine();
+    sparqlHelper = index.getIndexConfig().getSemanticIndexers()[0]
+        .getHelpers()[0];
+    dbHelper = (AbstractSemanticAnnotationHelper)(
+        (DelegatingSemanticAnnotationHelper)(
+            (DelegatingSemanticAnnotationHelper)sparqlHelper).getDelegate())
+        .getDelegate();
+  }
+
+  @AfterClass
+  public static void oneTimeTearDown() throws Exception {
+    if(index != null) index.close();
+    if(endpoint != null) endpoint.stop(0);
+    if(indexDir != null && !TestUtils.deleteDir(indexDir)) {
+      System.err.println("Could not delete index directory " + indexDir);
+    }
+  }
+
+  /**
+   * Creates the rows for a one-column result, cycling through some values.
+   */
+  private static String[][] rows(int count, String... values) {
+    String[][] rows = new String[count][];
+    for(int i = 0; i < count; i++) {
+      rows[i] = new String[]{values[i % values.length]};
+    }
+    return rows;
+  }
+
+  private static QueryNode sparqlQuery(String query) {
+    return new AnnotationQuery("Person", Collections.singletonList(
+        new Constraint(ConstraintType.EQ, "sparql", query)));
+  }
+
+  private static QueryNode genderQuery(String... genders) {
+    QueryNode[] nodes = new QueryNode[genders.length];
+    for(int i = 0; i < genders.length; i++) {
+      nodes[i] = new AnnotationQuery("Person", Collections.singletonList(
+          new Constraint(ConstraintType.EQ, "gender", genders[i])));
+    }
+    return new OrQuery(nodes);
+  }
+
+  /**
+   * Gets the mentions found by the SPARQL helper for a SPARQL query.
+   */
+  private static Set<String> sparqlMentions(String query) {
+    return mentionUris(sparqlHelper.getMentions("Person",
+        Collections.singletonList(
+            new Constraint(ConstraintType.EQ, "sparql", query)), engine));
+  }
+
+  /**
+   * Gets the mentions found by the DB helper for some genders.
+   */
+  private static Set<String> genderMentions(String... genders) {
+    Set<String> mentions = new HashSet<String>();
+    for(String aGender : genders) {
+      mentions.addAll(mentionUris(dbHelper.getMentions("Person",
+          Collections.singletonList(
+              new Constraint(ConstraintType.EQ, "gender", aGender)),
+          engine)));
+    }
+    return mentions;
+  }
+
+  private static Set<String> mentionUris(List<Mention> mentions) {
+    Set<String> uris = new HashSet<String>();
+    for(Mention aMention : mentions) uris.add(aMention.getUri());
+    return uris;
+  }
+
+  /**
+   * A query using a SPARQL constraint finds the same hits as the equivalent
+   * query on the features returned by the endpoint.
+   */
+  @Test
+  public void testQuery() throws Exception {
+    String query = "SELECT ?gender WHERE { query }";
+    responses.put(query, new Response(new String[]{"gender"},
+        rows(5, "male", "female", "nobody"), 0));
+    List<Binding>[] diff = TestUtils.calculateDiff(
+        genderQuery("male", "female"), sparqlQuery(query), engine);
+    if(diff != null) {
+      System.err.println(TestUtils.printDiffResults(diff, engine));
+    }
+    assertNull("The SPARQL query results are different from the equivalent " +
+        "query. See system.err for details!", diff);
+  }
+
+  /**
+   * The result rows are resolved with one bulk look-up for each block of
+   * rows, rather than one look-up per row.
+   */
+  @Test
+  public void testRowsResolvedInBlocks() throws Exception {
+    String query = "SELECT ?gender WHERE { blocks }";
+    responses.put(query, new Response(new String[]{"gender"},
+        rows(ROW_BLOCK_SIZE * 2 + 500, "male", "female", "nobody"), 0));
+    int lookupsBefore = bulkLookups.get();
+    assertEquals(genderMentions("male", "female"), sparqlMentions(query));
+    int lookups = bulkLookups.get() - lookupsBefore;
+    assertTrue("Expected 3 bulk look-ups, got " + lookups, lookups == 3);
+  }
+
+  /**
+   * The rows are resolved while the results are still being received.
+   */
+  @Test
+  public void testResultsStreamed() throws Exception {
+    String query = "SELECT ?gender WHERE { streamed }";
+    Response response = new Response(new String[]{"gender"},
+        rows(ROW_BLOCK_SIZE * 3, "unknown"), ROW_BLOCK_SIZE + 100);
+    responses.put(query, response);
+    firstBlockResolved = new CountDownLatch(1);
+    assertEquals(genderMentions("unknown"), sparqlMentions(query));
+    assertTrue("The first block of rows was not resolved before all the " +
+        "results were received", response.resolvedWhileStreaming);
+  }
+
+  /**
+   * Repeated queries are answered from the result cache, unless their
+   * results are too large to be cached.
+   */
+  @Test
+  public void testResultCache() throws Exception {
+    String query = "SELECT ?gender WHERE { cached }";
+    Response response = new Response(new String[]{"gender"},
+        rows(10, "female"), 0);
+    responses.put(query, response);
+    assertEquals(genderMentions("female"), sparqlMentions(query));
+    assertEquals(genderMentions("female"), sparqlMentions(query));
+    assertTrue("The cached results were not used",
+        response.requests.get() == 1);
+    String largeQuery = "SELECT ?gender WHERE { large }";
+    Response largeResponse = new Response(new String[]{"gender"},
+        rows(12000, "male", "female"), 0);
+    responses.put(largeQuery, largeResponse);
+    assertEquals(genderMentions("male", "female"), sparqlMentions(largeQuery));
+    assertEquals(genderMentions("male", "female"), sparqlMentions(largeQuery));
+    assertTrue("Large results should not be cached",
+        largeResponse.requests.get() == 2);
+  }
+
+  /**
+   * A bulk look-up mixing alternatives that do and do not use Level-2
+   * features finds the same mentions as one look-up per alternative.
+   */
+  @Test
+  public void testBulkLookupWithMixedLevels() throws Exception {
+    List<List<Constraint>> alternatives = Arrays.asList(
+        Collections.singletonList(
+            new Constraint(ConstraintType.EQ, "gender", "male")),
+        Collections.singletonList(
+            new Constraint(ConstraintType.EQ, "age", 24L)),
+        Arrays.asList(
+            new Constraint(ConstraintType.EQ, "gender", "female"),
+            new Constraint(ConstraintType.GT, "age", 26L)));
+    Set<String> expected = new HashSet<String>();
+    for(List<Constraint> anAlternative : alternatives) {
+      expected.addAll(mentionUris(dbHelper.getMentions("Person",
+          anAlternative, engine)));
+    }
+    List<Mention> mentions = dbHelper.getMentions("Person",
+        Collections.<Constraint>emptyList(), alternatives, engine);
+    assertEquals(expected, mentionUris(mentions));
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ *  TestSlabPostingsStore.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gate.Gate;
+import gate.mimir.IndexConfig;
+import gate.mimir.MimirIndex;
+import gate.mimir.index.SlabPostingsStore;
+import it.unimi.di.big.mg4j.index.DiskBasedIndex;
+import it.unimi.di.big.mg4j.index.cluster.DocumentalCluster;
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * A JUnit test class for {@link SlabPostingsStore}: the postings read back
+ * from a store are checked against the postings added, with particular
+ * attention to the slice boundaries, and the index batches written with the
+ * store are checked against those written with one postings list per term.
+ */
+public class TestSlabPostingsStore {
+
+  /**
+   * Gives access to the slice sizes used by the store.
+   */
+  private static class SliceSizes extends SlabPostingsStore {
+    private static final int MIN = MIN_SLICE_SIZE;
+
+    private static final int MAX = MAX_SLICE_SIZE;
+
+    /**
+     * The number of bytes at the end of each slice used for the link to the
+     * next slice.
+     */
+    private static final int ADDRESS_SIZE = 4;
+  }
+
+  private static final String[] WORDS = {"the", "of", "and", "alpha", "beta",
+    "gamma", "delta", "epsilon", "zeta", "eta", "theta", "iota"};
+
+  private static final int DOCUMENTS = 60;
+
+  private List<File> indexDirs = new ArrayList<File>();
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    Gate.setGateHome(new File("gate-home"));
+    Gate.setUserConfigFile(new File("gate-home/user-gate.xml"));
+    Gate.init();
+  }
+
+  @After
+  public void tearDown() {
+    for(File aDir : indexDirs) {
+      if(!TestUtils.deleteDir(aDir)) {
+        System.err.println("Could not delete index directory " + aDir);
+      }
+    }
+  }
+
+  /**
+   * The postings added to a store, for one term, used to check what is read
+   * back: the positions, keyed by document pointer.
+   */
+  private static class ExpectedPostings {
+    private final SortedMap<Long, List<Integer>> documents =
+        new TreeMap<Long, List<Integer>>();
+
+    private long occurrences;
+
+    void add(long document, int position) {
+      List<Integer> positions = documents.get(document);
+      if(positions == null) {
+        positions = new ArrayList<Integer>();
+        documents.put(document, positions);
+      }
+      positions.add(position);
+      occurrences++;
+    }
+
+    int maxCount() {
+      int maxCount = 0;
+      for(List<Integer> positions : documents.values()) {
+        maxCount = Math.max(maxCount, positions.size());
+      }
+      return maxCount;
+    }
+  }
+
+  private static void addPosting(SlabPostingsStore store,
+      ExpectedPostings expected, String term, long document, int position) {
+    assertTrue(store.addPosting(new MutableString(term), document, position));
+    expected.add(document, position);
+  }
+
+  private static void assertPostings(SlabPostingsStore store,
+      ExpectedPostings expected, String term) {
+    int termId = store.getTermId(new MutableString(term));
+    assertTrue("Term " + term + " not found", termId >= 0);
+    assertEquals(expected.documents.size(), store.frequency(termId));
+    assertEquals(expected.occurrences, store.occurrences(termId));
+    assertEquals(expected.maxCount(), store.maxCount(termId));
+    SlabPostingsStore.Cursor cursor = store.newCursor();
+    cursor.reset(termId);
+    for(Map.Entry<Long, List<Integer>> aDocument :
+        expected.documents.entrySet()) {
+      assertTrue("Missing document " + aDocument.getKey(),
+          cursor.nextDocument());
+      assertEquals(aDocument.getKey().longValue(), cursor.document());
+      List<Integer> positions = aDocument.getValue();
+      assertEquals("Wrong count in document " + aDocument.getKey(),
+          positions.size(), cursor.count());
+      for(int i = 0; i < positions.size(); i++) {
+        assertEquals("Wrong position in document " + aDocument.getKey(),
+            positions.get(i).intValue(), cursor.positions()[i]);
+      }
+    }
+    assertFalse("Extra document after the last one", cursor.nextDocument());
+  }
+
+  /**
+   * Postings that end exactly at the end of a slice, for each slice size up
+   * to (and twice at) the maximum one. A single document with consecutive
+   * positions starting at 0 is encoded in one byte per position, plus one
+   * byte for the document pointer, so its size can be chosen exactly.
+   */
+  @Test
+  public void testPostingsEndingAtSliceLimit() {
+    int payload = 0;
+    int maxSizeSlices = 0;
+    for(int size = SliceSizes.MIN; maxSizeSlices < 2;
+        size = Math.min(size << 1, SliceSizes.MAX)) {
+      if(size == SliceSizes.MAX) maxSizeSlices++;
+      payload += size - SliceSizes.ADDRESS_SIZE;
+      SlabPostingsStore store = new SlabPostingsStore();
+      // another term, so that the slices of the first one are not contiguous
+      ExpectedPostings other = new ExpectedPostings();
+      addPosting(store, other, "other", 0, 0);
+      ExpectedPostings expected = new ExpectedPostings();
+      for(int position = 0; position < payload - 1; position++) {
+        addPosting(store, expected, "term", 0, position);
+        if(position % 1000 == 0) {
+          addPosting(store, other, "other", position + 1, 0);
+        }
+      }
+      assertPostings(store, expected, "term");
+      // the next posting is written to a new slice
+      addPosting(store, expected, "term", 1, 300);
+      addPosting(store, expected, "term", 1, 70000);
+      assertPostings(store, expected, "term");
+      assertPostings(store, other, "other");
+    }
+  }
+
+  /**
+   * Postings that run through several slices of the maximum size, with values
+   * of several bytes, which are split between slices. The store is then
+   * cleared and reused.
+   */
+  @Test
+  public void testMaxSizeSlices() {
+    SlabPostingsStore store = new SlabPostingsStore();
+    Random random = new Random(23);
+    for(int round = 0; round < 2; round++) {
+      store.clear();
+      assertEquals(0, store.size());
+      ExpectedPostings[] expected = new ExpectedPostings[3];
+      for(int i = 0; i < expected.length; i++) {
+        expected[i] = new ExpectedPostings();
+      }
+      int[] position = new int[expected.length];
+      long document = 0;
+      for(int i = 0; i < 20 * SliceSizes.MAX; i++) {
+        if(random.nextInt(50) == 0) {
+          // documents far apart give long pointer gaps
+          document += 1 + random.nextInt(1 << 20);
+          Arrays.fill(position, 0);
+        }
+        int term = random.nextInt(expected.length);
+        // mostly small gaps, with some needing several bytes
+        position[term] += random.nextInt(4) == 0 ?
+            1 + random.nextInt(1 << 21) : 1 + random.nextInt(60);
+        addPosting(store, expected[term], "term" + term, document,
+            position[term]);
+      }
+      assertEquals(expected.length, store.size());
+      for(int i = 0; i < expected.length; i++) {
+        assertPostings(store, expected[i], "term" + i);
+      }
+    }
+  }
+
+  /**
+   * Repeated positions are rejected, and reading the statistics in the
+   * middle of a document does not close it.
+   */
+  @Test
+  public void testStatisticsMidDocument() {
+    SlabPostingsStore store = new SlabPostingsStore();
+    ExpectedPostings expected = new ExpectedPostings();
+    addPosting(store, expected, "term", 0, 1);
+    addPosting(store, expected, "term", 0, 2);
+    addPosting(store, expected, "term", 3, 4);
+    addPosting(store, expected, "term", 3, 5);
+    assertFalse(store.addPosting(new MutableString("term"), 3, 5));
+    assertFalse(store.addPosting(new MutableString("term"), 3, 2));
+    assertPostings(store, expected, "term");
+    addPosting(store, expected, "term", 3, 9);
+    assertEquals(3, store.maxCount(store.getTermId(new MutableString("term"))));
+    assertPostings(store, expected, "term");
+  }
+
+  /**
+   * Indexes the same documents in a single batch.
+   * @param slabPostings whether the postings are stored in
+   * {@link SlabPostingsStore}s.
+   * @param shards the number of indexing shards.
+   * @return the directory for the batches of the <code>string</code> token
+   * index.
+   */
+  private File indexDocuments(boolean slabPostings, int shards)
+      throws Exception {
+    File indexDir = File.createTempFile("mimir-index", null);
+    indexDir.delete();
+    indexDirs.add(indexDir);
+    IndexConfig config = TestUtils.getTokenIndexConfig(indexDir);
+    config.setSlabPostings(slabPostings);
+    config.setIndexingShards(shards);
+    MimirIndex index = new MimirIndex(config);
+    File batchesDir = index.getTokenIndex("string").getIndexDirectory();
+    try {
+      Random random = new Random(42);
+      for(int d = 0; d < DOCUMENTS; d++) {
+        StringBuilder text = new StringBuilder();
+        int length = 20 + random.nextInt(300);
+        for(int i = 0; i < length; i++) {
+          if(i > 0) text.append(' ');
+          // the first words are more frequent, and often repeated
+          text.append(WORDS[Math.min(random.nextInt(WORDS.length),
+              random.nextInt(WORDS.length))]);
+        }
+        TestUtils.indexTokens(index, "http://example.org/doc" + d,
+            text.toString());
+      }
+      for(Future<Long> aFuture : index.requestSyncToDisk()) aFuture.get();
+      assertEquals(1, index.getTokenIndex("string").getBatchCount());
+    } finally {
+      index.close();
+    }
+    return batchesDir;
+  }
+
+  private static Properties loadProperties(File file) throws IOException {
+    Properties properties = new Properties();
+    InputStream is = new FileInputStream(file);
+    try {
+      properties.load(is);
+    } finally {
+      is.close();
+    }
+    return properties;
+  }
+
+  /**
+   * The extensions of the batch files that are not compared: the serialised
+   * term maps and Bloom filters are built with random seeds, and the
+   * statistics include timings.
+   */
+  private static final String[] UNCOMPARED_EXTENSIONS = {
+    DiskBasedIndex.TERMMAP_EXTENSION, DocumentalCluster.BLOOM_EXTENSION,
+    DiskBasedIndex.STATS_EXTENSION};
+
+  /**
+   * Checks that two batch directories contain the same files, with the same
+   * content. Properties files are compared as properties, so that the order
+   * of the entries does not matter.
+   */
+  private static void assertSameBatches(File expectedDir, File actualDir,
+      String description) throws IOException {
+    String[] expectedFiles = expectedDir.list();
+    String[] actualFiles = actualDir.list();
+    Arrays.sort(expectedFiles);
+    Arrays.sort(actualFiles);
+    assertArrayEquals(description + ": different files in " + actualDir,
+        expectedFiles, actualFiles);
+    for(String aName : expectedFiles) {
+      File expected = new File(expectedDir, aName);
+      File actual = new File(actualDir, aName);
+      if(expected.isDirectory()) {
+        assertSameBatches(expected, actual, description);
+      } else if(isUncompared(aName)) {
+        continue;
+      } else if(aName.endsWith(".properties")) {
+        assertEquals(description + ": different " + aName,
+            loadProperties(expected), loadProperties(actual));
+      } else {
+        assertArrayEquals(description + ": different " + aName,
+            BinIO.loadBytes(expected), BinIO.loadBytes(actual));
+      }
+    }
+  }
+
+  private static boolean isUncompared(String fileName) {
+    for(String anExtension : UNCOMPARED_EXTENSIONS) {
+      if(fileName.endsWith(anExtension)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * The batches written with and without the slab postings store, with and
+   * without sharding, are identical.
+   */
+  @Test
+  public void testSameBatches() throws Exception {
+    File expected = indexDocuments(false, 1);
+    assertSameBatches(expected, indexDocuments(false, 3), "sharded lists");
+    assertSameBatches(expected, indexDocuments(true, 1), "slab");
+    assertSameBatches(expected, indexDocuments(true, 3), "sharded slab");
+  }
+}
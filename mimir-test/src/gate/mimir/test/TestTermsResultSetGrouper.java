@@ -0,0 +1,194 @@
+/*
+ *  TestTermsResultSetGrouper.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import gate.mimir.search.terms.TermsResultSet;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * A JUnit test class for {@link TermsResultSet.Grouper}, which combines the
+ * terms result sets from the sub-indexes of a federated index as they arrive,
+ * in any order. The results must be the same as those of
+ * {@link TermsResultSet#groupByDescription(TermsResultSet...)}, which adds
+ * the result sets in order.
+ */
+public class TestTermsResultSetGrouper {
+
+  private static TermsResultSet withDescriptions() {
+    return new TermsResultSet(
+        new String[]{"t1", "t2", "t3"},
+        new int[]{1, 2, 1},
+        new int[]{5, 3, 1},
+        new String[]{"Person", "Location", "Organization"});
+  }
+
+  private static TermsResultSet otherWithDescriptions() {
+    return new TermsResultSet(
+        new String[]{"x7", "x8"},
+        new int[]{1, 2},
+        new int[]{2, 4},
+        new String[]{"Location", "Date"});
+  }
+
+  private static TermsResultSet thirdWithDescriptions() {
+    return new TermsResultSet(
+        new String[]{"y1", "y2"},
+        null,
+        new int[]{7, 1},
+        new String[]{"Person", "Date"});
+  }
+
+  private static TermsResultSet withoutDescriptions() {
+    return new TermsResultSet(
+        new String[]{"t1", "x8", "z9"},
+        new int[]{1, 2, 3},
+        new int[]{1, 1, 1},
+        null);
+  }
+
+  private static TermsResultSet withoutCounts() {
+    return new TermsResultSet(
+        new String[]{"t2", "w4"},
+        new int[]{2, 1},
+        null,
+        new String[]{"Location", "Money"});
+  }
+
+  /**
+   * All the permutations of the positions 0 .. n-1.
+   */
+  private static int[][] permutations(int n) {
+    if(n == 1) return new int[][]{{0}};
+    int[][] smaller = permutations(n - 1);
+    int[][] perms = new int[smaller.length * n][];
+    int p = 0;
+    for(int[] perm : smaller) {
+      for(int insertAt = 0; insertAt < n; insertAt++) {
+        int[] newPerm = new int[n];
+        for(int i = 0, j = 0; i < n; i++) {
+          newPerm[i] = i == insertAt ? n - 1 : perm[j++];
+        }
+        perms[p++] = newPerm;
+      }
+    }
+    return perms;
+  }
+
+  /**
+   * Converts a result set into a form that does not depend on the order of
+   * the terms, so that results can be compared.
+   */
+  private static Map<String, String> describe(TermsResultSet trs) {
+    Map<String, String> terms = new TreeMap<String, String>();
+    for(int i = 0; i < trs.termStrings.length; i++) {
+      String key = trs.termDescriptions != null ? trs.termDescriptions[i] :
+          trs.termStrings[i];
+      terms.put(key, trs.termStrings[i] +
+          " count=" + (trs.termCounts != null ? trs.termCounts[i] : "-") +
+          " length=" + (trs.termLengths != null ? trs.termLengths[i] : "-") +
+          " strings=" + (trs.originalTermStrings != null ?
+              Arrays.deepToString(trs.originalTermStrings[i]) : "-"));
+    }
+    return terms;
+  }
+
+  /**
+   * Adds the result sets to a grouper in all possible orders, and checks
+   * that the result is always the same as that of groupByDescription.
+   */
+  private static void checkAllOrders(TermsResultSet... resSets) {
+    Map<String, String> expected =
+        describe(TermsResultSet.groupByDescription(resSets));
+    for(int[] order : permutations(resSets.length)) {
+      TermsResultSet.Grouper grouper =
+          new TermsResultSet.Grouper(resSets.length);
+      for(int pos : order) grouper.add(pos, resSets[pos]);
+      assertEquals("Different result for order " + Arrays.toString(order),
+          expected, describe(grouper.getResult()));
+    }
+  }
+
+  @Test
+  public void testGroupingByDescription() {
+    TermsResultSet res = TermsResultSet.groupByDescription(
+        withDescriptions(), otherWithDescriptions(), thirdWithDescriptions());
+    Map<String, String> terms = describe(res);
+    assertEquals(4, terms.size());
+    assertEquals("t1 | y1 count=12 length=1 strings=[[t1], [], [y1]]",
+        terms.get("Person"));
+    assertEquals("t2 | x7 count=5 length=2 strings=[[t2], [x7], []]",
+        terms.get("Location"));
+    assertEquals("x8 | y2 count=5 length=2 strings=[[], [x8], [y2]]",
+        terms.get("Date"));
+  }
+
+  @Test
+  public void testOrderWithDescriptions() {
+    checkAllOrders(withDescriptions(), otherWithDescriptions(),
+        thirdWithDescriptions());
+  }
+
+  /**
+   * A result set without descriptions forces the terms to be re-grouped by
+   * term string, whenever it arrives.
+   */
+  @Test
+  public void testOrderWithoutDescriptions() {
+    checkAllOrders(withDescriptions(), withoutDescriptions(),
+        otherWithDescriptions(), thirdWithDescriptions());
+    TermsResultSet res = TermsResultSet.groupByDescription(
+        withDescriptions(), withoutDescriptions());
+    assertNull(res.termDescriptions);
+    assertEquals("t1 count=6 length=1 strings=-", describe(res).get("t1"));
+  }
+
+  @Test
+  public void testOrderWithoutCounts() {
+    checkAllOrders(withDescriptions(), withoutCounts(),
+        thirdWithDescriptions());
+    TermsResultSet res = TermsResultSet.groupByDescription(
+        withDescriptions(), withoutCounts());
+    assertNull(res.termCounts);
+  }
+
+  @Test
+  public void testPartialResults() {
+    // sub-indexes that did not answer leave gaps in the positions
+    TermsResultSet.Grouper grouper = new TermsResultSet.Grouper(3);
+    grouper.add(2, otherWithDescriptions());
+    grouper.add(0, withDescriptions());
+    Map<String, String> terms = describe(grouper.getResult());
+    assertEquals("t2 | x7 count=5 length=2 strings=[[t2], [], [x7]]",
+        terms.get("Location"));
+  }
+
+  @Test
+  public void testRepeatedPosition() {
+    TermsResultSet.Grouper grouper = new TermsResultSet.Grouper(2);
+    grouper.add(1, withDescriptions());
+    try {
+      grouper.add(1, otherWithDescriptions());
+      fail("A second result set was accepted for the same position");
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -12,18 +12,25 @@
  */
 package gate.mimir.test;
 
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
 import gate.Gate;
 import gate.creole.ANNIEConstants;
 import gate.mimir.index.*;
 import gate.mimir.AbstractSemanticAnnotationHelper;
 import gate.mimir.DocumentMetadataHelper;
 import gate.mimir.IndexConfig;
+import gate.mimir.MimirIndex;
 import gate.mimir.SemanticAnnotationHelper;
 import gate.mimir.IndexConfig.SemanticIndexerConfig;
 import gate.mimir.IndexConfig.TokenIndexerConfig;
 import gate.mimir.SemanticAnnotationHelper.Mode;
 import gate.mimir.search.QueryEngine;
 import gate.mimir.search.query.*;
+import gate.creole.ResourceInstantiationException;
+import gate.util.InvalidOffsetException;
 
 import it.unimi.di.big.mg4j.index.DowncaseTermProcessor;
 import it.unimi.di.big.mg4j.index.NullTermProcessor;
@@ -114,6 +121,76 @@ public class TestUtils {
   }
 
 
+  /**
+   * Gets an index configuration with one token indexer (for the 
+   * <code>string</code> feature of <code>Token</code> annotations in the 
+   * <code>mimir</code> annotation set) and no semantic indexers. Documents for
+   * such an index can be created without any GATE plugins, see
+   * {@link #indexTokens(MimirIndex, String, String)}.
+   */
+  public static IndexConfig getTokenIndexConfig(File indexDir) {
+    return new IndexConfig(indexDir, "mimir", 
+        ANNIEConstants.TOKEN_ANNOTATION_TYPE, "mimir",
+        new TokenIndexerConfig[]{
+          new TokenIndexerConfig(ANNIEConstants.TOKEN_STRING_FEATURE_NAME,
+              DowncaseTermProcessor.getInstance(), true)},
+        new SemanticIndexerConfig[0], null, null);
+  }
+  
+  /**
+   * Indexes a document made of the given space-separated words, each word
+   * being a token. 
+   */
+  public static void indexTokens(MimirIndex index, String uri, String text) 
+      throws ResourceInstantiationException, InvalidOffsetException, 
+      InterruptedException {
+    Document doc = Factory.newDocument(text);
+    doc.getFeatures().put("gate.mimir.uri", uri);
+    AnnotationSet annots = doc.getAnnotations("mimir");
+    int start = 0;
+    for(String aWord : text.split(" ")) {
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.put(ANNIEConstants.TOKEN_STRING_FEATURE_NAME, aWord);
+      annots.add((long)start, (long)(start + aWord.length()), 
+          ANNIEConstants.TOKEN_ANNOTATION_TYPE, fm);
+      start += aWord.length() + 1;
+    }
+    index.indexDocument(doc);
+    Factory.deleteResource(doc);
+  }
+  
+  /**
+   * Gets all the hits of a query, each represented as a string containing the
+   * document ID, term position and length, in document order, and sorted 
+   * inside each document.
+   */
+  public static List<String> getHits(QueryNode query, QueryEngine engine) 
+      throws IOException {
+    List<String> hits = new ArrayList<String>();
+    QueryExecutor executor = query.getQueryExecutor(engine);
+    try {
+      List<Binding> docHits = new ArrayList<Binding>();
+      long docId = executor.nextDocument(-1);
+      while(docId != -1) {
+        docHits.clear();
+        Binding aHit = executor.nextHit();
+        while(aHit != null) {
+          docHits.add(aHit);
+          aHit = executor.nextHit();
+        }
+        Collections.sort(docHits);
+        for(Binding aDocHit : docHits) {
+          hits.add(aDocHit.getDocumentId() + ", " + aDocHit.getTermPosition() + 
+              ", " + aDocHit.getLength());
+        }
+        docId = executor.nextDocument(-1);
+      }
+    } finally {
+      executor.close();
+    }
+    return hits;
+  }
+
   public static SemanticAnnotationHelper createHelper(Class<? extends AbstractSemanticAnnotationHelper> helperClass, String annType,
                                                String[] nominalFeatures, String[] integerFeatures, String[] floatFeatures,
                                                String[] textFeatures, String[] uriFeatures, SemanticAnnotationHelper.Mode mode) throws InstantiationException, IllegalAccessException {
@@ -16,6 +16,8 @@ package gate.mimir.web
 
 import gate.mimir.web.Index;
 
+import java.util.zip.GZIPInputStream
+
 import javax.servlet.http.HttpServletResponse
 
 class IndexManagementController {
@@ -63,7 +65,12 @@ class IndexManagementController {
   def addDocuments = {
     def theIndex = Index.findByIndexId(params.indexId)
     if(theIndex) {
-      request.inputStream.withStream { stream ->
+      InputStream input = request.inputStream
+      // batches may be compressed by the client (see MimirConnector)
+      if(request.getHeader('Content-Encoding')?.equalsIgnoreCase('gzip')) {
+        input = new GZIPInputStream(input)
+      }
+      input.withStream { stream ->
         theIndex.indexDocuments(stream)
       }
       render("OK")
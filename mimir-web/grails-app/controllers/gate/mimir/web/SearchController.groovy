@@ -36,6 +36,8 @@ import javax.servlet.http.HttpSessionBindingListener;
 
 import gate.mimir.search.QueryEngine;
 import gate.mimir.search.QueryRunner;
+import gate.mimir.search.RemoteQueryRunner;
+import gate.mimir.search.ResultsPage;
 
 
 /**
@@ -59,6 +61,19 @@ class SearchController {
    */
   public static final String MIMIR_NAMESPACE = 'http://gate.ac.uk/ns/mimir'
   
+  /**
+   * Number of milliseconds between checks of the documents count, while 
+   * streaming the progress of a running query (see 
+   * {@link #documentsStreamBin}).
+   */
+  public static final long STREAM_COUNT_INTERVAL = 20
+
+  /**
+   * Maximum number of documents sent in each block, when streaming the 
+   * results of a query (see {@link #documentsStreamBin}).
+   */
+  public static final int STREAM_BLOCK_SIZE = 500
+
   /**
    * Reference to the search service, autowired.
    */
@@ -494,12 +509,8 @@ println("Doc ID2 $documentId")
     Map<String, Serializable> metadata = null;
     def fieldNamesStr = p["fieldNames"]
     if(fieldNamesStr) {
-      // split on each comma (not preceded by a backslash)
-      metadata = fieldNamesStr.split(/\s*(?<!\\),\s*/).collect{
-        // un-escape commas
-        it.replace('\\,', ',')
-      }.collectEntries { String fieldName ->
-         [(fieldName):docData.getMetadataField(fieldName)]
+      metadata = parseFieldNames(fieldNamesStr).collectEntries { 
+        String fieldName -> [(fieldName):docData.getMetadataField(fieldName)]
       }
     }
     //we have all required values
@@ -517,6 +528,105 @@ println("Doc ID2 $documentId")
         message)
   }
 
+  
+  /**
+   * Splits a comma-separated list of field names. Commas inside names must 
+   * be escaped with a backslash.
+   */
+  private List<String> parseFieldNames(String fieldNamesStr) {
+    // split on each comma (not preceded by a backslash)
+    return fieldNamesStr.split(/\s*(?<!\\),\s*/).collect{
+      // un-escape commas
+      it.replace('\\,', ',')
+    }
+  }
+  
+  /**
+   * Gets a page of results (see {@link QueryRunner#getResultsPage}) from a 
+   * query runner, using the request parameters firstRank, size (default 
+   * 10), contextLength (default 3), maxSnippets (default: no limit) and 
+   * fieldNames (comma-separated, default: none).
+   */
+  private ResultsPage getResultsPage(QueryRunner runner, p) {
+    long firstRank = p["firstRank"] as long
+    int size = (p["size"] ?: 10) as int
+    int contextLength = (p["contextLength"] ?: 3) as int
+    int maxSnippets = (p["maxSnippets"] ?: -1) as int
+    Set<String> fieldNames = p["fieldNames"] ? 
+        parseFieldNames(p["fieldNames"]) as Set<String> : null
+    return runner.getResultsPage(firstRank, size, contextLength, maxSnippets,
+        fieldNames)
+  }
+  
+  /**
+   * Action for obtaining all the data needed to display a page of results in
+   * one request: the ID, score, title, URI, requested metadata fields, and
+   * hit snippets for each document.
+   * Parameters:
+   * - queryId: the ID of the query.
+   * - firstRank: the rank of the first document on the page.
+   * - size (optional): the number of documents on the page (default 10).
+   * - contextLength (optional): the number of terms on either side of each 
+   *   hit included in the snippets (default 3).
+   * - maxSnippets (optional): the maximum number of snippets for each 
+   *   document (default: no limit).
+   * - fieldNames (optional): a comma-separated list of metadata field names
+   *   to be returned.
+   */
+  def resultsPage = {
+    def p = params["request"] ?: params
+    def message
+    String queryId = p["queryId"]
+    QueryRunner runner = searchService.getQueryRunner(queryId);
+    if(runner){
+      if(p["firstRank"]) {
+        try {
+          ResultsPage page = getResultsPage(runner, p)
+          message = buildMessage(SUCCESS, null){
+            for(int i = 0; i < page.size(); i++) {
+              delegate.document(rank:page.firstRank + i, 
+                  id:page.getDocumentId(i), score:page.getDocumentScore(i)) {
+                delegate.documentTitle(page.getDocumentTitle(i))
+                delegate.documentURI(page.getDocumentURI(i))
+                page.getDocumentMetadataFields(i)?.each{
+                  String key, Serializable value ->
+                  delegate.metadataField(name:key, value:value.toString())
+                }
+                delegate.hits(count:page.getDocumentHitsCount(i)) {
+                  for(ResultsPage.Snippet snippet : page.getDocumentSnippets(i)) {
+                    delegate.snippet(termPosition:snippet.termPosition,
+                        length:snippet.length) {
+                      String[][] text = snippet.text
+                      for(int j = 0; j < text[0].length; j++) {
+                        delegate.text(position:snippet.textStart + j, 
+                            text[0][j])
+                        if(text[1][j]) delegate.space(text[1][j])
+                      }
+                    }
+                  }
+                }
+              }
+            }
+          }
+        } catch(NumberFormatException e) {
+          message = buildMessage(ERROR, 
+              "Non-integer value provided for a numeric parameter", null)
+        } catch(Exception e) {
+          log.warn("Error while obtaining a results page", e)
+          message = buildMessage(ERROR, 
+              "Error while obtaining the results: \"" + e.getMessage() + 
+              "\"!", null)
+        }
+      } else {
+        message = buildMessage(ERROR, 
+            "No value provided for parameter firstRank", null)
+      }
+    } else{
+      message = buildMessage(ERROR, "Query ID ${queryId} not known!", null)
+    }
+    render(contentType:"text/xml", builder: new StreamingMarkupBuilder(),
+        message)
+  }
     
   def close = {
     def p = params["request"] ?: params
@@ -810,6 +920,85 @@ println("Doc ID2 $documentId")
     }
   }
   
+  // protected static final String ACTION_DOCS_STREAM_BIN = "documentsStreamBin";
+  /**
+   * Streams the progress and the results of a query, as a sequence of 
+   * messages (see {@link RemoteQueryRunner} for the message types). While the
+   * search is running, the number of documents found so far is sent whenever
+   * it changes. When the search completes, the total number of documents is 
+   * sent, followed by the IDs and scores of the documents in the requested 
+   * range, in blocks. Each message is flushed as soon as it is written, so 
+   * the client can use it while the rest is being produced.
+   */
+  def documentsStreamBin = {
+    def p = params["request"] ?: params
+    //get the query ID
+    String queryId = p["queryId"]
+    QueryRunner runner = searchService.getQueryRunner(queryId);
+    if(runner){
+      long from = (p["firstRank"] ?: 0) as long
+      long resultSize = (p["size"] ?: 0) as long
+      response.contentType = 'application/octet-stream'
+      ObjectOutputStream stream = new ObjectOutputStream(response.outputStream)
+      try {
+        long currentCount = -1
+        long docCount = runner.getDocumentsCount()
+        while(docCount < 0) {
+          if(searchService.getQueryRunner(queryId) == null) {
+            throw new IllegalStateException(
+              "Query ID ${queryId} was closed before completing!")
+          }
+          long newCount = runner.getDocumentsCurrentCount()
+          if(newCount != currentCount) {
+            currentCount = newCount
+            stream.writeByte(RemoteQueryRunner.MSG_CURRENT_COUNT)
+            stream.writeLong(currentCount)
+            stream.flush()
+          }
+          // this only waits for the local query runner
+          Thread.sleep(STREAM_COUNT_INTERVAL)
+          docCount = runner.getDocumentsCount()
+        }
+        stream.writeByte(RemoteQueryRunner.MSG_DOCUMENTS_COUNT)
+        stream.writeLong(docCount)
+        stream.flush()
+        long to = Math.min(from + resultSize, docCount)
+        while(from < to) {
+          int blockSize = (int)Math.min(STREAM_BLOCK_SIZE, to - from)
+          stream.writeByte(RemoteQueryRunner.MSG_DOCUMENTS)
+          stream.writeInt(blockSize)
+          for(int i = 0; i < blockSize; i++) {
+            stream.writeLong(runner.getDocumentID(from + i))
+          }
+          for(int i = 0; i < blockSize; i++) {
+            stream.writeDouble(runner.getDocumentScore(from + i))
+          }
+          stream.flush()
+          from += blockSize
+        }
+        stream.writeByte(RemoteQueryRunner.MSG_END)
+      } catch(Exception e) {
+        // the response has already started, so report the error in the stream
+        log.warn("Error while streaming documents", e)
+        try {
+          stream.writeByte(RemoteQueryRunner.MSG_ERROR)
+          stream.writeUTF(e.getMessage() ?: e.toString())
+        } catch(IOException e2) {
+          // the client has gone away
+        }
+      } finally {
+        try {
+          stream.close()
+        } catch(IOException e) {
+          // the client has gone away
+        }
+      }
+    } else {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "Query ID ${queryId} not known!")
+    }
+  }
+  
   /**
    * Retrieves the hits within a given result document.
    */
@@ -909,6 +1098,36 @@ println("Doc ID2 $documentId")
     }
   }
   
+  /**
+   * Binary version of {@link #resultsPage}: the result is a serialised 
+   * {@link ResultsPage} value.
+   */
+  def resultsPageBin = {
+    def p = params["request"] ?: params
+    String queryId = p["queryId"]
+    QueryRunner runner = searchService.getQueryRunner(queryId);
+    if(runner){
+      if(p["firstRank"]) {
+        try {
+          ResultsPage page = getResultsPage(runner, p)
+          new ObjectOutputStream (response.outputStream).withStream {stream ->
+            stream.writeObject(page)
+          }
+        } catch(Exception e) {
+          log.warn("Error while sending results page", e)
+          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Error while obtaining the results: \"" + e.getMessage() + "\"!")
+        }
+      } else {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "No value provided for parameter firstRank!")
+      }
+    } else{
+      response.sendError(HttpServletResponse.SC_NOT_FOUND,
+          "Query ID ${queryId} not known!")
+    }
+  }
+  
   /**
    * Calls the render document method on the corresponding query runner, piping
    * the output directly to the response stream.
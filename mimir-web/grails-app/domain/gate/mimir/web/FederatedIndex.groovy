@@ -134,5 +134,9 @@ class FederatedIndex extends Index {
       it.sync()
     }
   }
+
+  long generation() {
+    return federatedIndexService.generation(this)
+  }
   
 }
@@ -155,6 +155,17 @@ class Index implements Serializable {
     throw new UnsupportedOperationException()
   }
   
+  /**
+   * Return the current generation of this index, a number that changes 
+   * every time the set of searchable documents changes (e.g. when new 
+   * documents are synced to disk, or documents are deleted).  Search results
+   * obtained while the generation stays the same can be re-used.  Indexes 
+   * that cannot tell when their contents change return -1.
+   */
+  long generation() {
+    return -1
+  }
+  
   // Constants for the possible state values
   public static final String READY = "ready" // good for searching and indexing
   public static final String CLOSING = "closing"
@@ -142,4 +142,9 @@ class LocalIndex extends Index implements Serializable {
   void sync() {
     localIndexService.getIndex(this).requestSyncToDisk()
   }
+
+  long generation() {
+    MimirIndex mIndex = localIndexService.getIndex(this)
+    return mIndex ? mIndex.generation : -1
+  }
 }
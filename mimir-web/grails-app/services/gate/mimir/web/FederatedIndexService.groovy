@@ -15,6 +15,8 @@
 package gate.mimir.web
 
 import gate.mimir.index.DocumentData
+import gate.mimir.search.EmptyQueryRunner
+import gate.mimir.search.FederatedFanOut
 import gate.mimir.search.QueryRunner
 import gate.mimir.search.FederatedQueryRunner
 import gate.mimir.search.query.QueryNode;
@@ -53,6 +55,24 @@ class FederatedIndexService {
   
   private Map<String, FederatedIndexProxy> proxies = [:];
   
+  /**
+   * Thread pool used by the federated query runners, autowired.
+   */
+  def searchThreadPool
+  
+  /**
+   * Bounded thread pool used to send requests to the sub-indexes in 
+   * parallel, autowired.
+   */
+  def federatedThreadPool
+  
+  /**
+   * Search service (autowired), notified when indexes are deleted.
+   */
+  def searchService
+  
+  def grailsApplication
+  
   public synchronized FederatedIndexProxy findProxy(FederatedIndex index) {
     FederatedIndexProxy p = proxies[index.id]
     if(!p) {
@@ -63,6 +83,7 @@ class FederatedIndexService {
   }
   
   public void indexDeleted(id){
+    searchService.indexClosed(id)
     proxies.remove(id)?.close()
   }
   
@@ -100,33 +121,36 @@ class FederatedIndexService {
   
   public QueryRunner getQueryRunner(FederatedIndex index, String query) 
       throws ParseException {
-    QueryRunner[] subRunners = new QueryRunner[index.indexes.size()]
-    try {
-      index.indexes.eachWithIndex { Index subIndex, i ->
-        subRunners[i] = subIndex.startQuery(query)
-      }
-      return new FederatedQueryRunner(subRunners)
-    } catch(Throwable t) {
-      log.error("Error creating query runner for sub-index: ${t.message}")
-      for(QueryRunner subRunner in subRunners){ 
-        try {
-          subRunner?.close()
-        } catch(Throwable t2) {
-          // ignore
-        }
-      }
-      // and re-throw
-      throw t
-    }
+    return startSubQueries(index, query)
   }
 
   public QueryRunner getQueryRunner(FederatedIndex index, QueryNode query) {
-    QueryRunner[] subRunners = new QueryRunner[index.indexes.size()]
+    return startSubQueries(index, query)
+  }
+  
+  /**
+   * Starts a query on all the sub-indexes of a federated index, in parallel.
+   * Sub-indexes that fail or do not answer in time (when partial results are
+   * enabled) are represented by empty query runners, so that the federated
+   * document IDs still map to the right sub-indexes.
+   * @param query the query, either as a String or as a QueryNode.
+   */
+  private QueryRunner startSubQueries(FederatedIndex index, query) {
+    List subIndexIds = index.indexes.collect { it.id }
+    QueryRunner[] subRunners = new QueryRunner[subIndexIds.size()]
     try {
-      index.indexes.eachWithIndex { Index subIndex, i ->
-        subRunners[i] = subIndex.startQuery(query)
+      newFanOut().run(subIndexIds.collect { subIndexId ->
+        return { ->
+          Index.withTransaction { Index.get(subIndexId).startQuery(query) }
+        }
+      }, [
+        answer: { int i, QueryRunner subRunner -> subRunners[i] = subRunner },
+        discard: { int i, QueryRunner subRunner -> subRunner.close() }
+      ] as FederatedFanOut.Handler)
+      for(int i = 0; i < subRunners.length; i++) {
+        if(subRunners[i] == null) subRunners[i] = new EmptyQueryRunner()
       }
-      return new FederatedQueryRunner(subRunners)
+      return new FederatedQueryRunner(subRunners, searchThreadPool)
     } catch(Throwable t) {
       log.error("Error creating query runner for sub-index: ${t.message}")
       for(QueryRunner subRunner in subRunners){
@@ -140,6 +164,18 @@ class FederatedIndexService {
       throw t
     }
   }
+  
+  /**
+   * Creates the fan-out used to send a request to all the sub-indexes, 
+   * configured from <code>gate.mimir.federatedTimeout</code> and 
+   * <code>gate.mimir.federatedPartialResults</code>.
+   */
+  private FederatedFanOut newFanOut() {
+    def conf = grailsApplication.config.gate.mimir
+    return new FederatedFanOut(federatedThreadPool, 
+      (conf.federatedTimeout ?: 0) as long, 
+      conf.federatedPartialResults ? true : false)
+  }
       
   public TermsResultSet postTermsQuery(FederatedIndex index, TermsQuery query) {
     if(query instanceof CompoundTermsQuery) {
@@ -158,30 +194,63 @@ class FederatedIndexService {
         // then OR the results
         DocumentsBasedTermsQuery docsQ = (DocumentsBasedTermsQuery)query
         // split by sub-index
-        TermsResultSet[] resSets = docsQ.getDocumentIds().toList().groupBy { 
-          long docId -> getSubIndex(index, docId)
-        }.collect { subIndex, docIds ->
+        Map docIdsBySubIndex = docsQ.getDocumentIds().toList().groupBy { 
+          long docId -> getSubIndex(index, docId).id
+        }
+        List requests = docIdsBySubIndex.collect { subIndexId, docIds ->
           DocumentsBasedTermsQuery copyQ = docsQ.clone()
           // rewrite the docIDs
           long[] newDocIds = docIds.collect{getDocIdInSubIndex(index, it)}
           copyQ.setDocumentIds(newDocIds)
           // post the modified query copy 
-          return subIndex.postTermsQuery(copyQ)
+          return { ->
+            Index.withTransaction { Index.get(subIndexId).postTermsQuery(copyQ) }
+          }
         }
-        // OR the results
-        return TermsResultSet.groupByDescription(resSets)
+        // OR the results as they arrive
+        TermsResultSet.Grouper grouper = 
+            new TermsResultSet.Grouper(requests.size())
+        newFanOut().run(requests, [
+          answer: { int i, TermsResultSet trs -> grouper.add(i, trs) },
+          discard: { int i, TermsResultSet trs -> }
+        ] as FederatedFanOut.Handler)
+        return grouper.getResult()
       } else {
         // query is not compound, nor documents based: just pass it to the 
-        //  sub-index and OR the results 
-        return TermsResultSet.groupByDescription(
-          index.indexes.collect{ 
-            Index subIndex -> subIndex.postTermsQuery(query)
-          } as TermsResultSet[]
-        )
+        //  sub-indexes and OR the results as they arrive
+        List subIndexIds = index.indexes.collect { it.id }
+        TermsResultSet.Grouper grouper = 
+            new TermsResultSet.Grouper(subIndexIds.size())
+        newFanOut().run(subIndexIds.collect { subIndexId ->
+          return { ->
+            Index.withTransaction { Index.get(subIndexId).postTermsQuery(query) }
+          }
+        }, [
+          answer: { int i, TermsResultSet trs -> grouper.add(i, trs) },
+          discard: { int i, TermsResultSet trs -> }
+        ] as FederatedFanOut.Handler)
+        return grouper.getResult()
       }
     }   
   }    
       
+  /**
+   * The generation of a federated index changes when the generation of any of
+   * its sub-indexes changes.  When partial results are enabled, the results
+   * of a query may be missing some sub-indexes, so they should not be 
+   * re-used: the generation is reported as unknown (-1).
+   */
+  public long generation(FederatedIndex index) {
+    if(grailsApplication.config.gate.mimir.federatedPartialResults) return -1
+    long generation = 0
+    for(Index subIndex in index.indexes) {
+      long subGeneration = subIndex.generation()
+      if(subGeneration < 0) return -1
+      generation += subGeneration
+    }
+    return generation
+  }
+      
   private void deleteOrUndelete(String method, FederatedIndex fedIndex, Collection<Long> documentIds) {
     def numIndexes = fedIndex.indexes.size()
     // map the supplied federated document IDs to the corresponding IDs in the
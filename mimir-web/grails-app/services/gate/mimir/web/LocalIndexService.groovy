@@ -60,6 +60,11 @@ class LocalIndexService {
    * Shared thread pool (autowired)
    */
   def searchThreadPool
+  
+  /**
+   * Search service (autowired), notified when indexes are closed.
+   */
+  def searchService
     
   private Map<Long, MimirIndex> indexes = [:]
 
@@ -102,6 +107,7 @@ class LocalIndexService {
       index.save()
       def indexId = index.id
       try {
+        searchService.indexClosed(indexId)
         indexes.remove(indexId)?.close()
         index.state = Index.READY
         index.save()
@@ -191,6 +197,10 @@ class LocalIndexService {
     } else {
       engine.setScorerSource(null)
     }
+    def queryParallelism = grailsApplication.config.gate.mimir.queryParallelism
+    if(queryParallelism) {
+      engine.setQueryParallelism(queryParallelism as int)
+    }
     return mIndex    
   }
   
@@ -244,6 +254,7 @@ class LocalIndexService {
     String indexDirectory = index.indexDirectory
     // stop the index
     try{
+      searchService.indexClosed(index.id)
       indexes.remove(index.id)?.close()
     } catch(Exception e) {
       log.warn("Exception while trying to close index, prior to deletion", e)
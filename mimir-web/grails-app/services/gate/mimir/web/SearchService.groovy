@@ -15,6 +15,8 @@ package gate.mimir.web
 import gate.mimir.web.Index;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
@@ -24,12 +26,16 @@ import org.codehaus.groovy.grails.web.mapping.LinkGenerator;
 
 import com.google.common.cache.CacheBuilder
 import com.google.common.cache.Cache
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import gate.mimir.search.QueryRunner
 import gate.mimir.search.query.QueryNode;
 import gate.mimir.search.query.parser.ParseException;
+import gate.mimir.search.query.parser.QueryParser;
 
 class SearchService {
   
@@ -42,6 +48,13 @@ class SearchService {
   
   LinkGenerator grailsLinkGenerator
   
+  def grailsApplication
+  
+  /**
+   * The tokeniser used to parse query strings, autowired.
+   */
+  def queryTokeniser
+  
   /**
    * The Search service is a singleton.
    */
@@ -53,10 +66,22 @@ class SearchService {
   //Map<String, QueryRunner> queryRunners = [:].asSynchronized()
   Cache<String, QueryRunnerHolder> queryRunners
   
+  /**
+   * The query results shared between query IDs: identical queries posted to
+   * the same index, while the index contents do not change, use the same 
+   * query runner.  The weight of each entry is the number of result 
+   * documents.  This is <code>null</code> if sharing is disabled.
+   */
+  Cache<QueryResultKey, SharedQueryRunner> sharedRunners
+  
   CacheCleaner cacheCleaner
+  
+  CacheCleaner sharedCacheCleaner
           
   public QueryRunner getQueryRunner(String queryId){
-    return queryId ? queryRunners.getIfPresent(queryId)?.queryRunner : null
+    QueryRunnerHolder qrh = queryId ? queryRunners.getIfPresent(queryId) : null
+    if(qrh?.sharedRunner) updateWeight(qrh.sharedRunner)
+    return qrh?.queryRunner
   }
 
   public Index getQueryRunnerIndex(String queryId){
@@ -81,6 +106,17 @@ class SearchService {
    */
   public String postQuery(Index theIndex, String queryString) 
       throws IOException, ParseException {
+    if(sharedRunners != null) {
+      long generation = theIndex.generation()
+      if(generation >= 0) {
+        // parse the query here, so that equivalent query strings (e.g. 
+        // differing only in white space) share the same results
+        QueryNode queryNode = queryTokeniser ? 
+            QueryParser.parse(queryString, queryTokeniser) :
+            QueryParser.parse(queryString)
+        return postSharedQuery(theIndex, queryNode, generation)
+      }
+    }
     QueryRunner aRunner = theIndex.startQuery(queryString)
     if(aRunner){
       String runnerId = UUID.randomUUID()
@@ -99,6 +135,12 @@ class SearchService {
    */
   public String postQuery(Index theIndex, QueryNode queryNode)
       throws IOException, ParseException {
+    if(sharedRunners != null) {
+      long generation = theIndex.generation()
+      if(generation >= 0) {
+        return postSharedQuery(theIndex, queryNode, generation)
+      }
+    }
     QueryRunner aRunner = theIndex.startQuery(queryNode)
     if(aRunner){
       String runnerId = UUID.randomUUID()
@@ -110,6 +152,78 @@ class SearchService {
     }
   }
       
+  /**
+   * Posts a query to a specified index, re-using the query runner of an 
+   * identical query posted earlier, if the index contents have not changed
+   * since.  Returns a new ID for the (possibly shared) query runner.
+   * @param generation the current generation of the index.
+   */
+  private String postSharedQuery(Index theIndex, QueryNode queryNode, 
+      long generation) throws IOException {
+    QueryResultKey key = new QueryResultKey(theIndex.id, queryNode, generation)
+    SharedQueryRunner shared
+    while(true) {
+      try {
+        shared = sharedRunners.get(key, { ->
+          QueryRunner aRunner = theIndex.startQuery(queryNode)
+          if(!aRunner) throw new RuntimeException("Could not start query")
+          return new SharedQueryRunner(key:key, queryRunner:aRunner)
+        } as Callable<SharedQueryRunner>)
+      } catch(ExecutionException | UncheckedExecutionException e) {
+        throw e.cause
+      }
+      // the runner may have been closed after being evicted: try again
+      if(shared.acquire()) break
+      sharedRunners.asMap().remove(key, shared)
+    }
+    String runnerId = UUID.randomUUID()
+    queryRunners.put(runnerId, new QueryRunnerHolder(
+      queryRunner:shared.queryRunner, index:theIndex, sharedRunner:shared))
+    return runnerId
+  }
+  
+  /**
+   * Once a shared query has completed, updates its weight in the shared 
+   * runners cache with the final number of result documents.
+   */
+  private void updateWeight(SharedQueryRunner shared) {
+    if(!shared.weighed && shared.queryRunner.getDocumentsCount() >= 0) {
+      shared.weighed = true
+      // replacing the entry with itself makes the cache re-compute its weight
+      sharedRunners.asMap().replace(shared.key, shared, shared)
+    }
+  }
+  
+  /**
+   * Updates the weights of all the shared queries that have completed since
+   * the last call.  This is called regularly from the shared cache cleaner, 
+   * so that the cache weight does not depend on the query IDs being used 
+   * after their queries complete.
+   */
+  private void updateWeights() {
+    for(SharedQueryRunner shared in sharedRunners.asMap().values()) {
+      updateWeight(shared)
+    }
+  }
+  
+  /**
+   * Discards the shared results of the queries posted to an index that is
+   * being closed or deleted, and to the federated indexes containing it, as
+   * their query runners use the index being closed.  Query IDs already 
+   * using these results are not affected.
+   * @param id the (database) ID of the index.
+   */
+  public void indexClosed(id) {
+    if(sharedRunners == null) return
+    Set indexIds = [id] as Set
+    FederatedIndex.list().each { FederatedIndex fedIndex ->
+      if(fedIndex.indexes.any { it.id == id }) indexIds << fedIndex.id
+    }
+    sharedRunners.invalidateAll(sharedRunners.asMap().keySet().findAll { 
+      QueryResultKey key -> key.indexId in indexIds
+    })
+  }
+  
   /**
    * Posts a query to a specified index. Creates a query runner for it, stores
    * the query runner in the internal runners map, starts the query executions
@@ -190,6 +304,24 @@ class SearchService {
     // background thread used to clean up the cache
     cacheCleaner = new CacheCleaner(theCache:queryRunners, log:log)
     new Thread(cacheCleaner).start()
+    // construct the shared results cache
+    def maxDocuments = grailsApplication.config.gate.mimir.queryCacheMaxDocuments
+    maxDocuments = (maxDocuments instanceof Number) ? maxDocuments as long : 
+        DEFAULT_QUERY_CACHE_MAX_DOCUMENTS
+    if(maxDocuments > 0) {
+      sharedRunners = CacheBuilder.newBuilder()
+          .expireAfterAccess(30, TimeUnit.MINUTES)
+          .maximumWeight(maxDocuments)
+          .weigher(new SharedRunnerWeigher(inProgressWeight:(int)Math.min(
+              Integer.MAX_VALUE, 
+              Math.max(1L, maxDocuments.intdiv(IN_PROGRESS_SHARE)))))
+          .removalListener(new SharedRunnerRemovalListener(log:log))
+          .build()
+      // re-weigh the completed queries more often than cleaning the cache
+      sharedCacheCleaner = new CacheCleaner(theCache:sharedRunners, log:log,
+          interval:5 * 1000, beforeCleanUp:{ updateWeights() })
+      new Thread(sharedCacheCleaner).start()
+    }
   }
   
   @PreDestroy
@@ -197,12 +329,150 @@ class SearchService {
     // close all remaining query runners
     queryRunners.invalidateAll()
     cacheCleaner.interrupt()
+    sharedRunners?.invalidateAll()
+    sharedCacheCleaner?.interrupt()
   }
+  
+  /**
+   * The default maximum number of result documents held in the shared 
+   * results cache.
+   */
+  public static final long DEFAULT_QUERY_CACHE_MAX_DOCUMENTS = 5000000
+  
+  /**
+   * Until their number of result documents is known, shared queries are 
+   * given a pessimistic weight of this fraction of the shared results cache
+   * (e.g. 100 means 1%).
+   */
+  public static final int IN_PROGRESS_SHARE = 100
 }
 
 class QueryRunnerHolder {
   QueryRunner queryRunner
   Index index
+  /**
+   * The shared runner providing the query runner, if any.
+   */
+  SharedQueryRunner sharedRunner
+}
+
+/**
+ * Key for the shared results cache: the index, the query, and the 
+ * generation of the index when the query was run.  Queries are compared by 
+ * their serialised form, as query nodes do not implement equals.
+ */
+class QueryResultKey {
+  
+  final def indexId
+  
+  final byte[] query
+  
+  final long generation
+  
+  public QueryResultKey(indexId, QueryNode queryNode, long generation) {
+    this.indexId = indexId
+    this.generation = generation
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+    ObjectOutputStream oos = new ObjectOutputStream(bytes)
+    oos.writeObject(queryNode)
+    oos.close()
+    this.query = bytes.toByteArray()
+  }
+  
+  @Override
+  public boolean equals(Object other) {
+    return (other instanceof QueryResultKey) && 
+        generation == other.generation && indexId == other.indexId &&
+        Arrays.equals(query, other.query)
+  }
+  
+  @Override
+  public int hashCode() {
+    return (31 * indexId.hashCode() + Arrays.hashCode(query)) * 31 + 
+        (int)(generation ^ (generation >>> 32))
+  }
+}
+
+/**
+ * A query runner shared by several query IDs.  The runner is closed when 
+ * it is no longer used, i.e. when it has been removed from the shared 
+ * results cache, and all the query IDs using it have been released.
+ */
+class SharedQueryRunner {
+  
+  QueryResultKey key
+  
+  QueryRunner queryRunner
+  
+  /**
+   * Has the cache weight been updated for the final number of documents?
+   */
+  volatile boolean weighed = false
+  
+  /**
+   * The number of users: one for the cache entry, plus one for each query ID.
+   */
+  private int users = 1
+  
+  /**
+   * Registers a new user of this runner.
+   * @return false if the runner has already been closed.
+   */
+  public synchronized boolean acquire() {
+    if(users == 0) return false
+    users++
+    return true
+  }
+  
+  /**
+   * Releases one user of this runner, closing it if it was the last one.
+   */
+  public void release() {
+    boolean close
+    synchronized(this) {
+      close = (--users == 0)
+    }
+    if(close) queryRunner.close()
+  }
+}
+
+/**
+ * Weighs the entries in the shared results cache by their number of result
+ * documents, once known.  Queries still in progress are given a fixed, 
+ * pessimistic, weight, until they are re-weighed on completion.
+ */
+class SharedRunnerWeigher implements Weigher<QueryResultKey, SharedQueryRunner> {
+  
+  /**
+   * The weight of the queries still in progress.
+   */
+  int inProgressWeight = 1
+  
+  @Override
+  public int weigh(QueryResultKey key, SharedQueryRunner value) {
+    if(!value.weighed) return inProgressWeight
+    return (int)Math.min(Integer.MAX_VALUE, 
+        value.queryRunner.getDocumentsCount() + 1)
+  }
+}
+
+/**
+ * Removal listener for the shared results cache, releasing the runners as 
+ * they get evicted.
+ */
+class SharedRunnerRemovalListener 
+    implements RemovalListener<QueryResultKey, SharedQueryRunner> {
+
+  def log
+  
+  @Override
+  public void onRemoval(
+      RemovalNotification<QueryResultKey, SharedQueryRunner> notification) {
+    // entries are only ever replaced by themselves, when re-weighed 
+    if(notification.cause == RemovalCause.REPLACED) return
+    log.debug("Evicting shared query results.")
+    notification.value.release()
+  }
 }
 
 /**
@@ -219,7 +489,13 @@ class CacheRemovalListener implements RemovalListener<String, QueryRunnerHolder>
   @Override
   public void onRemoval(RemovalNotification<String, QueryRunnerHolder> notification) {
     log.debug("Evicting query ${notification.key}.")
-    notification.value.queryRunner.close()
+    QueryRunnerHolder qrh = notification.value
+    if(qrh.sharedRunner) {
+      // the runner may still be used by other query IDs
+      qrh.sharedRunner.release()
+    } else {
+      qrh.queryRunner.close()
+    }
   }
 }
 
@@ -232,6 +508,16 @@ class CacheCleaner implements Runnable {
   
   def log
   
+  /**
+   * The number of milliseconds between clean-ups.
+   */
+  long interval = 30 * 1000
+  
+  /**
+   * Optional action to run before each clean-up.
+   */
+  Closure beforeCleanUp
+  
   Thread myThread
   
   public void interrupt() {
@@ -242,11 +528,16 @@ class CacheCleaner implements Runnable {
   public void run() {
     myThread = Thread.currentThread()
     while(theCache != null) {
-      theCache.cleanUp();
-      log.debug("Removed stale queries; count after clean-up: ${theCache.size()}")
       try {
-        // every 30 seconds, clear out the old runners
-        Thread.sleep(30 * 1000);
+        beforeCleanUp?.call()
+      } catch(Exception e) {
+        log.warn("Error before cleaning up the cache", e)
+      }
+      theCache?.cleanUp();
+      log.debug("Removed stale queries; count after clean-up: ${theCache?.size()}")
+      try {
+        // regularly (every 30 seconds by default) clear out the old runners
+        Thread.sleep(interval);
       } catch (InterruptedException ie) {
         Thread.currentThread().interrupt()
       }
@@ -18,6 +18,7 @@ import grails.converters.JSON;
 import java.util.Set;
 
 import gate.mimir.search.QueryRunner;
+import gate.mimir.search.ResultsPage;
 import gate.mimir.search.query.Binding;
 import gate.mimir.web.Index;
 import gate.mimir.web.client.DocumentData;
@@ -88,6 +89,19 @@ class GwtRpcService implements gate.mimir.web.client.GwtRpcService {
     }
   }
 
+  /**
+   * Joins a range of the terms from a document text segment (as returned by
+   * {@link QueryRunner#getDocumentText}), separated by single spaces.
+   */
+  private String joinText(String[][] text, int start, int end) {
+    StringBuilder str = new StringBuilder()
+    for(int i = start; i < end; i++) {
+      str.append(text[0][i] ?: '')
+      if(text[1][i]) str.append(' ')
+    }
+    return str.toString()
+  }
+
   @Override
   public ResultsData getResultsData(String queryId,
       int firstDocumentRank, int documentsCount) throws MimirSearchException {
@@ -97,45 +111,27 @@ class GwtRpcService implements gate.mimir.web.client.GwtRpcService {
         ResultsData rData = new ResultsData(
           resultsTotal:qRunner.getDocumentsCount(),
           resultsPartial: qRunner.getDocumentsCurrentCount())
-        if(firstDocumentRank >= 0) {
-          // also obtain some documents data
+        if(firstDocumentRank >= 0 && qRunner.getDocumentsCount() >= 0) {
+          // also obtain some documents data, all in one go
           List<DocumentData> documents = []
-          int maxRank = Math.min(firstDocumentRank + documentsCount,
-            qRunner.getDocumentsCount());
-          for(int docRank = firstDocumentRank; docRank < maxRank; docRank++) {
+          ResultsPage page = qRunner.getResultsPage(firstDocumentRank,
+            documentsCount, 3, 3, null)
+          for(int i = 0; i < page.size(); i++) {
             DocumentData docData = new DocumentData(
-                documentRank:docRank,
-                documentTitle:qRunner.getDocumentTitle(docRank),
-                documentUri:qRunner.getDocumentURI(docRank))
+                documentRank:(int)(page.firstRank + i),
+                documentTitle:page.getDocumentTitle(i),
+                documentUri:page.getDocumentURI(i))
             // create the snippets
-            List<String[]> snippets = new ArrayList<String[]>();
-            List<Binding> hits = qRunner.getDocumentHits(docRank).collect{it};
-            3.times {
-              if(hits) {
-                String[] snippet = new String[3];
-                Binding aHit = hits.remove(0)
-                int termPos = Math.max(0, aHit.termPosition - 3)
-                if(termPos < aHit.termPosition) {
-                  snippet[0] = qRunner.getDocumentText(docRank, termPos,
-                    aHit.termPosition - termPos).toList().transpose().inject('') {
-                      acc, val -> acc + val[0] + (val[1] ? ' ' : '')
-                  }
-                } else {
-                  snippet[0] = '';
-                }
-                snippet[1] = qRunner.getDocumentText(docRank, aHit.termPosition,
-                  aHit.length).toList().transpose().inject('') {
-                    acc, val -> acc + val[0] + (val[1] ? ' ' : '')
-                  }
-                snippet[2] = qRunner.getDocumentText(docRank,
-                  aHit.termPosition + aHit.length, 3).toList().
-                  transpose().inject('') {
-                    acc, val -> acc + (val[0]?: '') + (val[1] ? ' ' : '')
-                  }
-                snippets << snippet
-              }
+            List<String[]> snippets = page.getDocumentSnippets(i).collect {
+              ResultsPage.Snippet snippet ->
+              String[][] text = snippet.text
+              int hitStart = snippet.termPosition - snippet.textStart
+              int hitEnd = hitStart + snippet.length
+              return [joinText(text, 0, hitStart), 
+                joinText(text, hitStart, hitEnd),
+                joinText(text, hitEnd, text[0].length)] as String[]
             }
-            if(hits) {
+            if(page.getDocumentHitsCount(i) > snippets.size()) {
               // more than 3 hits: show ellipsis
               snippets.add(["   ", "...", "   "]as String[])
             }
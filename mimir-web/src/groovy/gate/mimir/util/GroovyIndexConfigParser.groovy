@@ -83,6 +83,31 @@ public class GroovyIndexConfigParser {
       indexConfig.maximumBatches = scriptBinding.maximumBatches as int
     }
 
+    if(scriptBinding.hasVariable('indexingShards')) {
+      indexConfig.indexingShards = scriptBinding.indexingShards as int
+    }
+
+    if(scriptBinding.hasVariable('mergeFactor')) {
+      indexConfig.mergeFactor = scriptBinding.mergeFactor as int
+    }
+
+    if(scriptBinding.hasVariable('mergeThreads')) {
+      indexConfig.mergeThreads = scriptBinding.mergeThreads as int
+    }
+
+    if(scriptBinding.hasVariable('maxMergeBytesPerSecond')) {
+      indexConfig.maxMergeBytesPerSecond = 
+          scriptBinding.maxMergeBytesPerSecond as long
+    }
+
+    if(scriptBinding.hasVariable('slabPostings')) {
+      indexConfig.slabPostings = scriptBinding.slabPostings as boolean
+    }
+
+    if(scriptBinding.hasVariable('documentCacheSize')) {
+      indexConfig.documentCacheSize = scriptBinding.documentCacheSize as long
+    }
+
     semanticAnnotationsHandler.clear()
     tokenFeaturesHandler.clear()
     // clean up the metaclass to prevent memory leaks
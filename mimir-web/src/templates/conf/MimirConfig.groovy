@@ -64,3 +64,41 @@ scorers.'BM25' = {
 scorers.'Hit Length Scoring' = {
   new BindingScorer()
 }
+
+// The number of threads used to collect the results of each query on a local
+// index.  Values larger than 1 split large indexes into ranges of documents
+// that are searched in parallel, which makes expensive queries faster at the
+// cost of using more threads per query.  Defaults to 1.
+
+// queryParallelism = 4
+
+// Federated indexes send each query to all their sub-indexes in parallel, 
+// using a shared pool of threads.  This is the size of that pool, i.e. the 
+// maximum number of sub-index requests in progress at the same time, across 
+// all federated indexes.  Sub-indexes that are themselves federated indexes
+// send their own requests from separate threads, outside this pool.  
+// Defaults to 16.
+
+// federatedParallelism = 16
+
+// The maximum time (in milliseconds) a federated index waits for its 
+// sub-indexes to start a query or answer a terms query.  Defaults to 0, 
+// meaning no limit.
+
+// federatedTimeout = 30000
+
+// What a federated index does when some of its sub-indexes fail, or do not 
+// answer within federatedTimeout: if true, the results from the other 
+// sub-indexes are returned (as long as at least one of them answered); if 
+// false, the whole query fails.  Defaults to false.
+
+// federatedPartialResults = true
+
+// Identical queries posted to the same local (or federated) index share their
+// results, for as long as the index contents do not change.  This is the 
+// maximum total number of result documents kept for sharing; the least 
+// recently used results are discarded first; queries still in progress 
+// count as 1% of this maximum.  Set to 0 to disable sharing.  Defaults to 
+// 5000000.
+
+// queryCacheMaxDocuments = 1000000
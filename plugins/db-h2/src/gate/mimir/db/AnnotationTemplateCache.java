@@ -16,13 +16,11 @@ package gate.mimir.db;
 
 import gate.FeatureMap;
 import gate.mimir.AbstractSemanticAnnotationHelper;
+import it.unimi.dsi.fastutil.objects.Object2LongLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ShortMap;
 import it.unimi.dsi.fastutil.objects.Object2ShortOpenHashMap;
 
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 
 public class AnnotationTemplateCache {
@@ -126,40 +124,6 @@ public class AnnotationTemplateCache {
     int hashcode;
   }
 
-  /**
-   * Type for keys going in the level 3 cache
-   */
-  protected class Level3Key {
-    public Level3Key(long level1Id, long level2Id, int mentionLength) {
-      this.level1Id = level1Id;
-      this.level2Id = level2Id;
-      this.mentionLength = mentionLength;
-      this.hashcode = Arrays.hashCode(new long[]{level1Id, level2Id, mentionLength});
-    }
-
-    @Override
-    public int hashCode() {
-      return hashcode;
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-      Level3Key other = (Level3Key)obj;
-      return other != null && 
-             level1Id == other.level1Id && 
-             level2Id == other.level2Id && 
-             mentionLength == other.mentionLength;
-    }
-
-    long level1Id;
-    
-    long level2Id;
-
-    int mentionLength;
-
-    int hashcode;
-  }
-
   /**
    * Value for a Tag's ID when no ID as been set yet.
    */
@@ -179,11 +143,29 @@ public class AnnotationTemplateCache {
 
   private static final short NULL = -1;
 
+  /**
+   * Creates a new cache, with its own mention ID cache.
+   * @param owner the helper using this cache.
+   */
   public AnnotationTemplateCache(AbstractSemanticAnnotationHelper owner) {
+    this(owner, null);
+  }
+  
+  /**
+   * Creates a new cache.
+   * @param owner the helper using this cache.
+   * @param sharedMentionCache a mention ID cache shared with other helpers,
+   * or <code>null</code> if this cache should use its own. The shared cache
+   * is not used if a Level-3 cache size is set (see 
+   * {@link #setL3CacheSize(int)}).
+   */
+  public AnnotationTemplateCache(AbstractSemanticAnnotationHelper owner, 
+      MentionIdCache sharedMentionCache) {
     this.owner = owner;
     this.l1CacheSize = DEFAULT_L1_SIZE;
     this.l2CacheSize = DEFAULT_L2_SIZE;
-    this.l3CacheSize = DEFAULT_L3_SIZE;
+    this.sharedMentionCache = sharedMentionCache;
+    setL3CacheSize(-1);
     int length =
             (owner.getNominalFeatures() == null) ? 0 : owner
                     .getNominalFeatures().length;
@@ -192,34 +174,11 @@ public class AnnotationTemplateCache {
       nominalvalues[i] = new Object2ShortOpenHashMap<String>();
       nominalvalues[i].defaultReturnValue(NULL);
     }
-    level1Cache = new LinkedHashMap<Level1Key, Long> (){
-      private static final long serialVersionUID = -7450031094311786000L;
-
-      @Override
-      protected boolean removeEldestEntry(
-              Entry<Level1Key, Long> eldest) {
-        return size() > l1CacheSize;
-      }
-    };
-            
-    level2Cache = new LinkedHashMap<Level2Key, Long> (){
-      private static final long serialVersionUID = -4387458661647300503L;
-
-      @Override
-      protected boolean removeEldestEntry(
-              Entry<Level2Key, Long> eldest) {
-        return size() > l2CacheSize;
-      }
-    };
-    
-    level3Cache = new LinkedHashMap<Level3Key, Long>() {
-      private static final long serialVersionUID = -1341690439603138038L;
-
-      @Override
-      protected boolean removeEldestEntry(Entry<Level3Key, Long> eldest) {
-        return size() > l3CacheSize;
-      }
-    };
+    // both maps are kept in access order, most recently used first
+    level1Cache = new Object2LongLinkedOpenHashMap<Level1Key>();
+    level1Cache.defaultReturnValue(NO_ID);
+    level2Cache = new Object2LongLinkedOpenHashMap<Level2Key>();
+    level2Cache.defaultReturnValue(NO_ID);
     
     l1CacheHits = 0;
     l1CacheMisses = 0;
@@ -229,11 +188,24 @@ public class AnnotationTemplateCache {
     l3CacheMisses = 0;
   }
 
-  protected Map<Level1Key, Long> level1Cache;
+  protected Object2LongLinkedOpenHashMap<Level1Key> level1Cache;
   
-  protected Map<Level2Key, Long> level2Cache;
+  protected Object2LongLinkedOpenHashMap<Level2Key> level2Cache;
 
-  protected Map<Level3Key, Long> level3Cache;
+  /**
+   * The cache for mention IDs, which may be shared with other helpers.
+   */
+  protected MentionIdCache level3Cache;
+  
+  /**
+   * The name space used by this cache in {@link #level3Cache}.
+   */
+  protected int level3Namespace;
+  
+  /**
+   * The mention ID cache shared with other helpers, if any.
+   */
+  protected MentionIdCache sharedMentionCache;
 
   /**
    * The helper using this cache.
@@ -251,6 +223,9 @@ public class AnnotationTemplateCache {
 
   protected int l2CacheSize;
 
+  /**
+   * The size of the Level-3 cache, if not shared.
+   */
   protected int l3CacheSize;
 
   private long l1CacheHits;
@@ -274,11 +249,11 @@ public class AnnotationTemplateCache {
   public long getLevel1Id(FeatureMap annFeats, Callable<Long> idGenerator) throws Exception {
     // build the nominal features value
     Level1Key l1key = new Level1Key(annFeats);
-    Long l1Id = level1Cache.get(l1key);
-    if(l1Id == null) {
+    long l1Id = level1Cache.getAndMoveToFirst(l1key);
+    if(l1Id == NO_ID) {
       l1CacheMisses++;
       l1Id = idGenerator.call();
-      level1Cache.put(l1key, l1Id);
+      putLevel1Id(l1key, l1Id);
     } else {
       l1CacheHits++;
     }
@@ -295,11 +270,11 @@ public class AnnotationTemplateCache {
   public Long getLevel2Id(Long level1Tag, FeatureMap annFeats, 
                           Callable<Long> idGenerator) throws Exception {
     Level2Key nonNonFeats = new Level2Key(level1Tag, annFeats);
-    Long level2Tag = level2Cache.get(nonNonFeats);
-    if(level2Tag == null) {
+    long level2Tag = level2Cache.getAndMoveToFirst(nonNonFeats);
+    if(level2Tag == NO_ID) {
       l2CacheMisses++;
       level2Tag = idGenerator.call();
-      level2Cache.put(nonNonFeats, level2Tag);
+      putLevel2Id(nonNonFeats, level2Tag);
     } else {
       l2CacheHits++;
     }
@@ -316,19 +291,76 @@ public class AnnotationTemplateCache {
    */
   public Long getLevel3Id(Long level1tag, Long level2tag, int length, 
                           Callable<Long> idGenerator) throws Exception {
-    Level3Key key = new Level3Key(
-        level1tag, (level2tag == null ? NULL_ID : level2tag), length);
-    Long l3Tag = level3Cache.get(key);
-    if(l3Tag == null) {
+    long level2Id = (level2tag == null ? NULL_ID : level2tag);
+    long l3Tag = level3Cache.get(level3Namespace, level1tag, level2Id, length);
+    if(l3Tag == NO_ID) {
       l3CacheMisses++;
       l3Tag = idGenerator.call();
-      level3Cache.put(key, l3Tag);
+      level3Cache.put(level3Namespace, level1tag, level2Id, length, l3Tag);
     } else {
       l3CacheHits++;
     }
     return l3Tag;
   }
 
+  /**
+   * Gets the cached Level-1 ID for a set of features, without generating a 
+   * new one in case of a cache miss. This does not affect the hit and miss 
+   * counts.
+   * @return the cached ID, or <code>null</code>.
+   */
+  public Long getCachedLevel1Id(FeatureMap annFeats) {
+    long l1Id = level1Cache.getLong(new Level1Key(annFeats));
+    return l1Id == NO_ID ? null : l1Id;
+  }
+  
+  /**
+   * Adds a Level-1 ID to the cache (e.g. when the IDs are obtained in bulk).
+   */
+  public void putLevel1Id(FeatureMap annFeats, long level1Id) {
+    putLevel1Id(new Level1Key(annFeats), level1Id);
+  }
+  
+  private void putLevel1Id(Level1Key key, long level1Id) {
+    level1Cache.putAndMoveToFirst(key, level1Id);
+    while(level1Cache.size() > l1CacheSize) level1Cache.removeLastLong();
+  }
+  
+  /**
+   * Gets the cached Level-2 ID for a set of features, without generating a 
+   * new one in case of a cache miss. This does not affect the hit and miss 
+   * counts.
+   * @return the cached ID, or <code>null</code>.
+   */
+  public Long getCachedLevel2Id(long level1Id, FeatureMap annFeats) {
+    long l2Id = level2Cache.getLong(new Level2Key(level1Id, annFeats));
+    return l2Id == NO_ID ? null : l2Id;
+  }
+  
+  /**
+   * Adds a Level-2 ID to the cache (e.g. when the IDs are obtained in bulk).
+   */
+  public void putLevel2Id(long level1Id, FeatureMap annFeats, long level2Id) {
+    putLevel2Id(new Level2Key(level1Id, annFeats), level2Id);
+  }
+  
+  private void putLevel2Id(Level2Key key, long level2Id) {
+    level2Cache.putAndMoveToFirst(key, level2Id);
+    while(level2Cache.size() > l2CacheSize) level2Cache.removeLastLong();
+  }
+  
+  /**
+   * Adds a Level-3 (mention) ID to the cache (e.g. when the IDs are obtained
+   * in bulk).
+   * @param level2Id the Level-2 ID, or <code>null</code> for mentions that 
+   * only use the Level-1 features.
+   */
+  public void putLevel3Id(long level1Id, Long level2Id, int length, 
+                          long mentionId) {
+    level3Cache.put(level3Namespace, level1Id, 
+        level2Id == null ? NULL_ID : level2Id, length, mentionId);
+  }
+
   /**
    * Returns the current size of the Level1 cache.
    * 
@@ -430,17 +462,33 @@ public class AnnotationTemplateCache {
   }
 
   /**
-   * @return the l3CacheSize
+   * @return the maximum number of entries in the Level-3 cache (which may be
+   * shared with other helpers).
    */
   public int getL3CacheSize() {
-    return l3CacheSize;
+    return level3Cache.getMaxSize();
   }
 
   /**
+   * Sets the size of the Level-3 cache. If a positive size is given, this 
+   * cache uses its own mention ID cache of that size. Otherwise, it uses the
+   * shared mention ID cache, if one was provided, or a cache of the default 
+   * size.
    * @param l3CacheSize the l3CacheSize to set
    */
   public void setL3CacheSize(int l3CacheSize) {
-    this.l3CacheSize = l3CacheSize > 0 ? l3CacheSize : DEFAULT_L3_SIZE;
+    if(l3CacheSize <= 0 && sharedMentionCache != null) {
+      if(level3Cache == sharedMentionCache) return;
+      this.l3CacheSize = -1;
+      level3Cache = sharedMentionCache;
+    } else {
+      l3CacheSize = l3CacheSize > 0 ? l3CacheSize : DEFAULT_L3_SIZE;
+      if(level3Cache != null && level3Cache != sharedMentionCache &&
+         this.l3CacheSize == l3CacheSize) return;
+      this.l3CacheSize = l3CacheSize;
+      level3Cache = new MentionIdCache(l3CacheSize);
+    }
+    level3Namespace = level3Cache.newNamespace();
   }
   
 }
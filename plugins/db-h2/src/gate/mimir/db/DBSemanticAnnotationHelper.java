@@ -15,6 +15,7 @@
 package gate.mimir.db;
 
 import gate.Annotation;
+import gate.AnnotationSet;
 import gate.Document;
 import gate.FeatureMap;
 import gate.mimir.AbstractSemanticAnnotationHelper;
@@ -25,6 +26,9 @@ import gate.mimir.SemanticAnnotationHelper;
 import gate.mimir.index.AtomicAnnotationIndex;
 import gate.mimir.index.Mention;
 import gate.mimir.search.QueryEngine;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.io.File;
 import java.sql.Connection;
@@ -37,9 +41,17 @@ import java.sql.Types;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
@@ -253,6 +265,12 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
   protected static final String L2_TABLE_SUFFIX = "L2";
   
   protected static final String MENTIONS_TABLE_SUFFIX = "Mentions";
+  
+  /**
+   * The maximum number of rows looked up by each of the multi-row queries 
+   * used to resolve the annotation templates of a document in bulk.
+   */
+  protected static final int BULK_QUERY_SIZE = 100;
 
   /**
    * The key in the {@link IndexConfig#getOptions()} Map for the size of the 
@@ -261,6 +279,23 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
    */
   public static final String DB_CACHE_SIZE_OPTIONS_KEY = "databaseCacheSize";
   
+  /**
+   * The key in the {@link IndexConfig#getOptions()} Map for the amount of 
+   * memory (in KiB) to be used by the mention ID cache shared by all the 
+   * helpers of an index (see {@link MentionIdCache}). The cache size defaults
+   * to 128 MiB. Helpers that have their own Level-3 cache size set (see 
+   * {@link #setCacheSizes(int, int, int)}) do not use the shared cache. 
+   */
+  public static final String MENTION_CACHE_SIZE_OPTIONS_KEY = 
+      "mentionCacheSize";
+  
+  /**
+   * Key used to retrieve the {@link MentionIdCache} shared by all the helpers
+   * of an index from the {@link IndexConfig#getContext()} context.
+   */
+  public static final String MENTION_CACHE_CONTEXT_KEY = 
+      DBSemanticAnnotationHelper.class.getName() + ":mentionCache";
+  
   /**
    * The base name (prefix) used for all tables created by this helper.
    * The name is derived from the annotation name.
@@ -374,6 +409,40 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
   
   protected transient AnnotationTemplateCache cache;
   
+  /**
+   * The (quoted) names of the data columns in the Level-1 table.
+   */
+  protected transient String[] level1Columns;
+  
+  /**
+   * The SQL types of the data columns in the Level-1 table.
+   */
+  protected transient int[] level1Types;
+  
+  /**
+   * The (quoted) names of the data columns in the Level-2 table, starting with
+   * L1_ID.
+   */
+  protected transient String[] level2Columns;
+  
+  /**
+   * The SQL types of the data columns in the Level-2 table, starting with the
+   * type of L1_ID.
+   */
+  protected transient int[] level2Types;
+  
+  /**
+   * The SQL types of the feature columns in the Level-2 table (i.e. 
+   * {@link #level2Types} without the type for L1_ID).
+   */
+  protected transient int[] level2FeatureTypes;
+  
+  /**
+   * The name of the annotation set containing the semantic annotations, used
+   * to find all the annotations of a document when it starts being indexed.
+   */
+  protected transient String annotationSetName;
+  
   private transient int docsSoFar = 0;
   
   private static transient NumberFormat percentFormat = NumberFormat.getPercentInstance();
@@ -386,7 +455,21 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
    *  for the current document.
    */
   private transient FeatureMap documentFeatures;
-  
+
+  /**
+   * The Level-1 IDs resolved in bulk for the annotations of the current
+   * document (see {@link #resolveTemplates(List)}), keyed by the annotations'
+   * feature maps. These are kept for the whole document, as the
+   * {@link #cache} may be too small to hold all the templates of a large one.
+   */
+  private transient Map<FeatureMap, Long> documentLevel1Ids;
+
+  /**
+   * The Level-2 IDs resolved in bulk for the annotations of the current
+   * document, keyed by the annotations' feature maps.
+   */
+  private transient Map<FeatureMap, Long> documentLevel2Ids;
+
   @Override
   public void init(AtomicAnnotationIndex index) {
     super.init(index);
@@ -398,10 +481,28 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
     setTextFeatures(concatenateArrays(getTextFeatures(), getUriFeatures()));
     setUriFeatures(new String[0]);
 
-    cache = new AnnotationTemplateCache(this);
+    IndexConfig indexConfig = index.getParent().getIndexConfig();
+    MentionIdCache mentionCache;
+    Map<String, Object> context = indexConfig.getContext();
+    synchronized(context) {
+      mentionCache = (MentionIdCache)context.get(MENTION_CACHE_CONTEXT_KEY);
+      if(mentionCache == null) {
+        String mentionCacheSizeStr = indexConfig.getOptions().get(
+            MENTION_CACHE_SIZE_OPTIONS_KEY);
+        // default to 128 MiB, if not provided
+        long mentionCacheSize = mentionCacheSizeStr == null ? 128 * 1024 : 
+            Long.parseLong(mentionCacheSizeStr);
+        mentionCache = MentionIdCache.withMemoryBudget(mentionCacheSize * 1024);
+        context.put(MENTION_CACHE_CONTEXT_KEY, mentionCache);
+      }
+    }
+    cache = new AnnotationTemplateCache(this, mentionCache);
+    documentLevel1Ids = new IdentityHashMap<FeatureMap, Long>();
+    documentLevel2Ids = new IdentityHashMap<FeatureMap, Long>();
     cache.setL1CacheSize(level1CacheSize);
     cache.setL2CacheSize(level2CacheSize);
     cache.setL3CacheSize(level3CacheSize);
+    annotationSetName = indexConfig.getSemanticAnnotationSetName();
     
     // calculate the basename
     // to avoid inter-locking between the multiple SB-based indexers, they each 
@@ -549,10 +650,14 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
             " (ID IDENTITY NOT NULL PRIMARY KEY");
     selectStr.append("SELECT ID FROM " + tableName(null, L1_TABLE_SUFFIX));
     insertStr.append("INSERT INTO " + tableName(null, L1_TABLE_SUFFIX) + " VALUES(DEFAULT");
+    List<String> columns = new ArrayList<String>();
+    List<Integer> types = new ArrayList<Integer>();
     if(nominalFeatureNames != null && nominalFeatureNames.length > 0) {
       selectStr.append(" WHERE");
       boolean firstWhere = true;
       for(String aFeatureName : nominalFeatureNames) {
+        columns.add("\"" + aFeatureName + "\"");
+        types.add(Types.VARCHAR);
         createStr.append(", \"" + aFeatureName + "\" VARCHAR(255)");
         if(firstWhere) firstWhere = false; else selectStr.append(" AND");
         selectStr.append(" \"" + aFeatureName + "\" IS ?");
@@ -566,6 +671,8 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
     logger.debug("Select Level 1:\n" + selectStr.toString());
     level1SelectStmt = dbConnection.prepareStatement(selectStr.toString());
     level1InsertStmt = dbConnection.prepareStatement(insertStr.toString());
+    level1Columns = columns.toArray(new String[columns.size()]);
+    level1Types = toIntArray(types);
     
     // ////////////////////////////////
     // create the Level 2 table
@@ -585,9 +692,15 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
           "SELECT ID FROM " + tableName(null, L2_TABLE_SUFFIX) + " WHERE L1_ID IS ?");
       insertStr = new StringBuilder(
               "INSERT INTO " + tableName(null, L2_TABLE_SUFFIX) + " VALUES(DEFAULT, ?");
+      columns = new ArrayList<String>();
+      types = new ArrayList<Integer>();
+      columns.add("L1_ID");
+      types.add(Types.BIGINT);
       if(integerFeatureNames != null && integerFeatureNames.length > 0) {
         for(String aFeatureName : integerFeatureNames) {
           createStr.append(", \"" + aFeatureName + "\" BIGINT");
+          columns.add("\"" + aFeatureName + "\"");
+          types.add(Types.BIGINT);
           selectStr.append(" AND \"" + aFeatureName + "\" IS ?");
           insertStr.append(", ?");
         }
@@ -595,6 +708,8 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
       if(floatFeatureNames != null && floatFeatureNames.length > 0) {
         for(String aFeatureName : floatFeatureNames) {
           createStr.append(", \"" + aFeatureName + "\" DOUBLE");
+          columns.add("\"" + aFeatureName + "\"");
+          types.add(Types.DOUBLE);
           selectStr.append(" AND \"" + aFeatureName + "\" IS ?");
           insertStr.append(", ?");
         }
@@ -602,6 +717,8 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
       if(textFeatureNames != null && textFeatureNames.length > 0) {
         for(String aFeatureName : textFeatureNames) {
           createStr.append(", \"" + aFeatureName + "\" VARCHAR(255)");
+          columns.add("\"" + aFeatureName + "\"");
+          types.add(Types.VARCHAR);
           selectStr.append(" AND \"" + aFeatureName + "\" IS ?");
           insertStr.append(", ?");
         }
@@ -614,6 +731,10 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
       logger.debug("Select Level 2:\n" + selectStr.toString());
       level2SelectStmt = dbConnection.prepareStatement(selectStr.toString());
       level2InsertStmt = dbConnection.prepareStatement(insertStr.toString());
+      level2Columns = columns.toArray(new String[columns.size()]);
+      level2Types = toIntArray(types);
+      level2FeatureTypes = Arrays.copyOfRange(level2Types, 1, 
+          level2Types.length);
     }
     // /////////////////////////////
     // create the Mentions table
@@ -711,6 +832,12 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
     stmt.execute(idxStmt);    
   }
   
+  private static int[] toIntArray(List<Integer> values) {
+    int[] res = new int[values.size()];
+    for(int i = 0; i < res.length; i++) res[i] = values.get(i);
+    return res;
+  }
+  
   /**
    * Creates a table (index, etc.) name. Uses the value in 
    * {@link #tableBaseName} as a base name, to which it prepends the supplied 
@@ -739,35 +866,19 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
       featuresToIndex = ann.getFeatures();
     }
 
-    if(!indexNulls) {
+    if(!indexNulls && allFeaturesNull(featuresToIndex)) {
       // we don't want to index instances where all the features are null, so
-      // check to see whether this is the case
-      boolean allFeaturesNull = true;
-      shortCircuit:do {
-        for(String featureName : nominalFeatureNameSet) {
-          if(featuresToIndex.get(featureName) != null) {
-            allFeaturesNull = false;
-            break shortCircuit;
-          }
-        }
-        for(String featureName : nonNominalFeatureNameSet) {
-          if(featuresToIndex.get(featureName) != null) {
-            allFeaturesNull = false;
-            break shortCircuit;
-          }
-        }
-      } while(false);
-
-      // no value found for any of the features, so drop this instance
-      if(allFeaturesNull) {
-        return EMPTY_STRING_ARRAY;
-      }
+      // drop this instance
+      return EMPTY_STRING_ARRAY;
     }
     
     try {
-      // find the level 1 ID
-      Long level1Tag = cache.getLevel1Id(featuresToIndex, 
-          new Level1IdGenerator(featuresToIndex));
+      // find the level 1 ID, if not already resolved for this document
+      Long level1Tag = documentLevel1Ids.get(featuresToIndex);
+      if(level1Tag == null) {
+        level1Tag = cache.getLevel1Id(featuresToIndex, 
+            new Level1IdGenerator(featuresToIndex));
+      }
       
       // find the Level-1 Mention ID (ignoring the L2 values)
       Long mentionL1Tag = cache.getLevel3Id(level1Tag, null, length, 
@@ -776,8 +887,11 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
       Long mentionL2Tag = null;
       if(level2Used){
         // find the level 2 ID
-        Long level2Tag = cache.getLevel2Id(level1Tag, featuresToIndex, 
-            new Level2IdGenerator(level1Tag, featuresToIndex));
+        Long level2Tag = documentLevel2Ids.get(featuresToIndex);
+        if(level2Tag == null) {
+          level2Tag = cache.getLevel2Id(level1Tag, featuresToIndex, 
+              new Level2IdGenerator(level1Tag, featuresToIndex));
+        }
         
         // find the Level-2 Mention ID
         mentionL2Tag = cache.getLevel3Id(level1Tag, level2Tag, length,
@@ -892,375 +1006,666 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
   protected void setStatementParameters(PreparedStatement stmt, 
           FeatureMap annFeats) throws SQLException {
     if(stmt == level1InsertStmt || stmt == level1SelectStmt) {
-      if(nominalFeatureNames != null){
-        int paramIdx = 1;
-        for(String aFeatureName : nominalFeatureNames) {
-          Object value = annFeats.get(aFeatureName);
-          if(value != null) {
-            stmt.setString(paramIdx++, value.toString());
-          } else {
-            stmt.setNull(paramIdx++, Types.VARCHAR);
-          }
-        }
-      }
+      setParameters(stmt, 1, getLevel1Values(annFeats), level1Types);
     } else if(stmt == level2InsertStmt || stmt == level2SelectStmt) {
       if(!level2Used) throw new RuntimeException(
           "Was asked to populate a Level-2 statement, but Level-2 is not in use!");
-      int paramIdx = 2;
-      if(integerFeatureNames != null){
-        for(String aFeatureName : integerFeatureNames) {
-          Object valueObj = annFeats.get(aFeatureName);
-          Long value = null;
-          if(valueObj != null){
-            if(valueObj instanceof Number) {
-              value = ((Number)valueObj).longValue();
-            } else if(valueObj instanceof String) {
-              try {
-                value = Long.valueOf((String)valueObj);
-              } catch(NumberFormatException e) {
-                logger.warn("Value provided for feature \"" + aFeatureName
-                                + "\" is a String that cannot be parsed to a Long. Value ("
-                                + valueObj.toString() + ") will be ignored!");
-              }
-            } else {
+      setParameters(stmt, 2, getLevel2Values(annFeats), level2FeatureTypes);
+    } else {
+      throw new RuntimeException("Cannot recognise the the provided prepared statement!");
+    }
+  }
+  
+  /**
+   * Gets the values of the nominal features, as stored in the Level-1 table.
+   * @param annFeats
+   * @return a list of values, aligned with {@link #level1Columns}. 
+   */
+  protected List<Object> getLevel1Values(FeatureMap annFeats) {
+    List<Object> values = new ArrayList<Object>(level1Columns.length);
+    if(nominalFeatureNames != null){
+      for(String aFeatureName : nominalFeatureNames) {
+        Object value = annFeats.get(aFeatureName);
+        values.add(value != null ? value.toString() : null);
+      }
+    }
+    return values;
+  }
+  
+  /**
+   * Gets the values of the non-nominal features, as stored in the Level-2 
+   * table. 
+   * @param annFeats
+   * @return a list of values, aligned with {@link #level2Columns}, but 
+   * without a value for the L1_ID column. 
+   */
+  protected List<Object> getLevel2Values(FeatureMap annFeats) {
+    List<Object> values = new ArrayList<Object>();
+    if(integerFeatureNames != null){
+      for(String aFeatureName : integerFeatureNames) {
+        Object valueObj = annFeats.get(aFeatureName);
+        Long value = null;
+        if(valueObj != null){
+          if(valueObj instanceof Number) {
+            value = ((Number)valueObj).longValue();
+          } else if(valueObj instanceof String) {
+            try {
+              value = Long.valueOf((String)valueObj);
+            } catch(NumberFormatException e) {
               logger.warn("Value provided for feature \"" + aFeatureName
-                      + "\" is not a subclass of java.lang.Number. Value ("
-                      + valueObj.toString() + ") will be ignored!");
-            }            
-          }
-          if(value != null) {
-            stmt.setLong(paramIdx++, value);
+                              + "\" is a String that cannot be parsed to a Long. Value ("
+                              + valueObj.toString() + ") will be ignored!");
+            }
           } else {
-            stmt.setNull(paramIdx++, Types.BIGINT);
-          }
+            logger.warn("Value provided for feature \"" + aFeatureName
+                    + "\" is not a subclass of java.lang.Number. Value ("
+                    + valueObj.toString() + ") will be ignored!");
+          }            
         }
+        values.add(value);
       }
-      if(floatFeatureNames != null){
-        for(String aFeatureName : floatFeatureNames) {
-          Object valueObj = annFeats.get(aFeatureName);
-          Double value = null;
-          if(valueObj != null){
-            if(valueObj instanceof Number) {
-              value = ((Number)valueObj).doubleValue();
-            } else if(valueObj instanceof String) {
-              try {
-                value = Double.valueOf((String)valueObj);
-              } catch(NumberFormatException e) {
-                logger.warn("Value provided for feature \"" + aFeatureName
-                                + "\" is a String that cannot be parsed to a Double. Value ("
-                                + valueObj.toString() + ") will be ignored!");
-              }
-            } else {
+    }
+    if(floatFeatureNames != null){
+      for(String aFeatureName : floatFeatureNames) {
+        Object valueObj = annFeats.get(aFeatureName);
+        Double value = null;
+        if(valueObj != null){
+          if(valueObj instanceof Number) {
+            value = ((Number)valueObj).doubleValue();
+          } else if(valueObj instanceof String) {
+            try {
+              value = Double.valueOf((String)valueObj);
+            } catch(NumberFormatException e) {
               logger.warn("Value provided for feature \"" + aFeatureName
-                      + "\" is not a subclass of java.lang.Number. Value ("
-                      + valueObj.toString() + ") will be ignored!");
-            }            
-          }
-          if(value != null) {
-            stmt.setDouble(paramIdx++, value);
+                              + "\" is a String that cannot be parsed to a Double. Value ("
+                              + valueObj.toString() + ") will be ignored!");
+            }
           } else {
-            stmt.setNull(paramIdx++, Types.DOUBLE);
+            logger.warn("Value provided for feature \"" + aFeatureName
+                    + "\" is not a subclass of java.lang.Number. Value ("
+                    + valueObj.toString() + ") will be ignored!");
+          }            
+        }
+        values.add(value);
+      }  
+    }
+    if(textFeatureNames != null) {
+      for(String aFeatureName : textFeatureNames) {
+        Object valueObj = annFeats.get(aFeatureName);
+        values.add(valueObj != null ? valueObj.toString() : null);
+      }
+    }
+    return values;
+  }
+  
+  /**
+   * Sets a sequence of parameters of a prepared statement.
+   * @param stmt the statement.
+   * @param firstIndex the index of the first parameter to be set. 
+   * @param values the values (any of which may be <code>null</code>).
+   * @param types the SQL types for the values (see {@link Types}).
+   * @return the index of the next parameter.
+   * @throws SQLException
+   */
+  protected static int setParameters(PreparedStatement stmt, int firstIndex, 
+      List<Object> values, int[] types) throws SQLException {
+    int paramIdx = firstIndex;
+    for(int i = 0; i < values.size(); i++) {
+      Object value = values.get(i);
+      if(value == null) {
+        stmt.setNull(paramIdx++, types[i]);
+      } else if(value instanceof Long) {
+        stmt.setLong(paramIdx++, (Long)value);
+      } else if(value instanceof Double) {
+        stmt.setDouble(paramIdx++, (Double)value);
+      } else {
+        stmt.setString(paramIdx++, value.toString());
+      }
+    }
+    return paramIdx;
+  }
+  
+  /**
+   * Checks whether none of the features used by this helper has a value.
+   * @param annFeats
+   * @return
+   */
+  protected boolean allFeaturesNull(FeatureMap annFeats) {
+    for(String featureName : nominalFeatureNameSet) {
+      if(annFeats.get(featureName) != null) return false;
+    }
+    for(String featureName : nonNominalFeatureNameSet) {
+      if(annFeats.get(featureName) != null) return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Obtains the Level-1 and Level-2 IDs for a set of annotations in bulk, and 
+   * stores them in {@link #documentLevel1Ids} and {@link #documentLevel2Ids},
+   * as well as in the {@link #cache}. The feature templates not found in the
+   * cache are looked up using multi-row queries, and the ones not present in 
+   * the database are inserted using batch updates. The mention IDs already
+   * in the database for the templates found are also loaded into the cache.
+   * This replaces several database round trips for each new annotation 
+   * template with a few for each document.
+   * 
+   * @param annotationFeatures the features of the annotations.
+   * @throws SQLException
+   */
+  protected void resolveTemplates(List<FeatureMap> annotationFeatures) 
+      throws SQLException {
+    // Level 1
+    Map<List<Object>, List<FeatureMap>> missing = 
+        new LinkedHashMap<List<Object>, List<FeatureMap>>();
+    for(FeatureMap annFeats : annotationFeatures) {
+      Long level1Id = cache.getCachedLevel1Id(annFeats);
+      if(level1Id == null) {
+        addTemplate(missing, getLevel1Values(annFeats), annFeats);
+      } else {
+        documentLevel1Ids.put(annFeats, level1Id);
+      }
+    }
+    LongSet level1Found = new LongOpenHashSet();
+    if(!missing.isEmpty()) {
+      Map<List<Object>, Long> ids = resolveIds(L1_TABLE_SUFFIX, level1Columns, 
+          level1Types, level1InsertStmt, missing.keySet(), level1Found);
+      for(Map.Entry<List<Object>, List<FeatureMap>> entry : missing.entrySet()) {
+        Long id = ids.get(entry.getKey());
+        if(id == null) continue;
+        for(FeatureMap annFeats : entry.getValue()) {
+          cache.putLevel1Id(annFeats, id);
+          documentLevel1Ids.put(annFeats, id);
+        }
+      }
+    }
+    // Level 2
+    LongSet level2Found = new LongOpenHashSet();
+    if(level2Used) {
+      missing.clear();
+      for(FeatureMap annFeats : annotationFeatures) {
+        Long level1Id = documentLevel1Ids.get(annFeats);
+        if(level1Id == null) continue;
+        Long level2Id = cache.getCachedLevel2Id(level1Id, annFeats);
+        if(level2Id == null) {
+          List<Object> values = new ArrayList<Object>(level2Columns.length);
+          values.add(level1Id);
+          values.addAll(getLevel2Values(annFeats));
+          addTemplate(missing, values, annFeats);
+        } else {
+          documentLevel2Ids.put(annFeats, level2Id);
+        }
+      }
+      if(!missing.isEmpty()) {
+        Map<List<Object>, Long> ids = resolveIds(L2_TABLE_SUFFIX, level2Columns,
+            level2Types, level2InsertStmt, missing.keySet(), level2Found);
+        for(Map.Entry<List<Object>, List<FeatureMap>> entry : 
+            missing.entrySet()) {
+          Long id = ids.get(entry.getKey());
+          if(id == null) continue;
+          long level1Id = (Long)entry.getKey().get(0);
+          for(FeatureMap annFeats : entry.getValue()) {
+            cache.putLevel2Id(level1Id, annFeats, id);
+            documentLevel2Ids.put(annFeats, id);
           }
-        }  
+        }
       }
-      if(textFeatureNames != null) {
-        for(String aFeatureName : textFeatureNames) {
-          Object valueObj = annFeats.get(aFeatureName);
-          if(valueObj != null) {
-            stmt.setString(paramIdx++, valueObj.toString());
-          } else {
-            stmt.setNull(paramIdx++, Types.VARCHAR);
+    }
+    // mentions
+    loadMentions(level1Found, level2Found);
+  }
+  
+  private static void addTemplate(Map<List<Object>, List<FeatureMap>> templates,
+      List<Object> values, FeatureMap annFeats) {
+    List<FeatureMap> featureMaps = templates.get(values);
+    if(featureMaps == null) {
+      featureMaps = new ArrayList<FeatureMap>(1);
+      templates.put(values, featureMaps);
+    }
+    featureMaps.add(annFeats);
+  }
+  
+  /**
+   * Finds the IDs for a set of rows in the Level-1 or Level-2 table, 
+   * inserting the rows that do not exist yet. 
+   * @param tableSuffix the suffix for the table name.
+   * @param columns the names of the (quoted) data columns.
+   * @param types the types of the data columns.
+   * @param insertStmt the statement used to insert new rows.
+   * @param rows the values for the data columns in each row.
+   * @param found a set to which the IDs of the rows that already existed are
+   * added.
+   * @return a map from row values to row ID.
+   * @throws SQLException
+   */
+  protected Map<List<Object>, Long> resolveIds(String tableSuffix, 
+      String[] columns, int[] types, PreparedStatement insertStmt, 
+      Collection<List<Object>> rows, LongSet found) throws SQLException {
+    Map<List<Object>, Long> ids = selectIds(tableSuffix, columns, types, rows);
+    found.addAll(ids.values());
+    List<List<Object>> newRows = new ArrayList<List<Object>>();
+    for(List<Object> row : rows) {
+      if(!ids.containsKey(row)) newRows.add(row);
+    }
+    if(!newRows.isEmpty()) {
+      for(List<Object> row : newRows) {
+        setParameters(insertStmt, 1, row, types);
+        insertStmt.addBatch();
+      }
+      int[] counts = insertStmt.executeBatch();
+      for(int count : counts) {
+        if(count != 1 && count != Statement.SUCCESS_NO_INFO) {
+          throw new SQLException("Could not insert new rows into table " + 
+              tableName(null, tableSuffix));
+        }
+      }
+      ids.putAll(selectIds(tableSuffix, columns, types, newRows));
+    }
+    return ids;
+  }
+  
+  /**
+   * Finds the IDs for a set of rows in the Level-1 or Level-2 table, using
+   * multi-row queries. Each query is a <tt>UNION ALL</tt> of single-row 
+   * selects, each tagged with the position of its row in the query: H2 
+   * answers each of those using a column index, while a single select with 
+   * one <tt>OR</tt>-ed condition per row would scan the whole table.
+   * @return a map from row values to row ID, for the rows found.
+   * @throws SQLException 
+   */
+  protected Map<List<Object>, Long> selectIds(String tableSuffix, 
+      String[] columns, int[] types, Collection<List<Object>> rows) 
+      throws SQLException {
+    Map<List<Object>, Long> ids = new HashMap<List<Object>, Long>();
+    StringBuilder rowSelect = new StringBuilder(", ID FROM ");
+    rowSelect.append(tableName(null, tableSuffix));
+    for(int i = 0; i < columns.length; i++) {
+      rowSelect.append(i == 0 ? " WHERE " : " AND ");
+      rowSelect.append(columns[i]).append(" IS ?");
+    }
+    Iterator<List<Object>> rowsIter = rows.iterator();
+    while(rowsIter.hasNext()) {
+      List<List<Object>> chunk = new ArrayList<List<Object>>(BULK_QUERY_SIZE);
+      while(rowsIter.hasNext() && chunk.size() < BULK_QUERY_SIZE) {
+        chunk.add(rowsIter.next());
+      }
+      StringBuilder selectStr = new StringBuilder();
+      for(int i = 0; i < chunk.size(); i++) {
+        if(i > 0) selectStr.append(" UNION ALL ");
+        selectStr.append("SELECT ").append(i).append(rowSelect);
+      }
+      PreparedStatement stmt = dbConnection.prepareStatement(
+          selectStr.toString());
+      try {
+        int paramIdx = 1;
+        for(List<Object> row : chunk) {
+          paramIdx = setParameters(stmt, paramIdx, row, types);
+        }
+        ResultSet res = stmt.executeQuery();
+        while(res.next()) {
+          List<Object> row = chunk.get(res.getInt(1));
+          if(!ids.containsKey(row)) ids.put(row, res.getLong(2));
+        }
+        res.close();
+      } finally {
+        stmt.close();
+      }
+    }
+    return ids;
+  }
+  
+  /**
+   * Loads into the {@link #cache} the IDs of the mentions for some Level-1 
+   * and Level-2 IDs.
+   * @param level1Ids the Level-1 IDs, for which the mentions that do not 
+   * use Level-2 values are loaded.  
+   * @param level2Ids the Level-2 IDs.
+   * @throws SQLException
+   */
+  protected void loadMentions(LongSet level1Ids, LongSet level2Ids) 
+      throws SQLException {
+    String selectPrefix = "SELECT ID, L1_ID, " + 
+        (level2Used ? "L2_ID, " : "NULL, ") + "Length FROM " + 
+        tableName(null, MENTIONS_TABLE_SUFFIX) + " WHERE ";
+    for(int level = 1; level <= 2; level++) {
+      LongIterator idsIter = (level == 1 ? level1Ids : level2Ids).iterator();
+      while(idsIter.hasNext()) {
+        StringBuilder selectStr = new StringBuilder(selectPrefix);
+        selectStr.append(level == 1 ? "L1_ID IN (" : "L2_ID IN (");
+        int count = 0;
+        while(idsIter.hasNext() && count < BULK_QUERY_SIZE) {
+          if(count > 0) selectStr.append(", ");
+          selectStr.append(idsIter.nextLong());
+          count++;
+        }
+        selectStr.append(")");
+        if(level == 1 && level2Used) selectStr.append(" AND L2_ID IS NULL");
+        Statement stmt = dbConnection.createStatement();
+        try {
+          ResultSet res = stmt.executeQuery(selectStr.toString());
+          while(res.next()) {
+            long level2Id = res.getLong(3);
+            cache.putLevel3Id(res.getLong(2), res.wasNull() ? null : level2Id,
+                res.getInt(4), res.getLong(1));
           }
+          res.close();
+        } finally {
+          stmt.close();
         }
       }
-    } else {
-      throw new RuntimeException("Cannot recognise the the provided prepared statement!");
     }
   }
 
   @Override
   public List<Mention> getMentions(String annotationType,
           List<Constraint> constraints, QueryEngine engine) {
+    return getMentions(annotationType, constraints, 
+        Collections.singletonList(Collections.<Constraint>emptyList()), 
+        engine);
+  }
+  
+  /**
+   * Finds the mentions for all the alternatives using one query for each 
+   * block of {@link #BULK_QUERY_SIZE} alternatives, rather than one query for
+   * each alternative. When all the alternatives consist of a single equality
+   * constraint on the same feature, an IN list is used.
+   */
+  @Override
+  public List<Mention> getMentions(String annotationType,
+      List<Constraint> constraints, List<List<Constraint>> alternatives,
+      QueryEngine engine) {
     if(!annotationType.equals(this.annotationType)) {
       throw new IllegalArgumentException("Wrong annotation type \"" + 
           annotationType + "\", this helper can only handle " + 
           this.annotationType + "!");
     }
-    List<Mention> mentions = new LinkedList<Mention>();
-    boolean hasLevel1Constraints = false;
+    if(alternatives.isEmpty()) return new ArrayList<Mention>();
+    // check the constraint names, and find which alternatives need the 
+    // Level-2 table: the others must only match the mentions without Level-2
+    // values, so the two kinds of alternatives are queried separately
+    Set<String> unknownNames = new LinkedHashSet<String>();
+    boolean commonLevel1 = false;
+    boolean commonLevel2 = false;
     for(Constraint aConstraint : constraints) {
-      if(nominalFeatureNameSet.contains(aConstraint.getFeatureName())) {
-        hasLevel1Constraints = true;
-        break;
+      int level = featureLevel(aConstraint.getFeatureName(), unknownNames);
+      if(level == 1) commonLevel1 = true;
+      else if(level == 2) commonLevel2 = true;
+    }
+    List<List<Constraint>> level1Alternatives = 
+        new ArrayList<List<Constraint>>();
+    List<List<Constraint>> level2Alternatives = 
+        new ArrayList<List<Constraint>>();
+    boolean level1AlternativesUseLevel1 = commonLevel1;
+    boolean level2AlternativesUseLevel1 = commonLevel1;
+    for(List<Constraint> anAlternative : alternatives) {
+      boolean usesLevel1 = false;
+      boolean usesLevel2 = commonLevel2;
+      for(Constraint aConstraint : anAlternative) {
+        int level = featureLevel(aConstraint.getFeatureName(), unknownNames);
+        if(level == 1) usesLevel1 = true;
+        else if(level == 2) usesLevel2 = true;
+      }
+      if(usesLevel2) {
+        level2Alternatives.add(anAlternative);
+        level2AlternativesUseLevel1 |= usesLevel1;
+      } else {
+        level1Alternatives.add(anAlternative);
+        level1AlternativesUseLevel1 |= usesLevel1;
       }
     }
-    boolean hasLevel2Constraints = false;
-    for(Constraint aConstraint : constraints) {
-      if(nonNominalFeatureNameSet.contains(aConstraint.getFeatureName())) {
-        hasLevel2Constraints = true;
-        break;
+    if(unknownNames.size() > 0) {
+      StringBuilder msg = new StringBuilder();
+      if(unknownNames.size() == 1) {
+        msg.append("The following constraint name was not recognised: \"");
+        msg.append(unknownNames.iterator().next());
+        msg.append("\".");
+      } else {
+        msg.append("The following constraint names were not recognised: ");
+        boolean first = true;
+        for(String aName : unknownNames) {
+          if(first) first = false; else msg.append(", ");
+          msg.append('"');
+          msg.append(aName);
+          msg.append('"');
+        }
+        msg.append(".");
       }
+      throw new RuntimeException(msg.toString());
     }
+    
+    Set<Mention> mentions = new LinkedHashSet<Mention>();
+    try {
+      findMentions(constraints, level1Alternatives, 
+          level1AlternativesUseLevel1, false, mentions);
+      findMentions(constraints, level2Alternatives, 
+          level2AlternativesUseLevel1, true, mentions);
+    } catch(SQLException e) {
+      logger.error("DB error", e);
+      throw new RuntimeException("DB error", e);
+    }
+    return new ArrayList<Mention>(mentions);
+  }
+  
+  /**
+   * Finds the level of the table storing the values for a feature.
+   * @param featureName the feature name.
+   * @param unknownNames the set to which the name is added if it is not the
+   * name of a known feature.
+   * @return 1 for a nominal feature, 2 for a non-nominal one, or 0 if the 
+   * feature is not known.
+   */
+  protected int featureLevel(String featureName, Set<String> unknownNames) {
+    if(nominalFeatureNameSet.contains(featureName)) {
+      return 1;
+    } else if(nonNominalFeatureNameSet.contains(featureName)) {
+      return 2;
+    } else {
+      unknownNames.add(featureName);
+      return 0;
+    }
+  }
+  
+  /**
+   * Finds the mentions for a set of alternatives which all use (or all do
+   * not use) Level-2 features, using one query for each block of 
+   * {@link #BULK_QUERY_SIZE} alternatives.
+   * @param constraints the constraints shared by all the alternatives.
+   * @param alternatives the alternatives.
+   * @param useLevel1 do any of the constraints use Level-1 features?
+   * @param useLevel2 do all the alternatives use Level-2 features? If not, 
+   * only the mentions without Level-2 values are matched.
+   * @param mentions the set to which the mentions found are added.
+   * @throws SQLException
+   */
+  protected void findMentions(List<Constraint> constraints, 
+      List<List<Constraint>> alternatives, boolean useLevel1, 
+      boolean useLevel2, Set<Mention> mentions) throws SQLException {
+    if(alternatives.isEmpty()) return;
     List<Object> params = new ArrayList<Object>();
     StringBuilder selectStr = new StringBuilder(
         "SELECT DISTINCT " + tableName(null, MENTIONS_TABLE_SUFFIX) + ".ID, " +
         tableName(null, MENTIONS_TABLE_SUFFIX) + ".Length FROM " + 
         tableName(null, MENTIONS_TABLE_SUFFIX));
-    if(hasLevel1Constraints) {
+    if(useLevel1) {
       selectStr.append(", " + tableName(null, L1_TABLE_SUFFIX));
     }
-    if(hasLevel2Constraints) {
+    if(useLevel2) {
       selectStr.append(", " + tableName(null, L2_TABLE_SUFFIX));
     }
-    boolean firstWhere = true;
-    // add constraints
-    List<Constraint> unusedConstraints = new ArrayList<Constraint>(constraints);
-    if(hasLevel1Constraints) {
-      if(nominalFeatureNames != null) {
-        for(String aFeatureName : nominalFeatureNames) {
-          for(Constraint aConstraint : constraints) {
-            if(aFeatureName.equals(aConstraint.getFeatureName())){
-              if(firstWhere){
-                firstWhere = false;
-                selectStr.append(" WHERE");
-              } else {
-                selectStr.append(" AND");
-              }
-              selectStr.append(" " + tableName(null, L1_TABLE_SUFFIX) + ".\"" + 
-                  aFeatureName + "\"");
-              switch( aConstraint.getPredicate() ) {
-                case EQ:
-                  selectStr.append(" =");
-                  break;
-                case GT:
-                  selectStr.append(" >");
-                  break;
-                case GE:
-                  selectStr.append(" >=");
-                  break;
-                case LT:
-                  selectStr.append(" <");
-                  break;
-                case LE:
-                  selectStr.append(" <=");
-                  break;
-                case REGEX:
-                  selectStr.append(" REGEXP");
-              }
-              if(aConstraint.getValue() instanceof String) {
-                selectStr.append(" ?");
-                params.add(aConstraint.getValue());
-              } else if(aConstraint.getValue() instanceof String[]) {
-                // this only makes sense for REGEX
-                if(aConstraint.getPredicate() != ConstraintType.REGEX) {
-                  throw new IllegalArgumentException("Got a two-valued constraint that is not a REGEXP!");
-                }
-                selectStr.append(" ?");
-                params.add("(?" + ((String[])aConstraint.getValue())[1] + ")"
-                        + ((String[])aConstraint.getValue())[0]);
-              }
-              unusedConstraints.remove(aConstraint);
-            }
-          }
-        }        
-      }
+    selectStr.append(" WHERE TRUE");
+    for(Constraint aConstraint : constraints) {
+      selectStr.append(" AND ");
+      appendCondition(selectStr, aConstraint, params);
+    }
+    if(useLevel1) {
       // join L1 with Mentions
       selectStr.append(" AND " + tableName(null, L1_TABLE_SUFFIX) + ".ID = " +
           tableName(null, MENTIONS_TABLE_SUFFIX) + ".L1_ID");
-      if(hasLevel2Constraints) {
+      if(useLevel2) {
         // join L1 with L2
         selectStr.append(" AND " + tableName(null, L1_TABLE_SUFFIX) + ".ID = " + 
                 tableName(null, L2_TABLE_SUFFIX) + ".L1_ID");
       }
     }
+    if(useLevel2) {
+      // join L2 with Mentions
+      selectStr.append(" AND "+ tableName(null, L2_TABLE_SUFFIX) + ".ID = " + 
+          tableName(null, MENTIONS_TABLE_SUFFIX) + ".L2_ID");
+    } else if(level2Used) {
+      // no level 2 constraints
+      selectStr.append(" AND " + tableName(null, MENTIONS_TABLE_SUFFIX) + 
+          ".L2_ID IS NULL");
+    }
     
-    if(hasLevel2Constraints) {
-      if(integerFeatureNames != null) {
-        for(String aFeatureName : integerFeatureNames) {
-          for(Constraint aConstraint : constraints) {
-            if(aFeatureName.equals(aConstraint.getFeatureName())){
-              if(firstWhere){
-                firstWhere = false;
-                selectStr.append(" WHERE");
-              } else {
-                selectStr.append(" AND");
-              }
-              selectStr.append(" " + tableName(null, L2_TABLE_SUFFIX) + ".\"" + 
-                  aFeatureName + "\"");
-              switch( aConstraint.getPredicate() ) {
-                case EQ:
-                  selectStr.append(" =");
-                  break;
-                case GT:
-                  selectStr.append(" >");
-                  break;
-                case GE:
-                  selectStr.append(" >=");
-                  break;
-                case LT:
-                  selectStr.append(" <");
-                  break;
-                case LE:
-                  selectStr.append(" <=");
-                  break;
-                case REGEX:
-                  throw new IllegalArgumentException("Cannot use a REGEX predicate for numeric features!");
-              }
-              selectStr.append(" ?");
-              if(aConstraint.getValue() instanceof Number) {
-                params.add(Long.valueOf(((Number)aConstraint.getValue()).longValue()));
-              } else {
-                params.add(Long.valueOf(aConstraint.getValue().toString()));
-              }
-              unusedConstraints.remove(aConstraint);
-            }
-          }
-        }        
+    // an IN list can be used if all alternatives are a single equality
+    // constraint on the same feature 
+    String inListFeature = null;
+    for(List<Constraint> anAlternative : alternatives) {
+      if(anAlternative.size() != 1 || 
+         anAlternative.get(0).getPredicate() != ConstraintType.EQ ||
+         anAlternative.get(0).getValue() instanceof String[] ||
+         (inListFeature != null && !inListFeature.equals(
+             anAlternative.get(0).getFeatureName()))) {
+        inListFeature = null;
+        break;
       }
-      if(floatFeatureNames != null) {
-        for(String aFeatureName : floatFeatureNames) {
-          for(Constraint aConstraint : constraints) {
-            if(aFeatureName.equals(aConstraint.getFeatureName())){
-              if(firstWhere){
-                firstWhere = false;
-                selectStr.append(" WHERE");
-              } else {
-                selectStr.append(" AND");
-              }
-              selectStr.append(" " + tableName(null, L2_TABLE_SUFFIX) + ".\"" + 
-                  aFeatureName + "\"");
-              switch( aConstraint.getPredicate() ) {
-                case EQ:
-                  selectStr.append(" =");
-                  break;
-                case GT:
-                  selectStr.append(" >");
-                  break;
-                case GE:
-                  selectStr.append(" >=");
-                  break;
-                case LT:
-                  selectStr.append(" <");
-                  break;
-                case LE:
-                  selectStr.append(" <=");
-                  break;
-                case REGEX:
-                  throw new IllegalArgumentException("Cannot use a REGEX predicate for numeric features!");
-              }
-              selectStr.append(" ?");
-              if(aConstraint.getValue() instanceof Number) {
-                params.add(Double.valueOf(((Number)aConstraint.getValue()).doubleValue()));
-              } else {
-                params.add(Double.valueOf(aConstraint.getValue().toString()));
-              }              
-              unusedConstraints.remove(aConstraint);
-            }
+      inListFeature = anAlternative.get(0).getFeatureName();
+    }
+    
+    for(int start = 0; start < alternatives.size(); 
+        start += BULK_QUERY_SIZE) {
+      List<List<Constraint>> block = alternatives.subList(start, 
+          Math.min(alternatives.size(), start + BULK_QUERY_SIZE));
+      StringBuilder blockStr = new StringBuilder(selectStr);
+      List<Object> blockParams = new ArrayList<Object>(params);
+      if(inListFeature != null) {
+        blockStr.append(" AND ").append(columnName(inListFeature))
+            .append(" IN (");
+        for(int i = 0; i < block.size(); i++) {
+          if(i > 0) blockStr.append(", ");
+          blockStr.append("?");
+          blockParams.add(getParameterValue(block.get(i).get(0)));
+        }
+        blockStr.append(")");
+      } else if(block.size() > 1 || !block.get(0).isEmpty()) {
+        blockStr.append(" AND (");
+        for(int i = 0; i < block.size(); i++) {
+          if(i > 0) blockStr.append(" OR ");
+          blockStr.append("(TRUE");
+          for(Constraint aConstraint : block.get(i)) {
+            blockStr.append(" AND ");
+            appendCondition(blockStr, aConstraint, blockParams);
           }
-        }        
+          blockStr.append(")");
+        }
+        blockStr.append(")");
       }
-      if(textFeatureNames != null) {
-        for(String aFeatureName : textFeatureNames) {
-          for(Constraint aConstraint : constraints) {
-            if(aFeatureName.equals(aConstraint.getFeatureName())){
-              if(firstWhere){
-                firstWhere = false;
-                selectStr.append(" WHERE");
-              } else {
-                selectStr.append(" AND");
-              }
-              selectStr.append(" " + tableName(null, L2_TABLE_SUFFIX) + ".\"" + 
-                  aFeatureName + "\"");
-              switch( aConstraint.getPredicate() ) {
-                case EQ:
-                  selectStr.append(" =");
-                  break;
-                case GT:
-                  selectStr.append(" >");
-                  break;
-                case GE:
-                  selectStr.append(" >=");
-                  break;
-                case LT:
-                  selectStr.append(" <");
-                  break;
-                case LE:
-                  selectStr.append(" <=");
-                  break;
-                case REGEX:
-                  selectStr.append(" REGEXP");
-              }
-              selectStr.append(" ?");
-              
-              if(aConstraint.getValue() instanceof String) {
-                params.add(aConstraint.getValue());
-              } else if(aConstraint.getValue() instanceof String[]) {
-                // this only makes sense for REGEX
-                if(aConstraint.getPredicate() != ConstraintType.REGEX) {
-                  throw new IllegalArgumentException("Got a two-valued constraint that is not a REGEXP!");
-                }
-                params.add("(?" + ((String[])aConstraint.getValue())[1] + ")"
-                        + ((String[])aConstraint.getValue())[0]);
-              }
-              unusedConstraints.remove(aConstraint);
-            }
-          }
-        }        
+      logger.debug("Select query:\n" + blockStr.toString());
+      PreparedStatement stmt = dbConnection.prepareStatement(
+          blockStr.toString());
+      try {
+        int pos = 1;
+        for(Object val : blockParams) {
+          stmt.setObject(pos++, val);
+        }
+        ResultSet res = stmt.executeQuery();
+        while(res.next()) {
+          long id = res.getLong(1);
+          int length = getMode() == Mode.DOCUMENT? Mention.NO_LENGTH : 
+              res.getInt(2);
+          mentions.add(new Mention(annotationType + ":" + id, length));
+        }
+      } finally {
+        stmt.close();
       }
-      
-      // join L2 with Mentions
-      selectStr.append(" AND "+ tableName(null, L2_TABLE_SUFFIX) + ".ID = " + 
-          tableName(null, MENTIONS_TABLE_SUFFIX) + ".L2_ID");
     }
-    if(unusedConstraints.size() > 0) {
-      StringBuilder msg = new StringBuilder();
-      if(unusedConstraints.size() == 1) {
-        msg.append("The following constraint name was not recognised: \"");
-        msg.append(unusedConstraints.get(0).getFeatureName());
-        msg.append("\".");
-      } else {
-        msg.append("The following constraint names were not recognised: ");
-        boolean first = true;
-        for(Constraint aConstraint : unusedConstraints) {
-          if(first) first = false; else msg.append(", ");
-          msg.append('"');
-          msg.append(aConstraint.getFeatureName());
-          msg.append('"');
+  }
+  
+  /**
+   * Gets the qualified (and quoted) name of the column storing the values
+   * for a given feature.
+   */
+  protected String columnName(String featureName) {
+    return tableName(null, nominalFeatureNameSet.contains(featureName) ? 
+        L1_TABLE_SUFFIX : L2_TABLE_SUFFIX) + ".\"" + featureName + "\"";
+  }
+  
+  /**
+   * Appends to a query the condition corresponding to a constraint.
+   * @param selectStr the query being built.
+   * @param aConstraint the constraint.
+   * @param params the list of query parameters, to which the value for the
+   * constraint is added.
+   */
+  protected void appendCondition(StringBuilder selectStr, 
+      Constraint aConstraint, List<Object> params) {
+    String featureName = aConstraint.getFeatureName();
+    boolean numeric = !nominalFeatureNameSet.contains(featureName) && 
+        ((integerFeatureNames != null && 
+          Arrays.asList(integerFeatureNames).contains(featureName)) ||
+         (floatFeatureNames != null && 
+          Arrays.asList(floatFeatureNames).contains(featureName)));
+    selectStr.append(columnName(featureName));
+    switch( aConstraint.getPredicate() ) {
+      case EQ:
+        selectStr.append(" =");
+        break;
+      case GT:
+        selectStr.append(" >");
+        break;
+      case GE:
+        selectStr.append(" >=");
+        break;
+      case LT:
+        selectStr.append(" <");
+        break;
+      case LE:
+        selectStr.append(" <=");
+        break;
+      case REGEX:
+        if(numeric) {
+          throw new IllegalArgumentException(
+              "Cannot use a REGEX predicate for numeric features!");
         }
-        msg.append(".");
-      }
-      throw new RuntimeException(msg.toString());
+        selectStr.append(" REGEXP");
     }
-    if(!hasLevel2Constraints && level2Used) {
-      // no level 2 constraints
-      if(firstWhere){
-        firstWhere = false;
-        selectStr.append(" WHERE ");
-      } else {
-        selectStr.append(" AND ");
+    selectStr.append(" ?");
+    params.add(getParameterValue(aConstraint));
+  }
+  
+  /**
+   * Gets the value of the query parameter corresponding to a constraint: the
+   * constraint value, converted to the type of the feature.
+   */
+  protected Object getParameterValue(Constraint aConstraint) {
+    String featureName = aConstraint.getFeatureName();
+    Object value = aConstraint.getValue();
+    if(!nominalFeatureNameSet.contains(featureName)) {
+      if(integerFeatureNames != null && 
+         Arrays.asList(integerFeatureNames).contains(featureName)) {
+        if(value instanceof Number) {
+          return Long.valueOf(((Number)value).longValue());
+        } else {
+          return Long.valueOf(value.toString());
+        }
+      } else if(floatFeatureNames != null && 
+          Arrays.asList(floatFeatureNames).contains(featureName)) {
+        if(value instanceof Number) {
+          return Double.valueOf(((Number)value).doubleValue());
+        } else {
+          return Double.valueOf(value.toString());
+        }
       }
-      selectStr.append(tableName(null, MENTIONS_TABLE_SUFFIX) + ".L2_ID IS NULL");
     }
-    
-    logger.debug("Select query:\n" + selectStr.toString());
-    try {
-      PreparedStatement stmt = dbConnection.prepareStatement(selectStr.toString());
-      int pos = 1;
-      for(Object val : params) {
-        stmt.setObject(pos++, val);
-      }
-      ResultSet res = stmt.executeQuery();
-      while(res.next()) {
-        long id = res.getLong(1);
-        int length = getMode() == Mode.DOCUMENT? Mention.NO_LENGTH : res.getInt(2);
-        mentions.add(new Mention(annotationType + ":" + id, length));
+    if(value instanceof String[]) {
+      // this only makes sense for REGEX
+      if(aConstraint.getPredicate() != ConstraintType.REGEX) {
+        throw new IllegalArgumentException(
+            "Got a two-valued constraint that is not a REGEXP!");
       }
-      stmt.close();
-    } catch(SQLException e) {
-      logger.error("DB error", e);
-      throw new RuntimeException("DB error", e);
+      return "(?" + ((String[])value)[1] + ")" + ((String[])value)[0];
     }
-    return mentions;
+    return value;
   }
   
   
@@ -1269,12 +1674,38 @@ public class DBSemanticAnnotationHelper extends AbstractSemanticAnnotationHelper
   public void documentStart(Document document) {
     if(getMode() == Mode.DOCUMENT) {
       documentFeatures = document.getFeatures();
+    } else if(level1InsertStmt != null) {
+      // resolve the templates for all the annotations in the document at once
+      AnnotationSet annSet = 
+          (annotationSetName == null || annotationSetName.length() == 0) ?
+          document.getAnnotations() : 
+          document.getAnnotations(annotationSetName);
+      List<FeatureMap> annotationFeatures = new ArrayList<FeatureMap>();
+      synchronized(annSet) {
+        for(Annotation ann : annSet.get(annotationType)) {
+          FeatureMap annFeats = ann.getFeatures();
+          if(indexNulls || !allFeaturesNull(annFeats)) {
+            annotationFeatures.add(annFeats);
+          }
+        }
+      }
+      if(annotationFeatures.size() > 1) {
+        try {
+          resolveTemplates(annotationFeatures);
+        } catch(SQLException e) {
+          // the IDs will be obtained one by one, when needed
+          logger.warn("Error while obtaining annotation IDs in bulk for " +
+              "document " + document.getName(), e);
+        }
+      }
     }
   }
 
   @Override
   public void documentEnd() {
     documentFeatures = null;
+    documentLevel1Ids.clear();
+    documentLevel2Ids.clear();
     if(cache != null) {
       double l1ratio = cache.getL1CacheHitRatio();
       double l2ratio = cache.getL2CacheHitRatio();
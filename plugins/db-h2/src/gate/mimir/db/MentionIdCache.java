@@ -0,0 +1,416 @@
+/*
+ *  MentionIdCache.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.db;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A cache of mention IDs (the Level-3 IDs used by
+ * {@link DBSemanticAnnotationHelper}), keyed by Level-1 ID, Level-2 ID and
+ * mention length. It is used through an {@link AnnotationTemplateCache}.
+ * </p>
+ * <p>
+ * The cache stores its entries in parallel primitive arrays, using open
+ * addressing, so looking up or adding an entry does not allocate any objects
+ * (other than when the arrays grow, up to the maximum size of the cache).
+ * Each key is packed into two <code>long</code> values. When the cache is
+ * full, entries are evicted using the clock (second chance) algorithm: each
+ * entry is marked when used, and the clock hand evicts the first unmarked
+ * entry it finds, clearing the marks of the entries it passes over.
+ * </p>
+ * <p>
+ * The cache can be shared by several helpers (e.g. by all the helpers of an
+ * index), in which case they share the memory budget. Each helper obtains a
+ * separate name space (see {@link #newNamespace()}), as the IDs of different
+ * helpers come from different databases. To allow concurrent access, the
+ * cache is split into a number of segments (selected by hashing the key),
+ * each with its own lock and its own share of the total capacity.
+ * </p>
+ */
+public class MentionIdCache {
+
+  /**
+   * The number of segments (must be a power of 2).
+   */
+  protected static final int SEGMENT_COUNT = 16;
+
+  /**
+   * The amount of memory (in bytes) used by each slot of the hash tables: two
+   * <code>long</code> values for the key, one for the value, and one byte for
+   * the slot state.
+   */
+  protected static final int BYTES_PER_SLOT = 25;
+
+  /**
+   * The maximum proportion of slots in use.
+   */
+  protected static final float LOAD_FACTOR = 0.75f;
+
+  /**
+   * The initial number of slots in each segment.
+   */
+  protected static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   * The maximum value for a Level-1 ID that can be packed in a key. Larger
+   * IDs are not cached.
+   */
+  protected static final long MAX_LEVEL1_ID = (1L << 48) - 1;
+
+  /**
+   * The maximum number of name spaces (see {@link #newNamespace()}).
+   */
+  protected static final int MAX_NAMESPACES = 1 << 15;
+
+  /**
+   * Slot state for empty slots.
+   */
+  private static final byte FREE = 0;
+
+  /**
+   * Slot state for entries not used since the clock hand last passed.
+   */
+  private static final byte USED = 1;
+
+  /**
+   * Slot state for entries used since the clock hand last passed.
+   */
+  private static final byte MARKED = 2;
+
+  /**
+   * One segment of the cache: an open addressing hash table with linear
+   * probing.
+   */
+  protected static class Segment {
+    protected long[] keys1;
+
+    protected long[] keys2;
+
+    protected long[] values;
+
+    protected byte[] states;
+
+    protected int mask;
+
+    /**
+     * The maximum number of slots in this segment. The tables start small,
+     * and grow up to this capacity as entries are added.
+     */
+    protected final int maxCapacity;
+
+    /**
+     * The maximum number of entries in this segment.
+     */
+    protected final int maxSize;
+
+    protected int size;
+
+    /**
+     * The current position of the clock hand.
+     */
+    protected int hand;
+
+    /**
+     * @param capacity the number of slots (must be a power of 2).
+     * @param maxSize the maximum number of entries.
+     */
+    protected Segment(int capacity, int maxSize) {
+      this.maxCapacity = capacity;
+      this.maxSize = maxSize;
+      allocate(Math.min(capacity, INITIAL_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+      keys1 = new long[capacity];
+      keys2 = new long[capacity];
+      values = new long[capacity];
+      states = new byte[capacity];
+      mask = capacity - 1;
+    }
+
+    /**
+     * Doubles the size of the tables.
+     */
+    protected void grow() {
+      long[] oldKeys1 = keys1;
+      long[] oldKeys2 = keys2;
+      long[] oldValues = values;
+      byte[] oldStates = states;
+      allocate(oldStates.length * 2);
+      for(int i = 0; i < oldStates.length; i++) {
+        if(oldStates[i] == FREE) continue;
+        int pos = find(oldKeys1[i], oldKeys2[i], 
+            hash(oldKeys1[i], oldKeys2[i]));
+        keys1[pos] = oldKeys1[i];
+        keys2[pos] = oldKeys2[i];
+        values[pos] = oldValues[i];
+        states[pos] = oldStates[i];
+      }
+      hand = 0;
+    }
+
+    /**
+     * Finds the slot for a key.
+     * @return the slot containing the key, or the empty slot where it should
+     * be added.
+     */
+    protected int find(long key1, long key2, int hash) {
+      int pos = hash & mask;
+      while(states[pos] != FREE) {
+        if(keys1[pos] == key1 && keys2[pos] == key2) return pos;
+        pos = (pos + 1) & mask;
+      }
+      return pos;
+    }
+
+    protected long get(long key1, long key2, int hash) {
+      int pos = find(key1, key2, hash);
+      if(states[pos] == FREE) return AnnotationTemplateCache.NO_ID;
+      states[pos] = MARKED;
+      return values[pos];
+    }
+
+    protected void put(long key1, long key2, int hash, long value) {
+      int pos = find(key1, key2, hash);
+      if(states[pos] != FREE) {
+        values[pos] = value;
+        states[pos] = MARKED;
+        return;
+      }
+      if(size >= maxSize) {
+        evict();
+        // the eviction may have moved entries around
+        pos = find(key1, key2, hash);
+      } else if(size >= states.length * LOAD_FACTOR && 
+                states.length < maxCapacity) {
+        grow();
+        pos = find(key1, key2, hash);
+      }
+      keys1[pos] = key1;
+      keys2[pos] = key2;
+      values[pos] = value;
+      // new entries are not marked, so they are evicted first if not used
+      // again before the clock hand reaches them.
+      states[pos] = USED;
+      size++;
+    }
+
+    /**
+     * Removes one entry, selected using the clock algorithm.
+     */
+    protected void evict() {
+      while(true) {
+        if(states[hand] == MARKED) {
+          states[hand] = USED;
+        } else if(states[hand] == USED) {
+          remove(hand);
+          // the slot at the hand may now hold an entry that was moved back,
+          // which is examined on the next eviction.
+          return;
+        }
+        hand = (hand + 1) & mask;
+      }
+    }
+
+    /**
+     * Removes the entry from a slot, shifting back the following entries in
+     * the same probe sequence, so that they can still be found.
+     */
+    protected void remove(int pos) {
+      int last;
+      while(true) {
+        last = pos;
+        pos = (pos + 1) & mask;
+        int slot;
+        while(true) {
+          if(states[pos] == FREE) {
+            states[last] = FREE;
+            size--;
+            return;
+          }
+          slot = hash(keys1[pos], keys2[pos]) & mask;
+          // stop at an entry whose home slot is not between last and pos
+          if(last <= pos ? (last >= slot || slot > pos) :
+             (last >= slot && slot > pos)) break;
+          pos = (pos + 1) & mask;
+        }
+        keys1[last] = keys1[pos];
+        keys2[last] = keys2[pos];
+        values[last] = values[pos];
+        states[last] = states[pos];
+      }
+    }
+
+    protected void clear() {
+      allocate(Math.min(maxCapacity, INITIAL_CAPACITY));
+      size = 0;
+      hand = 0;
+    }
+  }
+
+  protected final Segment[] segments;
+
+  /**
+   * The source of name space IDs.
+   */
+  protected final AtomicInteger namespaces = new AtomicInteger();
+
+  /**
+   * Creates a new cache.
+   * @param maxEntries the maximum number of entries.
+   */
+  public MentionIdCache(int maxEntries) {
+    int segmentSize = Math.max(1, maxEntries / SEGMENT_COUNT);
+    segments = createSegments(HashCommon.arraySize(segmentSize, LOAD_FACTOR),
+        segmentSize);
+  }
+
+  private MentionIdCache(Segment[] segments) {
+    this.segments = segments;
+  }
+
+  private static Segment[] createSegments(int capacity, int maxSize) {
+    Segment[] segments = new Segment[SEGMENT_COUNT];
+    for(int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(capacity, maxSize);
+    }
+    return segments;
+  }
+
+  /**
+   * Creates a new cache, with a memory budget rather than a number of
+   * entries.
+   * @param maxBytes the approximate maximum amount of memory (in bytes) to be
+   * used by the cache.
+   * @return the new cache.
+   */
+  public static MentionIdCache withMemoryBudget(long maxBytes) {
+    long slots = Math.min(1 << 30, 
+        Math.max(2, maxBytes / SEGMENT_COUNT / BYTES_PER_SLOT));
+    // round down to a power of 2
+    int capacity = (int)Long.highestOneBit(slots);
+    return new MentionIdCache(createSegments(capacity, 
+        Math.max(1, (int)(capacity * LOAD_FACTOR))));
+  }
+
+  /**
+   * Obtains a new name space, to be used by one of the helpers sharing this
+   * cache.
+   */
+  public int newNamespace() {
+    int namespace = namespaces.getAndIncrement();
+    if(namespace >= MAX_NAMESPACES) {
+      throw new IllegalStateException(
+          "Too many helpers are sharing the same mention cache!");
+    }
+    return namespace;
+  }
+
+  static int hash(long key1, long key2) {
+    return (int)HashCommon.murmurHash3(key1 ^ HashCommon.murmurHash3(key2));
+  }
+
+  /**
+   * Packs the first half of a key.
+   * @return the packed value, or -1 if the values cannot be packed.
+   */
+  private static long key1(int namespace, long level1Id) {
+    if(level1Id < 0 || level1Id > MAX_LEVEL1_ID) return -1;
+    return ((long)namespace << 48) | level1Id;
+  }
+
+  /**
+   * Packs the second half of a key.
+   * @param level2Id the Level-2 ID, which must fit in an <code>int</code>
+   * (this includes {@link AnnotationTemplateCache#NULL_ID}).
+   */
+  private static long key2(long level2Id, int length) {
+    return (level2Id << 32) | (length & 0xFFFFFFFFL);
+  }
+
+  private static boolean canPack(long level2Id) {
+    return level2Id >= Integer.MIN_VALUE && level2Id <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Gets a cached mention ID.
+   * @param namespace the name space of the calling helper.
+   * @param level2Id the Level-2 ID, or
+   * {@link AnnotationTemplateCache#NULL_ID}.
+   * @return the mention ID, or {@link AnnotationTemplateCache#NO_ID} if it is
+   * not in the cache.
+   */
+  public long get(int namespace, long level1Id, long level2Id, int length) {
+    long key1 = key1(namespace, level1Id);
+    if(key1 < 0 || !canPack(level2Id)) return AnnotationTemplateCache.NO_ID;
+    long key2 = key2(level2Id, length);
+    int hash = hash(key1, key2);
+    Segment segment = segments[(hash >>> 28) & (SEGMENT_COUNT - 1)];
+    synchronized(segment) {
+      return segment.get(key1, key2, hash);
+    }
+  }
+
+  /**
+   * Adds a mention ID to the cache, evicting another entry if the cache is
+   * full. IDs too large to be packed in a key are not cached.
+   * @param namespace the name space of the calling helper.
+   * @param level2Id the Level-2 ID, or
+   * {@link AnnotationTemplateCache#NULL_ID}.
+   */
+  public void put(int namespace, long level1Id, long level2Id, int length,
+                  long mentionId) {
+    long key1 = key1(namespace, level1Id);
+    if(key1 < 0 || !canPack(level2Id)) return;
+    long key2 = key2(level2Id, length);
+    int hash = hash(key1, key2);
+    Segment segment = segments[(hash >>> 28) & (SEGMENT_COUNT - 1)];
+    synchronized(segment) {
+      segment.put(key1, key2, hash, mentionId);
+    }
+  }
+
+  /**
+   * Removes all the entries from the cache.
+   */
+  public void clear() {
+    for(Segment segment : segments) {
+      synchronized(segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of entries in the cache.
+   */
+  public int size() {
+    int size = 0;
+    for(Segment segment : segments) {
+      synchronized(segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Gets the maximum number of entries in the cache.
+   */
+  public int getMaxSize() {
+    return segments[0].maxSize * SEGMENT_COUNT;
+  }
+}
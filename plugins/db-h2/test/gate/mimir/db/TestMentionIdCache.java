@@ -0,0 +1,321 @@
+/*
+ *  TestMentionIdCache.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gate.mimir.db.MentionIdCache.Segment;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * A JUnit test class for {@link MentionIdCache}. The hash table segments are
+ * checked after every operation against a {@link HashMap} holding the same
+ * entries.
+ */
+public class TestMentionIdCache {
+
+  /**
+   * The state of the empty slots in a segment.
+   */
+  private static final byte FREE = 0;
+
+  private static List<Long> key(long key1, long key2) {
+    return Arrays.asList(key1, key2);
+  }
+
+  private static int hash(long key1, long key2) {
+    return MentionIdCache.hash(key1, key2);
+  }
+
+  /**
+   * Finds keys (with the given first half) whose home slot is the given
+   * slot.
+   * @return the second halves of the keys.
+   */
+  private static long[] keysAt(int slot, int mask, long key1, int count) {
+    long[] keys2 = new long[count];
+    int found = 0;
+    for(long key2 = 0; found < count; key2++) {
+      if((hash(key1, key2) & mask) == slot) keys2[found++] = key2;
+    }
+    return keys2;
+  }
+
+  /**
+   * Gets the entries stored in the slots of a segment.
+   */
+  private static Map<List<Long>, Long> contents(Segment segment) {
+    Map<List<Long>, Long> contents = new HashMap<List<Long>, Long>();
+    for(int i = 0; i < segment.states.length; i++) {
+      if(segment.states[i] == FREE) continue;
+      assertNull("Duplicate key in slot " + i, contents.put(
+          key(segment.keys1[i], segment.keys2[i]), segment.values[i]));
+    }
+    assertEquals(segment.size, contents.size());
+    return contents;
+  }
+
+  /**
+   * Gets the slot of each entry in a segment.
+   */
+  private static Map<List<Long>, Integer> slots(Segment segment) {
+    Map<List<Long>, Integer> slots = new HashMap<List<Long>, Integer>();
+    for(int i = 0; i < segment.states.length; i++) {
+      if(segment.states[i] != FREE) {
+        slots.put(key(segment.keys1[i], segment.keys2[i]), i);
+      }
+    }
+    return slots;
+  }
+
+  /**
+   * Checks that a segment holds exactly the reference entries, and that each
+   * of them can be found by probing from its home slot.
+   */
+  private static void assertSameEntries(Map<List<Long>, Long> reference,
+      Segment segment) {
+    assertEquals(reference, contents(segment));
+    for(Map.Entry<List<Long>, Long> entry : reference.entrySet()) {
+      long key1 = entry.getKey().get(0);
+      long key2 = entry.getKey().get(1);
+      int pos = segment.find(key1, key2, hash(key1, key2));
+      assertTrue("Entry not found: " + entry, segment.states[pos] != FREE);
+      assertEquals(entry.getValue().longValue(), segment.values[pos]);
+    }
+  }
+
+  /**
+   * Adds an entry to a segment and to the reference map. If an entry was
+   * evicted, it is also removed from the reference map.
+   * @return the number of entries (other than the new one) that were moved
+   * to a different slot.
+   */
+  private static int put(Segment segment, Map<List<Long>, Long> reference,
+      long key1, long key2, long value) {
+    boolean present = reference.containsKey(key(key1, key2));
+    boolean full = segment.size == segment.maxSize;
+    Map<List<Long>, Integer> slotsBefore = slots(segment);
+    segment.put(key1, key2, hash(key1, key2), value);
+    reference.put(key(key1, key2), value);
+    Map<List<Long>, Long> contents = contents(segment);
+    assertEquals(value, contents.get(key(key1, key2)).longValue());
+    if(contents.size() < reference.size()) {
+      // exactly one entry was evicted, to make room for a new one
+      assertTrue(!present && full);
+      assertEquals(reference.size() - 1, contents.size());
+      reference.keySet().retainAll(contents.keySet());
+    }
+    assertSameEntries(reference, segment);
+    int moved = 0;
+    for(Map.Entry<List<Long>, Integer> entry : slots(segment).entrySet()) {
+      Integer oldSlot = slotsBefore.get(entry.getKey());
+      if(oldSlot != null && !oldSlot.equals(entry.getValue())) moved++;
+    }
+    return moved;
+  }
+
+  /**
+   * Removes an entry from a segment and from the reference map.
+   */
+  private static void remove(Segment segment, Map<List<Long>, Long> reference,
+      long key1, long key2) {
+    int pos = segment.find(key1, key2, hash(key1, key2));
+    assertTrue(segment.states[pos] != FREE);
+    segment.remove(pos);
+    reference.remove(key(key1, key2));
+    assertSameEntries(reference, segment);
+    pos = segment.find(key1, key2, hash(key1, key2));
+    assertEquals(FREE, segment.states[pos]);
+    assertEquals(AnnotationTemplateCache.NO_ID,
+        segment.get(key1, key2, hash(key1, key2)));
+  }
+
+  /**
+   * Colliding keys whose home slot is at the end of the table wrap around to
+   * its start, and can still be found after the removal of other entries in
+   * the same probe sequence.
+   */
+  @Test
+  public void testWrapAroundCollisions() {
+    Segment segment = new Segment(16, 12);
+    int mask = segment.mask;
+    Map<List<Long>, Long> reference = new HashMap<List<Long>, Long>();
+    long[] keys2 = keysAt(mask - 1, mask, 1, 5);
+    for(int i = 0; i < keys2.length; i++) {
+      put(segment, reference, 1, keys2[i], 100 + i);
+    }
+    // slots 14, 15, 0, 1, 2
+    assertEquals(keys2[2], segment.keys2[0]);
+    assertEquals(keys2[4], segment.keys2[2]);
+    // entries with a different home slot, placed after the wrapped ones
+    long[] others = keysAt(0, mask, 2, 2);
+    put(segment, reference, 2, others[0], 200);
+    put(segment, reference, 2, others[1], 201);
+    assertEquals(others[1], segment.keys2[4]);
+    // removing entries from the middle of the probe sequence moves the
+    // following entries back, including across the end of the table
+    remove(segment, reference, 1, keys2[1]);
+    assertEquals(keys2[2], segment.keys2[mask]);
+    remove(segment, reference, 2, others[0]);
+    remove(segment, reference, 1, keys2[0]);
+    // replacing values keeps the entries in place
+    put(segment, reference, 1, keys2[3], 300);
+    put(segment, reference, 2, others[1], 301);
+    for(long key2 : new long[] {keys2[2], keys2[3], keys2[4]}) {
+      remove(segment, reference, 1, key2);
+    }
+    remove(segment, reference, 2, others[1]);
+    assertEquals(0, segment.size);
+  }
+
+  /**
+   * A full segment evicts one entry for each new key, moving back the entries
+   * that follow the evicted one in the same probe sequence.
+   */
+  @Test
+  public void testEvictionUnderPressure() {
+    Segment segment = new Segment(16, 12);
+    int mask = segment.mask;
+    // a pool of keys, most of them in a few clusters, one of which wraps
+    long[][] pool = new long[48][];
+    int[] homeSlots = new int[] {mask, 0, 5, 6};
+    for(int i = 0; i < homeSlots.length; i++) {
+      long[] keys2 = keysAt(homeSlots[i], mask, i, 8);
+      for(int j = 0; j < keys2.length; j++) {
+        pool[i * 8 + j] = new long[] {i, keys2[j]};
+      }
+    }
+    Random random = new Random(11);
+    for(int i = 32; i < pool.length; i++) {
+      pool[i] = new long[] {10 + random.nextInt(5), random.nextInt(1000)};
+    }
+    Map<List<Long>, Long> reference = new HashMap<List<Long>, Long>();
+    int evictions = 0;
+    int moved = 0;
+    for(int step = 0; step < 5000; step++) {
+      long[] aKey = pool[random.nextInt(pool.length)];
+      if(random.nextInt(3) == 0) {
+        // look-ups mark the entries, which changes the eviction order
+        Long expected = reference.get(key(aKey[0], aKey[1]));
+        assertEquals(expected == null ? AnnotationTemplateCache.NO_ID :
+            expected.longValue(),
+            segment.get(aKey[0], aKey[1], hash(aKey[0], aKey[1])));
+      } else {
+        boolean present = reference.containsKey(key(aKey[0], aKey[1]));
+        int sizeBefore = reference.size();
+        moved += put(segment, reference, aKey[0], aKey[1], step);
+        if(!present && reference.size() == sizeBefore) evictions++;
+      }
+      assertTrue(segment.size <= segment.maxSize);
+    }
+    assertTrue("No evictions", evictions > 0);
+    assertTrue("No entries moved by evictions", moved > 0);
+  }
+
+  /**
+   * The tables grow up to the maximum capacity, keeping all the entries.
+   */
+  @Test
+  public void testGrow() {
+    Segment segment = new Segment(2 * MentionIdCache.INITIAL_CAPACITY,
+        3 * MentionIdCache.INITIAL_CAPACITY / 2);
+    assertEquals(MentionIdCache.INITIAL_CAPACITY, segment.states.length);
+    Map<List<Long>, Long> reference = new HashMap<List<Long>, Long>();
+    Random random = new Random(7);
+    for(int i = 0; i < segment.maxSize; i++) {
+      long key1 = random.nextLong() & MentionIdCache.MAX_LEVEL1_ID;
+      put(segment, reference, key1, random.nextInt(), i);
+    }
+    // nothing was evicted
+    assertEquals(segment.maxSize, reference.size());
+    assertEquals(2 * MentionIdCache.INITIAL_CAPACITY, segment.states.length);
+  }
+
+  /**
+   * The same key in different name spaces gives different entries.
+   */
+  @Test
+  public void testNamespaces() {
+    MentionIdCache cache = new MentionIdCache(1000);
+    int namespace1 = cache.newNamespace();
+    int namespace2 = cache.newNamespace();
+    assertTrue(namespace1 != namespace2);
+    cache.put(namespace1, 5, 7, 3, 100);
+    assertEquals(AnnotationTemplateCache.NO_ID, cache.get(namespace2, 5, 7, 3));
+    cache.put(namespace2, 5, 7, 3, 200);
+    assertEquals(100, cache.get(namespace1, 5, 7, 3));
+    assertEquals(200, cache.get(namespace2, 5, 7, 3));
+    // the other parts of the key
+    cache.put(namespace1, 5, AnnotationTemplateCache.NULL_ID, 3, 300);
+    assertEquals(300,
+        cache.get(namespace1, 5, AnnotationTemplateCache.NULL_ID, 3));
+    assertEquals(100, cache.get(namespace1, 5, 7, 3));
+    assertEquals(AnnotationTemplateCache.NO_ID, cache.get(namespace1, 5, 7, 4));
+    // IDs too large to be packed are not cached
+    cache.put(namespace1, MentionIdCache.MAX_LEVEL1_ID + 1, 7, 3, 400);
+    assertEquals(AnnotationTemplateCache.NO_ID,
+        cache.get(namespace1, MentionIdCache.MAX_LEVEL1_ID + 1, 7, 3));
+    cache.put(namespace1, 5, 1L << 40, 3, 500);
+    assertEquals(AnnotationTemplateCache.NO_ID,
+        cache.get(namespace1, 5, 1L << 40, 3));
+    assertEquals(3, cache.size());
+  }
+
+  /**
+   * Random operations through the public methods, with and without
+   * evictions.
+   */
+  @Test
+  public void testRandomOperations() {
+    for(int maxEntries : new int[] {100000, 16 * 64}) {
+      MentionIdCache cache = new MentionIdCache(maxEntries);
+      int[] namespaces = new int[] {cache.newNamespace(),
+          cache.newNamespace(), cache.newNamespace()};
+      Map<List<Long>, Long> reference = new HashMap<List<Long>, Long>();
+      Random random = new Random(maxEntries);
+      boolean evicting = maxEntries < 5000;
+      for(int step = 0; step < 50000; step++) {
+        int namespace = namespaces[random.nextInt(namespaces.length)];
+        long level1Id = random.nextInt(100);
+        long level2Id = random.nextInt(10) == 0 ?
+            AnnotationTemplateCache.NULL_ID : random.nextInt(10);
+        int length = random.nextInt(5);
+        List<Long> key = Arrays.asList((long)namespace, level1Id, level2Id,
+            (long)length);
+        if(random.nextBoolean()) {
+          cache.put(namespace, level1Id, level2Id, length, step);
+          reference.put(key, (long)step);
+        } else {
+          long value = cache.get(namespace, level1Id, level2Id, length);
+          Long expected = reference.get(key);
+          if(!evicting || value != AnnotationTemplateCache.NO_ID) {
+            assertEquals(expected == null ? AnnotationTemplateCache.NO_ID :
+                expected.longValue(), value);
+          }
+        }
+        assertTrue(cache.size() <= cache.getMaxSize());
+      }
+      if(!evicting) assertEquals(reference.size(), cache.size());
+      cache.clear();
+      assertEquals(0, cache.size());
+    }
+  }
+}
@@ -19,13 +19,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
@@ -46,8 +43,6 @@ public class SPARQLResultSet {
     xmlInputFactory.setProperty("javax.xml.stream.isCoalescing", Boolean.TRUE);
   }
   
-  private static final String XMLNS = "http://www.w3.org/2005/sparql-results#";
-  
   private static final Logger logger = Logger.getLogger(SPARQLResultSet.class);
   
   
@@ -81,152 +76,76 @@ public class SPARQLResultSet {
   }
   
   public SPARQLResultSet(XMLStreamReader xsr) throws XMLStreamException {
-    try{
-      // A SPARQL result, in XML looks like this:
-      //<?xml version="1.0"?>
-      //<sparql xmlns="http://www.w3.org/2005/sparql-results#">
-      //
-      //  <head>
-      //    <variable name="x"/>
-      //    <variable name="hpage"/>
-      //    <variable name="name"/>
-      //    <variable name="age"/>
-      //    <variable name="mbox"/>
-      //    <variable name="friend"/>
-      //  </head>
-      //
-      //  <results>
-      //
-      //    <result> 
-      //      <binding name="x">
-      //  <bnode>r2</bnode>
-      //      </binding>
-      //      <binding name="hpage">
-      //  <uri>http://work.example.org/bob/</uri>
-      //      </binding>
-      //      <binding name="name">
-      //  <literal xml:lang="en">Bob</literal>
-      //      </binding>
-      //      <binding name="age">
-      //  <literal datatype="http://www.w3.org/2001/XMLSchema#integer">30</literal>
-      //      </binding>
-      //      <binding name="mbox">
-      //  <uri>mailto:bob@work.example.org</uri>
-      //      </binding>
-      //    </result>
-      //
-      //    ...
-      //  </results>
-      //
-      //</sparql>
-      
-      // find the root element
-      while(xsr.next() != XMLStreamConstants.START_ELEMENT) {
-        //do nothing
-      }
-      xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "sparql");
-      // find the first element
-      int type = xsr.nextTag(); 
-      while(type == XMLStreamConstants.START_ELEMENT) {
-        String elemName = xsr.getLocalName();
-        if(elemName.equals("head")) {
-          parseHead(xsr);
-          xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "head");
-        } else if(elemName.equals("results")) {
-          parseResults(xsr);
-          xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "results");
-        } else {
-          // unknown element -> skip it
-          type = xsr.next();
-          while(!(type == XMLStreamConstants.END_ELEMENT && 
-                xsr.getLocalName().equals(elemName))) {
-            type = xsr.next();
-          }
-        }
-        // find the next element event
-        type = xsr.nextTag();
-      }
-      xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "sparql");
-    } finally {
-      xsr.close();
-    }
+    this(new SPARQLResultStream(xsr));
   }
   
-  private void parseHead(XMLStreamReader xsr) throws XMLStreamException {
-    List<String> variables = new LinkedList<String>();
-    xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "head");
-    int type = xsr.nextTag();
-    while(!(type == XMLStreamConstants.END_ELEMENT && 
-            xsr.getLocalName().equals("head"))) {
-      if(type == XMLStreamConstants.START_ELEMENT) {
-        String elemName = xsr.getLocalName();
-        if(elemName.equals("variable")) {
-          String varName = xsr.getAttributeValue(null, "name");
-          if(varName != null) variables.add(varName);
-        }
-        // consume all till the end of this element 
-        type = xsr.next();
-        while(! (type == XMLStreamConstants.END_ELEMENT && 
-                xsr.getLocalName().equals(elemName))){
-          type = xsr.next();
-        }
+  // A SPARQL result, in XML looks like this:
+  //<?xml version="1.0"?>
+  //<sparql xmlns="http://www.w3.org/2005/sparql-results#">
+  //
+  //  <head>
+  //    <variable name="x"/>
+  //    <variable name="hpage"/>
+  //    <variable name="name"/>
+  //    <variable name="age"/>
+  //    <variable name="mbox"/>
+  //    <variable name="friend"/>
+  //  </head>
+  //
+  //  <results>
+  //
+  //    <result> 
+  //      <binding name="x">
+  //  <bnode>r2</bnode>
+  //      </binding>
+  //      <binding name="hpage">
+  //  <uri>http://work.example.org/bob/</uri>
+  //      </binding>
+  //      <binding name="name">
+  //  <literal xml:lang="en">Bob</literal>
+  //      </binding>
+  //      <binding name="age">
+  //  <literal datatype="http://www.w3.org/2001/XMLSchema#integer">30</literal>
+  //      </binding>
+  //      <binding name="mbox">
+  //  <uri>mailto:bob@work.example.org</uri>
+  //      </binding>
+  //    </result>
+  //
+  //    ...
+  //  </results>
+  //
+  //</sparql>
+  
+  /**
+   * Creates a result set containing all the rows from a result stream. The 
+   * stream is drained and closed.
+   * @param stream
+   * @throws XMLStreamException
+   */
+  public SPARQLResultSet(SPARQLResultStream stream) throws XMLStreamException {
+    try {
+      variableNames = stream.getColumnNames();
+      List<String[]> results = new ArrayList<String[]>();
+      String[] aResult = stream.nextRow();
+      while(aResult != null) {
+        results.add(aResult);
+        aResult = stream.nextRow();
       }
-      type = xsr.next();
+      rows = results.toArray(new String[results.size()][]);
+    } finally {
+      stream.close();
     }
-    variableNames = variables.toArray(new String[variables.size()]);
   }
   
-  private void parseResults(XMLStreamReader xsr) throws XMLStreamException {
-    xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "results");
-    List<String[]> results = new LinkedList<String[]>();
-    int type = xsr.nextTag();
-    while(type == XMLStreamConstants.START_ELEMENT) {
-      xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "result");
-      String[] aResult = new String[variableNames.length];
-      Arrays.fill(aResult, null);
-      type = xsr.nextTag();
-      while(type == XMLStreamConstants.START_ELEMENT) {
-        xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "binding");
-        String varName = xsr.getAttributeValue(null, "name");
-        int column = 0;
-        while(column < variableNames.length && 
-              !variableNames[column].equals(varName)){
-          column++;
-        }
-        if(column >= variableNames.length){
-          throw new RuntimeException("Malformed input: could not find column " +
-          		"for variable \"" + varName + "\" ");
-        }
-        type = xsr.nextTag();
-        xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, null);
-        String elemName = xsr.getLocalName();
-        if(elemName.equals("uri")) {
-          aResult[column] = xsr.getElementText();
-          xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, elemName);
-        } else if(elemName.equals("literal")) {
-          aResult[column] = xsr.getElementText();
-          xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, elemName);
-        } else {
-          // some other kind of element, we don't care about
-          type = xsr.next();
-          while(! (type == XMLStreamConstants.END_ELEMENT && 
-                  xsr.getLocalName().equals(elemName))){
-            type = xsr.next();
-          }
-        }
-        // find the closing binding tag
-        type = xsr.nextTag();
-        xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "binding");
-        // ...and open the next one  
-        type = xsr.nextTag();
-      }
-      xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "result");
-      // save the new result
-      results.add(aResult);
-      type = xsr.nextTag();
-    }
-    xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "results");
-    rows = results.toArray(new String[results.size()][]);
+  /**
+   * Creates a result set from values that have already been parsed.
+   * @param variableNames the names of the bound variables.
+   * @param rows the rows, each with one value for each variable.
+   */
+  public SPARQLResultSet(String[] variableNames, String[][] rows) {
+    this.variableNames = variableNames;
+    this.rows = rows;
   }
   
   /**
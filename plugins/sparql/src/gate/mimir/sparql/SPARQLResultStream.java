@@ -0,0 +1,274 @@
+/*
+ *  SPARQLResultStream.java
+ *
+ *  Copyright (c) 2007-2016, The University of Sheffield.
+ *
+ *  This file is part of GATE Mímir (see http://gate.ac.uk/family/mimir.html),
+ *  and is free software, licenced under the GNU Lesser General Public License,
+ *  Version 3, June 2007 (also included with this distribution as file
+ *  LICENCE-LGPL3.html).
+ *
+ *  $Id$
+ */
+package gate.mimir.sparql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streaming reader for the results of a SPARQL query, in the SPARQL XML
+ * results format. Unlike {@link SPARQLResultSet}, which holds all the rows
+ * in memory, this class parses the rows one at a time, as they are requested
+ * (see {@link #nextRow()}), so the rows can be used while the rest of the
+ * response is still being received.
+ *
+ * The column names are available as soon as the stream has been created.
+ * The stream should be closed when no longer needed, which also closes the
+ * underlying input stream (this happens automatically when the last row has
+ * been read).
+ */
+public class SPARQLResultStream implements Closeable {
+
+  /**
+   * Re-usable XML input factory used when parsing XML streams.
+   */
+  private static XMLInputFactory xmlInputFactory;
+
+  static {
+    xmlInputFactory =  XMLInputFactory.newInstance();
+    xmlInputFactory.setProperty("javax.xml.stream.isCoalescing", Boolean.TRUE);
+  }
+
+  private static final String XMLNS = "http://www.w3.org/2005/sparql-results#";
+
+  private static final Logger logger =
+      Logger.getLogger(SPARQLResultStream.class);
+
+  private XMLStreamReader xsr;
+
+  /**
+   * The input stream the XML is read from, if known.
+   */
+  private InputStream inputStream;
+
+  private String[] variableNames;
+
+  /**
+   * Set to true when the reader is positioned inside the results element,
+   * before the start tag of the next result (if any).
+   */
+  private boolean inResults;
+
+  private boolean closed;
+
+  /**
+   * Creates a result stream reading from an input stream. The input stream
+   * will be closed when this result stream is closed.
+   * @param is
+   * @throws XMLStreamException
+   */
+  public SPARQLResultStream(InputStream is) throws XMLStreamException {
+    this.inputStream = is;
+    try {
+      this.xsr = xmlInputFactory.createXMLStreamReader(is);
+      start();
+    } catch(XMLStreamException e) {
+      close();
+      throw e;
+    } catch(RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Creates a result stream using an XML stream reader. The reader will be
+   * closed when this result stream is closed.
+   * @param xsr
+   * @throws XMLStreamException
+   */
+  public SPARQLResultStream(XMLStreamReader xsr) throws XMLStreamException {
+    this.xsr = xsr;
+    try {
+      start();
+    } catch(XMLStreamException e) {
+      close();
+      throw e;
+    } catch(RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the XML up to the start of the first result.
+   */
+  private void start() throws XMLStreamException {
+    // see SPARQLResultSet for an example of the input format
+    // find the root element
+    while(xsr.next() != XMLStreamConstants.START_ELEMENT) {
+      //do nothing
+    }
+    xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "sparql");
+    // find the first element
+    int type = xsr.nextTag();
+    while(type == XMLStreamConstants.START_ELEMENT) {
+      String elemName = xsr.getLocalName();
+      if(elemName.equals("head")) {
+        parseHead();
+        xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "head");
+      } else if(elemName.equals("results")) {
+        xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "results");
+        if(variableNames == null) variableNames = new String[0];
+        inResults = true;
+        return;
+      } else {
+        // unknown element -> skip it
+        skipElement(elemName);
+      }
+      // find the next element event
+      type = xsr.nextTag();
+    }
+    xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "sparql");
+    // no results
+    if(variableNames == null) variableNames = new String[0];
+    close();
+  }
+
+  /**
+   * Skips to the end of the current element.
+   */
+  private void skipElement(String elemName) throws XMLStreamException {
+    int type = xsr.next();
+    while(!(type == XMLStreamConstants.END_ELEMENT &&
+          xsr.getLocalName().equals(elemName))) {
+      type = xsr.next();
+    }
+  }
+
+  private void parseHead() throws XMLStreamException {
+    List<String> variables = new LinkedList<String>();
+    xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "head");
+    int type = xsr.nextTag();
+    while(!(type == XMLStreamConstants.END_ELEMENT &&
+            xsr.getLocalName().equals("head"))) {
+      if(type == XMLStreamConstants.START_ELEMENT) {
+        String elemName = xsr.getLocalName();
+        if(elemName.equals("variable")) {
+          String varName = xsr.getAttributeValue(null, "name");
+          if(varName != null) variables.add(varName);
+        }
+        // consume all till the end of this element
+        skipElement(elemName);
+      }
+      type = xsr.next();
+    }
+    variableNames = variables.toArray(new String[variables.size()]);
+  }
+
+  /**
+   * Reads the next row.
+   * @return an array of String values, each entry in the array being a value
+   * for the corresponding column (as returned by {@link #getColumnNames()}),
+   * or <code>null</code> if there are no more rows.
+   * @throws XMLStreamException
+   */
+  public String[] nextRow() throws XMLStreamException {
+    if(!inResults) return null;
+    try {
+      int type = xsr.nextTag();
+      if(type != XMLStreamConstants.START_ELEMENT) {
+        // end of results
+        xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "results");
+        inResults = false;
+        close();
+        return null;
+      }
+      xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "result");
+      String[] aResult = new String[variableNames.length];
+      type = xsr.nextTag();
+      while(type == XMLStreamConstants.START_ELEMENT) {
+        xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, "binding");
+        String varName = xsr.getAttributeValue(null, "name");
+        int column = 0;
+        while(column < variableNames.length &&
+              !variableNames[column].equals(varName)){
+          column++;
+        }
+        if(column >= variableNames.length){
+          throw new RuntimeException("Malformed input: could not find column " +
+              "for variable \"" + varName + "\" ");
+        }
+        type = xsr.nextTag();
+        xsr.require(XMLStreamConstants.START_ELEMENT, XMLNS, null);
+        String elemName = xsr.getLocalName();
+        if(elemName.equals("uri")) {
+          aResult[column] = xsr.getElementText();
+          xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, elemName);
+        } else if(elemName.equals("literal")) {
+          aResult[column] = xsr.getElementText();
+          xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, elemName);
+        } else {
+          // some other kind of element, we don't care about
+          skipElement(elemName);
+        }
+        // find the closing binding tag
+        type = xsr.nextTag();
+        xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "binding");
+        // ...and open the next one
+        type = xsr.nextTag();
+      }
+      xsr.require(XMLStreamConstants.END_ELEMENT, XMLNS, "result");
+      return aResult;
+    } catch(XMLStreamException e) {
+      close();
+      throw e;
+    } catch(RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * The names of the bound variables, as returned by the SPARQL endpoint.
+   * @return
+   */
+  public String[] getColumnNames() {
+    return variableNames;
+  }
+
+  /**
+   * Closes this stream, and the underlying reader and input stream. Any rows
+   * not yet read are discarded.
+   */
+  @Override
+  public void close() {
+    if(closed) return;
+    closed = true;
+    inResults = false;
+    if(xsr != null) {
+      try {
+        xsr.close();
+      } catch(XMLStreamException e) {
+        logger.error("Could not close the XML stream reader!", e);
+      }
+    }
+    if(inputStream != null) {
+      try{
+        inputStream.close();
+      } catch(IOException e) {
+        logger.error("Could not close the input stream!", e);
+      }
+    }
+  }
+}
@@ -14,6 +14,7 @@
  */
 package gate.mimir.sparql;
 
+import gate.mimir.AbstractSemanticAnnotationHelper;
 import gate.mimir.Constraint;
 import gate.mimir.ConstraintType;
 import gate.mimir.SemanticAnnotationHelper;
@@ -34,8 +35,12 @@ import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.bind.DatatypeConverter;
@@ -115,6 +120,65 @@ public class SPARQLSemanticAnnotationHelper extends
    */
   private String authHeader;
   
+  /**
+   * The default value for {@link #resultCacheSize}.
+   */
+  public static final int DEFAULT_RESULT_CACHE_SIZE = 100;
+  
+  /**
+   * The default value for {@link #resultCacheTimeout} (5 minutes).
+   */
+  public static final int DEFAULT_RESULT_CACHE_TIMEOUT = 300;
+  
+  /**
+   * The number of SPARQL result rows passed to the delegate at once. Rows are
+   * resolved in blocks of this size while the rest of the results are still 
+   * being received from the endpoint.
+   */
+  protected static final int ROW_BLOCK_SIZE = 1000;
+  
+  /**
+   * The maximum number of rows in a SPARQL result set that is stored in the
+   * result cache. Larger result sets are not cached, to avoid holding large
+   * amounts of memory.
+   */
+  protected static final int MAX_CACHED_ROWS = 10000;
+  
+  /**
+   * The maximum number of SPARQL result sets kept in the result cache.
+   */
+  private Integer resultCacheSize = DEFAULT_RESULT_CACHE_SIZE;
+  
+  /**
+   * The number of seconds for which a cached SPARQL result set is used, 
+   * before the query is sent to the endpoint again.
+   */
+  private Integer resultCacheTimeout = DEFAULT_RESULT_CACHE_TIMEOUT;
+  
+  /**
+   * A result set stored in the {@link #resultCache}.
+   */
+  private static class CachedResultSet {
+    private final SPARQLResultSet resultSet;
+    
+    /**
+     * The time (as returned by {@link System#currentTimeMillis()}) after 
+     * which this result set should no longer be used.
+     */
+    private final long expiryTime;
+
+    private CachedResultSet(SPARQLResultSet resultSet, long expiryTime) {
+      this.resultSet = resultSet;
+      this.expiryTime = expiryTime;
+    }
+  }
+  
+  /**
+   * Cache for the results of recent SPARQL queries, keyed by the full query
+   * sent to the endpoint (including prefix and suffix), in access order.
+   */
+  private transient Map<String, CachedResultSet> resultCache;
+  
   /**
    * See {@link #setQueryPrefix(String)}
    * @return
@@ -200,6 +264,40 @@ public class SPARQLSemanticAnnotationHelper extends
     this.sparqlFeatureName = sparqlFeatureName;
   }
 
+  /**
+   * Gets the maximum number of SPARQL result sets kept in the result cache.
+   */
+  public int getResultCacheSize() {
+    return resultCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of SPARQL result sets kept in the result cache.
+   * Recent results are re-used when the same query is run again (e.g. when 
+   * the same search is run on several sub-indexes, or when a user pages 
+   * through results). Set to 0 to disable the cache. Defaults to 
+   * {@link #DEFAULT_RESULT_CACHE_SIZE}.
+   */
+  public void setResultCacheSize(int resultCacheSize) {
+    this.resultCacheSize = resultCacheSize;
+  }
+
+  /**
+   * Gets the number of seconds for which cached SPARQL results are used.
+   */
+  public int getResultCacheTimeout() {
+    return resultCacheTimeout;
+  }
+
+  /**
+   * Sets the number of seconds for which cached SPARQL results are used, 
+   * before the query is sent to the endpoint again. Defaults to 
+   * {@link #DEFAULT_RESULT_CACHE_TIMEOUT}.
+   */
+  public void setResultCacheTimeout(int resultCacheTimeout) {
+    this.resultCacheTimeout = resultCacheTimeout;
+  }
+
   /* (non-Javadoc)
    * @see gate.mimir.util.DelegatingSemanticAnnotationHelper#getNominalFeatures()
    */
@@ -235,6 +333,12 @@ public class SPARQLSemanticAnnotationHelper extends
     if(sparqlFeatureName == null){
       sparqlFeatureName = DEFAULT_SPARQL_QUERY_FEATURE_NAME;
     }
+    if(resultCacheSize == null) {
+      resultCacheSize = DEFAULT_RESULT_CACHE_SIZE;
+    }
+    if(resultCacheTimeout == null) {
+      resultCacheTimeout = DEFAULT_RESULT_CACHE_TIMEOUT;
+    }
     return this;
   }
   
@@ -256,13 +360,21 @@ public class SPARQLSemanticAnnotationHelper extends
     if(sparqlRequestMethod == null) {
       sparqlRequestMethod = RequestMethod.GET;
     }
+    resultCache = Collections.synchronizedMap(
+        new LinkedHashMap<String, CachedResultSet>(16, 0.75f, true) {
+      private static final long serialVersionUID = 4270539441566458093L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, CachedResultSet> eldest) {
+        return size() > resultCacheSize;
+      }
+    });
   }
 
   @Override
   public List<Mention> getMentions(String annotationType,
       List<Constraint> constraints, QueryEngine engine) {
-    // Accumulate the mentions in a set, so that we remove duplicates.
-    Set<Mention> mentions = new HashSet<Mention>();
     List<Constraint> passThroughConstraints = new ArrayList<Constraint>();
     String query = null;
     String originalQuery = null;
@@ -279,32 +391,57 @@ public class SPARQLSemanticAnnotationHelper extends
       // no SPARQL constraints in this query
       return delegate.getMentions(annotationType, constraints, engine);
     } else {
-      // run the query on the SPARQL endpoint
+      // Accumulate the mentions in a set, so that we remove duplicates.
+      Set<Mention> mentions = new LinkedHashSet<Mention>();
       try {
-        SPARQLResultSet srs = runQuery(query);
-        // check for errors
-        for(int i = 0; i < srs.getColumnNames().length; i++) {
-          if(srs.getColumnNames()[i].equals("error-message")) {
-            // we have an error message
-            String errorMessage = (srs.getRows().length > 0 &&  
-                srs.getRows()[0].length > i) ? srs.getRows()[0][i] : null;
-            throw new IllegalArgumentException("Query \"" + originalQuery + 
-                "\" resulted in an error" + 
-                (errorMessage != null ? (":\n" + errorMessage) : "."));
+        SPARQLResultSet srs = getCachedResultSet(query);
+        if(srs != null) {
+          List<String[]> rows = Arrays.asList(srs.getRows());
+          for(int start = 0; start < rows.size(); start += ROW_BLOCK_SIZE) {
+            resolveRows(annotationType, passThroughConstraints, 
+                srs.getColumnNames(), rows.subList(start, 
+                    Math.min(rows.size(), start + ROW_BLOCK_SIZE)), 
+                engine, mentions);
           }
-        }
-        // convert each result row into a query for the delegate
-        if(srs.getRows() != null) {
-          for(String[] aRow : srs.getRows()) {
-            List<Constraint> delegateConstraints =
-                new ArrayList<Constraint>(passThroughConstraints);
-            for(int i = 0; i < srs.getColumnNames().length; i++) {
-              delegateConstraints.add(new Constraint(ConstraintType.EQ, srs
-                  .getColumnNames()[i], aRow[i]));
+        } else {
+          // run the query on the SPARQL endpoint, and resolve the rows in 
+          // blocks, as they arrive
+          SPARQLResultStream stream = openQuery(query);
+          try {
+            String[] columnNames = stream.getColumnNames();
+            String[] aRow = stream.nextRow();
+            checkForErrors(columnNames, aRow, originalQuery);
+            // the rows to be cached, if not too many
+            List<String[]> allRows = resultCacheSize > 0 ? 
+                new ArrayList<String[]>() : null;
+            List<String[]> block = new ArrayList<String[]>(ROW_BLOCK_SIZE);
+            while(aRow != null) {
+              block.add(aRow);
+              if(allRows != null) {
+                if(allRows.size() < MAX_CACHED_ROWS) {
+                  allRows.add(aRow);
+                } else {
+                  allRows = null;
+                }
+              }
+              if(block.size() == ROW_BLOCK_SIZE) {
+                resolveRows(annotationType, passThroughConstraints, 
+                    columnNames, block, engine, mentions);
+                block.clear();
+              }
+              aRow = stream.nextRow();
             }
-            mentions.addAll(delegate.getMentions(annotationType, 
-                delegateConstraints, engine));
-          }          
+            if(!block.isEmpty()) {
+              resolveRows(annotationType, passThroughConstraints, 
+                  columnNames, block, engine, mentions);
+            }
+            if(allRows != null) {
+              cacheResultSet(query, new SPARQLResultSet(columnNames, 
+                  allRows.toArray(new String[allRows.size()][])));
+            }
+          } finally {
+            stream.close();
+          }
         }
       } catch(IOException e) {
         logger.error(
@@ -319,9 +456,94 @@ public class SPARQLSemanticAnnotationHelper extends
       return new ArrayList<Mention>(mentions);
     }
   }
+  
+  /**
+   * Finds the mentions for a block of SPARQL result rows, by converting each
+   * row into a set of constraints for the delegate.
+   * @param mentions the set to which the mentions found are added.
+   */
+  protected void resolveRows(String annotationType, 
+      List<Constraint> passThroughConstraints, String[] columnNames,
+      List<String[]> rows, QueryEngine engine, Set<Mention> mentions) {
+    List<List<Constraint>> alternatives = 
+        new ArrayList<List<Constraint>>(rows.size());
+    for(String[] aRow : rows) {
+      List<Constraint> rowConstraints = 
+          new ArrayList<Constraint>(columnNames.length);
+      for(int i = 0; i < columnNames.length; i++) {
+        rowConstraints.add(new Constraint(ConstraintType.EQ, columnNames[i], 
+            aRow[i]));
+      }
+      alternatives.add(rowConstraints);
+    }
+    if(delegate instanceof AbstractSemanticAnnotationHelper) {
+      // let the delegate resolve all the rows at once
+      mentions.addAll(((AbstractSemanticAnnotationHelper)delegate).getMentions(
+          annotationType, passThroughConstraints, alternatives, engine));
+    } else {
+      for(List<Constraint> rowConstraints : alternatives) {
+        List<Constraint> delegateConstraints =
+            new ArrayList<Constraint>(passThroughConstraints);
+        delegateConstraints.addAll(rowConstraints);
+        mentions.addAll(delegate.getMentions(annotationType, 
+            delegateConstraints, engine));
+      }
+    }
+  }
+  
+  /**
+   * Checks whether the SPARQL endpoint returned an error message instead of
+   * query results.
+   * @param columnNames the column names returned by the endpoint.
+   * @param firstRow the first result row (may be <code>null</code>).
+   * @param originalQuery the query as supplied by the user (used for the
+   * error message).
+   * @throws IllegalArgumentException if the endpoint returned an error 
+   * message.
+   */
+  protected void checkForErrors(String[] columnNames, String[] firstRow, 
+      String originalQuery) {
+    for(int i = 0; i < columnNames.length; i++) {
+      if(columnNames[i].equals("error-message")) {
+        // we have an error message
+        String errorMessage = (firstRow != null && firstRow.length > i) ? 
+            firstRow[i] : null;
+        throw new IllegalArgumentException("Query \"" + originalQuery + 
+            "\" resulted in an error" + 
+            (errorMessage != null ? (":\n" + errorMessage) : "."));
+      }
+    }
+  }
+  
+  /**
+   * Gets the results for a query from the result cache.
+   * @param query the query sent to the endpoint.
+   * @return the cached results, or <code>null</code> if the query is not in 
+   * the cache, or the cached results have expired.
+   */
+  protected SPARQLResultSet getCachedResultSet(String query) {
+    if(resultCache == null || resultCacheSize <= 0) return null;
+    CachedResultSet cached = resultCache.get(query);
+    if(cached == null) return null;
+    if(cached.expiryTime > System.currentTimeMillis()) {
+      return cached.resultSet;
+    } else {
+      resultCache.remove(query);
+      return null;
+    }
+  }
+  
+  /**
+   * Adds the results for a query to the result cache.
+   */
+  protected void cacheResultSet(String query, SPARQLResultSet srs) {
+    if(resultCache == null || resultCacheSize <= 0) return;
+    resultCache.put(query, new CachedResultSet(srs, 
+        System.currentTimeMillis() + resultCacheTimeout * 1000L));
+  }
 
   /**
-   * Runs a query against the SPARQL endpoint and returns the results.
+   * Runs a query against the SPARQL endpoint and returns all the results.
    * 
    * @param query
    * @return
@@ -329,6 +551,19 @@ public class SPARQLSemanticAnnotationHelper extends
    */
   protected SPARQLResultSet runQuery(String query) throws IOException,
       XMLStreamException {
+    return new SPARQLResultSet(openQuery(query));
+  }
+
+  /**
+   * Sends a query to the SPARQL endpoint, and returns a stream for reading
+   * the results as they arrive. The caller must close the returned stream.
+   * 
+   * @param query
+   * @return
+   * @throws XMLStreamException
+   */
+  protected SPARQLResultStream openQuery(String query) throws IOException,
+      XMLStreamException {
     try {
       String urlStr = sparqlEndpoint;
       String requestBody = null;
@@ -373,7 +608,7 @@ public class SPARQLSemanticAnnotationHelper extends
           urlOut.close();
         }
       }
-      return new SPARQLResultSet(urlConn.getInputStream());
+      return new SPARQLResultStream(urlConn.getInputStream());
     } catch(UnsupportedEncodingException e) {
       // like that's gonna happen...
       throw new RuntimeException("UTF-8 encoding not supported by this JVM");